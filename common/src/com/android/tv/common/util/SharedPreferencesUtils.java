@@ -36,6 +36,8 @@ public final class SharedPreferencesUtils {
     public static final String SHARED_PREF_SERIES_RECORDINGS = "seriesRecordings";
     /** No need to pre-initialize. It's used only on the worker thread. */
     public static final String SHARED_PREF_CHANNEL_LOGO_URIS = "channelLogoUris";
+    /** No need to pre-initialize. It's used only on the worker thread. */
+    public static final String SHARED_PREF_EPG_FINGERPRINTS = "epgFingerprints";
     /** Stores the UI related settings */
     public static final String SHARED_PREF_UI_SETTINGS = "ui_settings";
 
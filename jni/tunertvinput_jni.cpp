@@ -183,6 +183,47 @@ JNIEXPORT jint JNICALL Java_com_android_tv_tuner_TunerHal_nativeWriteInBuffer(
   return dataSize;
 }
 
+/*
+ * Class:     com_android_tv_tuner_TunerHal
+ * Method:    nativeWriteInDirectBuffer
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_android_tv_tuner_TunerHal_nativeWriteInDirectBuffer(
+    JNIEnv *env, jobject thiz, jlong deviceId, jobject directBuffer, jint offset,
+    jint size) {
+  std::map<jlong, DvbManager *>::iterator it = sDvbManagers.find(deviceId);
+  if (it == sDvbManagers.end()) {
+    return -1;
+  }
+  DvbManager *dvbManager = it->second;
+
+  uint8_t *bufferAddress = (uint8_t *)env->GetDirectBufferAddress(directBuffer);
+  jlong bufferCapacity = env->GetDirectBufferCapacity(directBuffer);
+  if (bufferAddress == NULL || offset < 0 || size < 0 ||
+      offset + size > bufferCapacity) {
+    ALOGE("Invalid direct buffer");
+    return -1;
+  }
+
+  // Read multiple of TS_PACKET_SIZE unless less than a packet is left in the buffer.
+  if (size >= TS_PACKET_SIZE) {
+    size = (size / TS_PACKET_SIZE) * TS_PACKET_SIZE;
+  }
+
+  // Reads straight into the Java direct buffer, so no intermediate copy is needed.
+  int dataSize = dvbManager->readTsStream(env, thiz, bufferAddress + offset,
+                                          size, READ_TIMEOUT_MS);
+  if (dataSize == 0) {
+    ALOGD("No data to read DVR");
+    return 0;
+  } else if (dataSize < 0) {
+    return -1;
+  }
+
+  sTotalBytesFetched += dataSize;
+  return dataSize;
+}
+
 /*
  * Class:     com_android_tv_tuner_TunerHal
  * Method:    nativeSetHasPendingTune
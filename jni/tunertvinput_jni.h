@@ -148,6 +148,14 @@ JNIEXPORT void JNICALL Java_com_android_tv_tuner_TunerHal_nativeStopTune
 JNIEXPORT jint JNICALL Java_com_android_tv_tuner_TunerHal_nativeWriteInBuffer
   (JNIEnv *, jobject, jlong, jbyteArray, jint);
 
+/*
+ * Class:     com_android_tv_tuner_TunerHal
+ * Method:    nativeWriteInDirectBuffer
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_android_tv_tuner_TunerHal_nativeWriteInDirectBuffer
+  (JNIEnv *, jobject, jlong, jobject, jint, jint);
+
 #ifdef __cplusplus
 }
 #endif
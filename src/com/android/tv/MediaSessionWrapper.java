@@ -203,6 +203,7 @@ class MediaSessionWrapper {
                     posterArtUri,
                     mNowPlayingCardWidth,
                     mNowPlayingCardHeight,
+                    ImageLoader.PRIORITY_BACKGROUND,
                     new ProgramPosterArtCallback(
                             this, currentChannel, currentProgram, cardTitleText));
         } else {
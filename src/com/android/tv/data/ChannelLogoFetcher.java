@@ -162,6 +162,8 @@ public class ChannelLogoFetcher {
                     // retry next time.
                     sharedPreferencesEditor.remove(Long.toString(channel.getId()));
                     continue;
+                } finally {
+                    BitmapUtils.releaseBitmap(bitmapInfo.bitmap);
                 }
                 if (DEBUG) {
                     Log.d(
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.data;
+
+import android.database.Cursor;
+import android.support.annotation.Nullable;
+
+import com.android.tv.data.api.Program;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable list of the programs of a channel sorted by the start time, which keeps the
+ * programs in columns of primitive arrays instead of {@link Program} objects.
+ *
+ * <p>The programs read with {@link ProgramImpl#PARTIAL_PROJECTION} are kept only in the columns,
+ * and a {@link Program} is created when one of them is got from the list. The programs created
+ * last are cached for the consecutive programs, like the ones around the current time, so getting
+ * them again returns the same objects. Other programs, like the ones with complete data or the
+ * dummy programs, are kept as they are.
+ */
+final class CompactProgramList extends AbstractList<Program> implements RandomAccess {
+    // The indexes of the columns of ProgramImpl.PARTIAL_PROJECTION, which must match its order.
+    private static final int PARTIAL_PROJECTION_ID = 0;
+    static final int PARTIAL_PROJECTION_CHANNEL_ID = 1;
+    private static final int PARTIAL_PROJECTION_TITLE = 2;
+    private static final int PARTIAL_PROJECTION_EPISODE_TITLE = 3;
+    private static final int PARTIAL_PROJECTION_CANONICAL_GENRE = 4;
+    static final int PARTIAL_PROJECTION_START_TIME = 5;
+    static final int PARTIAL_PROJECTION_END_TIME = 6;
+
+    // The number of the cached programs created from the columns. It covers the programs of more
+    // than half a day, which is longer than the program guide shows at once.
+    private static final int VIEW_CACHE_SIZE = 32;
+
+    private final long mChannelId;
+    private final int mSize;
+    private final long[] mIds;
+    private final long[] mStartTimesUtcMillis;
+    private final long[] mEndTimesUtcMillis;
+    private final String[] mTitles;
+    private final String[] mEpisodeTitles;
+    private final String[] mCanonicalGenres;
+    // The programs which are kept as they are, or null if there's none.
+    @Nullable private final Program[] mPrograms;
+    // The programs created from the columns, at index % its length. Created when first needed.
+    @Nullable private AtomicReferenceArray<Program> mViewCache;
+
+    private CompactProgramList(Builder builder) {
+        mChannelId = builder.mChannelId;
+        mSize = builder.mSize;
+        mIds = Arrays.copyOf(builder.mIds, mSize);
+        mStartTimesUtcMillis = Arrays.copyOf(builder.mStartTimesUtcMillis, mSize);
+        mEndTimesUtcMillis = Arrays.copyOf(builder.mEndTimesUtcMillis, mSize);
+        mTitles = Arrays.copyOf(builder.mTitles, mSize);
+        mEpisodeTitles = Arrays.copyOf(builder.mEpisodeTitles, mSize);
+        mCanonicalGenres = Arrays.copyOf(builder.mCanonicalGenres, mSize);
+        mPrograms = builder.mHasPrograms ? Arrays.copyOf(builder.mPrograms, mSize) : null;
+    }
+
+    @Override
+    public Program get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index=" + index + ", size=" + mSize);
+        }
+        if (mPrograms != null && mPrograms[index] != null) {
+            return mPrograms[index];
+        }
+        AtomicReferenceArray<Program> viewCache = mViewCache;
+        if (viewCache == null) {
+            // The list may be read on several threads, but losing one of the caches is harmless.
+            viewCache = new AtomicReferenceArray<>(Math.min(mSize, VIEW_CACHE_SIZE));
+            mViewCache = viewCache;
+        }
+        int slot = index % viewCache.length();
+        Program program = viewCache.get(slot);
+        if (program == null
+                || program.getId() != mIds[index]
+                || program.getStartTimeUtcMillis() != mStartTimesUtcMillis[index]) {
+            // Same as ProgramImpl.fromCursorPartialProjection.
+            program =
+                    new ProgramImpl.Builder()
+                            .setId(mIds[index])
+                            .setChannelId(mChannelId)
+                            .setTitle(mTitles[index])
+                            .setEpisodeTitle(mEpisodeTitles[index])
+                            .setCanonicalGenres(mCanonicalGenres[index])
+                            .setStartTimeUtcMillis(mStartTimesUtcMillis[index])
+                            .setEndTimeUtcMillis(mEndTimesUtcMillis[index])
+                            .build();
+            viewCache.set(slot, program);
+        }
+        return program;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    long getStartTimeUtcMillis(int index) {
+        return mStartTimesUtcMillis[index];
+    }
+
+    long getEndTimeUtcMillis(int index) {
+        return mEndTimesUtcMillis[index];
+    }
+
+    /**
+     * Returns the index of the program that is played at the specified time. If there isn't,
+     * returns the index of the first program among programs that start after the given time.
+     */
+    int getIndexAt(long timeMs) {
+        int index = Arrays.binarySearch(mStartTimesUtcMillis, 0, mSize, timeMs);
+        if (index < 0) {
+            index = -(index + 1); // change it to index to be added.
+            if (index > 0
+                    && mStartTimesUtcMillis[index - 1] <= timeMs
+                    && timeMs <= mEndTimesUtcMillis[index - 1]) {
+                // A program is played at that time.
+                return index - 1;
+            }
+        }
+        return index;
+    }
+
+    /** Returns whether any of the programs has one of the given ids. */
+    boolean containsAnyId(Set<Long> programIds) {
+        for (int i = 0; i < mSize; ++i) {
+            if (programIds.contains(mIds[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builder for {@link CompactProgramList}. The programs should be added in the order of the
+     * start time.
+     */
+    static final class Builder {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final long mChannelId;
+        // Shares the same strings among the programs, since the titles and the genres are
+        // repeated a lot in a lineup.
+        private final Map<String, String> mStringPool;
+        private int mSize;
+        private long[] mIds = new long[INITIAL_CAPACITY];
+        private long[] mStartTimesUtcMillis = new long[INITIAL_CAPACITY];
+        private long[] mEndTimesUtcMillis = new long[INITIAL_CAPACITY];
+        private String[] mTitles = new String[INITIAL_CAPACITY];
+        private String[] mEpisodeTitles = new String[INITIAL_CAPACITY];
+        private String[] mCanonicalGenres = new String[INITIAL_CAPACITY];
+        private Program[] mPrograms = new Program[INITIAL_CAPACITY];
+        private boolean mHasPrograms;
+
+        Builder(long channelId) {
+            this(channelId, new HashMap<>());
+        }
+
+        /**
+         * @param channelId the ID of the channel of the programs
+         * @param stringPool the pool of the strings, which can be shared by the builders
+         */
+        Builder(long channelId, Map<String, String> stringPool) {
+            mChannelId = channelId;
+            mStringPool = stringPool;
+        }
+
+        /**
+         * Adds a program from the cursor of {@link ProgramImpl#PARTIAL_PROJECTION}, without
+         * creating a {@link Program}.
+         */
+        Builder addPartialProjection(Cursor cursor) {
+            int index = nextIndex();
+            mIds[index] = cursor.getLong(PARTIAL_PROJECTION_ID);
+            mTitles[index] = pool(cursor.getString(PARTIAL_PROJECTION_TITLE));
+            mEpisodeTitles[index] = pool(cursor.getString(PARTIAL_PROJECTION_EPISODE_TITLE));
+            mCanonicalGenres[index] = pool(cursor.getString(PARTIAL_PROJECTION_CANONICAL_GENRE));
+            mStartTimesUtcMillis[index] = cursor.getLong(PARTIAL_PROJECTION_START_TIME);
+            mEndTimesUtcMillis[index] = cursor.getLong(PARTIAL_PROJECTION_END_TIME);
+            return this;
+        }
+
+        /** Adds a program which is kept as it is. */
+        Builder add(Program program) {
+            int index = nextIndex();
+            mIds[index] = program.getId();
+            mStartTimesUtcMillis[index] = program.getStartTimeUtcMillis();
+            mEndTimesUtcMillis[index] = program.getEndTimeUtcMillis();
+            mPrograms[index] = program;
+            mHasPrograms = true;
+            return this;
+        }
+
+        /** Adds the program at the index of the list, without creating a {@link Program}. */
+        Builder addFrom(CompactProgramList list, int from) {
+            int index = nextIndex();
+            mIds[index] = list.mIds[from];
+            mStartTimesUtcMillis[index] = list.mStartTimesUtcMillis[from];
+            mEndTimesUtcMillis[index] = list.mEndTimesUtcMillis[from];
+            mTitles[index] = list.mTitles[from];
+            mEpisodeTitles[index] = list.mEpisodeTitles[from];
+            mCanonicalGenres[index] = list.mCanonicalGenres[from];
+            if (list.mPrograms != null && list.mPrograms[from] != null) {
+                mPrograms[index] = list.mPrograms[from];
+                mHasPrograms = true;
+            }
+            return this;
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        CompactProgramList build() {
+            return new CompactProgramList(this);
+        }
+
+        private int nextIndex() {
+            if (mSize == mIds.length) {
+                int capacity = mSize * 2;
+                mIds = Arrays.copyOf(mIds, capacity);
+                mStartTimesUtcMillis = Arrays.copyOf(mStartTimesUtcMillis, capacity);
+                mEndTimesUtcMillis = Arrays.copyOf(mEndTimesUtcMillis, capacity);
+                mTitles = Arrays.copyOf(mTitles, capacity);
+                mEpisodeTitles = Arrays.copyOf(mEpisodeTitles, capacity);
+                mCanonicalGenres = Arrays.copyOf(mCanonicalGenres, capacity);
+                mPrograms = Arrays.copyOf(mPrograms, capacity);
+            }
+            return mSize++;
+        }
+
+        @Nullable
+        private String pool(@Nullable String string) {
+            if (string == null) {
+                return null;
+            }
+            String pooled = mStringPool.get(string);
+            if (pooled == null) {
+                mStringPool.put(string, string);
+                pooled = string;
+            }
+            return pooled;
+        }
+    }
+}
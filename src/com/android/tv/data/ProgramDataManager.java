@@ -17,6 +17,7 @@
 package com.android.tv.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
@@ -28,11 +29,12 @@ import android.os.Looper;
 import android.os.Message;
 import android.support.annotation.AnyThread;
 import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
 import android.util.ArraySet;
 import android.util.Log;
 import android.util.LongSparseArray;
-import android.util.LruCache;
 
 import com.android.tv.TvSingletons;
 import com.android.tv.common.SoftPreconditions;
@@ -47,6 +49,7 @@ import com.android.tv.util.AsyncDbTask;
 import com.android.tv.util.MultiLongSparseArray;
 import com.android.tv.util.TvInputManagerHelper;
 import com.android.tv.util.TvProviderUtils;
+import com.android.tv.util.TvUriMatcher;
 import com.android.tv.util.Utils;
 
 import com.android.tv.common.flags.BackendKnobsFlags;
@@ -56,7 +59,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -106,6 +108,10 @@ public class ProgramDataManager implements MemoryManageable {
                     + Programs._ID
                     + " DESC";
 
+    // Beyond these, refreshing all the channels is cheaper than refreshing the changed ones.
+    private static final int MAX_CHANGED_PROGRAM_COUNT = 1000;
+    private static final int MAX_PARTIAL_PREFETCH_CHANNEL_COUNT = 50;
+
     private static final int MSG_UPDATE_CURRENT_PROGRAMS = 1000;
     private static final int MSG_UPDATE_ONE_CURRENT_PROGRAM = 1001;
     private static final int MSG_UPDATE_PREFETCH_PROGRAM = 1002;
@@ -122,15 +128,26 @@ public class ProgramDataManager implements MemoryManageable {
     private boolean mStarted;
     // Updated only on the main thread.
     private volatile boolean mCurrentProgramsLoadFinished;
-    private ProgramsUpdateTask mProgramsUpdateTask;
+    // Either a ProgramsUpdateTask or a ChangedChannelsUpdateTask.
+    private AsyncDbTask<?, ?, ?> mProgramsUpdateTask;
     private final LongSparseArray<UpdateCurrentProgramForChannelTask> mProgramUpdateTaskMap =
             new LongSparseArray<>();
+    // The boxed channel ids of MSG_UPDATE_ONE_CURRENT_PROGRAM, since the handler compares message
+    // objects by identity when it removes messages.
+    private final LongSparseArray<Long> mUpdateOneCurrentProgramTokens = new LongSparseArray<>();
+    // The programs changed since the current programs and the prefetched programs are refreshed.
+    private final ProgramChanges mCurrentProgramChanges = new ProgramChanges();
+    private final ProgramChanges mPrefetchProgramChanges = new ProgramChanges();
+    private int mFullCurrentProgramsUpdateCount;
+    private int mPartialCurrentProgramsUpdateCount;
+    private int mFullPrefetchCount;
+    private int mPartialPrefetchCount;
     private final Map<Long, Program> mChannelIdCurrentProgramMap = new ConcurrentHashMap<>();
     private final MultiLongSparseArray<OnCurrentProgramUpdatedListener>
             mChannelId2ProgramUpdatedListeners = new MultiLongSparseArray<>();
     private final Handler mHandler;
     private final Set<Callback> mCallbacks = new ArraySet<>();
-    private Map<Long, ArrayList<Program>> mChannelIdProgramCache = new ConcurrentHashMap<>();
+    private Map<Long, CompactProgramList> mChannelIdProgramCache = new ConcurrentHashMap<>();
     private final Set<Long> mCompleteInfoChannelIds = new HashSet<>();
     private final ContentObserver mProgramObserver;
 
@@ -138,6 +155,10 @@ public class ProgramDataManager implements MemoryManageable {
     private long mProgramPrefetchUpdateWaitMs;
     private long mLastPrefetchTaskRunMs;
     private ProgramsPrefetchTask mProgramsPrefetchTask;
+    // The time range of the programs in the cache. Only the changed channels are fetched again
+    // while the range stays the same.
+    private long mPrefetchStartTimeMs;
+    private long mPrefetchEndTimeMs;
 
     // Any program that ends prior to this time will be removed from the cache
     // when a channel's current program is updated.
@@ -145,7 +166,6 @@ public class ProgramDataManager implements MemoryManageable {
     private long mPrefetchTimeRangeStartMs;
 
     private boolean mPauseProgramUpdate = false;
-    private final LruCache<Long, Program> mZeroLengthProgramCache = new LruCache<>(10);
     // Current tuned channel.
     private long mTunedChannelId;
     // Hours of data to be fetched, it is updated during horizontal scroll.
@@ -190,6 +210,13 @@ public class ProgramDataManager implements MemoryManageable {
                 new ContentObserver(mHandler) {
                     @Override
                     public void onChange(boolean selfChange) {
+                        onChange(selfChange, null);
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, @Nullable Uri uri) {
+                        mCurrentProgramChanges.add(uri);
+                        mPrefetchProgramChanges.add(uri);
                         if (!mHandler.hasMessages(MSG_UPDATE_CURRENT_PROGRAMS)) {
                             mHandler.sendEmptyMessage(MSG_UPDATE_CURRENT_PROGRAMS);
                         }
@@ -225,6 +252,30 @@ public class ProgramDataManager implements MemoryManageable {
         mProgramPrefetchUpdateWaitMs = programPrefetchUpdateWaitMs;
     }
 
+    /** Returns the number of times the current programs of all the channels are updated. */
+    @VisibleForTesting
+    int getFullCurrentProgramsUpdateCount() {
+        return mFullCurrentProgramsUpdateCount;
+    }
+
+    /** Returns the number of times the current programs of the changed channels are updated. */
+    @VisibleForTesting
+    int getPartialCurrentProgramsUpdateCount() {
+        return mPartialCurrentProgramsUpdateCount;
+    }
+
+    /** Returns the number of times the programs of all the channels are prefetched. */
+    @VisibleForTesting
+    int getFullPrefetchCount() {
+        return mFullPrefetchCount;
+    }
+
+    /** Returns the number of times the programs of the changed channels are prefetched. */
+    @VisibleForTesting
+    int getPartialPrefetchCount() {
+        return mPartialPrefetchCount;
+    }
+
     /** Starts the manager. */
     public void start() {
         if (mStarted) {
@@ -253,6 +304,9 @@ public class ProgramDataManager implements MemoryManageable {
         mStarted = false;
         mContentResolver.unregisterContentObserver(mProgramObserver);
         mHandler.removeCallbacksAndMessages(null);
+        // Changes are not observed until the manager is started again.
+        mCurrentProgramChanges.setAllChanged();
+        mPrefetchProgramChanges.setAllChanged();
 
         clearTask(mProgramUpdateTaskMap);
         cancelPrefetchTask();
@@ -281,6 +335,8 @@ public class ProgramDataManager implements MemoryManageable {
 
     /** Reloads program data. */
     public void reload() {
+        mCurrentProgramChanges.setAllChanged();
+        mPrefetchProgramChanges.setAllChanged();
         if (!mHandler.hasMessages(MSG_UPDATE_CURRENT_PROGRAMS)) {
             mHandler.sendEmptyMessage(MSG_UPDATE_CURRENT_PROGRAMS);
         }
@@ -339,10 +395,10 @@ public class ProgramDataManager implements MemoryManageable {
     private boolean isHorizontalLoadNeeded(
             long startTimeMs, long channelId, int selectedProgramIndex) {
         if (mChannelIdProgramCache.containsKey(channelId)) {
-            ArrayList<Program> programs = mChannelIdProgramCache.get(channelId);
+            CompactProgramList programs = mChannelIdProgramCache.get(channelId);
             long marginEndTime = startTimeMs + mMaxFetchHoursMs - BUFFER_HOURS_MS;
             return programs.size() > selectedProgramIndex &&
-                    programs.get(selectedProgramIndex).getEndTimeUtcMillis() > marginEndTime;
+                    programs.getEndTimeUtcMillis(selectedProgramIndex) > marginEndTime;
         }
         return false;
     }
@@ -386,6 +442,7 @@ public class ProgramDataManager implements MemoryManageable {
         if (enable) {
             mPrefetchEnabled = true;
             mLastPrefetchTaskRunMs = 0;
+            mPrefetchProgramChanges.setAllChanged();
             if (mStarted) {
                 mHandler.sendEmptyMessage(MSG_UPDATE_PREFETCH_PROGRAM);
             }
@@ -407,41 +464,12 @@ public class ProgramDataManager implements MemoryManageable {
      */
     public List<Program> getPrograms(long channelId, long startTime) {
         SoftPreconditions.checkState(mPrefetchEnabled, TAG, "Prefetch is disabled.");
-        ArrayList<Program> cachedPrograms = mChannelIdProgramCache.get(channelId);
+        CompactProgramList cachedPrograms = mChannelIdProgramCache.get(channelId);
         if (cachedPrograms == null) {
             return Collections.emptyList();
         }
-        int startIndex = getProgramIndexAt(cachedPrograms, startTime);
-        return Collections.unmodifiableList(
-                cachedPrograms.subList(startIndex, cachedPrograms.size()));
-    }
-
-    /**
-     * Returns the index of program that is played at the specified time.
-     *
-     * <p>If there isn't, return the first program among programs that starts after the given time
-     * if returnNextProgram is {@code true}.
-     */
-    private int getProgramIndexAt(List<Program> programs, long time) {
-        Program key = mZeroLengthProgramCache.get(time);
-        if (key == null) {
-            key = createDummyProgram(time, time);
-            mZeroLengthProgramCache.put(time, key);
-        }
-        int index = Collections.binarySearch(programs, key);
-        if (index < 0) {
-            index = -(index + 1); // change it to index to be added.
-            if (index > 0 && isProgramPlayedAt(programs.get(index - 1), time)) {
-                // A program is played at that time.
-                return index - 1;
-            }
-            return index;
-        }
-        return index;
-    }
-
-    private boolean isProgramPlayedAt(Program program, long time) {
-        return program.getStartTimeUtcMillis() <= time && time <= program.getEndTimeUtcMillis();
+        int startIndex = cachedPrograms.getIndexAt(startTime);
+        return cachedPrograms.subList(startIndex, cachedPrograms.size());
     }
 
     /**
@@ -498,8 +526,18 @@ public class ProgramDataManager implements MemoryManageable {
         } else {
             delayedTime = program.getEndTimeUtcMillis() - mClock.currentTimeMillis();
         }
+        sendUpdateOneCurrentProgramMessage(channelId, delayedTime);
+    }
+
+    private void sendUpdateOneCurrentProgramMessage(long channelId, long delayMs) {
+        Long token = mUpdateOneCurrentProgramTokens.get(channelId);
+        if (token == null) {
+            token = channelId;
+            mUpdateOneCurrentProgramTokens.put(channelId, token);
+        }
+        mHandler.removeMessages(MSG_UPDATE_ONE_CURRENT_PROGRAM, token);
         mHandler.sendMessageDelayed(
-                mHandler.obtainMessage(MSG_UPDATE_ONE_CURRENT_PROGRAM, channelId), delayedTime);
+                mHandler.obtainMessage(MSG_UPDATE_ONE_CURRENT_PROGRAM, token), delayMs);
     }
 
     private void removePreviousProgramsAndUpdateCurrentProgramInCache(
@@ -508,51 +546,53 @@ public class ProgramDataManager implements MemoryManageable {
         if (!Program.isProgramValid(currentProgram)) {
             return;
         }
-        ArrayList<Program> cachedPrograms = mChannelIdProgramCache.remove(channelId);
+        CompactProgramList cachedPrograms = mChannelIdProgramCache.get(channelId);
         if (cachedPrograms == null) {
             return;
         }
-        ListIterator<Program> i = cachedPrograms.listIterator();
-        while (i.hasNext()) {
-            Program cachedProgram = i.next();
-            if (cachedProgram.getEndTimeUtcMillis() <= mPrefetchTimeRangeStartMs) {
+        CompactProgramList.Builder builder = new CompactProgramList.Builder(channelId);
+        int size = cachedPrograms.size();
+        int i = 0;
+        for (; i < size; ++i) {
+            long cachedStartTimeMs = cachedPrograms.getStartTimeUtcMillis(i);
+            long cachedEndTimeMs = cachedPrograms.getEndTimeUtcMillis(i);
+            if (cachedEndTimeMs <= mPrefetchTimeRangeStartMs) {
                 // Remove previous programs which will not be shown in program guide.
-                i.remove();
                 continue;
             }
 
-            if (cachedProgram.getEndTimeUtcMillis() <= currentProgram.getStartTimeUtcMillis()) {
+            if (cachedEndTimeMs <= currentProgram.getStartTimeUtcMillis()) {
                 // Keep the programs that ends earlier than current program
                 // but later than mPrefetchTimeRangeStartMs.
+                builder.addFrom(cachedPrograms, i);
                 continue;
             }
 
             // Update dummy program around current program if any.
-            if (cachedProgram.getStartTimeUtcMillis() < currentProgram.getStartTimeUtcMillis()) {
+            if (cachedStartTimeMs < currentProgram.getStartTimeUtcMillis()) {
                 // The dummy program starts earlier than the current program. Adjust its end time.
-                i.set(
+                builder.add(
                         createDummyProgram(
-                                cachedProgram.getStartTimeUtcMillis(),
-                                currentProgram.getStartTimeUtcMillis()));
-                i.add(currentProgram);
-            } else {
-                i.set(currentProgram);
+                                cachedStartTimeMs, currentProgram.getStartTimeUtcMillis()));
             }
-            if (currentProgram.getEndTimeUtcMillis() < cachedProgram.getEndTimeUtcMillis()) {
+            builder.add(currentProgram);
+            if (currentProgram.getEndTimeUtcMillis() < cachedEndTimeMs) {
                 // The dummy program ends later than the current program. Adjust its start time.
-                i.add(
-                        createDummyProgram(
-                                currentProgram.getEndTimeUtcMillis(),
-                                cachedProgram.getEndTimeUtcMillis()));
+                builder.add(
+                        createDummyProgram(currentProgram.getEndTimeUtcMillis(), cachedEndTimeMs));
             }
+            ++i;
             break;
         }
-        if (cachedPrograms.isEmpty()) {
+        for (; i < size; ++i) {
+            builder.addFrom(cachedPrograms, i);
+        }
+        if (builder.isEmpty()) {
             // If all the cached programs finish before mPrefetchTimeRangeStartMs, the
             // currentProgram would not have a chance to be inserted to the cache.
-            cachedPrograms.add(currentProgram);
+            builder.add(currentProgram);
         }
-        mChannelIdProgramCache.put(channelId, cachedPrograms);
+        mChannelIdProgramCache.put(channelId, builder.build());
     }
 
     private void handleUpdateCurrentPrograms() {
@@ -561,26 +601,145 @@ public class ProgramDataManager implements MemoryManageable {
                     MSG_UPDATE_CURRENT_PROGRAMS, CURRENT_PROGRAM_UPDATE_WAIT_MS);
             return;
         }
+        if (!mCurrentProgramChanges.isAllChanged()) {
+            Set<Long> programIds = mCurrentProgramChanges.takeProgramIds();
+            if (!programIds.isEmpty()) {
+                mPartialCurrentProgramsUpdateCount++;
+                ChangedChannelsUpdateTask task = new ChangedChannelsUpdateTask(programIds);
+                mProgramsUpdateTask = task;
+                task.executeOnDbThread();
+            }
+            return;
+        }
+        mCurrentProgramChanges.clear();
+        mFullCurrentProgramsUpdateCount++;
         clearTask(mProgramUpdateTaskMap);
         mHandler.removeMessages(MSG_UPDATE_ONE_CURRENT_PROGRAM);
-        mProgramsUpdateTask = new ProgramsUpdateTask(mClock.currentTimeMillis());
-        mProgramsUpdateTask.executeOnDbThread();
+        ProgramsUpdateTask task = new ProgramsUpdateTask(mClock.currentTimeMillis());
+        mProgramsUpdateTask = task;
+        task.executeOnDbThread();
+    }
+
+    /**
+     * Finds the channels of the changed programs and updates their current programs one by one,
+     * instead of querying the current programs of all the channels.
+     */
+    private class ChangedChannelsUpdateTask extends AsyncDbTask<Void, Void, Set<Long>> {
+        private final Set<Long> mProgramIds;
+        private final Set<Long> mChannelIds = new HashSet<>();
+
+        private ChangedChannelsUpdateTask(Set<Long> programIds) {
+            super(mDbExecutor);
+            mProgramIds = programIds;
+            // Deleted programs can be found only in memory.
+            for (Map.Entry<Long, Program> entry : mChannelIdCurrentProgramMap.entrySet()) {
+                if (programIds.contains(entry.getValue().getId())) {
+                    mChannelIds.add(entry.getKey());
+                }
+            }
+        }
+
+        @Override
+        protected Set<Long> doInBackground(Void... params) {
+            return queryChannelIds(mProgramIds);
+        }
+
+        @Override
+        protected void onPostExecute(Set<Long> channelIds) {
+            mProgramsUpdateTask = null;
+            if (channelIds == null) {
+                mCurrentProgramChanges.setAllChanged();
+                if (!mHandler.hasMessages(MSG_UPDATE_CURRENT_PROGRAMS)) {
+                    mHandler.sendEmptyMessage(MSG_UPDATE_CURRENT_PROGRAMS);
+                }
+                return;
+            }
+            mChannelIds.addAll(channelIds);
+            if (DEBUG) {
+                Log.d(TAG, "Updates the current programs of " + mChannelIds.size() + " channels");
+            }
+            for (long channelId : mChannelIds) {
+                sendUpdateOneCurrentProgramMessage(channelId, 0);
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of the channels of the given programs, which are not deleted yet.
+     *
+     * @return the channel ids, or {@code null} if the query failed
+     */
+    @WorkerThread
+    @Nullable
+    private Set<Long> queryChannelIds(Set<Long> programIds) {
+        Set<Long> channelIds = new HashSet<>();
+        if (programIds.isEmpty()) {
+            return channelIds;
+        }
+        String[] projection = {Programs.COLUMN_CHANNEL_ID};
+        String selection = Utils.buildSelectionForIds(Programs._ID, new ArrayList<>(programIds));
+        try (Cursor c =
+                mContentResolver.query(Programs.CONTENT_URI, projection, selection, null, null)) {
+            if (c == null) {
+                return null;
+            }
+            while (c.moveToNext()) {
+                channelIds.add(c.getLong(0));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Error during channel query of changed programs", e);
+            return null;
+        }
+        return channelIds;
+    }
+
+    private ProgramsPrefetchTask createProgramsPrefetchTask() {
+        long startTimeMs =
+                Utils.floorTime(
+                        mClock.currentTimeMillis() - PROGRAM_GUIDE_SNAP_TIME_MS,
+                        PROGRAM_GUIDE_SNAP_TIME_MS);
+        long endTimeMs = startTimeMs + TimeUnit.HOURS.toMillis(getFetchDuration());
+        if (mPrefetchProgramChanges.isAllChanged()
+                || mChannelIdProgramCache.isEmpty()
+                || startTimeMs != mPrefetchStartTimeMs
+                || endTimeMs != mPrefetchEndTimeMs) {
+            mPrefetchProgramChanges.clear();
+            return new ProgramsPrefetchTask(startTimeMs, endTimeMs, null);
+        }
+        return new ProgramsPrefetchTask(
+                startTimeMs, endTimeMs, mPrefetchProgramChanges.takeProgramIds());
     }
 
     private class ProgramsPrefetchTask
-            extends AsyncDbTask<Void, Void, Map<Long, ArrayList<Program>>> {
+            extends AsyncDbTask<Void, Void, Map<Long, CompactProgramList>> {
         private final long mStartTimeMs;
         private final long mEndTimeMs;
+        // The programs changed since the last prefetch, or null to fetch all the channels.
+        @Nullable private final Set<Long> mChangedProgramIds;
+        // The channels which are fetched again, if not all the channels are.
+        private final Set<Long> mChangedChannelIds = new HashSet<>();
+        private boolean mFetchAll;
+        private final Map<String, String> mStringPool = new HashMap<>();
 
         private boolean mSuccess;
         private TimerEvent mFromEmptyCacheTimeEvent;
 
-        public ProgramsPrefetchTask() {
+        public ProgramsPrefetchTask(
+                long startTimeMs, long endTimeMs, @Nullable Set<Long> changedProgramIds) {
             super(mDbExecutor);
-            long time = mClock.currentTimeMillis();
-            mStartTimeMs =
-                    Utils.floorTime(time - PROGRAM_GUIDE_SNAP_TIME_MS, PROGRAM_GUIDE_SNAP_TIME_MS);
-            mEndTimeMs = mStartTimeMs + TimeUnit.HOURS.toMillis(getFetchDuration());
+            mStartTimeMs = startTimeMs;
+            mEndTimeMs = endTimeMs;
+            mChangedProgramIds = changedProgramIds;
+            mFetchAll = changedProgramIds == null;
+            if (changedProgramIds != null) {
+                // Deleted programs can be found only in the cache.
+                for (Map.Entry<Long, CompactProgramList> entry :
+                        mChannelIdProgramCache.entrySet()) {
+                    if (entry.getValue().containsAnyId(changedProgramIds)) {
+                        mChangedChannelIds.add(entry.getKey());
+                    }
+                }
+            }
             mSuccess = false;
         }
 
@@ -594,30 +753,71 @@ public class ProgramDataManager implements MemoryManageable {
         }
 
         @Override
-        protected Map<Long, ArrayList<Program>> doInBackground(Void... params) {
+        protected Map<Long, CompactProgramList> doInBackground(Void... params) {
             TimerEvent asyncTimeEvent = mPerformanceMonitor.startTimer();
-            Map<Long, ArrayList<Program>> programMap = new HashMap<>();
+            Map<Long, CompactProgramList> programMap = new HashMap<>();
+            if (!mFetchAll) {
+                Set<Long> channelIds = queryChannelIds(mChangedProgramIds);
+                if (channelIds == null) {
+                    mFetchAll = true;
+                } else {
+                    mChangedChannelIds.addAll(channelIds);
+                    mFetchAll = mChangedChannelIds.size() > MAX_PARTIAL_PREFETCH_CHANNEL_COUNT;
+                }
+            }
             if (DEBUG) {
                 Log.d(
                         TAG,
-                        "Starts programs prefetch. "
+                        "Starts programs prefetch of "
+                                + (mFetchAll ? "all" : mChangedChannelIds.size())
+                                + " channels. "
                                 + Utils.toTimeString(mStartTimeMs)
                                 + "-"
                                 + Utils.toTimeString(mEndTimeMs));
             }
+            if (mFetchAll) {
+                mSuccess = queryPrograms(Programs.CONTENT_URI, programMap);
+            } else {
+                mSuccess = true;
+                for (long channelId : mChangedChannelIds) {
+                    if (!queryPrograms(
+                            TvContract.buildProgramsUriForChannel(channelId), programMap)) {
+                        mSuccess = false;
+                        break;
+                    }
+                }
+            }
+            if (isCancelled()) {
+                return null;
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Ends programs prefetch for " + programMap.size() + " channels");
+            }
+            mPerformanceMonitor.stopTimer(
+                    asyncTimeEvent,
+                    EventNames.PROGRAM_DATA_MANAGER_PROGRAMS_PREFETCH_TASK_DO_IN_BACKGROUND);
+            return programMap;
+        }
+
+        /**
+         * Queries the programs of the given URI in the time range of the task, and adds them to
+         * the map by the channel.
+         *
+         * @return {@code true} if the query succeeded
+         */
+        private boolean queryPrograms(Uri programsUri, Map<Long, CompactProgramList> programMap) {
             Uri uri =
-                    Programs.CONTENT_URI
+                    programsUri
                             .buildUpon()
                             .appendQueryParameter(PARAM_START_TIME, String.valueOf(mStartTimeMs))
                             .appendQueryParameter(PARAM_END_TIME, String.valueOf(mEndTimeMs))
                             .build();
             final int RETRY_COUNT = 3;
-            Program lastReadProgram = null;
             for (int retryCount = RETRY_COUNT; retryCount > 0; retryCount--) {
                 if (isProgramUpdatePaused()) {
-                    return null;
+                    return false;
                 }
-                programMap.clear();
+                Map<Long, CompactProgramList.Builder> builders = new HashMap<>();
 
                 String[] projection = ProgramImpl.PARTIAL_PROJECTION;
                 if (TvProviderUtils.checkSeriesIdColumn(mContext, Programs.CONTENT_URI)) {
@@ -631,41 +831,55 @@ public class ProgramDataManager implements MemoryManageable {
                     if (c == null) {
                         continue;
                     }
+                    // The programs are read into the columns without creating Program objects.
+                    long lastChannelId = Channel.INVALID_ID;
+                    long lastStartTimeMs = 0;
+                    long lastEndTimeMs = 0;
                     while (c.moveToNext()) {
                         int duplicateCount = 0;
                         if (isCancelled()) {
                             if (DEBUG) {
                                 Log.d(TAG, "ProgramsPrefetchTask canceled.");
                             }
-                            return null;
+                            return false;
                         }
-                        Program program = ProgramImpl.fromCursorPartialProjection(c);
-                        if (Program.isDuplicate(program, lastReadProgram)) {
+                        long channelId =
+                                c.getLong(CompactProgramList.PARTIAL_PROJECTION_CHANNEL_ID);
+                        long startTimeMs =
+                                c.getLong(CompactProgramList.PARTIAL_PROJECTION_START_TIME);
+                        long endTimeMs = c.getLong(CompactProgramList.PARTIAL_PROJECTION_END_TIME);
+                        if (channelId == lastChannelId
+                                && startTimeMs == lastStartTimeMs
+                                && endTimeMs == lastEndTimeMs) {
                             duplicateCount++;
                             continue;
                         } else {
-                            lastReadProgram = program;
+                            lastChannelId = channelId;
+                            lastStartTimeMs = startTimeMs;
+                            lastEndTimeMs = endTimeMs;
                         }
-                        ArrayList<Program> programs = programMap.get(program.getChannelId());
-                        if (programs == null) {
-                            programs = new ArrayList<>();
+                        CompactProgramList.Builder builder = builders.get(channelId);
+                        if (builder == null) {
+                            builder = new CompactProgramList.Builder(channelId, mStringPool);
+                            builders.put(channelId, builder);
                             // To skip already loaded complete data.
-                            Program currentProgramInfo =
-                                    mChannelIdCurrentProgramMap.get(program.getChannelId());
+                            Program currentProgramInfo = mChannelIdCurrentProgramMap.get(channelId);
                             if (currentProgramInfo != null
-                                    && Program.isDuplicate(program, currentProgramInfo)) {
-                                program = currentProgramInfo;
+                                    && currentProgramInfo.getStartTimeUtcMillis() == startTimeMs
+                                    && currentProgramInfo.getEndTimeUtcMillis() == endTimeMs) {
+                                builder.add(currentProgramInfo);
+                                continue;
                             }
-
-                            programMap.put(program.getChannelId(), programs);
                         }
-                        programs.add(program);
+                        builder.addPartialProjection(c);
                         if (duplicateCount > 0) {
                             Log.w(TAG, "Found " + duplicateCount + " duplicate programs");
                         }
                     }
-                    mSuccess = true;
-                    break;
+                    for (Map.Entry<Long, CompactProgramList.Builder> entry : builders.entrySet()) {
+                        programMap.put(entry.getKey(), entry.getValue().build());
+                    }
+                    return true;
                 } catch (IllegalStateException e) {
                     if (DEBUG) {
                         Log.d(TAG, "Database is changed while querying. Will retry.");
@@ -676,20 +890,15 @@ public class ProgramDataManager implements MemoryManageable {
                     Log.w(TAG, "Error during program data query", e);
                 }
             }
-            if (DEBUG) {
-                Log.d(TAG, "Ends programs prefetch for " + programMap.size() + " channels");
-            }
-            mPerformanceMonitor.stopTimer(
-                    asyncTimeEvent,
-                    EventNames.PROGRAM_DATA_MANAGER_PROGRAMS_PREFETCH_TASK_DO_IN_BACKGROUND);
-            return programMap;
+            return false;
         }
 
         @Override
-        protected void onPostExecute(Map<Long, ArrayList<Program>> programs) {
+        protected void onPostExecute(Map<Long, CompactProgramList> programs) {
             mProgramsPrefetchTask = null;
             if (isProgramUpdatePaused()) {
                 // ProgramsPrefetchTask will run again once setPauseProgramUpdate(false) is called.
+                restoreChanges();
                 return;
             }
             long nextMessageDelayedTime;
@@ -701,9 +910,25 @@ public class ProgramDataManager implements MemoryManageable {
                                         mLastPrefetchTaskRunMs + PROGRAM_GUIDE_SNAP_TIME_MS,
                                         PROGRAM_GUIDE_SNAP_TIME_MS)
                                 - currentTime;
-                mChannelIdProgramCache = programs;
-                // Since cache has partial data we need to reset the map of complete data.
-                clearChannelInfoMap();
+                if (mFetchAll) {
+                    mFullPrefetchCount++;
+                    mChannelIdProgramCache = programs;
+                    mPrefetchStartTimeMs = mStartTimeMs;
+                    mPrefetchEndTimeMs = mEndTimeMs;
+                    // Since cache has partial data we need to reset the map of complete data.
+                    clearChannelInfoMap();
+                } else {
+                    mPartialPrefetchCount++;
+                    for (long channelId : mChangedChannelIds) {
+                        CompactProgramList channelPrograms = programs.get(channelId);
+                        if (channelPrograms == null) {
+                            mChannelIdProgramCache.remove(channelId);
+                        } else {
+                            mChannelIdProgramCache.put(channelId, channelPrograms);
+                        }
+                        mCompleteInfoChannelIds.remove(channelId);
+                    }
+                }
                 // Get complete projection of tuned channel.
                 prefetchChannel(mTunedChannelId);
 
@@ -715,6 +940,7 @@ public class ProgramDataManager implements MemoryManageable {
                     mFromEmptyCacheTimeEvent = null;
                 }
             } else {
+                restoreChanges();
                 nextMessageDelayedTime = PERIODIC_PROGRAM_UPDATE_MIN_MS;
             }
             if (!mHandler.hasMessages(MSG_UPDATE_PREFETCH_PROGRAM)) {
@@ -722,6 +948,15 @@ public class ProgramDataManager implements MemoryManageable {
                         MSG_UPDATE_PREFETCH_PROGRAM, nextMessageDelayedTime);
             }
         }
+
+        // Keeps the changes which are not applied to the cache for the next prefetch.
+        private void restoreChanges() {
+            if (mChangedProgramIds == null) {
+                mPrefetchProgramChanges.setAllChanged();
+            } else {
+                mPrefetchProgramChanges.addAll(mChangedProgramIds);
+            }
+        }
     }
 
     private void clearChannelInfoMap() {
@@ -752,7 +987,8 @@ public class ProgramDataManager implements MemoryManageable {
         }
     }
 
-    private class SingleChannelPrefetchTask extends AsyncDbTask.AsyncQueryTask<ArrayList<Program>> {
+    private class SingleChannelPrefetchTask
+            extends AsyncDbTask.AsyncQueryTask<CompactProgramList> {
         long mChannelId;
 
         public SingleChannelPrefetchTask(long channelId, long startTimeMs, long endTimeMs) {
@@ -768,17 +1004,18 @@ public class ProgramDataManager implements MemoryManageable {
         }
 
         @Override
-        protected ArrayList<Program> onQuery(Cursor c) {
-            ArrayList<Program> programMap = new ArrayList<>();
+        protected CompactProgramList onQuery(Cursor c) {
+            // The programs with complete data are kept as they are.
+            CompactProgramList.Builder builder = new CompactProgramList.Builder(mChannelId);
             while (c.moveToNext()) {
                 Program program = ProgramImpl.fromCursor(c);
-                programMap.add(program);
+                builder.add(program);
             }
-            return programMap;
+            return builder.build();
         }
 
         @Override
-        protected void onPostExecute(ArrayList<Program> programs) {
+        protected void onPostExecute(CompactProgramList programs) {
             mChannelIdProgramCache.put(mChannelId, programs);
             notifyChannelUpdated();
         }
@@ -941,7 +1178,7 @@ public class ProgramDataManager implements MemoryManageable {
                             mHandler.sendEmptyMessageDelayed(
                                     MSG_UPDATE_PREFETCH_PROGRAM, delayMillis);
                         } else {
-                            mProgramsPrefetchTask = new ProgramsPrefetchTask();
+                            mProgramsPrefetchTask = createProgramsPrefetchTask();
                             mProgramsPrefetchTask.executeOnDbThread();
                         }
                         break;
@@ -989,6 +1226,7 @@ public class ProgramDataManager implements MemoryManageable {
         SoftPreconditions.checkState(mPrefetchEnabled, TAG, "Prefetch is disabled.");
         if (mPrefetchTimeRangeStartMs > startTimeMs) {
             // Fetch the programs immediately to re-create the cache.
+            mPrefetchProgramChanges.setAllChanged();
             if (!mHandler.hasMessages(MSG_UPDATE_PREFETCH_PROGRAM)) {
                 mHandler.sendEmptyMessage(MSG_UPDATE_PREFETCH_PROGRAM);
             }
@@ -1007,6 +1245,57 @@ public class ProgramDataManager implements MemoryManageable {
         if (mProgramsPrefetchTask != null) {
             mProgramsPrefetchTask.cancel(true);
             mProgramsPrefetchTask = null;
+            // The changes which the task took are not applied to the cache.
+            mPrefetchProgramChanges.setAllChanged();
+        }
+    }
+
+    /**
+     * The programs changed in TvProvider, collected from the change notifications. A notification
+     * without a program id, like the one of a bulk deletion, changes all the programs.
+     */
+    private static class ProgramChanges {
+        private final Set<Long> mProgramIds = new HashSet<>();
+        // Nothing is loaded at first.
+        private boolean mAllChanged = true;
+
+        void add(@Nullable Uri uri) {
+            if (uri != null && TvUriMatcher.match(uri) == TvUriMatcher.MATCH_PROGRAM_ID) {
+                addAll(Collections.singleton(ContentUris.parseId(uri)));
+            } else {
+                setAllChanged();
+            }
+        }
+
+        void addAll(Set<Long> programIds) {
+            if (mAllChanged) {
+                return;
+            }
+            mProgramIds.addAll(programIds);
+            if (mProgramIds.size() > MAX_CHANGED_PROGRAM_COUNT) {
+                setAllChanged();
+            }
+        }
+
+        void setAllChanged() {
+            mAllChanged = true;
+            mProgramIds.clear();
+        }
+
+        boolean isAllChanged() {
+            return mAllChanged;
+        }
+
+        /** Returns the changed programs and clears them. Not all the programs should be changed. */
+        Set<Long> takeProgramIds() {
+            Set<Long> programIds = new HashSet<>(mProgramIds);
+            mProgramIds.clear();
+            return programIds;
+        }
+
+        void clear() {
+            mAllChanged = false;
+            mProgramIds.clear();
         }
     }
 
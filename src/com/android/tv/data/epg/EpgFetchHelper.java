@@ -25,6 +25,7 @@ import android.media.tv.TvContract;
 import android.media.tv.TvContract.Programs;
 import android.os.RemoteException;
 import android.preference.PreferenceManager;
+import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
 import android.util.Log;
@@ -39,17 +40,19 @@ import com.android.tv.util.TvProviderUtils;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.TreeSet;
 
 /** The helper class for {@link EpgFetcher} */
 class EpgFetchHelper {
     private static final String TAG = "EpgFetchHelper";
     private static final boolean DEBUG = false;
 
-    private static final long PROGRAM_QUERY_DURATION_MS = TimeUnit.DAYS.toMillis(30);
-    private static final int BATCH_OPERATION_COUNT = 100;
+    static final int BATCH_OPERATION_COUNT = 100;
 
     // Value: Long
     private static final String KEY_LAST_UPDATED_EPG_TIMESTAMP =
@@ -63,104 +66,211 @@ class EpgFetchHelper {
 
     private EpgFetchHelper() {}
 
+    /** The changes of the programs of a channel, which are built by {@link #buildEpgUpdate}. */
+    static class EpgUpdate {
+        final long mChannelId;
+        final int mProgramCount;
+        final List<ContentProviderOperation> mOperations;
+        // The fingerprint to be saved after the operations are applied.
+        @Nullable final EpgFingerprint mFingerprint;
+        // The number of the programs read from TvProvider.
+        final int mReadRowCount;
+
+        private EpgUpdate(
+                long channelId,
+                int programCount,
+                List<ContentProviderOperation> operations,
+                @Nullable EpgFingerprint fingerprint,
+                int readRowCount) {
+            mChannelId = channelId;
+            mProgramCount = programCount;
+            mOperations = operations;
+            mFingerprint = fingerprint;
+            mReadRowCount = readRowCount;
+        }
+    }
+
     /**
-     * Updates newly fetched EPG data for the given channel to local providers. The method will
-     * compare the broadcasting time and try to match each newly fetched program with old programs
-     * of that channel in the database one by one. It will update the matched old program, or insert
-     * the new program if there is no matching program can be found in the database and at the same
-     * time remove those old programs which conflicts with the inserted one.
+     * Builds the operations to update newly fetched EPG data for the given channel to local
+     * providers.
+     *
+     * <p>The programs are compared in the buckets of {@link EpgFingerprint}. The buckets whose
+     * programs are the same as the last update are skipped without reading the database. A bucket
+     * from the current time to the end of the fetched range which had programs last time but has
+     * none now is changed too, so its old programs are removed. For the changed buckets, each newly
+     * fetched program is matched with the old program which starts at the same time, or the one
+     * which has the same title and overlaps with it. The matched old program is updated, and the
+     * new program is inserted if there is no matching program. Old programs which are not matched
+     * are removed, unless they end after the fetched programs.
      *
      * @param channelId the target channel ID.
-     * @param fetchedPrograms the newly fetched program data.
-     * @return {@code true} if new program data are successfully updated. Otherwise {@code false}.
+     * @param fetchedPrograms the newly fetched program data, sorted by the start time.
      */
-    static boolean updateEpgData(
+    @WorkerThread
+    static EpgUpdate buildEpgUpdate(
             Context context, Clock clock, long channelId, List<Program> fetchedPrograms) {
         final int fetchedProgramsCount = fetchedPrograms.size();
         if (fetchedProgramsCount == 0) {
-            return false;
+            return new EpgUpdate(channelId, 0, Collections.emptyList(), null, 0);
+        }
+        EpgFingerprint oldFingerprint = EpgFingerprint.load(context, clock, channelId);
+        EpgFingerprint newFingerprint = EpgFingerprint.create(fetchedPrograms);
+        EpgFingerprint fingerprint =
+                newFingerprint.mergeWith(oldFingerprint, clock.currentTimeMillis());
+        TreeSet<Long> changedBuckets = new TreeSet<>();
+        List<Program> changedPrograms = new ArrayList<>();
+        long fetchedEndTimeMs = 0;
+        for (Program program : fetchedPrograms) {
+            long bucket = EpgFingerprint.getBucket(program.getStartTimeUtcMillis());
+            if (changedBuckets.contains(bucket)
+                    || !newFingerprint.hasSameHash(oldFingerprint, bucket)) {
+                changedBuckets.add(bucket);
+                changedPrograms.add(program);
+            }
+            fetchedEndTimeMs = Math.max(fetchedEndTimeMs, program.getEndTimeUtcMillis());
+        }
+        // The buckets which don't have any program now. Without the old fingerprint, they might
+        // have had programs. They are looked for from the current time, so the old programs
+        // before the first fetched one are removed as well.
+        long firstBucket =
+                Math.min(
+                        EpgFingerprint.getBucket(clock.currentTimeMillis()),
+                        EpgFingerprint.getBucket(fetchedPrograms.get(0).getStartTimeUtcMillis()));
+        long lastBucket =
+                EpgFingerprint.getBucket(
+                        fetchedPrograms.get(fetchedProgramsCount - 1).getStartTimeUtcMillis());
+        for (long bucket = firstBucket; bucket < lastBucket; ++bucket) {
+            if (!newFingerprint.hasBucket(bucket)
+                    && (oldFingerprint == null || oldFingerprint.hasBucket(bucket))) {
+                changedBuckets.add(bucket);
+            }
+        }
+        if (changedBuckets.isEmpty()) {
+            if (DEBUG) Log.d(TAG, "No changes in " + fetchedProgramsCount + " programs");
+            return new EpgUpdate(
+                    channelId, fetchedProgramsCount, Collections.emptyList(), fingerprint, 0);
         }
-        boolean updated = false;
-        long startTimeMs = clock.currentTimeMillis();
-        long endTimeMs = startTimeMs + PROGRAM_QUERY_DURATION_MS;
-        List<Program> oldPrograms = queryPrograms(context, channelId, startTimeMs, endTimeMs);
-        int oldProgramsIndex = 0;
-        int newProgramsIndex = 0;
 
-        // Compare the new programs with old programs one by one and update/delete the old one
-        // or insert new program if there is no matching program in the database.
+        long startTimeMs = changedBuckets.first() * EpgFingerprint.BUCKET_DURATION_MS;
+        long endTimeMs = (changedBuckets.last() + 1) * EpgFingerprint.BUCKET_DURATION_MS;
+        List<Program> queriedPrograms = queryPrograms(context, channelId, startTimeMs, endTimeMs);
+        // The old programs of the changed buckets, keyed by the start time.
+        Map<Long, Program> oldPrograms = new LinkedHashMap<>();
         ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-        while (newProgramsIndex < fetchedProgramsCount) {
-            Program oldProgram =
-                    oldProgramsIndex < oldPrograms.size()
-                            ? oldPrograms.get(oldProgramsIndex)
-                            : null;
-            Program newProgram = fetchedPrograms.get(newProgramsIndex);
-            boolean addNewProgram = false;
-            if (oldProgram != null) {
-                if (oldProgram.equals(newProgram)) {
-                    // Exact match. No need to update. Move on to the next programs.
-                    oldProgramsIndex++;
-                    newProgramsIndex++;
-                } else if (hasSameTitleAndOverlap(oldProgram, newProgram)) {
-                    // Partial match. Update the old program with the new one.
-                    // NOTE: Use 'update' in this case instead of 'insert' and 'delete'. There
-                    // could be application specific settings which belong to the old program.
-                    ops.add(
-                            ContentProviderOperation.newUpdate(
-                                            TvContract.buildProgramUri(oldProgram.getId()))
-                                    .withValues(ProgramImpl.toContentValues(newProgram, context))
-                                    .build());
-                    oldProgramsIndex++;
-                    newProgramsIndex++;
-                } else if (oldProgram.getEndTimeUtcMillis() < newProgram.getEndTimeUtcMillis()) {
-                    // No match. Remove the old program first to see if the next program in
-                    // {@code oldPrograms} partially matches the new program.
-                    ops.add(
-                            ContentProviderOperation.newDelete(
-                                            TvContract.buildProgramUri(oldProgram.getId()))
-                                    .build());
-                    oldProgramsIndex++;
-                } else {
-                    // No match. The new program does not match any of the old programs. Insert
-                    // it as a new program.
-                    addNewProgram = true;
-                    newProgramsIndex++;
-                }
+        for (Program oldProgram : queriedPrograms) {
+            if (!changedBuckets.contains(
+                    EpgFingerprint.getBucket(oldProgram.getStartTimeUtcMillis()))) {
+                continue;
+            }
+            Program duplicate = oldPrograms.put(oldProgram.getStartTimeUtcMillis(), oldProgram);
+            if (duplicate != null) {
+                ops.add(buildDeleteOperation(duplicate));
+            }
+        }
+
+        List<Program> unmatchedPrograms = new ArrayList<>();
+        for (Program newProgram : changedPrograms) {
+            Program oldProgram = oldPrograms.get(newProgram.getStartTimeUtcMillis());
+            if (oldProgram != null && oldProgram.equals(newProgram)) {
+                // Exact match. No need to update.
+                oldPrograms.remove(oldProgram.getStartTimeUtcMillis());
+            } else if (oldProgram != null && hasSameTitleAndOverlap(oldProgram, newProgram)) {
+                ops.add(buildUpdateOperation(context, oldProgram, newProgram));
+                oldPrograms.remove(oldProgram.getStartTimeUtcMillis());
             } else {
-                // No old programs. Just insert new programs.
-                addNewProgram = true;
-                newProgramsIndex++;
+                unmatchedPrograms.add(newProgram);
+            }
+        }
+        // Moved programs. The old program with the same title is updated rather than replaced.
+        // NOTE: Use 'update' in this case instead of 'insert' and 'delete'. There could be
+        // application specific settings which belong to the old program.
+        Map<String, List<Program>> oldProgramsByTitle = new HashMap<>();
+        for (Program oldProgram : oldPrograms.values()) {
+            List<Program> programs = oldProgramsByTitle.get(oldProgram.getTitle());
+            if (programs == null) {
+                programs = new ArrayList<>();
+                oldProgramsByTitle.put(oldProgram.getTitle(), programs);
+            }
+            programs.add(oldProgram);
+        }
+        for (Program newProgram : unmatchedPrograms) {
+            Program oldProgram = null;
+            List<Program> candidates = oldProgramsByTitle.get(newProgram.getTitle());
+            if (candidates != null) {
+                for (int i = 0; i < candidates.size(); ++i) {
+                    if (hasSameTitleAndOverlap(candidates.get(i), newProgram)) {
+                        oldProgram = candidates.remove(i);
+                        break;
+                    }
+                }
             }
-            if (addNewProgram) {
+            if (oldProgram != null) {
+                ops.add(buildUpdateOperation(context, oldProgram, newProgram));
+                oldPrograms.remove(oldProgram.getStartTimeUtcMillis());
+            } else {
                 ops.add(
                         ContentProviderOperation.newInsert(Programs.CONTENT_URI)
                                 .withValues(ProgramImpl.toContentValues(newProgram, context))
                                 .build());
             }
-            // Throttle the batch operation not to cause TransactionTooLargeException.
-            if (ops.size() > BATCH_OPERATION_COUNT || newProgramsIndex >= fetchedProgramsCount) {
-                try {
-                    if (DEBUG) {
-                        int size = ops.size();
-                        Log.d(TAG, "Running " + size + " operations for channel " + channelId);
-                        for (int i = 0; i < size; ++i) {
-                            Log.d(TAG, "Operation(" + i + "): " + ops.get(i));
-                        }
-                    }
-                    context.getContentResolver().applyBatch(TvContract.AUTHORITY, ops);
-                    updated = true;
-                } catch (RemoteException | OperationApplicationException e) {
-                    Log.e(TAG, "Failed to insert programs.", e);
-                    return updated;
-                }
-                ops.clear();
+        }
+        for (Program oldProgram : oldPrograms.values()) {
+            if (oldProgram.getEndTimeUtcMillis() <= fetchedEndTimeMs) {
+                ops.add(buildDeleteOperation(oldProgram));
             }
         }
         if (DEBUG) {
-            Log.d(TAG, "Updated " + fetchedProgramsCount + " programs for channel " + channelId);
+            Log.d(
+                    TAG,
+                    "Built " + ops.size() + " operations for " + changedPrograms.size() + " of "
+                            + fetchedProgramsCount + " programs of channel " + channelId
+                            + " after reading " + queriedPrograms.size() + " programs");
+        }
+        return new EpgUpdate(
+                channelId, fetchedProgramsCount, ops, fingerprint, queriedPrograms.size());
+    }
+
+    private static ContentProviderOperation buildUpdateOperation(
+            Context context, Program oldProgram, Program newProgram) {
+        return ContentProviderOperation.newUpdate(TvContract.buildProgramUri(oldProgram.getId()))
+                .withValues(ProgramImpl.toContentValues(newProgram, context))
+                .build();
+    }
+
+    private static ContentProviderOperation buildDeleteOperation(Program oldProgram) {
+        return ContentProviderOperation.newDelete(TvContract.buildProgramUri(oldProgram.getId()))
+                .build();
+    }
+
+    /**
+     * Applies the operations to TvProvider. The operations can be for several channels, and are
+     * applied in batches not to cause TransactionTooLargeException.
+     *
+     * @return {@code true} if all the operations are successfully applied. Otherwise {@code
+     *     false}.
+     */
+    @WorkerThread
+    static boolean applyOperations(Context context, List<ContentProviderOperation> ops) {
+        boolean success = true;
+        for (int i = 0; i < ops.size(); i += BATCH_OPERATION_COUNT) {
+            ArrayList<ContentProviderOperation> batch =
+                    new ArrayList<>(
+                            ops.subList(i, Math.min(i + BATCH_OPERATION_COUNT, ops.size())));
+            try {
+                if (DEBUG) {
+                    int size = batch.size();
+                    Log.d(TAG, "Running " + size + " operations");
+                    for (int j = 0; j < size; ++j) {
+                        Log.d(TAG, "Operation(" + j + "): " + batch.get(j));
+                    }
+                }
+                context.getContentResolver().applyBatch(TvContract.AUTHORITY, batch);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Failed to update programs.", e);
+                success = false;
+            }
         }
-        return updated;
+        return success;
     }
 
     @WorkerThread
@@ -254,6 +364,10 @@ class EpgFetchHelper {
                 Log.d(TAG, "Clear stored lineup id: " + sLastLineupId);
             }
         }
+        if (lineupId != null && !TextUtils.equals(lineupId, getLastLineupId(context))) {
+            // The programs of the new lineup have nothing to do with the fingerprints.
+            EpgFingerprint.clear(context);
+        }
         sLastLineupId = lineupId;
         PreferenceManager.getDefaultSharedPreferences(context)
                 .edit()
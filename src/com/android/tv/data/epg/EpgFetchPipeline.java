@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.data.epg;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.android.tv.common.concurrent.NamedThreadFactory;
+import com.android.tv.common.util.Clock;
+import com.android.tv.data.api.Program;
+
+import com.google.common.util.concurrent.Futures;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches the programs of the channels from {@link EpgReader} and updates them to TvProvider.
+ *
+ * <p>The work is split into three stages which run at the same time. A reading thread reads the
+ * programs of a group of channels at a time, the programs of each channel are compared with the
+ * ones in TvProvider on a pool of threads, and the calling thread applies the resulting operations
+ * of several channels together. The reading thread stops when too many channels are waiting to be
+ * applied, so only a bounded number of channels are kept in memory.
+ */
+class EpgFetchPipeline {
+    private static final String TAG = "EpgFetchPipeline";
+    private static final boolean DEBUG = false;
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int DIFF_THREAD_COUNT = Math.max(2, Math.min(CPU_COUNT - 1, 4));
+    // The number of the channels which are read but not applied yet, besides the one being
+    // applied.
+    private static final int MAX_PENDING_CHANNEL_COUNT = 100;
+
+    // Marks the end of the channels.
+    private static final Future<EpgFetchHelper.EpgUpdate> END = Futures.immediateFuture(null);
+
+    /** Reads the programs of the channels. Called on the reading thread. */
+    interface ProgramsReader {
+        @WorkerThread
+        Map<EpgReader.EpgChannel, Collection<Program>> read(Set<EpgReader.EpgChannel> channels);
+    }
+
+    /** Tells whether the fetch is cancelled. Checked before each channel is applied. */
+    interface CancellationChecker {
+        boolean isCancelled();
+    }
+
+    private final Context mContext;
+    private final Clock mClock;
+    private final CancellationChecker mCancellationChecker;
+    private final BlockingQueue<Future<EpgFetchHelper.EpgUpdate>> mPendingUpdates =
+            new ArrayBlockingQueue<>(MAX_PENDING_CHANNEL_COUNT);
+    private volatile boolean mStopped;
+
+    private int mChannelCount;
+    private int mProgramCount;
+    private int mReadRowCount;
+    private int mWrittenRowCount;
+    private long mElapsedTimeMs;
+
+    EpgFetchPipeline(Context context, Clock clock) {
+        this(context, clock, () -> false);
+    }
+
+    EpgFetchPipeline(Context context, Clock clock, CancellationChecker cancellationChecker) {
+        mContext = context;
+        mClock = clock;
+        mCancellationChecker = cancellationChecker;
+    }
+
+    /**
+     * Fetches the programs of the channels, and blocks until they are updated to TvProvider. If the
+     * calling thread is interrupted, stops the fetch and keeps the interrupted status. Once the
+     * fetch is cancelled, stops before the next channel is applied. Can be called only once.
+     *
+     * @param epgChannels the channels to fetch
+     * @param readChannelCount the number of the channels which are read at a time
+     * @param reader the reader of the programs
+     */
+    @WorkerThread
+    void fetch(
+            Set<EpgReader.EpgChannel> epgChannels, int readChannelCount, ProgramsReader reader) {
+        long startTimeMs = mClock.elapsedRealtime();
+        ExecutorService readExecutor =
+                Executors.newSingleThreadExecutor(new NamedThreadFactory(TAG + "-read"));
+        ExecutorService diffExecutor =
+                Executors.newFixedThreadPool(
+                        DIFF_THREAD_COUNT, new NamedThreadFactory(TAG + "-diff"));
+        readExecutor.execute(
+                () -> readPrograms(epgChannels, readChannelCount, reader, diffExecutor));
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        // The fingerprints of the channels whose operations are not applied yet.
+        Map<Long, EpgFingerprint> fingerprints = new HashMap<>();
+        try {
+            Future<EpgFetchHelper.EpgUpdate> future;
+            while ((future = mPendingUpdates.take()) != END) {
+                if (mCancellationChecker.isCancelled()) {
+                    // The channels already merged are still applied below.
+                    Log.i(TAG, "Fetching EPG is cancelled");
+                    break;
+                }
+                EpgFetchHelper.EpgUpdate update;
+                try {
+                    update = future.get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Failed to compare programs", e);
+                    continue;
+                }
+                mChannelCount++;
+                mProgramCount += update.mProgramCount;
+                mReadRowCount += update.mReadRowCount;
+                // Several channels are applied together, since most of the channels have only a
+                // few changes.
+                ops.addAll(update.mOperations);
+                if (update.mFingerprint != null) {
+                    fingerprints.put(update.mChannelId, update.mFingerprint);
+                }
+                if (ops.size() >= EpgFetchHelper.BATCH_OPERATION_COUNT) {
+                    applyOperations(ops, fingerprints);
+                }
+            }
+            applyOperations(ops, fingerprints);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Fetching EPG is interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            mStopped = true;
+            readExecutor.shutdownNow();
+            diffExecutor.shutdownNow();
+            // Unblocks the reading thread if it is still waiting.
+            mPendingUpdates.clear();
+        }
+        mElapsedTimeMs = mClock.elapsedRealtime() - startTimeMs;
+        Log.i(
+                TAG,
+                "Fetched " + mProgramCount + " programs for " + mChannelCount + " channels in "
+                        + mElapsedTimeMs + "ms (" + getProgramsPerSecond() + " programs/sec), "
+                        + mReadRowCount + " rows read, " + mWrittenRowCount + " rows written");
+    }
+
+    private void applyOperations(
+            ArrayList<ContentProviderOperation> ops, Map<Long, EpgFingerprint> fingerprints) {
+        if (EpgFetchHelper.applyOperations(mContext, ops)) {
+            mWrittenRowCount += ops.size();
+            EpgFingerprint.saveAll(mContext, mClock, fingerprints);
+        } else {
+            // Some of the programs might not be updated, so compares them fully next time.
+            EpgFingerprint.removeAll(mContext, fingerprints.keySet());
+        }
+        ops.clear();
+        fingerprints.clear();
+    }
+
+    /** Returns the number of the programs fetched. */
+    @VisibleForTesting
+    int getProgramCount() {
+        return mProgramCount;
+    }
+
+    /** Returns the number of the channels fetched. */
+    @VisibleForTesting
+    int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /** Returns the number of the programs read from TvProvider to compare with. */
+    @VisibleForTesting
+    int getReadRowCount() {
+        return mReadRowCount;
+    }
+
+    /** Returns the number of the programs inserted, updated or deleted in TvProvider. */
+    @VisibleForTesting
+    int getWrittenRowCount() {
+        return mWrittenRowCount;
+    }
+
+    /** Returns the number of the programs fetched per second, which measures the throughput. */
+    @VisibleForTesting
+    long getProgramsPerSecond() {
+        return mElapsedTimeMs > 0 ? mProgramCount * 1000L / mElapsedTimeMs : mProgramCount;
+    }
+
+    private void readPrograms(
+            Set<EpgReader.EpgChannel> epgChannels,
+            int readChannelCount,
+            ProgramsReader reader,
+            ExecutorService diffExecutor) {
+        try {
+            Set<EpgReader.EpgChannel> batch = new HashSet<>(readChannelCount);
+            for (EpgReader.EpgChannel epgChannel : epgChannels) {
+                batch.add(epgChannel);
+                if (batch.size() >= readChannelCount) {
+                    submitDiffs(reader.read(batch), diffExecutor);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                submitDiffs(reader.read(batch), diffExecutor);
+            }
+        } catch (InterruptedException e) {
+            // The fetch is stopped, so nobody waits for the rest.
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to read programs", e);
+        } finally {
+            // Marks the end even when an Error is thrown, or fetch() would wait forever.
+            if (!mStopped) {
+                try {
+                    mPendingUpdates.put(END);
+                } catch (InterruptedException e) {
+                    // The fetch is stopped, so nobody waits for the end.
+                }
+            }
+        }
+    }
+
+    private void submitDiffs(
+            Map<EpgReader.EpgChannel, Collection<Program>> allPrograms,
+            ExecutorService diffExecutor)
+            throws InterruptedException {
+        for (Map.Entry<EpgReader.EpgChannel, Collection<Program>> entry : allPrograms.entrySet()) {
+            if (mStopped) {
+                return;
+            }
+            long channelId = entry.getKey().getChannel().getId();
+            Collection<Program> programs = entry.getValue();
+            if (programs == null) {
+                continue;
+            }
+            // Blocks while too many channels are waiting to be applied.
+            mPendingUpdates.put(diffExecutor.submit(() -> diffPrograms(channelId, programs)));
+        }
+    }
+
+    @WorkerThread
+    private EpgFetchHelper.EpgUpdate diffPrograms(long channelId, Collection<Program> programs) {
+        List<Program> sortedPrograms = new ArrayList<>(programs);
+        Collections.sort(sortedPrograms);
+        if (DEBUG) {
+            Log.d(TAG, "Fetched " + sortedPrograms.size() + " programs for channel " + channelId);
+        }
+        return EpgFetchHelper.buildEpgUpdate(mContext, mClock, channelId, sortedPrograms);
+    }
+}
@@ -55,7 +55,6 @@ import com.android.tv.data.ChannelImpl;
 import com.android.tv.data.ChannelLogoFetcher;
 import com.android.tv.data.Lineup;
 import com.android.tv.data.api.Channel;
-import com.android.tv.data.api.Program;
 import com.android.tv.features.TvFeatures;
 import com.android.tv.perf.EventNames;
 import com.android.tv.perf.PerformanceMonitor;
@@ -70,11 +69,9 @@ import com.android.tv.common.flags.BackendKnobsFlags;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -454,33 +451,11 @@ public class EpgFetcherImpl implements EpgFetcher {
         if (epgChannels.size() == 0) {
             return;
         }
-        Set<EpgReader.EpgChannel> batch = new HashSet<>(QUERY_CHANNEL_COUNT);
-        for (EpgReader.EpgChannel epgChannel : epgChannels) {
-            batch.add(epgChannel);
-            if (batch.size() >= QUERY_CHANNEL_COUNT) {
-                batchUpdateEpg(mEpgReader.getPrograms(batch, durationSec));
-                batch.clear();
-            }
-        }
-        if (!batch.isEmpty()) {
-            batchUpdateEpg(mEpgReader.getPrograms(batch, durationSec));
-        }
-    }
-
-    @WorkerThread
-    private void batchUpdateEpg(Map<EpgReader.EpgChannel, Collection<Program>> allPrograms) {
-        for (Map.Entry<EpgReader.EpgChannel, Collection<Program>> entry : allPrograms.entrySet()) {
-            List<Program> programs = new ArrayList<>(entry.getValue());
-            if (programs == null) {
-                continue;
-            }
-            Collections.sort(programs);
-            Log.i(
-                    TAG,
-                    "Batch fetched " + programs.size() + " programs for channel " + entry.getKey());
-            EpgFetchHelper.updateEpgData(
-                    mContext, mClock, entry.getKey().getChannel().getId(), programs);
-        }
+        new EpgFetchPipeline(mContext, mClock)
+                .fetch(
+                        epgChannels,
+                        QUERY_CHANNEL_COUNT,
+                        batch -> mEpgReader.getPrograms(batch, durationSec));
     }
 
     @Nullable
@@ -689,21 +664,20 @@ public class EpgFetcherImpl implements EpgFetcher {
                             () ->
                                     ChannelLogoFetcher.startFetchingChannelLogos(
                                             mContext, asChannelList(channels)));
-            for (EpgReader.EpgChannel epgChannel : channels) {
-                if (this.isCancelled()) {
-                    return null;
-                }
-                List<Program> programs = new ArrayList<>(mEpgReader.getPrograms(epgChannel));
-                // InterruptedException might be caught by RPC, we should check it here.
-                Collections.sort(programs);
-                Log.i(
-                        TAG,
-                        "Fetched "
-                                + programs.size()
-                                + " programs for channel "
-                                + epgChannel.getChannel());
-                EpgFetchHelper.updateEpgData(
-                        mContext, mClock, epgChannel.getChannel().getId(), programs);
+            // The programs are read one channel at a time, since EpgReader reads all the programs
+            // of a channel at once.
+            new EpgFetchPipeline(mContext, mClock, this::isCancelled)
+                    .fetch(
+                            channels,
+                            1,
+                            batch -> {
+                                EpgReader.EpgChannel epgChannel = batch.iterator().next();
+                                return Collections.singletonMap(
+                                        epgChannel, mEpgReader.getPrograms(epgChannel));
+                            });
+            // InterruptedException might be caught by RPC, we should check it here.
+            if (this.isCancelled()) {
+                return null;
             }
             EpgFetchHelper.setLastEpgUpdatedTimestamp(mContext, mEpgTimeStamp);
             if (DEBUG) Log.d(TAG, "Fetching EPG is for " + lineupId);
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.data.epg;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.android.tv.common.util.Clock;
+import com.android.tv.common.util.SharedPreferencesUtils;
+import com.android.tv.data.api.Program;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The fingerprint of the programs of a channel which were last updated to TvProvider.
+ *
+ * <p>The programs are grouped into buckets by the start time, and each bucket has a hash of its
+ * programs. If the newly fetched programs of a bucket have the same hash, they were already
+ * updated and TvProvider doesn't need to be read for them. The fingerprints are ignored after a
+ * day, so the programs changed by others are compared again eventually.
+ */
+final class EpgFingerprint {
+    private static final String TAG = "EpgFingerprint";
+
+    static final long BUCKET_DURATION_MS = TimeUnit.HOURS.toMillis(6);
+    private static final long EXPIRATION_MS = TimeUnit.DAYS.toMillis(1);
+    private static final long HASH_MULTIPLIER = 1_000_003L;
+
+    // Bucket -> hash of the programs which start in the bucket.
+    private final TreeMap<Long, Long> mHashes;
+
+    private EpgFingerprint(TreeMap<Long, Long> hashes) {
+        mHashes = hashes;
+    }
+
+    /** Creates the fingerprint of the programs, which should be sorted by the start time. */
+    static EpgFingerprint create(List<Program> programs) {
+        TreeMap<Long, Long> hashes = new TreeMap<>();
+        for (Program program : programs) {
+            long bucket = getBucket(program.getStartTimeUtcMillis());
+            Long hash = hashes.get(bucket);
+            hashes.put(bucket, (hash == null ? 0 : hash) * HASH_MULTIPLIER + hash(program));
+        }
+        return new EpgFingerprint(hashes);
+    }
+
+    /** Returns the bucket which contains the given time. */
+    static long getBucket(long timeMs) {
+        return timeMs / BUCKET_DURATION_MS;
+    }
+
+    /** Returns whether the bucket has the same hash in the other fingerprint. */
+    boolean hasSameHash(@Nullable EpgFingerprint other, long bucket) {
+        return other != null
+                && mHashes.containsKey(bucket)
+                && Objects.equals(mHashes.get(bucket), other.mHashes.get(bucket));
+    }
+
+    /** Returns whether the fingerprint has any program which starts in the bucket. */
+    boolean hasBucket(long bucket) {
+        return mHashes.containsKey(bucket);
+    }
+
+    /**
+     * Returns a fingerprint which has the buckets of this fingerprint, and the ones of the older
+     * fingerprint that are after the range of this fingerprint. The older buckets from the current
+     * time to the end of the range are dropped even if this fingerprint doesn't have them, since
+     * their programs were removed.
+     */
+    EpgFingerprint mergeWith(@Nullable EpgFingerprint older, long currentTimeMs) {
+        if (older == null || mHashes.isEmpty()) {
+            return this;
+        }
+        TreeMap<Long, Long> hashes = new TreeMap<>(older.mHashes.tailMap(getBucket(currentTimeMs)));
+        hashes.headMap(mHashes.lastKey(), true).clear();
+        hashes.putAll(mHashes);
+        return new EpgFingerprint(hashes);
+    }
+
+    /** Loads the fingerprint of the channel, or returns {@code null} if it's missing or expired. */
+    @WorkerThread
+    @Nullable
+    static EpgFingerprint load(Context context, Clock clock, long channelId) {
+        String value = getSharedPreferences(context).getString(Long.toString(channelId), null);
+        if (value == null) {
+            return null;
+        }
+        try {
+            // The format is "<saved time>|<bucket>:<hash>,<bucket>:<hash>,..."
+            int timeEnd = value.indexOf('|');
+            long savedTimeMs = Long.parseLong(value.substring(0, timeEnd));
+            if (clock.currentTimeMillis() - savedTimeMs > EXPIRATION_MS) {
+                return null;
+            }
+            TreeMap<Long, Long> hashes = new TreeMap<>();
+            if (timeEnd + 1 < value.length()) {
+                for (String entry : value.substring(timeEnd + 1).split(",")) {
+                    int separator = entry.indexOf(':');
+                    hashes.put(
+                            Long.parseLong(entry.substring(0, separator)),
+                            Long.parseLong(entry.substring(separator + 1)));
+                }
+            }
+            return new EpgFingerprint(hashes);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            Log.w(TAG, "Invalid fingerprint for channel " + channelId + ": " + value);
+            return null;
+        }
+    }
+
+    /** Saves the fingerprints of the channels, keyed by the channel ID. */
+    @WorkerThread
+    static void saveAll(Context context, Clock clock, Map<Long, EpgFingerprint> fingerprints) {
+        if (fingerprints.isEmpty()) {
+            return;
+        }
+        long currentTimeMs = clock.currentTimeMillis();
+        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
+        for (Map.Entry<Long, EpgFingerprint> entry : fingerprints.entrySet()) {
+            StringBuilder value = new StringBuilder().append(currentTimeMs).append('|');
+            boolean first = true;
+            for (Map.Entry<Long, Long> hash : entry.getValue().mHashes.entrySet()) {
+                if (!first) {
+                    value.append(',');
+                }
+                value.append(hash.getKey()).append(':').append(hash.getValue());
+                first = false;
+            }
+            editor.putString(Long.toString(entry.getKey()), value.toString());
+        }
+        editor.apply();
+    }
+
+    /** Removes the fingerprints of the channels, so they are compared fully next time. */
+    @WorkerThread
+    static void removeAll(Context context, Collection<Long> channelIds) {
+        if (channelIds.isEmpty()) {
+            return;
+        }
+        SharedPreferences.Editor editor = getSharedPreferences(context).edit();
+        for (long channelId : channelIds) {
+            editor.remove(Long.toString(channelId));
+        }
+        editor.apply();
+    }
+
+    /** Removes all the fingerprints. */
+    static void clear(Context context) {
+        getSharedPreferences(context).edit().clear().apply();
+    }
+
+    private static SharedPreferences getSharedPreferences(Context context) {
+        return context.getSharedPreferences(
+                SharedPreferencesUtils.SHARED_PREF_EPG_FINGERPRINTS, Context.MODE_PRIVATE);
+    }
+
+    private static long hash(Program program) {
+        // Program.hashCode() covers the title, the episode and the other properties compared by
+        // Program.equals(), so any change which needs an update changes the hash.
+        long hash = program.getStartTimeUtcMillis();
+        hash = hash * HASH_MULTIPLIER + program.getEndTimeUtcMillis();
+        return hash * HASH_MULTIPLIER + program.hashCode();
+    }
+}
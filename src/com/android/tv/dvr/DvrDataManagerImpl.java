@@ -33,7 +33,6 @@ import android.os.Looper;
 import android.support.annotation.MainThread;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
-import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.Log;
 import android.util.Range;
@@ -95,9 +94,9 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
 
     private final TvInputManagerHelper mInputManager;
 
-    private final HashMap<Long, ScheduledRecording> mScheduledRecordings = new HashMap<>();
+    private final ScheduledRecordingIndex mScheduledRecordings = new ScheduledRecordingIndex();
     private final HashMap<Long, RecordedProgram> mRecordedPrograms = new HashMap<>();
-    private final HashMap<Long, SeriesRecording> mSeriesRecordings = new HashMap<>();
+    private final SeriesRecordingIndex mSeriesRecordings = new SeriesRecordingIndex();
     private final HashMap<Long, ScheduledRecording> mProgramId2ScheduledRecordings =
             new HashMap<>();
     private final HashMap<String, SeriesRecording> mSeriesId2SeriesRecordings = new HashMap<>();
@@ -183,14 +182,20 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                 }
             };
 
+    /**
+     * Moves the elements which match the filter. If {@code to} is {@code null}, they are just
+     * removed and the caller should put them to where they belong.
+     */
     private static <T> List<T> moveElements(
-            HashMap<Long, T> from, HashMap<Long, T> to, Predicate<T> filter) {
+            HashMap<Long, T> from, @Nullable HashMap<Long, T> to, Predicate<T> filter) {
         List<T> moved = new ArrayList<>();
         Iterator<Entry<Long, T>> iter = from.entrySet().iterator();
         while (iter.hasNext()) {
             Entry<Long, T> entry = iter.next();
             if (filter.apply(entry.getValue())) {
-                to.put(entry.getKey(), entry.getValue());
+                if (to != null) {
+                    to.put(entry.getKey(), entry.getValue());
+                }
                 iter.remove();
                 moved.add(entry.getValue());
             }
@@ -237,7 +242,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                                                     + r)) {
                                         seriesIds.add(r.getSeriesId());
                                         if (isInputAvailable(r.getInputId())) {
-                                            mSeriesRecordings.put(r.getId(), r);
+                                            mSeriesRecordings.put(r);
                                             mSeriesId2SeriesRecordings.put(r.getSeriesId(), r);
                                         } else {
                                             mSeriesRecordingsForRemovedInput.put(r.getId(), r);
@@ -277,7 +282,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                                             == ScheduledRecording.STATE_RECORDING_DELETED) {
                                         getDeletedScheduleMap().put(r.getProgramId(), r);
                                     } else {
-                                        mScheduledRecordings.put(r.getId(), r);
+                                        mScheduledRecordings.put(r);
                                         if (r.getProgramId() != ScheduledRecording.ID_NOT_SET) {
                                             mProgramId2ScheduledRecordings.put(r.getProgramId(), r);
                                         }
@@ -528,16 +533,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
 
     @Override
     protected List<ScheduledRecording> getRecordingsWithState(@RecordingState int... states) {
-        List<ScheduledRecording> result = new ArrayList<>();
-        for (ScheduledRecording r : mScheduledRecordings.values()) {
-            for (int state : states) {
-                if (r.getState() == state) {
-                    result.add(r);
-                    break;
-                }
-            }
-        }
-        return result;
+        return mScheduledRecordings.getWithStates(states);
     }
 
     @Override
@@ -550,13 +546,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
 
     @Override
     public List<SeriesRecording> getSeriesRecordings(String inputId) {
-        List<SeriesRecording> result = new ArrayList<>();
-        for (SeriesRecording r : mSeriesRecordings.values()) {
-            if (TextUtils.equals(r.getInputId(), inputId)) {
-                result.add(r);
-            }
-        }
-        return result;
+        return mSeriesRecordings.getForInput(inputId);
     }
 
     @Override
@@ -585,35 +575,17 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
     @Override
     public List<ScheduledRecording> getScheduledRecordings(
             Range<Long> period, @RecordingState int state) {
-        List<ScheduledRecording> result = new ArrayList<>();
-        for (ScheduledRecording r : mScheduledRecordings.values()) {
-            if (r.isOverLapping(period) && r.getState() == state) {
-                result.add(r);
-            }
-        }
-        return result;
+        return mScheduledRecordings.getOverlapping(period, state);
     }
 
     @Override
     public List<ScheduledRecording> getScheduledRecordings(long seriesRecordingId) {
-        List<ScheduledRecording> result = new ArrayList<>();
-        for (ScheduledRecording r : mScheduledRecordings.values()) {
-            if (r.getSeriesRecordingId() == seriesRecordingId) {
-                result.add(r);
-            }
-        }
-        return result;
+        return mScheduledRecordings.getForSeriesRecording(seriesRecordingId);
     }
 
     @Override
     public List<ScheduledRecording> getScheduledRecordings(String inputId) {
-        List<ScheduledRecording> result = new ArrayList<>();
-        for (ScheduledRecording r : mScheduledRecordings.values()) {
-            if (TextUtils.equals(r.getInputId(), inputId)) {
-                result.add(r);
-            }
-        }
-        return result;
+        return mScheduledRecordings.getForInput(inputId);
     }
 
     @Nullable
@@ -652,7 +624,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
             if (r.getId() == ScheduledRecording.ID_NOT_SET) {
                 r.setId(IdGenerator.SCHEDULED_RECORDING.newId());
             }
-            mScheduledRecordings.put(r.getId(), r);
+            mScheduledRecordings.put(r);
             if (r.getProgramId() != ScheduledRecording.ID_NOT_SET) {
                 mProgramId2ScheduledRecordings.put(r.getProgramId(), r);
             }
@@ -671,7 +643,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
     public void addSeriesRecording(SeriesRecording... seriesRecordings) {
         for (SeriesRecording r : seriesRecordings) {
             r.setId(IdGenerator.SERIES_RECORDING.newId());
-            mSeriesRecordings.put(r.getId(), r);
+            mSeriesRecordings.put(r);
             SeriesRecording previousSeries = mSeriesId2SeriesRecordings.put(r.getSeriesId(), r);
             SoftPreconditions.checkArgument(
                     previousSeries == null,
@@ -770,8 +742,8 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
         // Reset series recording ID of the scheduled recording.
         List<ScheduledRecording> toUpdate = new ArrayList<>();
         List<ScheduledRecording> toDelete = new ArrayList<>();
-        for (ScheduledRecording r : mScheduledRecordings.values()) {
-            if (ids.contains(r.getSeriesRecordingId())) {
+        for (long id : ids) {
+            for (ScheduledRecording r : mScheduledRecordings.getForSeriesRecording(id)) {
                 if (r.getState() == ScheduledRecording.STATE_RECORDING_NOT_STARTED) {
                     toDelete.add(r);
                 } else {
@@ -816,7 +788,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                 continue;
             }
             toUpdate.add(r);
-            ScheduledRecording oldScheduledRecording = mScheduledRecordings.put(r.getId(), r);
+            ScheduledRecording oldScheduledRecording = mScheduledRecordings.put(r);
             // The channel ID should not be changed.
             SoftPreconditions.checkState(r.getChannelId() == oldScheduledRecording.getChannelId());
             long programId = r.getProgramId();
@@ -867,7 +839,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                     r)) {
                 continue;
             }
-            SeriesRecording old1 = mSeriesRecordings.put(r.getId(), r);
+            SeriesRecording old1 = mSeriesRecordings.put(r);
             SeriesRecording old2 = mSeriesId2SeriesRecordings.put(r.getSeriesId(), r);
             SoftPreconditions.checkArgument(
                     old1.equals(old2), TAG, "Series ID cannot be updated: %s", r);
@@ -935,8 +907,11 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
         List<ScheduledRecording> movedSchedules =
                 moveElements(
                         mScheduledRecordingsForRemovedInput,
-                        mScheduledRecordings,
+                        null,
                         r -> r.getInputId().equals(inputId));
+        for (ScheduledRecording r : movedSchedules) {
+            mScheduledRecordings.put(r);
+        }
         List<RecordedProgram> movedRecordedPrograms =
                 moveElements(
                         mRecordedProgramsForRemovedInput,
@@ -946,7 +921,7 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
         List<SeriesRecording> movedSeriesRecordings =
                 moveElements(
                         mSeriesRecordingsForRemovedInput,
-                        mSeriesRecordings,
+                        null,
                         r -> {
                             if (r.getInputId().equals(inputId)) {
                                 if (!isEmptySeriesRecording(r)) {
@@ -956,6 +931,9 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
                             }
                             return false;
                         });
+        for (SeriesRecording r : movedSeriesRecordings) {
+            mSeriesRecordings.put(r);
+        }
         if (!movedSchedules.isEmpty()) {
             for (ScheduledRecording schedule : movedSchedules) {
                 mProgramId2ScheduledRecordings.put(schedule.getProgramId(), schedule);
@@ -989,16 +967,16 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
 
     private void hideInput(String inputId) {
         if (DEBUG) Log.d(TAG, "hideInput " + inputId);
-        List<ScheduledRecording> movedSchedules =
-                moveElements(
-                        mScheduledRecordings,
-                        mScheduledRecordingsForRemovedInput,
-                        r -> r.getInputId().equals(inputId));
-        List<SeriesRecording> movedSeriesRecordings =
-                moveElements(
-                        mSeriesRecordings,
-                        mSeriesRecordingsForRemovedInput,
-                        r -> r.getInputId().equals(inputId));
+        List<ScheduledRecording> movedSchedules = mScheduledRecordings.getForInput(inputId);
+        for (ScheduledRecording r : movedSchedules) {
+            mScheduledRecordings.remove(r.getId());
+            mScheduledRecordingsForRemovedInput.put(r.getId(), r);
+        }
+        List<SeriesRecording> movedSeriesRecordings = mSeriesRecordings.getForInput(inputId);
+        for (SeriesRecording r : movedSeriesRecordings) {
+            mSeriesRecordings.remove(r.getId());
+            mSeriesRecordingsForRemovedInput.put(r.getId(), r);
+        }
         List<RecordedProgram> movedRecordedPrograms =
                 moveElements(
                         mRecordedPrograms,
@@ -1093,15 +1071,15 @@ public class DvrDataManagerImpl extends BaseDvrDataManager {
     }
 
     private void validateSeriesRecordings() {
-        Iterator<SeriesRecording> iter = mSeriesRecordings.values().iterator();
         List<SeriesRecording> removedSeriesRecordings = new ArrayList<>();
-        while (iter.hasNext()) {
-            SeriesRecording r = iter.next();
+        for (SeriesRecording r : mSeriesRecordings.values()) {
             if (isEmptySeriesRecording(r)) {
-                iter.remove();
                 removedSeriesRecordings.add(r);
             }
         }
+        for (SeriesRecording r : removedSeriesRecordings) {
+            mSeriesRecordings.remove(r.getId());
+        }
         if (!removedSeriesRecordings.isEmpty()) {
             SeriesRecording[] removed = SeriesRecording.toArray(removedSeriesRecordings);
             ListenableFuture deleteSeriesRecordingFuture =
@@ -46,6 +46,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -86,6 +87,8 @@ public class DvrScheduleManager {
     // the boolean value true denotes the schedule is just partially conflicting, which means
     // although there's conflict, it might still be recorded partially.
     private final Map<String, Map<Long, ConflictInfo>> mInputConflictInfoMap = new HashMap<>();
+    // The same schedules as mInputScheduleMap, which are indexed to find the conflicts quickly.
+    private final Map<String, ScheduleConflictIndex> mInputConflictIndexMap = new HashMap<>();
 
     private boolean mInitialized;
 
@@ -132,6 +135,7 @@ public class DvrScheduleManager {
                                 // Input removed.
                                 mInputScheduleMap.remove(schedule.getInputId());
                                 mInputConflictInfoMap.remove(schedule.getInputId());
+                                mInputConflictIndexMap.remove(schedule.getInputId());
                                 continue;
                             }
                             String inputId = input.getId();
@@ -141,6 +145,7 @@ public class DvrScheduleManager {
                                 mInputScheduleMap.put(inputId, schedules);
                             }
                             schedules.add(schedule);
+                            getConflictIndex(inputId).add(schedule);
                         }
                         onSchedulesChanged();
                         notifyScheduledRecordingAdded(scheduledRecordings);
@@ -159,14 +164,18 @@ public class DvrScheduleManager {
                                 // Input removed.
                                 mInputScheduleMap.remove(schedule.getInputId());
                                 mInputConflictInfoMap.remove(schedule.getInputId());
+                                mInputConflictIndexMap.remove(schedule.getInputId());
                                 continue;
                             }
                             String inputId = input.getId();
                             List<ScheduledRecording> schedules = mInputScheduleMap.get(inputId);
                             if (schedules != null) {
-                                schedules.remove(schedule);
+                                if (schedules.remove(schedule)) {
+                                    getConflictIndex(inputId).remove(schedule);
+                                }
                                 if (schedules.isEmpty()) {
                                     mInputScheduleMap.remove(inputId);
+                                    mInputConflictIndexMap.remove(inputId);
                                 }
                             }
                             Map<Long, ConflictInfo> conflictInfo =
@@ -196,6 +205,7 @@ public class DvrScheduleManager {
                                 // Input removed.
                                 mInputScheduleMap.remove(schedule.getInputId());
                                 mInputConflictInfoMap.remove(schedule.getInputId());
+                                mInputConflictIndexMap.remove(schedule.getInputId());
                                 continue;
                             }
                             String inputId = input.getId();
@@ -207,18 +217,23 @@ public class DvrScheduleManager {
                             // Compare ID because ScheduledRecording.equals() doesn't work if the
                             // state
                             // is changed.
+                            ScheduleConflictIndex conflictIndex = getConflictIndex(inputId);
                             for (Iterator<ScheduledRecording> i = schedules.iterator();
                                     i.hasNext(); ) {
-                                if (i.next().getId() == schedule.getId()) {
+                                ScheduledRecording oldSchedule = i.next();
+                                if (oldSchedule.getId() == schedule.getId()) {
                                     i.remove();
+                                    conflictIndex.remove(oldSchedule);
                                     break;
                                 }
                             }
                             if (schedule.isNotStarted() || schedule.isInProgress()) {
                                 schedules.add(schedule);
+                                conflictIndex.add(schedule);
                             }
                             if (schedules.isEmpty()) {
                                 mInputScheduleMap.remove(inputId);
+                                mInputConflictIndexMap.remove(inputId);
                             }
                             // Update conflict list as well
                             Map<Long, ConflictInfo> conflictInfo =
@@ -257,6 +272,15 @@ public class DvrScheduleManager {
         mChannelDataManager.addListener(channelDataManagerListener);
     }
 
+    private ScheduleConflictIndex getConflictIndex(String inputId) {
+        ScheduleConflictIndex conflictIndex = mInputConflictIndexMap.get(inputId);
+        if (conflictIndex == null) {
+            conflictIndex = new ScheduleConflictIndex();
+            mInputConflictIndexMap.put(inputId, conflictIndex);
+        }
+        return conflictIndex;
+    }
+
     /** Returns the started recordings for the given input. */
     private List<ScheduledRecording> getStartedRecordings(String inputId) {
         if (!SoftPreconditions.checkState(mInitialized, TAG, "Not initialized yet")) {
@@ -293,6 +317,11 @@ public class DvrScheduleManager {
                 schedules.add(schedule);
             }
         }
+        mInputConflictIndexMap.clear();
+        for (Map.Entry<String, List<ScheduledRecording>> entry : mInputScheduleMap.entrySet()) {
+            mInputConflictIndexMap.put(
+                    entry.getKey(), new ScheduleConflictIndex(entry.getValue()));
+        }
         if (!mInitialized) {
             mInitialized = true;
             notifyInitialize();
@@ -593,7 +622,10 @@ public class DvrScheduleManager {
 
     /**
      * Returns all the scheduled recordings that conflicts and will not be recorded or clipped for
-     * the given input.
+     * the given input, in no particular order.
+     *
+     * <p>Only the conflicts around the schedules which are changed since the last call are
+     * calculated again.
      */
     @NonNull
     private List<ConflictInfo> getConflictingSchedulesInfo(String inputId) {
@@ -603,11 +635,11 @@ public class DvrScheduleManager {
         if (!mInitialized || input == null) {
             return Collections.emptyList();
         }
-        List<ScheduledRecording> schedules = mInputScheduleMap.get(input.getId());
-        if (schedules == null || schedules.isEmpty()) {
+        ScheduleConflictIndex conflictIndex = mInputConflictIndexMap.get(input.getId());
+        if (conflictIndex == null) {
             return Collections.emptyList();
         }
-        return getConflictingSchedulesInfo(schedules, input.getTunerCount());
+        return conflictIndex.getConflicts(input.getTunerCount());
     }
 
     /**
@@ -842,13 +874,30 @@ public class DvrScheduleManager {
             List<ScheduledRecording> schedules, int tunerCount, List<Range<Long>> periods) {
         List<ScheduledRecording> schedulesToCheck = new ArrayList<>(schedules);
         // Sort by the same order as that in InputTaskScheduler.
-        Collections.sort(schedulesToCheck, InputTaskScheduler.getRecordingOrderComparator());
+        Comparator<ScheduledRecording> recordingOrderComparator =
+                InputTaskScheduler.getRecordingOrderComparator();
+        Collections.sort(schedulesToCheck, recordingOrderComparator);
+        // The clipped schedules which start later are merged with the sorted schedules in the
+        // same order, rather than inserted to the list.
+        PriorityQueue<ScheduledRecording> modifiedSchedulesToCheck =
+                new PriorityQueue<>(11, recordingOrderComparator);
+        int nextIndex = 0;
         List<ScheduledRecording> recordings = new ArrayList<>();
         Map<ScheduledRecording, ConflictInfo> conflicts = new HashMap<>();
         Map<ScheduledRecording, ScheduledRecording> modified2OriginalSchedules = new HashMap<>();
         // Simulate InputTaskScheduler.
-        while (!schedulesToCheck.isEmpty()) {
-            ScheduledRecording schedule = schedulesToCheck.remove(0);
+        while (nextIndex < schedulesToCheck.size() || !modifiedSchedulesToCheck.isEmpty()) {
+            ScheduledRecording schedule;
+            if (nextIndex >= schedulesToCheck.size()
+                    || (!modifiedSchedulesToCheck.isEmpty()
+                            && recordingOrderComparator.compare(
+                                            modifiedSchedulesToCheck.peek(),
+                                            schedulesToCheck.get(nextIndex))
+                                    <= 0)) {
+                schedule = modifiedSchedulesToCheck.poll();
+            } else {
+                schedule = schedulesToCheck.get(nextIndex++);
+            }
             removeFinishedRecordings(recordings, schedule.getStartTimeMs());
             if (recordings.size() < tunerCount) {
                 recordings.add(schedule);
@@ -890,17 +939,7 @@ public class DvrScheduleManager {
                         ScheduledRecording originalSchedule =
                                 modified2OriginalSchedules.getOrDefault(schedule, schedule);
                         modified2OriginalSchedules.put(modifiedSchedule, originalSchedule);
-                        int insertPosition =
-                                Collections.binarySearch(
-                                        schedulesToCheck,
-                                        modifiedSchedule,
-                                        ScheduledRecording
-                                                .START_TIME_THEN_PRIORITY_THEN_ID_COMPARATOR);
-                        if (insertPosition >= 0) {
-                            schedulesToCheck.add(insertPosition, modifiedSchedule);
-                        } else {
-                            schedulesToCheck.add(-insertPosition - 1, modifiedSchedule);
-                        }
+                        modifiedSchedulesToCheck.add(modifiedSchedule);
                     }
                 }
             }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.dvr;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import com.android.tv.dvr.DvrScheduleManager.ConflictInfo;
+import com.android.tv.dvr.data.ScheduledRecording;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the conflicting schedules of an input up to date while the schedules are added and
+ * removed one by one.
+ *
+ * <p>The schedules are grouped into clusters, whose time ranges don't overlap or touch each other.
+ * A schedule can take a tuner from another one only when their time ranges overlap, directly or
+ * through other schedules, so the conflicts of a cluster depend only on its own schedules. When a
+ * schedule is added or removed, only the clusters around its time range are rebuilt, and only
+ * those are calculated again by {@link DvrScheduleManager#getConflictingSchedulesInfo}.
+ */
+@MainThread
+class ScheduleConflictIndex {
+    private static class Cluster {
+        private long mStartTimeMs;
+        private long mEndTimeMs;
+        private final List<ScheduledRecording> mSchedules = new ArrayList<>();
+        // The conflicts of the schedules, or null if they need to be calculated.
+        @Nullable private List<ConflictInfo> mConflicts;
+
+        private Cluster(ScheduledRecording schedule) {
+            mStartTimeMs = schedule.getStartTimeMs();
+            mEndTimeMs = getEndTimeMs(schedule);
+            mSchedules.add(schedule);
+        }
+
+        private void add(ScheduledRecording schedule) {
+            mStartTimeMs = Math.min(mStartTimeMs, schedule.getStartTimeMs());
+            mEndTimeMs = Math.max(mEndTimeMs, getEndTimeMs(schedule));
+            mSchedules.add(schedule);
+        }
+
+        private void addAll(Cluster other) {
+            mStartTimeMs = Math.min(mStartTimeMs, other.mStartTimeMs);
+            mEndTimeMs = Math.max(mEndTimeMs, other.mEndTimeMs);
+            mSchedules.addAll(other.mSchedules);
+        }
+    }
+
+    // The start time of the cluster -> cluster.
+    private final TreeMap<Long, Cluster> mClusters = new TreeMap<>();
+    private int mTunerCount = -1;
+    private int mCalculatedClusterCount;
+
+    ScheduleConflictIndex() {}
+
+    ScheduleConflictIndex(Collection<ScheduledRecording> schedules) {
+        addClusters(new ArrayList<>(schedules));
+    }
+
+    /** Adds the schedule. */
+    void add(ScheduledRecording schedule) {
+        Cluster cluster = new Cluster(schedule);
+        // Only the cluster which starts before the schedule can end before it, and the following
+        // ones overlap with the schedule until the first one which starts after the schedule.
+        Long firstKey = mClusters.floorKey(schedule.getStartTimeMs());
+        Iterator<Cluster> iterator =
+                (firstKey == null ? mClusters : mClusters.tailMap(firstKey, true))
+                        .values()
+                        .iterator();
+        while (iterator.hasNext()) {
+            Cluster other = iterator.next();
+            if (other.mStartTimeMs > cluster.mEndTimeMs) {
+                break;
+            }
+            if (other.mEndTimeMs >= schedule.getStartTimeMs()) {
+                cluster.addAll(other);
+                iterator.remove();
+            }
+        }
+        mClusters.put(cluster.mStartTimeMs, cluster);
+    }
+
+    /**
+     * Removes the schedule which is {@link ScheduledRecording#equals equal} to the given one.
+     *
+     * @return {@code true} if the schedule was found and removed.
+     */
+    boolean remove(ScheduledRecording schedule) {
+        Map.Entry<Long, Cluster> entry = mClusters.floorEntry(schedule.getStartTimeMs());
+        if (entry == null || !entry.getValue().mSchedules.remove(schedule)) {
+            return false;
+        }
+        mClusters.remove(entry.getKey());
+        // The cluster might be split into several ones without the schedule.
+        addClusters(entry.getValue().mSchedules);
+        return true;
+    }
+
+    /**
+     * Returns the conflicting schedules, in no particular order. The clusters which are not
+     * changed since the last call reuse the previous result.
+     */
+    List<ConflictInfo> getConflicts(int tunerCount) {
+        if (tunerCount != mTunerCount) {
+            mTunerCount = tunerCount;
+            for (Cluster cluster : mClusters.values()) {
+                cluster.mConflicts = null;
+            }
+        }
+        mCalculatedClusterCount = 0;
+        List<ConflictInfo> result = new ArrayList<>();
+        for (Cluster cluster : mClusters.values()) {
+            if (cluster.mConflicts == null) {
+                cluster.mConflicts =
+                        cluster.mSchedules.size() <= tunerCount
+                                ? Collections.emptyList()
+                                : DvrScheduleManager.getConflictingSchedulesInfo(
+                                        cluster.mSchedules, tunerCount);
+                mCalculatedClusterCount++;
+            }
+            result.addAll(cluster.mConflicts);
+        }
+        return result;
+    }
+
+    /** Returns the number of the clusters which were calculated by the last getConflicts(). */
+    @VisibleForTesting
+    int getCalculatedClusterCount() {
+        return mCalculatedClusterCount;
+    }
+
+    @VisibleForTesting
+    int getClusterCount() {
+        return mClusters.size();
+    }
+
+    /** Groups the schedules into the clusters and adds them. */
+    private void addClusters(List<ScheduledRecording> schedules) {
+        Collections.sort(schedules, ScheduledRecording.START_TIME_COMPARATOR);
+        Cluster cluster = null;
+        for (ScheduledRecording schedule : schedules) {
+            if (cluster == null || schedule.getStartTimeMs() > cluster.mEndTimeMs) {
+                if (cluster != null) {
+                    mClusters.put(cluster.mStartTimeMs, cluster);
+                }
+                cluster = new Cluster(schedule);
+            } else {
+                cluster.add(schedule);
+            }
+        }
+        if (cluster != null) {
+            mClusters.put(cluster.mStartTimeMs, cluster);
+        }
+    }
+
+    private static long getEndTimeMs(ScheduledRecording schedule) {
+        return Math.max(schedule.getStartTimeMs(), schedule.getEndTimeMs());
+    }
+}
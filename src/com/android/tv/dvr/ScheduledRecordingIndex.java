@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.dvr;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.util.Range;
+import android.util.SparseArray;
+
+import com.android.tv.dvr.data.ScheduledRecording;
+import com.android.tv.dvr.data.ScheduledRecording.RecordingState;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The scheduled recordings keyed by the ID, which are also indexed by the time, the state, the
+ * series recording and the input, so that the queries of {@link DvrDataManager} don't need to scan
+ * all the scheduled recordings.
+ */
+@MainThread
+class ScheduledRecordingIndex {
+    /** The schedules of a state, indexed by the start time. */
+    private static class IntervalIndex {
+        // Start time -> ID -> schedule.
+        private final TreeMap<Long, Map<Long, ScheduledRecording>> mStartTimeMap = new TreeMap<>();
+        // Duration -> the number of the schedules, to know the longest duration.
+        private final TreeMap<Long, Integer> mDurationCounts = new TreeMap<>();
+        private int mSize;
+
+        private void add(ScheduledRecording r) {
+            Map<Long, ScheduledRecording> schedules = mStartTimeMap.get(r.getStartTimeMs());
+            if (schedules == null) {
+                schedules = new HashMap<>();
+                mStartTimeMap.put(r.getStartTimeMs(), schedules);
+            }
+            schedules.put(r.getId(), r);
+            long duration = getDurationMs(r);
+            Integer count = mDurationCounts.get(duration);
+            mDurationCounts.put(duration, count == null ? 1 : count + 1);
+            mSize++;
+        }
+
+        private void remove(ScheduledRecording r) {
+            Map<Long, ScheduledRecording> schedules = mStartTimeMap.get(r.getStartTimeMs());
+            if (schedules == null || schedules.remove(r.getId()) == null) {
+                return;
+            }
+            if (schedules.isEmpty()) {
+                mStartTimeMap.remove(r.getStartTimeMs());
+            }
+            long duration = getDurationMs(r);
+            int count = mDurationCounts.get(duration);
+            if (count == 1) {
+                mDurationCounts.remove(duration);
+            } else {
+                mDurationCounts.put(duration, count - 1);
+            }
+            mSize--;
+        }
+
+        private void addOverlapping(Range<Long> period, List<ScheduledRecording> result) {
+            if (mSize == 0) {
+                return;
+            }
+            // A schedule which overlaps with the period can't start earlier than this.
+            long fromStartTimeMs = period.getLower() - mDurationCounts.lastKey();
+            if (fromStartTimeMs > period.getLower()) {
+                // Overflowed.
+                fromStartTimeMs = Long.MIN_VALUE;
+            }
+            Map<Long, Map<Long, ScheduledRecording>> candidates =
+                    mStartTimeMap.subMap(fromStartTimeMs, true, period.getUpper(), false);
+            for (Map<Long, ScheduledRecording> schedules : candidates.values()) {
+                for (ScheduledRecording r : schedules.values()) {
+                    if (r.isOverLapping(period)) {
+                        result.add(r);
+                    }
+                }
+            }
+        }
+
+        private void addAll(List<ScheduledRecording> result) {
+            for (Map<Long, ScheduledRecording> schedules : mStartTimeMap.values()) {
+                result.addAll(schedules.values());
+            }
+        }
+
+        private static long getDurationMs(ScheduledRecording r) {
+            return Math.max(0, r.getEndTimeMs() - r.getStartTimeMs());
+        }
+    }
+
+    private final HashMap<Long, ScheduledRecording> mSchedules = new HashMap<>();
+    private final SparseArray<IntervalIndex> mStateIndex = new SparseArray<>();
+    // Series recording ID -> ID -> schedule.
+    private final HashMap<Long, Map<Long, ScheduledRecording>> mSeriesIndex = new HashMap<>();
+    // Input ID -> ID -> schedule.
+    private final HashMap<String, Map<Long, ScheduledRecording>> mInputIndex = new HashMap<>();
+
+    @Nullable
+    ScheduledRecording get(long id) {
+        return mSchedules.get(id);
+    }
+
+    boolean containsKey(long id) {
+        return mSchedules.containsKey(id);
+    }
+
+    int size() {
+        return mSchedules.size();
+    }
+
+    /** Returns the unmodifiable view of all the schedules. */
+    Collection<ScheduledRecording> values() {
+        return Collections.unmodifiableCollection(mSchedules.values());
+    }
+
+    /**
+     * Puts the schedule, replacing the one with the same ID.
+     *
+     * @return the replaced schedule, or {@code null} if there was none.
+     */
+    @Nullable
+    ScheduledRecording put(ScheduledRecording r) {
+        ScheduledRecording old = remove(r.getId());
+        mSchedules.put(r.getId(), r);
+        IntervalIndex intervalIndex = mStateIndex.get(r.getState());
+        if (intervalIndex == null) {
+            intervalIndex = new IntervalIndex();
+            mStateIndex.put(r.getState(), intervalIndex);
+        }
+        intervalIndex.add(r);
+        addToIndex(mSeriesIndex, r.getSeriesRecordingId(), r);
+        addToIndex(mInputIndex, r.getInputId(), r);
+        return old;
+    }
+
+    /**
+     * Removes the schedule with the ID.
+     *
+     * @return the removed schedule, or {@code null} if there was none.
+     */
+    @Nullable
+    ScheduledRecording remove(long id) {
+        ScheduledRecording r = mSchedules.remove(id);
+        if (r != null) {
+            mStateIndex.get(r.getState()).remove(r);
+            removeFromIndex(mSeriesIndex, r.getSeriesRecordingId(), r);
+            removeFromIndex(mInputIndex, r.getInputId(), r);
+        }
+        return r;
+    }
+
+    /** Returns the schedules with the state which overlap with the period. */
+    List<ScheduledRecording> getOverlapping(Range<Long> period, @RecordingState int state) {
+        List<ScheduledRecording> result = new ArrayList<>();
+        IntervalIndex intervalIndex = mStateIndex.get(state);
+        if (intervalIndex != null) {
+            intervalIndex.addOverlapping(period, result);
+        }
+        return result;
+    }
+
+    /** Returns the schedules with any of the states. */
+    List<ScheduledRecording> getWithStates(@RecordingState int... states) {
+        List<ScheduledRecording> result = new ArrayList<>();
+        for (int i = 0; i < states.length; ++i) {
+            // Ignores the duplicate states.
+            boolean duplicate = false;
+            for (int j = 0; j < i; ++j) {
+                if (states[j] == states[i]) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            IntervalIndex intervalIndex = mStateIndex.get(states[i]);
+            if (!duplicate && intervalIndex != null) {
+                intervalIndex.addAll(result);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the schedules of the series recording. */
+    List<ScheduledRecording> getForSeriesRecording(long seriesRecordingId) {
+        return getFromIndex(mSeriesIndex, seriesRecordingId);
+    }
+
+    /** Returns the schedules of the input. */
+    List<ScheduledRecording> getForInput(String inputId) {
+        return getFromIndex(mInputIndex, inputId);
+    }
+
+    private static <K> void addToIndex(
+            Map<K, Map<Long, ScheduledRecording>> index, K key, ScheduledRecording r) {
+        Map<Long, ScheduledRecording> schedules = index.get(key);
+        if (schedules == null) {
+            schedules = new HashMap<>();
+            index.put(key, schedules);
+        }
+        schedules.put(r.getId(), r);
+    }
+
+    private static <K> void removeFromIndex(
+            Map<K, Map<Long, ScheduledRecording>> index, K key, ScheduledRecording r) {
+        Map<Long, ScheduledRecording> schedules = index.get(key);
+        if (schedules != null) {
+            schedules.remove(r.getId());
+            if (schedules.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static <K> List<ScheduledRecording> getFromIndex(
+            Map<K, Map<Long, ScheduledRecording>> index, K key) {
+        Map<Long, ScheduledRecording> schedules = index.get(key);
+        return schedules == null ? new ArrayList<>() : new ArrayList<>(schedules.values());
+    }
+}
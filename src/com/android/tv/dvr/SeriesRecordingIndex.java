@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.dvr;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+
+import com.android.tv.dvr.data.SeriesRecording;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The series recordings keyed by the ID, which are also indexed by the input. */
+@MainThread
+class SeriesRecordingIndex {
+    private final HashMap<Long, SeriesRecording> mSeriesRecordings = new HashMap<>();
+    // Input ID -> ID -> series recording.
+    private final HashMap<String, Map<Long, SeriesRecording>> mInputIndex = new HashMap<>();
+
+    @Nullable
+    SeriesRecording get(long id) {
+        return mSeriesRecordings.get(id);
+    }
+
+    boolean containsKey(long id) {
+        return mSeriesRecordings.containsKey(id);
+    }
+
+    /** Returns the unmodifiable view of all the series recordings. */
+    Collection<SeriesRecording> values() {
+        return Collections.unmodifiableCollection(mSeriesRecordings.values());
+    }
+
+    /**
+     * Puts the series recording, replacing the one with the same ID.
+     *
+     * @return the replaced series recording, or {@code null} if there was none.
+     */
+    @Nullable
+    SeriesRecording put(SeriesRecording r) {
+        SeriesRecording old = remove(r.getId());
+        mSeriesRecordings.put(r.getId(), r);
+        Map<Long, SeriesRecording> seriesRecordings = mInputIndex.get(r.getInputId());
+        if (seriesRecordings == null) {
+            seriesRecordings = new HashMap<>();
+            mInputIndex.put(r.getInputId(), seriesRecordings);
+        }
+        seriesRecordings.put(r.getId(), r);
+        return old;
+    }
+
+    /**
+     * Removes the series recording with the ID.
+     *
+     * @return the removed series recording, or {@code null} if there was none.
+     */
+    @Nullable
+    SeriesRecording remove(long id) {
+        SeriesRecording r = mSeriesRecordings.remove(id);
+        if (r != null) {
+            Map<Long, SeriesRecording> seriesRecordings = mInputIndex.get(r.getInputId());
+            seriesRecordings.remove(id);
+            if (seriesRecordings.isEmpty()) {
+                mInputIndex.remove(r.getInputId());
+            }
+        }
+        return r;
+    }
+
+    /** Returns the series recordings of the input. */
+    List<SeriesRecording> getForInput(String inputId) {
+        Map<Long, SeriesRecording> seriesRecordings = mInputIndex.get(inputId);
+        return seriesRecordings == null
+                ? new ArrayList<>()
+                : new ArrayList<>(seriesRecordings.values());
+    }
+}
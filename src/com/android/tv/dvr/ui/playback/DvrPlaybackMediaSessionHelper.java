@@ -212,6 +212,7 @@ class DvrPlaybackMediaSessionHelper {
                     posterArtUri,
                     mNowPlayingCardWidth,
                     mNowPlayingCardHeight,
+                    ImageLoader.PRIORITY_BACKGROUND,
                     new ProgramPosterArtCallback(mActivity, program, currentMetadata));
         } else {
             updateMetadataImageInfo(program, currentMetadata, null, R.drawable.default_now_card);
@@ -240,6 +240,13 @@ class ProgramTableAdapter extends RecyclerView.Adapter<ProgramTableAdapter.Progr
         }
     }
 
+    @Override
+    public void onViewRecycled(ProgramRowViewHolder holder) {
+        super.onViewRecycled(holder);
+        // The images of the row are not needed anymore while scrolling fast.
+        ImageLoader.cancelLoad(holder);
+    }
+
     @Override
     public ProgramRowViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         View itemView = LayoutInflater.from(parent.getContext()).inflate(viewType, parent, false);
@@ -92,6 +92,14 @@ public class ChannelCardView extends BaseCardView<ChannelsRowItem> {
         super.onBind(item, selected);
     }
 
+    @Override
+    public void onRecycled() {
+        super.onRecycled();
+        ImageLoader.cancelLoad(this);
+        // The poster art might not be loaded, so loads it again when the view is bound.
+        mPosterArtUri = null;
+    }
+
     private void updateChannel(ChannelsRowItem item) {
         if (!item.getChannel().equals(mChannel)) {
             mChannel = item.getChannel();
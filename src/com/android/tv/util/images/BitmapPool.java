@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.util.images;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A size-bounded pool of the bitmaps which are no longer used, so that their memory can be reused
+ * to decode other bitmaps instead of allocating new ones.
+ *
+ * <p>Only the bitmaps which are known not to be referenced anywhere else should be put, since
+ * their pixels are overwritten when they are reused.
+ */
+class BitmapPool {
+    private static final String TAG = "BitmapPool";
+    private static final boolean DEBUG = false;
+
+    private static final int DEFAULT_MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+    private static final BitmapPool sInstance = new BitmapPool(DEFAULT_MAX_SIZE_BYTES);
+
+    private final int mMaxSizeBytes;
+    // The oldest bitmap is the first.
+    private final ArrayDeque<Bitmap> mBitmaps = new ArrayDeque<>();
+    private int mSizeBytes;
+
+    static BitmapPool getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    BitmapPool(int maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /** Puts a bitmap which is no longer used. Immutable or too large bitmaps are ignored. */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (size > mMaxSizeBytes / 2) {
+            return;
+        }
+        mBitmaps.addLast(bitmap);
+        mSizeBytes += size;
+        trimToSize(mMaxSizeBytes);
+    }
+
+    /**
+     * Takes a bitmap whose memory is large enough for the given size and config, which can be used
+     * as {@link android.graphics.BitmapFactory.Options#inBitmap}.
+     */
+    @Nullable
+    synchronized Bitmap takeForDecoding(int width, int height, Bitmap.Config config) {
+        long requiredBytes = (long) width * height * getBytesPerPixel(config);
+        Bitmap best = null;
+        for (Bitmap bitmap : mBitmaps) {
+            int size = bitmap.getAllocationByteCount();
+            // Don't waste a large bitmap for a small one.
+            if (size >= requiredBytes
+                    && size <= requiredBytes * 4
+                    && (best == null || size < best.getAllocationByteCount())) {
+                best = bitmap;
+            }
+        }
+        if (best != null) {
+            remove(best);
+            if (DEBUG) Log.d(TAG, "Reusing " + best.getAllocationByteCount() + " bytes");
+        }
+        return best;
+    }
+
+    /** Takes a bitmap which has exactly the given size and config. */
+    @Nullable
+    synchronized Bitmap takeExact(int width, int height, Bitmap.Config config) {
+        for (Bitmap bitmap : mBitmaps) {
+            if (bitmap.getWidth() == width
+                    && bitmap.getHeight() == height
+                    && bitmap.getConfig() == config) {
+                remove(bitmap);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /** Removes the oldest bitmaps until the total size is not larger than the given size. */
+    synchronized void trimToSize(int maxSizeBytes) {
+        Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (mSizeBytes > maxSizeBytes && iterator.hasNext()) {
+            mSizeBytes -= iterator.next().getAllocationByteCount();
+            iterator.remove();
+        }
+    }
+
+    synchronized void clear() {
+        trimToSize(0);
+    }
+
+    @VisibleForTesting
+    synchronized int getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    private void remove(Bitmap bitmap) {
+        mBitmaps.remove(bitmap);
+        mSizeBytes -= bitmap.getAllocationByteCount();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
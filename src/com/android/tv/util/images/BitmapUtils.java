@@ -154,7 +154,35 @@ public final class BitmapUtils {
             options.inJustDecodeBounds = false;
             options.inPreferredConfig = Bitmap.Config.RGB_565;
             options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
-            Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+            // Decode into the memory of an unused bitmap if there is, and keep the result mutable
+            // so that its memory can also be reused once it's released.
+            options.inMutable = true;
+            options.inBitmap =
+                    BitmapPool.getInstance()
+                            .takeForDecoding(
+                                    divideRoundingUp(options.outWidth, options.inSampleSize),
+                                    divideRoundingUp(options.outHeight, options.inSampleSize),
+                                    options.inPreferredConfig);
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+            } catch (IllegalArgumentException e) {
+                if (options.inBitmap == null) {
+                    throw e;
+                }
+                if (DEBUG) Log.d(TAG, "Failed to reuse a bitmap for " + uriString, e);
+                // The stream is consumed, so reopen it and decode into a new bitmap.
+                close(inputStream, urlConnection);
+                urlConnection = null;
+                if (isResourceUri) {
+                    inputStream = context.getContentResolver().openInputStream(uri);
+                } else {
+                    urlConnection = getUrlConnection(uriString);
+                    inputStream = urlConnection.getInputStream();
+                }
+                options.inBitmap = null;
+                bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+            }
             if (bitmap == null) {
                 return null;
             }
@@ -174,6 +202,21 @@ public final class BitmapUtils {
         }
     }
 
+    /**
+     * Returns a bitmap which is no longer used, so that its memory can be reused to decode other
+     * bitmaps. The bitmap must not be used or referenced anywhere after this call, so bitmaps from
+     * {@link ImageCache} or {@link ImageLoader} must not be released.
+     */
+    public static void releaseBitmap(@Nullable Bitmap bitmap) {
+        if (bitmap != null) {
+            BitmapPool.getInstance().put(bitmap);
+        }
+    }
+
+    private static int divideRoundingUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
     private static URLConnection getUrlConnection(String uriString) throws IOException {
         URLConnection urlConnection = new URL(uriString).openConnection();
         urlConnection.setConnectTimeout(CONNECTION_TIMEOUT_MS_FOR_URLCONNECTION);
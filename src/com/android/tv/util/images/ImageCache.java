@@ -16,6 +16,7 @@
 
 package com.android.tv.util.images;
 
+import android.content.ComponentCallbacks2;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 import android.util.LruCache;
@@ -55,6 +56,22 @@ public class ImageCache implements MemoryManageable {
                     protected int sizeOf(String key, ScaledBitmapInfo bitmapInfo) {
                         return (bitmapInfo.bitmap.getByteCount() + 1023) / 1024;
                     }
+
+                    /**
+                     * Gives the bitmaps evicted for the space to {@link BitmapPool}, so that their
+                     * memory is reused for the next decode. The bitmaps which are replaced or
+                     * removed explicitly are left alone, since they may be still in use.
+                     */
+                    @Override
+                    protected void entryRemoved(
+                            boolean evicted,
+                            String key,
+                            ScaledBitmapInfo oldValue,
+                            ScaledBitmapInfo newValue) {
+                        if (evicted && oldValue.bitmap != null) {
+                            BitmapPool.getInstance().put(oldValue.bitmap);
+                        }
+                    }
                 };
     }
 
@@ -186,6 +203,22 @@ public class ImageCache implements MemoryManageable {
 
     @Override
     public void performTrimMemory(int level) {
-        mMemoryCache.evictAll();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mMemoryCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // Includes TRIM_MEMORY_UI_HIDDEN and TRIM_MEMORY_BACKGROUND. The evicted bitmaps
+            // are loaded back from ImageDiskCache quickly.
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
+        // The unused bitmaps, including the ones just evicted, go as well. They can be allocated
+        // again if needed.
+        BitmapPool.getInstance().clear();
+        if (DEBUG) {
+            Log.d(
+                    TAG,
+                    "Trimmed memory cache for level " + level + ". Current size is "
+                            + mMemoryCache.size() + " Kbytes");
+        }
     }
 }
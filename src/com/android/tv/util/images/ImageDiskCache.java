@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.util.images;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.android.tv.common.util.Clock;
+import com.android.tv.util.images.BitmapUtils.ScaledBitmapInfo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The disk tier of {@link ImageCache}, which keeps the scaled bitmaps of the images on the network
+ * across the restarts.
+ *
+ * <p>The bitmaps are keyed by the URI and the requested size, and are stored as their raw pixels
+ * rather than compressed, so that a cached bitmap is copied from a mapping of the file without
+ * decoding. The total size is bounded, and the least recently used files are removed first. Since
+ * the image of a URI may change on the server, a bitmap stored long ago is loaded again.
+ */
+public class ImageDiskCache {
+    private static final String TAG = "ImageDiskCache";
+    private static final boolean DEBUG = false;
+
+    private static final String DIRECTORY_NAME = "image_cache";
+    private static final int MAGIC = 0x54564943; // "TVIC"
+    private static final int VERSION = 2;
+    private static final long DEFAULT_MAX_SIZE_BYTES = 32 * 1024 * 1024;
+    @VisibleForTesting static final long DEFAULT_MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
+    // After the cache becomes full, removes the files until this ratio of the max size.
+    private static final float TRIM_RATIO = 0.9f;
+
+    private static ImageDiskCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private final long mMaxAgeMs;
+    private final Clock mClock;
+    // The total size of the files, or -1 if it's not calculated yet.
+    private long mSizeBytes = -1;
+
+    /** Returns the disk cache in the cache directory of the application. */
+    public static synchronized ImageDiskCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance =
+                    new ImageDiskCache(
+                            new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME),
+                            DEFAULT_MAX_SIZE_BYTES,
+                            DEFAULT_MAX_AGE_MS,
+                            Clock.SYSTEM);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ImageDiskCache(File directory, long maxSizeBytes, long maxAgeMs, Clock clock) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+        mMaxAgeMs = maxAgeMs;
+        mClock = clock;
+    }
+
+    /** Returns whether the image of the URI can be cached on the disk. */
+    public static boolean isCacheable(@Nullable String uriString) {
+        // The images in the content providers, like the channel logos, can be replaced without
+        // changing the URI, and are already on the disk.
+        return uriString != null
+                && (uriString.startsWith("http://") || uriString.startsWith("https://"));
+    }
+
+    /**
+     * Returns the cached bitmap of the image which was loaded with the same size, or {@code null}
+     * if there's none or it's older than the max age.
+     */
+    @WorkerThread
+    @Nullable
+    public ScaledBitmapInfo get(String uriString, int maxWidth, int maxHeight) {
+        String key = getKey(uriString, maxWidth, maxHeight);
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileInputStream fileStream = new FileInputStream(file)) {
+            DataInputStream in = new DataInputStream(fileStream);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF())) {
+                // Another version or a collision of the hash.
+                return null;
+            }
+            long storedTimeMs = in.readLong();
+            if (Math.abs(mClock.currentTimeMillis() - storedTimeMs) > mMaxAgeMs) {
+                if (DEBUG) Log.d(TAG, "Expired cache for " + key);
+                synchronized (this) {
+                    removeFile(file);
+                }
+                return null;
+            }
+            int inSampleSize = in.readInt();
+            int width = in.readInt();
+            int height = in.readInt();
+            Bitmap.Config config = Bitmap.Config.valueOf(in.readUTF());
+            // DataInputStream doesn't buffer, so the channel is at the start of the pixels.
+            FileChannel channel = fileStream.getChannel();
+            long pixelsOffset = channel.position();
+            Bitmap bitmap = BitmapPool.getInstance().takeExact(width, height, config);
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(width, height, config);
+            }
+            if (channel.size() - pixelsOffset < bitmap.getByteCount()) {
+                Log.w(TAG, "Truncated cache file for " + uriString);
+                BitmapUtils.releaseBitmap(bitmap);
+                return null;
+            }
+            // Copies the pixels from a mapping of the file, instead of reading them to a new
+            // buffer for every hit.
+            bitmap.copyPixelsFromBuffer(
+                    channel.map(
+                            FileChannel.MapMode.READ_ONLY, pixelsOffset, bitmap.getByteCount()));
+            touch(file);
+            if (DEBUG) Log.d(TAG, "Cache hit for " + key);
+            return new ScaledBitmapInfo(uriString, bitmap, inSampleSize);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed to read the cache for " + uriString, e);
+            synchronized (this) {
+                delete(file);
+                // Calculates the size again when it's needed.
+                mSizeBytes = -1;
+            }
+            return null;
+        }
+    }
+
+    /** Stores the bitmap which was loaded with the given size. */
+    @WorkerThread
+    public void put(ScaledBitmapInfo bitmapInfo, int maxWidth, int maxHeight) {
+        Bitmap bitmap = bitmapInfo.bitmap;
+        Bitmap.Config config = bitmap.getConfig();
+        if (config == null || bitmap.getByteCount() > mMaxSizeBytes / 8) {
+            return;
+        }
+        String key = getKey(bitmapInfo.id, maxWidth, maxHeight);
+        File file = getFile(key);
+        File tempFile = new File(mDirectory, file.getName() + ".tmp");
+        ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(pixels);
+        synchronized (this) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                Log.w(TAG, "Failed to create " + mDirectory);
+                return;
+            }
+            try (FileOutputStream fileStream = new FileOutputStream(tempFile)) {
+                DataOutputStream out = new DataOutputStream(fileStream);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeLong(mClock.currentTimeMillis());
+                out.writeInt(bitmapInfo.inSampleSize);
+                out.writeInt(bitmap.getWidth());
+                out.writeInt(bitmap.getHeight());
+                out.writeUTF(config.name());
+                out.write(pixels.array(), 0, pixels.position());
+                out.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write the cache for " + bitmapInfo.id, e);
+                delete(tempFile);
+                return;
+            }
+            long oldSize = file.length();
+            if (!tempFile.renameTo(file)) {
+                delete(tempFile);
+                return;
+            }
+            if (mSizeBytes >= 0) {
+                mSizeBytes += file.length() - oldSize;
+            }
+            trimToSize((long) (mMaxSizeBytes * TRIM_RATIO), mMaxSizeBytes);
+        }
+    }
+
+    /** Removes all the cached files. */
+    @WorkerThread
+    public synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+        mSizeBytes = 0;
+    }
+
+    @VisibleForTesting
+    synchronized long getSizeBytes() {
+        if (mSizeBytes < 0) {
+            mSizeBytes = 0;
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    mSizeBytes += file.length();
+                }
+            }
+        }
+        return mSizeBytes;
+    }
+
+    /** Removes the least recently used files to the target size if the size is over the limit. */
+    private synchronized void trimToSize(long targetSizeBytes, long limitBytes) {
+        if (getSizeBytes() <= limitBytes) {
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (mSizeBytes <= targetSizeBytes) {
+                break;
+            }
+            long size = file.length();
+            if (delete(file)) {
+                mSizeBytes -= size;
+            }
+        }
+        if (DEBUG) Log.d(TAG, "Trimmed the cache to " + mSizeBytes + " bytes");
+    }
+
+    // Removes the file and keeps the total size up to date.
+    private void removeFile(File file) {
+        long size = file.length();
+        if (delete(file) && mSizeBytes >= 0) {
+            mSizeBytes -= size;
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, hash(key));
+    }
+
+    private static String getKey(String uriString, int maxWidth, int maxHeight) {
+        return uriString + "@" + maxWidth + "x" + maxHeight;
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest =
+                    MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every platform supports SHA-1.
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    private static void touch(File file) {
+        // Keeps the recently used files from being removed. It's fine if it fails.
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    private static boolean delete(File file) {
+        return file.delete() || !file.exists();
+    }
+}
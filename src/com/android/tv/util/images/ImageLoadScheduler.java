@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.util.images;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.android.tv.common.concurrent.NamedThreadFactory;
+import com.android.tv.common.util.Clock;
+import com.android.tv.util.images.ImageLoader.Priority;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the image loading tasks of {@link ImageLoader} on a pool of threads in the order of their
+ * priorities.
+ *
+ * <p>The tasks of the images on the screen run first, then the prefetches, then the others. The
+ * prefetches run from the latest one, since the user has likely scrolled past the older ones. The
+ * tasks which are not started yet can be cancelled or have their priority changed.
+ */
+class ImageLoadScheduler {
+    private static final String TAG = "ImageLoadScheduler";
+    private static final boolean DEBUG = false;
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    /** A task which is scheduled. */
+    static final class Request implements Runnable, Comparable<Request> {
+        private final Runnable mRunnable;
+        private final long mSequence;
+        private final long mRequestTimeMs;
+        // Changed only while the request is not in the queue.
+        @Priority private int mPriority;
+
+        private Request(Runnable runnable, @Priority int priority, long sequence, long timeMs) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mSequence = sequence;
+            mRequestTimeMs = timeMs;
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(@NonNull Request other) {
+            if (mPriority != other.mPriority) {
+                return Integer.compare(mPriority, other.mPriority);
+            }
+            if (mPriority == ImageLoader.PRIORITY_PREFETCH) {
+                return Long.compare(other.mSequence, mSequence);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+
+        @Priority
+        int getPriority() {
+            return mPriority;
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final PriorityBlockingQueue<Runnable> mQueue = new PriorityBlockingQueue<>();
+    private final Clock mClock;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private int mTimeToFirstPixelCount;
+    private long mTotalTimeToFirstPixelMs;
+    private long mMaxTimeToFirstPixelMs;
+
+    ImageLoadScheduler(int threadCount, Clock clock) {
+        mClock = clock;
+        // The queue is not bounded, so the pool never grows over the core size and no task is
+        // rejected.
+        mExecutor =
+                new ThreadPoolExecutor(
+                        threadCount,
+                        threadCount,
+                        KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        mQueue,
+                        new NamedThreadFactory("ImageLoader"));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Schedules the runnable with the priority. */
+    Request execute(Runnable runnable, @Priority int priority) {
+        Request request =
+                new Request(
+                        runnable,
+                        priority,
+                        mSequence.getAndIncrement(),
+                        mClock.elapsedRealtime());
+        mExecutor.execute(request);
+        return request;
+    }
+
+    /**
+     * Changes the priority of the request if it's not started yet.
+     *
+     * @return {@code true} if the priority is changed.
+     */
+    synchronized boolean setPriority(Request request, @Priority int priority) {
+        if (request.mPriority == priority || !mQueue.remove(request)) {
+            return false;
+        }
+        request.mPriority = priority;
+        mExecutor.execute(request);
+        if (DEBUG) Log.d(TAG, "Priority is changed to " + priority);
+        return true;
+    }
+
+    /**
+     * Removes the request if it's not started yet.
+     *
+     * @return {@code true} if the request is removed and will never run.
+     */
+    synchronized boolean cancel(Request request) {
+        return mQueue.remove(request);
+    }
+
+    /** Returns the number of the requests which are waiting to be started. */
+    int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /** Records that the image of the request is shown, to measure the time to the first pixel. */
+    synchronized void onImageShown(Request request) {
+        long timeMs = mClock.elapsedRealtime() - request.mRequestTimeMs;
+        mTimeToFirstPixelCount++;
+        mTotalTimeToFirstPixelMs += timeMs;
+        mMaxTimeToFirstPixelMs = Math.max(mMaxTimeToFirstPixelMs, timeMs);
+        if (DEBUG) {
+            Log.d(
+                    TAG,
+                    "Image is shown in " + timeMs + "ms (average "
+                            + getAverageTimeToFirstPixelMs() + "ms, queue depth "
+                            + getQueueDepth() + ")");
+        }
+    }
+
+    /**
+     * Returns the average time from requesting an image to showing it, or 0 if no image is shown
+     * yet.
+     */
+    synchronized long getAverageTimeToFirstPixelMs() {
+        return mTimeToFirstPixelCount == 0 ? 0 : mTotalTimeToFirstPixelMs / mTimeToFirstPixelCount;
+    }
+
+    /** Returns the longest time from requesting an image to showing it. */
+    synchronized long getMaxTimeToFirstPixelMs() {
+        return mMaxTimeToFirstPixelMs;
+    }
+
+    @VisibleForTesting
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -24,6 +24,7 @@ import android.media.tv.TvInputInfo;
 import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.IntDef;
 import android.support.annotation.Nullable;
 import android.support.annotation.UiThread;
 import android.support.annotation.WorkerThread;
@@ -33,20 +34,16 @@ import android.util.Log;
 import androidx.tvprovider.media.tv.TvContractCompat.PreviewPrograms;
 
 import com.android.tv.R;
-import com.android.tv.common.concurrent.NamedThreadFactory;
+import com.android.tv.common.util.Clock;
 import com.android.tv.util.images.BitmapUtils.ScaledBitmapInfo;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading a bitmap. It handles
@@ -61,36 +58,27 @@ public final class ImageLoader {
     // preferring to have 1 less than the CPU count to avoid saturating
     // the CPU with background work
     private static final int CORE_POOL_SIZE = Math.max(2, Math.min(CPU_COUNT - 1, 4));
-    private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
-    private static final int KEEP_ALIVE_SECONDS = 30;
 
-    private static final ThreadFactory sThreadFactory = new NamedThreadFactory("ImageLoader");
+    @IntDef({PRIORITY_VISIBLE, PRIORITY_PREFETCH, PRIORITY_BACKGROUND})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Priority {}
 
-    private static final BlockingQueue<Runnable> sPoolWorkQueue = new LinkedBlockingQueue<>(128);
+    /** The priority of the images which are on the screen. */
+    public static final int PRIORITY_VISIBLE = 0;
+    /** The priority of the images which are likely to be shown soon. */
+    public static final int PRIORITY_PREFETCH = 1;
+    /** The priority of the images which are not shown on the screen, like the notifications. */
+    public static final int PRIORITY_BACKGROUND = 2;
 
     /**
-     * An private {@link Executor} that can be used to execute tasks in parallel.
+     * Runs the image loading tasks by their priorities.
      *
-     * <p>{@code IMAGE_THREAD_POOL_EXECUTOR} setting are copied from {@link AsyncTask} Since we do a
-     * lot of concurrent image loading we can exhaust a thread pool. ImageLoader catches the error,
-     * and just leaves the image blank. However other tasks will fail and crash the application.
-     *
-     * <p>Using a separate thread pool prevents image loading from causing other tasks to fail.
+     * <p>Since we do a lot of concurrent image loading, a separate thread pool is used so that
+     * image loading doesn't delay other tasks. Its queue is not bounded, so no request is dropped
+     * while scrolling fast, and the requests of the recycled views are cancelled instead.
      */
-    private static final Executor IMAGE_THREAD_POOL_EXECUTOR;
-
-    static {
-        ThreadPoolExecutor threadPoolExecutor =
-                new ThreadPoolExecutor(
-                        CORE_POOL_SIZE,
-                        MAXIMUM_POOL_SIZE,
-                        KEEP_ALIVE_SECONDS,
-                        TimeUnit.SECONDS,
-                        sPoolWorkQueue,
-                        sThreadFactory);
-        threadPoolExecutor.allowCoreThreadTimeOut(true);
-        IMAGE_THREAD_POOL_EXECUTOR = threadPoolExecutor;
-    }
+    private static final ImageLoadScheduler sScheduler =
+            new ImageLoadScheduler(CORE_POOL_SIZE, Clock.SYSTEM);
 
     private static Handler sMainHandler;
 
@@ -116,6 +104,12 @@ public final class ImageLoader {
             mWeakReference = new WeakReference<>(referent);
         }
 
+        /** Returns whether the callback is for the referent, or the referent is already gone. */
+        private boolean isFor(Object referent) {
+            T myReferent = mWeakReference.get();
+            return myReferent == null || myReferent == referent;
+        }
+
         /** Called when bitmap is loaded. */
         private void onBitmapLoaded(@Nullable Bitmap bitmap) {
             T referent = mWeakReference.get();
@@ -135,7 +129,7 @@ public final class ImageLoader {
     /**
      * Preload a bitmap image into the cache.
      *
-     * <p>Not to make heavy CPU load, AsyncTask.SERIAL_EXECUTOR is used for the image loading.
+     * <p>Prefetches run after the images on the screen, and the latest one runs first.
      *
      * <p>This method is thread safe.
      */
@@ -143,7 +137,7 @@ public final class ImageLoader {
             Context context, final String uriString, final int maxWidth, final int maxHeight) {
         if (DEBUG) Log.d(TAG, "prefetchBitmap() " + uriString);
         if (Looper.getMainLooper() == Looper.myLooper()) {
-            doLoadBitmap(context, uriString, maxWidth, maxHeight, null, AsyncTask.SERIAL_EXECUTOR);
+            doLoadBitmap(context, uriString, maxWidth, maxHeight, null, PRIORITY_PREFETCH);
         } else {
             final Context appContext = context.getApplicationContext();
             getMainHandler()
@@ -155,7 +149,7 @@ public final class ImageLoader {
                                             maxWidth,
                                             maxHeight,
                                             null,
-                                            AsyncTask.SERIAL_EXECUTOR));
+                                            PRIORITY_PREFETCH));
         }
     }
 
@@ -188,11 +182,29 @@ public final class ImageLoader {
             int maxWidth,
             int maxHeight,
             ImageLoaderCallback<T> callback) {
+        return loadBitmap(context, uriString, maxWidth, maxHeight, PRIORITY_VISIBLE, callback);
+    }
+
+    /**
+     * Load a bitmap image with the cache and resize it with given params, with the given priority.
+     *
+     * <p><b>Note</b> that the callback will be called synchronously if the bitmap already is in the
+     * cache.
+     *
+     * @return {@code true} if the load is complete and the callback is executed.
+     */
+    @UiThread
+    public static <T> boolean loadBitmap(
+            Context context,
+            String uriString,
+            int maxWidth,
+            int maxHeight,
+            @Priority int priority,
+            ImageLoaderCallback<T> callback) {
         if (DEBUG) {
             Log.d(TAG, "loadBitmap() " + uriString);
         }
-        return doLoadBitmap(
-                context, uriString, maxWidth, maxHeight, callback, IMAGE_THREAD_POOL_EXECUTOR);
+        return doLoadBitmap(context, uriString, maxWidth, maxHeight, callback, priority);
     }
 
     private static <T> boolean doLoadBitmap(
@@ -201,7 +213,7 @@ public final class ImageLoader {
             int maxWidth,
             int maxHeight,
             ImageLoaderCallback<T> callback,
-            Executor executor) {
+            @Priority int priority) {
         // Check the cache before creating a Task.  The cache will be checked again in doLoadBitmap
         // but checking a cache is much cheaper than creating an new task.
         ImageCache imageCache = ImageCache.getInstance();
@@ -214,7 +226,7 @@ public final class ImageLoader {
         }
         return doLoadBitmap(
                 callback,
-                executor,
+                priority,
                 new LoadBitmapFromUriTask(context, imageCache, uriString, maxWidth, maxHeight));
     }
 
@@ -231,13 +243,15 @@ public final class ImageLoader {
         if (DEBUG) {
             Log.d(TAG, "loadBitmap() " + loadBitmapTask);
         }
-        return doLoadBitmap(callback, IMAGE_THREAD_POOL_EXECUTOR, loadBitmapTask);
+        return doLoadBitmap(callback, PRIORITY_VISIBLE, loadBitmapTask);
     }
 
     /** @return {@code true} if the load is complete and the callback is executed. */
     @UiThread
     private static <T> boolean doLoadBitmap(
-            ImageLoaderCallback<T> callback, Executor executor, LoadBitmapTask<T> loadBitmapTask) {
+            ImageLoaderCallback<T> callback,
+            @Priority int priority,
+            LoadBitmapTask<T> loadBitmapTask) {
         ScaledBitmapInfo bitmapInfo = loadBitmapTask.getFromCache();
         boolean needToReload = loadBitmapTask.isReloadNeeded();
         if (bitmapInfo != null && !needToReload) {
@@ -249,24 +263,57 @@ public final class ImageLoader {
         LoadBitmapTask existingTask = sPendingListMap.get(loadBitmapTask.getKey());
         if (existingTask != null && !loadBitmapTask.isReloadNeeded(existingTask)) {
             // The image loading is already scheduled and is large enough.
-            if (callback != null) {
-                existingTask.mCallbacks.add(callback);
+            existingTask.addRequest(callback);
+            if (priority < existingTask.mRequest.getPriority()) {
+                sScheduler.setPriority(existingTask.mRequest, priority);
             }
         } else {
-            if (callback != null) {
-                loadBitmapTask.mCallbacks.add(callback);
-            }
+            loadBitmapTask.addRequest(callback);
             sPendingListMap.put(loadBitmapTask.getKey(), loadBitmapTask);
-            try {
-                loadBitmapTask.executeOnExecutor(executor);
-            } catch (RejectedExecutionException e) {
-                Log.e(TAG, "Failed to create new image loader", e);
-                sPendingListMap.remove(loadBitmapTask.getKey());
-            }
+            // AsyncTask calls the executor synchronously.
+            loadBitmapTask.executeOnExecutor(
+                    runnable -> loadBitmapTask.mRequest = sScheduler.execute(runnable, priority));
         }
         return false;
     }
 
+    /**
+     * Cancels the image loading for the referent of the callbacks, like a view which is recycled.
+     *
+     * <p>The callbacks for the referent are not called anymore, and the loading which is not
+     * started yet is cancelled if nobody else needs the image.
+     */
+    @UiThread
+    public static void cancelLoad(Object referent) {
+        Iterator<LoadBitmapTask> iterator = sPendingListMap.values().iterator();
+        while (iterator.hasNext()) {
+            LoadBitmapTask<?> task = iterator.next();
+            if (task.removeCallbacksFor(referent)
+                    && task.mCallbacks.isEmpty()
+                    && !task.mPrefetchRequested
+                    && sScheduler.cancel(task.mRequest)) {
+                if (DEBUG) Log.d(TAG, "Cancelled " + task);
+                task.cancel(false);
+                iterator.remove();
+            }
+        }
+    }
+
+    /** Returns the number of the image loading tasks which are waiting to be started. */
+    public static int getQueueDepth() {
+        return sScheduler.getQueueDepth();
+    }
+
+    /** Returns the average time from requesting an image to showing it. */
+    public static long getAverageTimeToFirstPixelMs() {
+        return sScheduler.getAverageTimeToFirstPixelMs();
+    }
+
+    /** Returns the longest time from requesting an image to showing it. */
+    public static long getMaxTimeToFirstPixelMs() {
+        return sScheduler.getMaxTimeToFirstPixelMs();
+    }
+
     /**
      * Loads and caches a a possibly scaled down version of a bitmap.
      *
@@ -279,6 +326,30 @@ public final class ImageLoader {
         private final Set<ImageLoaderCallback<T>> mCallbacks = new ArraySet<>();
         private final ImageCache mImageCache;
         private final String mKey;
+        private ImageLoadScheduler.Request mRequest;
+        // Whether the image needs to be loaded to the cache even if there's no callback.
+        private boolean mPrefetchRequested;
+
+        private void addRequest(@Nullable ImageLoaderCallback<T> callback) {
+            if (callback != null) {
+                mCallbacks.add(callback);
+            } else {
+                mPrefetchRequested = true;
+            }
+        }
+
+        /** Removes the callbacks for the referent, and returns whether any was removed. */
+        private boolean removeCallbacksFor(Object referent) {
+            boolean removed = false;
+            Iterator<ImageLoaderCallback<T>> iterator = mCallbacks.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isFor(referent)) {
+                    iterator.remove();
+                    removed = true;
+                }
+            }
+            return removed;
+        }
 
         /**
          * Returns true if a reload is needed compared to current results in the cache or false if
@@ -361,7 +432,13 @@ public final class ImageLoader {
             for (ImageLoader.ImageLoaderCallback<T> callback : mCallbacks) {
                 callback.onBitmapLoaded(scaledBitmapInfo == null ? null : scaledBitmapInfo.bitmap);
             }
-            ImageLoader.sPendingListMap.remove(mKey);
+            if (scaledBitmapInfo != null && !mCallbacks.isEmpty() && mRequest != null) {
+                sScheduler.onImageShown(mRequest);
+            }
+            // A larger image might be requested with a new task in the meantime.
+            if (ImageLoader.sPendingListMap.get(mKey) == this) {
+                ImageLoader.sPendingListMap.remove(mKey);
+            }
         }
 
         public final String getKey() {
@@ -394,8 +471,21 @@ public final class ImageLoader {
         @Override
         @Nullable
         public final ScaledBitmapInfo doGetBitmapInBackground() {
-            return BitmapUtils.decodeSampledBitmapFromUriString(
-                    mAppContext, getKey(), mMaxWidth, mMaxHeight);
+            if (!ImageDiskCache.isCacheable(getKey())) {
+                return BitmapUtils.decodeSampledBitmapFromUriString(
+                        mAppContext, getKey(), mMaxWidth, mMaxHeight);
+            }
+            ImageDiskCache diskCache = ImageDiskCache.getInstance(mAppContext);
+            ScaledBitmapInfo bitmapInfo = diskCache.get(getKey(), mMaxWidth, mMaxHeight);
+            if (bitmapInfo == null) {
+                bitmapInfo =
+                        BitmapUtils.decodeSampledBitmapFromUriString(
+                                mAppContext, getKey(), mMaxWidth, mMaxHeight);
+                if (bitmapInfo != null) {
+                    diskCache.put(bitmapInfo, mMaxWidth, mMaxHeight);
+                }
+            }
+            return bitmapInfo;
         }
     }
 
@@ -453,9 +543,14 @@ public final class ImageLoader {
             bitmapInfo =
                     BitmapUtils.decodeSampledBitmapFromUriString(
                             context, uriString, Integer.MAX_VALUE, Integer.MAX_VALUE);
+            bitmapWidth = bitmapInfo.bitmap.getWidth();
+            bitmapHeight = bitmapInfo.bitmap.getHeight();
+            // The bitmap is decoded only for the size.
+            BitmapUtils.releaseBitmap(bitmapInfo.bitmap);
+        } else {
+            bitmapWidth = bitmapInfo.bitmap.getWidth();
+            bitmapHeight = bitmapInfo.bitmap.getHeight();
         }
-        bitmapWidth = bitmapInfo.bitmap.getWidth();
-        bitmapHeight = bitmapInfo.bitmap.getHeight();
         bitmapAspectRatio = (float) bitmapWidth / bitmapHeight;
         /* Assign nearest aspect ratio from the defined values in Preview Programs */
         if (bitmapAspectRatio > 0 && bitmapAspectRatio <= 0.6803) {
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.testing.utils;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counts the bytes allocated by the current thread, for the tests which check that a hot path
+ * doesn't allocate. The count is only available on the JVMs which support it, so the test is
+ * skipped on the others.
+ */
+public final class AllocationCounter {
+    private final com.sun.management.ThreadMXBean mBean;
+    private final long mThreadId;
+    private long mStartBytes;
+
+    private AllocationCounter(com.sun.management.ThreadMXBean bean) {
+        mBean = bean;
+        mThreadId = Thread.currentThread().getId();
+    }
+
+    /**
+     * Returns a counter of the current thread, which starts counting right away. Skips the calling
+     * test if the allocated bytes can't be counted.
+     */
+    public static AllocationCounter startOrSkip() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        AllocationCounter counter = new AllocationCounter(allocationBean);
+        counter.restart();
+        return counter;
+    }
+
+    /** Starts counting again from zero, usually after warming up the code to measure. */
+    public void restart() {
+        mStartBytes = mBean.getThreadAllocatedBytes(mThreadId);
+    }
+
+    /** Returns the bytes allocated by the thread since the counting started. */
+    public long getAllocatedBytes() {
+        return mBean.getThreadAllocatedBytes(mThreadId) - mStartBytes;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tv.data;
+
+import static android.media.tv.TvContract.Programs.Genres.COMEDY;
+import static android.media.tv.TvContract.Programs.Genres.MOVIES;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.android.tv.data.api.Program;
+import com.android.tv.testing.constants.ConfigConstants;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Tests for {@link CompactProgramList}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class CompactProgramListTest {
+    private static final long CHANNEL_ID = 7;
+    private static final int LINEUP_CHANNEL_COUNT = 1000;
+    private static final long LINEUP_PROGRAM_DURATION_MS = TimeUnit.MINUTES.toMillis(30);
+    private static final String[] LINEUP_TITLES = {
+        "News", "Movie", "Sports", "Weather", "Talk Show"
+    };
+
+    @Test
+    public void get_createsProgramFromColumns() {
+        MatrixCursor cursor = new MatrixCursor(ProgramImpl.PARTIAL_PROJECTION);
+        cursor.addRow(new Object[] {11L, CHANNEL_ID, "News", "Morning", COMEDY, 1000L, 2000L});
+        cursor.moveToNext();
+
+        CompactProgramList list =
+                new CompactProgramList.Builder(CHANNEL_ID).addPartialProjection(cursor).build();
+
+        cursor.moveToPosition(0);
+        assertThat(list).containsExactly(ProgramImpl.fromCursorPartialProjection(cursor));
+        Program program = list.get(0);
+        assertThat(program.getId()).isEqualTo(11L);
+        assertThat(program.getChannelId()).isEqualTo(CHANNEL_ID);
+        assertThat(program.getTitle()).isEqualTo("News");
+        assertThat(program.getEpisodeTitle()).isEqualTo("Morning");
+        assertThat(program.getCanonicalGenres()).asList().containsExactly(COMEDY);
+        assertThat(program.getStartTimeUtcMillis()).isEqualTo(1000L);
+        assertThat(program.getEndTimeUtcMillis()).isEqualTo(2000L);
+    }
+
+    @Test
+    public void get_keepsAddedProgram() {
+        Program program = createProgram(3, 1000, 2000);
+
+        CompactProgramList list = new CompactProgramList.Builder(CHANNEL_ID).add(program).build();
+
+        assertThat(list.get(0)).isSameInstanceAs(program);
+        assertThat(list.getStartTimeUtcMillis(0)).isEqualTo(1000L);
+        assertThat(list.getEndTimeUtcMillis(0)).isEqualTo(2000L);
+    }
+
+    @Test
+    public void addPartialProjection_sharesStrings() {
+        MatrixCursor cursor = new MatrixCursor(ProgramImpl.PARTIAL_PROJECTION);
+        cursor.addRow(new Object[] {1L, CHANNEL_ID, "Movie", null, MOVIES, 0L, 10L});
+        cursor.addRow(new Object[] {2L, CHANNEL_ID, new String("Movie"), null, MOVIES, 10L, 20L});
+        Map<String, String> stringPool = new HashMap<>();
+        CompactProgramList.Builder builder =
+                new CompactProgramList.Builder(CHANNEL_ID, stringPool);
+        while (cursor.moveToNext()) {
+            builder.addPartialProjection(cursor);
+        }
+
+        CompactProgramList list = builder.build();
+
+        assertThat(list.get(1).getTitle()).isSameInstanceAs(list.get(0).getTitle());
+        assertThat(stringPool).hasSize(2);
+    }
+
+    @Test
+    public void getIndexAt() {
+        CompactProgramList list =
+                new CompactProgramList.Builder(CHANNEL_ID)
+                        .add(createProgram(1, 0, 10))
+                        .add(createProgram(2, 10, 20))
+                        .add(createProgram(3, 30, 40))
+                        .build();
+
+        assertThat(list.getIndexAt(-5)).isEqualTo(0);
+        assertThat(list.getIndexAt(5)).isEqualTo(0);
+        assertThat(list.getIndexAt(10)).isEqualTo(1);
+        // In the gap, the next program.
+        assertThat(list.getIndexAt(25)).isEqualTo(2);
+        assertThat(list.getIndexAt(45)).isEqualTo(3);
+    }
+
+    @Test
+    public void addFrom_copiesProgram() {
+        Program kept = createProgram(2, 10, 20);
+        MatrixCursor cursor = new MatrixCursor(ProgramImpl.PARTIAL_PROJECTION);
+        cursor.addRow(new Object[] {1L, CHANNEL_ID, "News", null, null, 0L, 10L});
+        cursor.moveToNext();
+        CompactProgramList list =
+                new CompactProgramList.Builder(CHANNEL_ID)
+                        .addPartialProjection(cursor)
+                        .add(kept)
+                        .build();
+
+        CompactProgramList copy =
+                new CompactProgramList.Builder(CHANNEL_ID)
+                        .addFrom(list, 1)
+                        .addFrom(list, 0)
+                        .build();
+
+        assertThat(copy.get(0)).isSameInstanceAs(kept);
+        assertThat(copy.get(1)).isEqualTo(list.get(0));
+    }
+
+    @Test
+    public void containsAnyId() {
+        CompactProgramList list =
+                new CompactProgramList.Builder(CHANNEL_ID)
+                        .add(createProgram(1, 0, 10))
+                        .add(createProgram(2, 10, 20))
+                        .build();
+
+        assertThat(list.containsAnyId(ImmutableSet.of(5L, 2L))).isTrue();
+        assertThat(list.containsAnyId(ImmutableSet.of(5L))).isFalse();
+    }
+
+    @Test
+    public void get_returnsCachedProgram() {
+        MatrixCursor cursor = new MatrixCursor(ProgramImpl.PARTIAL_PROJECTION);
+        for (long i = 0; i < 100; ++i) {
+            cursor.addRow(new Object[] {i, CHANNEL_ID, "News", null, null, i * 10, i * 10 + 10});
+        }
+        CompactProgramList.Builder builder = new CompactProgramList.Builder(CHANNEL_ID);
+        while (cursor.moveToNext()) {
+            builder.addPartialProjection(cursor);
+        }
+        CompactProgramList list = builder.build();
+
+        Program program = list.get(3);
+        assertThat(list.get(3)).isSameInstanceAs(program);
+        // The consecutive programs don't replace each other.
+        for (int i = 4; i < 20; ++i) {
+            list.get(i);
+        }
+        assertThat(list.get(3)).isSameInstanceAs(program);
+        // The program is created again after it's replaced in the cache.
+        for (int i = 0; i < list.size(); ++i) {
+            list.get(i);
+        }
+        assertThat(list.get(3)).isEqualTo(program);
+        assertThat(list.get(3).getId()).isEqualTo(3L);
+    }
+
+    /**
+     * Builds a week of half-hour programs for 1000 channels, which is 336,000 programs, and
+     * compares the heap retained by them with the one retained by {@link ProgramImpl} objects.
+     */
+    @Test
+    public void largeLineup() {
+        long usedBytes = getUsedHeapBytes();
+        Map<String, String> stringPool = new HashMap<>();
+        Map<Long, CompactProgramList> lineup = new HashMap<>();
+        for (long channelId = 1; channelId <= LINEUP_CHANNEL_COUNT; ++channelId) {
+            Cursor cursor = createLineupCursor(channelId);
+            CompactProgramList.Builder builder =
+                    new CompactProgramList.Builder(channelId, stringPool);
+            while (cursor.moveToNext()) {
+                builder.addPartialProjection(cursor);
+            }
+            lineup.put(channelId, builder.build());
+        }
+        long compactBytes = getUsedHeapBytes() - usedBytes;
+
+        // How the programs were kept before, with a ProgramImpl for each of them.
+        usedBytes = getUsedHeapBytes();
+        Map<Long, List<Program>> programLineup = new HashMap<>();
+        for (long channelId = 1; channelId <= LINEUP_CHANNEL_COUNT; ++channelId) {
+            Cursor cursor = createLineupCursor(channelId);
+            List<Program> programs = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                programs.add(ProgramImpl.fromCursorPartialProjection(cursor));
+            }
+            programLineup.put(channelId, programs);
+        }
+        long programBytes = getUsedHeapBytes() - usedBytes;
+
+        // Only the distinct titles and genres are kept.
+        assertThat(stringPool).hasSize(LINEUP_TITLES.length + 2);
+        int programCount = (int) (TimeUnit.DAYS.toMillis(7) / LINEUP_PROGRAM_DURATION_MS);
+        for (long channelId = 1; channelId <= LINEUP_CHANNEL_COUNT; ++channelId) {
+            CompactProgramList list = lineup.get(channelId);
+            assertThat(list).hasSize(programCount);
+            int index = (int) (channelId * 7 % programCount);
+            long startTimeMs = index * LINEUP_PROGRAM_DURATION_MS;
+            assertThat(list.getIndexAt(startTimeMs + LINEUP_PROGRAM_DURATION_MS / 2))
+                    .isEqualTo(index);
+            Program program = list.get(index);
+            assertThat(program).isEqualTo(programLineup.get(channelId).get(index));
+            assertThat(program.getChannelId()).isEqualTo(channelId);
+            assertThat(program.getStartTimeUtcMillis()).isEqualTo(startTimeMs);
+            assertThat(program.getTitle()).isEqualTo(LINEUP_TITLES[index % LINEUP_TITLES.length]);
+        }
+        // The measurement depends on the GC of the host, so the margin is generous.
+        assertWithMessage(
+                        "Retained bytes of " + programCount * LINEUP_CHANNEL_COUNT + " programs, "
+                                + programBytes + " bytes with ProgramImpl")
+                .that(compactBytes)
+                .isLessThan(programBytes / 2);
+    }
+
+    /** Creates a cursor of a week of programs, whose strings are new like the ones from a DB. */
+    private static Cursor createLineupCursor(long channelId) {
+        int programCount = (int) (TimeUnit.DAYS.toMillis(7) / LINEUP_PROGRAM_DURATION_MS);
+        MatrixCursor cursor = new MatrixCursor(ProgramImpl.PARTIAL_PROJECTION, programCount);
+        for (int i = 0; i < programCount; ++i) {
+            cursor.addRow(
+                    new Object[] {
+                        channelId * programCount + i,
+                        channelId,
+                        new String(LINEUP_TITLES[i % LINEUP_TITLES.length]),
+                        null,
+                        new String(i % 2 == 0 ? COMEDY : MOVIES),
+                        i * LINEUP_PROGRAM_DURATION_MS,
+                        (i + 1) * LINEUP_PROGRAM_DURATION_MS
+                    });
+        }
+        return cursor;
+    }
+
+    // Returns the bytes used in the heap after the garbage is collected as much as possible.
+    private static long getUsedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static Program createProgram(long id, long startTimeMs, long endTimeMs) {
+        return new ProgramImpl.Builder()
+                .setId(id)
+                .setChannelId(CHANNEL_ID)
+                .setTitle("Program " + id)
+                .setStartTimeUtcMillis(startTimeMs)
+                .setEndTimeUtcMillis(endTimeMs)
+                .build();
+    }
+}
@@ -49,6 +49,7 @@ import org.robolectric.RuntimeEnvironment;
 import org.robolectric.android.util.concurrent.RoboExecutorService;
 import org.robolectric.annotation.Config;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -243,6 +244,60 @@ public class ProgramDataManagerTest {
                 .isLessThan(programList.get(programList.size() - 1).getEndTimeUtcMillis());
     }
 
+    /** Test if only the changed channel is refreshed after the program insertion. */
+    @Test
+    public void testContentProviderUpdate_refreshesChangedChannel() throws InterruptedException {
+        final long testChannelId = 1;
+        final long otherChannelId = 2;
+        shadowOf(RuntimeEnvironment.application)
+                .grantPermissions("com.android.providers.tv.permission.ACCESS_ALL_EPG_DATA");
+        startAndWaitForComplete();
+        mProgramDataManager.setProgramPrefetchUpdateWait(0);
+        // The first prefetch after the start fetches more hours of all the channels.
+        mCallback.reset();
+        ProgramUtils.populatePrograms(
+                RuntimeEnvironment.application,
+                TvContract.buildChannelUri(testChannelId),
+                ProgramInfo.create(),
+                mClock,
+                TimeUnit.DAYS.toMillis(2));
+        shadowOf(getMainLooper()).runToEndOfTasks();
+        assertThat(mCallback.programUpdatedLatch.await(WAIT_TIME_OUT_MS, TimeUnit.MILLISECONDS))
+                .isTrue();
+        int fullPrefetchCount = mProgramDataManager.getFullPrefetchCount();
+        int partialPrefetchCount = mProgramDataManager.getPartialPrefetchCount();
+        List<Program> programList =
+                mProgramDataManager.getPrograms(testChannelId, mClock.currentTimeMillis());
+        long lastProgramEndTime = programList.get(programList.size() - 1).getEndTimeUtcMillis();
+        List<Program> otherProgramList =
+                new ArrayList<>(
+                        mProgramDataManager.getPrograms(
+                                otherChannelId, mClock.currentTimeMillis()));
+
+        mCallback.reset();
+        ProgramUtils.populatePrograms(
+                RuntimeEnvironment.application,
+                TvContract.buildChannelUri(testChannelId),
+                ProgramInfo.create(),
+                mClock,
+                TimeUnit.DAYS.toMillis(3));
+        shadowOf(getMainLooper()).runToEndOfTasks();
+        assertThat(mCallback.programUpdatedLatch.await(WAIT_TIME_OUT_MS, TimeUnit.MILLISECONDS))
+                .isTrue();
+        assertThat(mProgramDataManager.getFullPrefetchCount()).isEqualTo(fullPrefetchCount);
+        assertThat(mProgramDataManager.getPartialPrefetchCount())
+                .isGreaterThan(partialPrefetchCount);
+        assertThat(mProgramDataManager.getFullCurrentProgramsUpdateCount()).isEqualTo(1);
+        assertThat(mProgramDataManager.getPartialCurrentProgramsUpdateCount()).isAtLeast(1);
+        programList = mProgramDataManager.getPrograms(testChannelId, mClock.currentTimeMillis());
+        assertThat(lastProgramEndTime)
+                .isLessThan(programList.get(programList.size() - 1).getEndTimeUtcMillis());
+        // The programs of the other channel stay the same.
+        List<Program> otherProgramListAfter =
+                mProgramDataManager.getPrograms(otherChannelId, mClock.currentTimeMillis());
+        assertThat(otherProgramListAfter).containsExactlyElementsIn(otherProgramList).inOrder();
+    }
+
     /** Test for {@link ProgramDataManager#setPauseProgramUpdate(boolean)}. */
     @Test
     public void testSetPauseProgramUpdate() throws InterruptedException {
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.data.epg;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.media.tv.TvContract;
+
+import com.android.tv.data.ChannelImpl;
+import com.android.tv.data.ProgramImpl;
+import com.android.tv.data.api.Program;
+import com.android.tv.testing.constants.ConfigConstants;
+import com.android.tv.testing.fakes.FakeClock;
+import com.android.tv.testing.fakes.FakeTvProvider;
+import com.android.tv.testing.robo.ContentProviders;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Tests for {@link EpgFetchPipeline}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class EpgFetchPipelineTest {
+    private static final int CHANNEL_COUNT = 200;
+    private static final int PROGRAM_COUNT_PER_CHANNEL = 48;
+    private static final int READ_CHANNEL_COUNT = 50;
+    private static final long PROGRAM_DURATION_MS = TimeUnit.MINUTES.toMillis(30);
+
+    private FakeClock mFakeClock;
+    private long mStartTimeMs;
+    private Set<EpgReader.EpgChannel> mEpgChannels;
+    private int mReadCount;
+    private int mCancellationCheckCount;
+    private String mEpisodeTitle;
+    // The bucket of EpgFingerprint whose programs are not returned by readPrograms.
+    private long mDroppedBucket = -1;
+
+    @Before
+    public void setUp() {
+        Shadows.shadowOf(RuntimeEnvironment.application)
+                .grantPermissions("com.android.providers.tv.permission.ACCESS_ALL_EPG_DATA");
+        ContentProviders.register(FakeTvProvider.class, TvContract.AUTHORITY);
+        mFakeClock = FakeClock.createWithCurrentTime();
+        mStartTimeMs = mFakeClock.currentTimeMillis();
+        mEpgChannels = new LinkedHashSet<>();
+        for (long channelId = 1; channelId <= CHANNEL_COUNT; ++channelId) {
+            mEpgChannels.add(
+                    EpgReader.EpgChannel.createEpgChannel(
+                            new ChannelImpl.Builder().setId(channelId).build(),
+                            String.valueOf(channelId),
+                            false));
+        }
+    }
+
+    @Test
+    public void fetch_largeLineup() {
+        EpgFetchPipeline pipeline =
+                new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock);
+
+        pipeline.fetch(mEpgChannels, READ_CHANNEL_COUNT, this::readPrograms);
+
+        int programCount = CHANNEL_COUNT * PROGRAM_COUNT_PER_CHANNEL;
+        assertThat(mReadCount).isEqualTo(CHANNEL_COUNT / READ_CHANNEL_COUNT);
+        assertThat(pipeline.getChannelCount()).isEqualTo(CHANNEL_COUNT);
+        assertThat(pipeline.getProgramCount()).isEqualTo(programCount);
+        // Each read takes one second on the fake clock.
+        assertThat(pipeline.getProgramsPerSecond()).isEqualTo(programCount / mReadCount);
+        assertThat(pipeline.getReadRowCount()).isEqualTo(0);
+        assertThat(pipeline.getWrittenRowCount()).isEqualTo(programCount);
+        assertThat(queryProgramCount()).isEqualTo(programCount);
+    }
+
+    @Test
+    public void fetch_twice_skipsUnchangedPrograms() {
+        new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock)
+                .fetch(mEpgChannels, READ_CHANNEL_COUNT, this::readPrograms);
+        EpgFetchPipeline pipeline =
+                new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock);
+
+        pipeline.fetch(mEpgChannels, READ_CHANNEL_COUNT, this::readPrograms);
+
+        assertThat(pipeline.getProgramCount()).isEqualTo(CHANNEL_COUNT * PROGRAM_COUNT_PER_CHANNEL);
+        assertThat(pipeline.getReadRowCount()).isEqualTo(0);
+        assertThat(pipeline.getWrittenRowCount()).isEqualTo(0);
+        assertThat(queryProgramCount()).isEqualTo(CHANNEL_COUNT * PROGRAM_COUNT_PER_CHANNEL);
+    }
+
+    @Test
+    public void fetch_twice_updatesChangedProgram() {
+        new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock)
+                .fetch(mEpgChannels, READ_CHANNEL_COUNT, this::readPrograms);
+        mEpisodeTitle = "New episode";
+        EpgFetchPipeline pipeline =
+                new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock);
+
+        pipeline.fetch(mEpgChannels, READ_CHANNEL_COUNT, this::readPrograms);
+
+        // Only the programs in the bucket of the changed one are read and written.
+        assertThat(pipeline.getReadRowCount()).isGreaterThan(0);
+        assertThat(pipeline.getReadRowCount()).isLessThan(PROGRAM_COUNT_PER_CHANNEL);
+        assertThat(pipeline.getWrittenRowCount()).isAtLeast(1);
+        assertThat(pipeline.getWrittenRowCount()).isAtMost(pipeline.getReadRowCount());
+        assertThat(queryProgramCount()).isEqualTo(CHANNEL_COUNT * PROGRAM_COUNT_PER_CHANNEL);
+        try (Cursor cursor =
+                RuntimeEnvironment.application
+                        .getContentResolver()
+                        .query(
+                                TvContract.Programs.CONTENT_URI,
+                                new String[] {TvContract.Programs.COLUMN_EPISODE_TITLE},
+                                TvContract.Programs.COLUMN_EPISODE_TITLE + "=?",
+                                new String[] {mEpisodeTitle},
+                                null)) {
+            assertThat(cursor.getCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void fetch_twice_removesDroppedBucket() {
+        new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock)
+                .fetch(mEpgChannels, READ_CHANNEL_COUNT, this::readPrograms);
+        // A bucket in the middle of the fetched range, which has no program this time.
+        mDroppedBucket = EpgFingerprint.getBucket(mStartTimeMs + TimeUnit.HOURS.toMillis(12));
+        int droppedCount = (int) (EpgFingerprint.BUCKET_DURATION_MS / PROGRAM_DURATION_MS);
+        EpgFetchPipeline pipeline =
+                new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock);
+
+        pipeline.fetch(mEpgChannels, READ_CHANNEL_COUNT, this::readPrograms);
+
+        // Only the programs around the dropped bucket are read, and the ones in it are deleted.
+        int remainingCount = CHANNEL_COUNT * (PROGRAM_COUNT_PER_CHANNEL - droppedCount);
+        assertThat(pipeline.getProgramCount()).isEqualTo(remainingCount);
+        assertThat(pipeline.getReadRowCount()).isAtLeast(CHANNEL_COUNT * droppedCount);
+        assertThat(pipeline.getReadRowCount())
+                .isLessThan(CHANNEL_COUNT * PROGRAM_COUNT_PER_CHANNEL);
+        assertThat(pipeline.getWrittenRowCount()).isEqualTo(CHANNEL_COUNT * droppedCount);
+        assertThat(queryProgramCount()).isEqualTo(remainingCount);
+
+        // The dropped bucket is not compared with the stale fingerprint again.
+        pipeline = new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock);
+        pipeline.fetch(mEpgChannels, READ_CHANNEL_COUNT, this::readPrograms);
+
+        assertThat(pipeline.getReadRowCount()).isEqualTo(0);
+        assertThat(pipeline.getWrittenRowCount()).isEqualTo(0);
+        assertThat(queryProgramCount()).isEqualTo(remainingCount);
+    }
+
+    @Test
+    public void fetch_twice_removesProgramsBeforeFirstFetched() {
+        new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock)
+                .fetch(mEpgChannels, READ_CHANNEL_COUNT, this::readPrograms);
+        // The current bucket has no program this time, so the new programs start after it.
+        mDroppedBucket = EpgFingerprint.getBucket(mFakeClock.currentTimeMillis());
+        int droppedCount = 0;
+        for (int i = 0; i < PROGRAM_COUNT_PER_CHANNEL; ++i) {
+            if (EpgFingerprint.getBucket(mStartTimeMs + i * PROGRAM_DURATION_MS)
+                    == mDroppedBucket) {
+                droppedCount++;
+            }
+        }
+        EpgFetchPipeline pipeline =
+                new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock);
+
+        pipeline.fetch(mEpgChannels, READ_CHANNEL_COUNT, this::readPrograms);
+
+        // The old programs between the current time and the first new program are deleted.
+        int remainingCount = CHANNEL_COUNT * (PROGRAM_COUNT_PER_CHANNEL - droppedCount);
+        assertThat(pipeline.getWrittenRowCount()).isEqualTo(CHANNEL_COUNT * droppedCount);
+        assertThat(queryProgramCount()).isEqualTo(remainingCount);
+    }
+
+    @Test
+    public void fetch_readFailure() {
+        EpgFetchPipeline pipeline =
+                new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock);
+
+        pipeline.fetch(
+                mEpgChannels,
+                READ_CHANNEL_COUNT,
+                channels -> {
+                    if (mReadCount == 1) {
+                        throw new IllegalStateException("Failed to read");
+                    }
+                    return readPrograms(channels);
+                });
+
+        // The channels read before the failure are still updated.
+        assertThat(pipeline.getChannelCount()).isEqualTo(READ_CHANNEL_COUNT);
+        assertThat(queryProgramCount()).isEqualTo(READ_CHANNEL_COUNT * PROGRAM_COUNT_PER_CHANNEL);
+    }
+
+    @Test
+    public void fetch_readError_stops() {
+        EpgFetchPipeline pipeline =
+                new EpgFetchPipeline(RuntimeEnvironment.application, mFakeClock);
+
+        // Returns only because the end is marked even when the reading thread dies of an Error.
+        pipeline.fetch(
+                mEpgChannels,
+                READ_CHANNEL_COUNT,
+                channels -> {
+                    if (mReadCount == 1) {
+                        throw new AssertionError("Failed to read");
+                    }
+                    return readPrograms(channels);
+                });
+
+        assertThat(pipeline.getChannelCount()).isEqualTo(READ_CHANNEL_COUNT);
+        assertThat(queryProgramCount()).isEqualTo(READ_CHANNEL_COUNT * PROGRAM_COUNT_PER_CHANNEL);
+    }
+
+    @Test
+    public void fetch_cancelled_stopsBeforeNextChannel() {
+        EpgFetchPipeline pipeline =
+                new EpgFetchPipeline(
+                        RuntimeEnvironment.application,
+                        mFakeClock,
+                        () -> ++mCancellationCheckCount > READ_CHANNEL_COUNT);
+
+        pipeline.fetch(mEpgChannels, READ_CHANNEL_COUNT, this::readPrograms);
+
+        // The channels applied before the cancellation are still updated.
+        assertThat(pipeline.getChannelCount()).isEqualTo(READ_CHANNEL_COUNT);
+        assertThat(queryProgramCount()).isEqualTo(READ_CHANNEL_COUNT * PROGRAM_COUNT_PER_CHANNEL);
+    }
+
+    /** A stub of {@link EpgReader#getPrograms(Set, long)}, which takes a second for each read. */
+    private Map<EpgReader.EpgChannel, Collection<Program>> readPrograms(
+            Set<EpgReader.EpgChannel> channels) {
+        Map<EpgReader.EpgChannel, Collection<Program>> result = new HashMap<>();
+        for (EpgReader.EpgChannel epgChannel : channels) {
+            long channelId = epgChannel.getChannel().getId();
+            List<Program> programs = new ArrayList<>();
+            // In the reverse order, since EpgReader doesn't sort the programs.
+            for (int i = PROGRAM_COUNT_PER_CHANNEL - 1; i >= 0; --i) {
+                long startTimeMs = mStartTimeMs + i * PROGRAM_DURATION_MS;
+                if (EpgFingerprint.getBucket(startTimeMs) == mDroppedBucket) {
+                    continue;
+                }
+                programs.add(
+                        new ProgramImpl.Builder()
+                                .setChannelId(channelId)
+                                .setTitle("Program " + i)
+                                .setEpisodeTitle(channelId == 1 && i == 0 ? mEpisodeTitle : null)
+                                .setStartTimeUtcMillis(startTimeMs)
+                                .setEndTimeUtcMillis(startTimeMs + PROGRAM_DURATION_MS)
+                                .build());
+            }
+            result.put(epgChannel, programs);
+        }
+        mReadCount++;
+        mFakeClock.increment(TimeUnit.SECONDS);
+        return result;
+    }
+
+    private int queryProgramCount() {
+        try (Cursor cursor =
+                RuntimeEnvironment.application
+                        .getContentResolver()
+                        .query(
+                                TvContract.Programs.CONTENT_URI,
+                                new String[] {TvContract.Programs._ID},
+                                null,
+                                null,
+                                null)) {
+            return cursor.getCount();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.dvr;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Build;
+import android.util.Log;
+import com.android.tv.dvr.DvrScheduleManager.ConflictInfo;
+import com.android.tv.dvr.data.ScheduledRecording;
+import com.android.tv.testing.TestSingletonApp;
+import com.android.tv.testing.dvr.RecordingTestUtils;
+import com.google.thirdparty.robolectric.GoogleRobolectricTestRunner;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link ScheduleConflictIndex} */
+@RunWith(GoogleRobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.N, application = TestSingletonApp.class)
+public class ScheduleConflictIndexTest {
+    private static final String TAG = "ScheduleConflictIndexTest";
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    private long mLastId;
+
+    @Test
+    public void testAddAndRemove_clusters() {
+        ScheduleConflictIndex index = new ScheduleConflictIndex();
+        ScheduledRecording schedule1 = createSchedule(1, 0, 100);
+        ScheduledRecording schedule2 = createSchedule(2, 200, 300);
+        ScheduledRecording schedule3 = createSchedule(3, 50, 250);
+
+        index.add(schedule1);
+        index.add(schedule2);
+        assertThat(index.getClusterCount()).isEqualTo(2);
+
+        index.add(schedule3);
+        assertThat(index.getClusterCount()).isEqualTo(1);
+
+        assertThat(index.remove(schedule3)).isTrue();
+        assertThat(index.getClusterCount()).isEqualTo(2);
+        assertThat(index.remove(schedule3)).isFalse();
+    }
+
+    @Test
+    public void testGetConflicts() {
+        ScheduleConflictIndex index = new ScheduleConflictIndex();
+        ScheduledRecording schedule1 = createSchedule(1, 0, 200);
+        ScheduledRecording schedule2 = createSchedule(2, 0, 100);
+        ScheduledRecording schedule3 = createSchedule(3, 1000, 1100);
+
+        index.add(schedule1);
+        index.add(schedule2);
+        index.add(schedule3);
+
+        List<ConflictInfo> conflicts = index.getConflicts(1);
+        assertThat(conflicts).hasSize(1);
+        assertThat(conflicts.get(0).schedule).isEqualTo(schedule2);
+        assertThat(conflicts.get(0).partialConflict).isFalse();
+        assertThat(index.getConflicts(2)).isEmpty();
+    }
+
+    @Test
+    public void testGetConflicts_calculatesOnlyChangedClusters() {
+        ScheduleConflictIndex index = new ScheduleConflictIndex();
+        for (int i = 0; i < 10; ++i) {
+            index.add(createSchedule(1, i * 1000, i * 1000 + 200));
+            index.add(createSchedule(2, i * 1000 + 100, i * 1000 + 300));
+        }
+        index.getConflicts(1);
+        assertThat(index.getCalculatedClusterCount()).isEqualTo(10);
+
+        index.add(createSchedule(3, 5000, 5100));
+        index.getConflicts(1);
+        assertThat(index.getCalculatedClusterCount()).isEqualTo(1);
+
+        index.getConflicts(1);
+        assertThat(index.getCalculatedClusterCount()).isEqualTo(0);
+
+        // All the clusters are calculated again with the new tuner count.
+        index.getConflicts(2);
+        assertThat(index.getCalculatedClusterCount()).isEqualTo(10);
+    }
+
+    @Test
+    public void testGetConflicts_sameAsFullCalculation() {
+        Random random = new Random(0);
+        List<ScheduledRecording> schedules = new ArrayList<>();
+        ScheduleConflictIndex index = new ScheduleConflictIndex();
+        for (int i = 0; i < 500; ++i) {
+            if (!schedules.isEmpty() && random.nextInt(3) == 0) {
+                ScheduledRecording schedule = schedules.remove(random.nextInt(schedules.size()));
+                assertThat(index.remove(schedule)).isTrue();
+            } else {
+                ScheduledRecording schedule = createRandomSchedule(random, 48 * HOUR_MS);
+                schedules.add(schedule);
+                index.add(schedule);
+            }
+            int tunerCount = 1 + random.nextInt(3);
+            assertThat(toMap(index.getConflicts(tunerCount)))
+                    .isEqualTo(
+                            toMap(
+                                    DvrScheduleManager.getConflictingSchedulesInfo(
+                                            schedules, tunerCount)));
+        }
+    }
+
+    @Test
+    public void testGetConflicts_benchmark() {
+        int seriesCount = 50;
+        int dayCount = 60;
+        int changeCount = 100;
+        int tunerCount = 4;
+        Random random = new Random(0);
+        // The episodes of the series which are on air every evening.
+        List<ScheduledRecording> schedules = new ArrayList<>();
+        for (int i = 0; i < seriesCount; ++i) {
+            long slotMs = 18 * HOUR_MS + random.nextInt(12) * HOUR_MS / 2;
+            long durationMs = (1 + random.nextInt(4)) * HOUR_MS / 2;
+            long priority = random.nextInt(100);
+            for (int day = 0; day < dayCount; ++day) {
+                long startTimeMs = day * 24 * HOUR_MS + slotMs;
+                schedules.add(createSchedule(priority, startTimeMs, startTimeMs + durationMs));
+            }
+        }
+        int scheduleCount = schedules.size();
+        ScheduleConflictIndex index = new ScheduleConflictIndex(schedules);
+        index.getConflicts(tunerCount);
+
+        // SystemClock doesn't advance in Robolectric.
+        long fullTimeNs = 0;
+        long incrementalTimeNs = 0;
+        for (int i = 0; i < changeCount; ++i) {
+            // Replaces a schedule, like when its priority is changed.
+            ScheduledRecording oldSchedule = schedules.get(random.nextInt(schedules.size()));
+            ScheduledRecording newSchedule =
+                    ScheduledRecording.buildFrom(oldSchedule)
+                            .setPriority(random.nextInt(100))
+                            .build();
+            schedules.remove(oldSchedule);
+            schedules.add(newSchedule);
+
+            long startTimeNs = System.nanoTime();
+            index.remove(oldSchedule);
+            index.add(newSchedule);
+            List<ConflictInfo> incrementalConflicts = index.getConflicts(tunerCount);
+            incrementalTimeNs += System.nanoTime() - startTimeNs;
+
+            startTimeNs = System.nanoTime();
+            List<ConflictInfo> fullConflicts =
+                    DvrScheduleManager.getConflictingSchedulesInfo(schedules, tunerCount);
+            fullTimeNs += System.nanoTime() - startTimeNs;
+
+            assertThat(toMap(incrementalConflicts)).isEqualTo(toMap(fullConflicts));
+            assertThat(index.getCalculatedClusterCount()).isLessThan(index.getClusterCount());
+        }
+        Log.i(
+                TAG,
+                changeCount + " changes of " + scheduleCount + " schedules with " + tunerCount
+                        + " tuners: incremental " + TimeUnit.NANOSECONDS.toMillis(incrementalTimeNs)
+                        + "ms, full " + TimeUnit.NANOSECONDS.toMillis(fullTimeNs) + "ms");
+    }
+
+    /** Creates a schedule of 30 minutes to 2 hours, which starts on the half hour. */
+    private ScheduledRecording createRandomSchedule(Random random, long rangeMs) {
+        long startTimeMs = (random.nextInt((int) (rangeMs / HOUR_MS * 2))) * HOUR_MS / 2;
+        long durationMs = (1 + random.nextInt(4)) * HOUR_MS / 2;
+        return createSchedule(random.nextInt(100), startTimeMs, startTimeMs + durationMs);
+    }
+
+    private ScheduledRecording createSchedule(long priority, long startTimeMs, long endTimeMs) {
+        long id = ++mLastId;
+        return RecordingTestUtils.createTestRecordingWithIdAndPriorityAndPeriod(
+                id, id, priority, startTimeMs, endTimeMs);
+    }
+
+    private static Map<Long, Boolean> toMap(List<ConflictInfo> conflicts) {
+        Map<Long, Boolean> result = new HashMap<>();
+        for (ConflictInfo conflict : conflicts) {
+            result.put(conflict.schedule.getId(), conflict.partialConflict);
+        }
+        return result;
+    }
+}
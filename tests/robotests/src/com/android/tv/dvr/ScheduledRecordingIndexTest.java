@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.dvr;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Range;
+import com.android.tv.dvr.data.ScheduledRecording;
+import com.android.tv.testing.TestSingletonApp;
+import com.android.tv.testing.dvr.RecordingTestUtils;
+import com.google.thirdparty.robolectric.GoogleRobolectricTestRunner;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link ScheduledRecordingIndex} */
+@RunWith(GoogleRobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.N, application = TestSingletonApp.class)
+public class ScheduledRecordingIndexTest {
+    private static final String[] INPUT_IDS = {"input_1", "input_2", "input_3"};
+    private static final int CHANNEL_ID = 273;
+    private static final int STATE_COUNT = ScheduledRecording.STATE_RECORDING_CANCELED + 1;
+    private static final long TIME_RANGE_MS = 10000;
+
+    @Test
+    public void testGetOverlapping() {
+        ScheduledRecordingIndex index = new ScheduledRecordingIndex();
+        ScheduledRecording longSchedule = createSchedule(1, INPUT_IDS[0], 0, 1000);
+        ScheduledRecording shortSchedule = createSchedule(2, INPUT_IDS[0], 900, 950);
+        index.put(longSchedule);
+        index.put(shortSchedule);
+
+        // The long one which starts much earlier should be found too.
+        assertThat(index.getOverlapping(new Range<>(920L, 980L), longSchedule.getState()))
+                .containsExactly(longSchedule, shortSchedule);
+        assertThat(index.getOverlapping(new Range<>(960L, 980L), longSchedule.getState()))
+                .containsExactly(longSchedule);
+        assertThat(index.getOverlapping(new Range<>(1000L, 2000L), longSchedule.getState()))
+                .isEmpty();
+    }
+
+    @Test
+    public void testPut_replacesOldOne() {
+        ScheduledRecordingIndex index = new ScheduledRecordingIndex();
+        ScheduledRecording schedule = createSchedule(1, INPUT_IDS[0], 0, 1000);
+        ScheduledRecording updated =
+                ScheduledRecording.buildFrom(schedule)
+                        .setStartTimeMs(2000)
+                        .setEndTimeMs(3000)
+                        .setSeriesRecordingId(7)
+                        .setState(ScheduledRecording.STATE_RECORDING_FAILED)
+                        .build();
+
+        assertThat(index.put(schedule)).isNull();
+        assertThat(index.put(updated)).isEqualTo(schedule);
+
+        assertThat(index.size()).isEqualTo(1);
+        assertThat(index.getOverlapping(new Range<>(0L, 1000L), schedule.getState())).isEmpty();
+        assertThat(
+                        index.getOverlapping(
+                                new Range<>(0L, 3000L), ScheduledRecording.STATE_RECORDING_FAILED))
+                .containsExactly(updated);
+        assertThat(index.getWithStates(schedule.getState())).isEmpty();
+        assertThat(index.getForSeriesRecording(schedule.getSeriesRecordingId())).isEmpty();
+        assertThat(index.getForSeriesRecording(7)).containsExactly(updated);
+        assertThat(index.getForInput(INPUT_IDS[0])).containsExactly(updated);
+    }
+
+    @Test
+    public void testQueries_sameAsScan() {
+        Random random = new Random(0);
+        ScheduledRecordingIndex index = new ScheduledRecordingIndex();
+        Map<Long, ScheduledRecording> schedules = new HashMap<>();
+        for (int i = 0; i < 2000; ++i) {
+            long id = 1 + random.nextInt(200);
+            if (random.nextInt(4) == 0) {
+                assertThat(index.remove(id)).isEqualTo(schedules.remove(id));
+            } else {
+                ScheduledRecording schedule = createRandomSchedule(random, id);
+                assertThat(index.put(schedule)).isEqualTo(schedules.put(id, schedule));
+            }
+            assertThat(index.size()).isEqualTo(schedules.size());
+            assertThat(index.values()).containsExactlyElementsIn(schedules.values());
+
+            long lowerMs = random.nextInt((int) TIME_RANGE_MS);
+            Range<Long> period = new Range<>(lowerMs, lowerMs + random.nextInt(1000));
+            int state = random.nextInt(STATE_COUNT);
+            assertThat(index.getOverlapping(period, state))
+                    .containsExactlyElementsIn(scanOverlapping(schedules, period, state));
+            int otherState = random.nextInt(STATE_COUNT);
+            assertThat(index.getWithStates(state, otherState))
+                    .containsExactlyElementsIn(scanWithStates(schedules, state, otherState));
+            long seriesId = random.nextInt(5);
+            assertThat(index.getForSeriesRecording(seriesId))
+                    .containsExactlyElementsIn(scanForSeriesRecording(schedules, seriesId));
+            String inputId = INPUT_IDS[random.nextInt(INPUT_IDS.length)];
+            assertThat(index.getForInput(inputId))
+                    .containsExactlyElementsIn(scanForInput(schedules, inputId));
+        }
+    }
+
+    private static ScheduledRecording createRandomSchedule(Random random, long id) {
+        long startTimeMs = random.nextInt((int) TIME_RANGE_MS);
+        // Some are much longer than the others, to check the long ones starting early.
+        long durationMs = random.nextInt(10) == 0 ? random.nextInt(5000) : random.nextInt(500);
+        return ScheduledRecording.buildFrom(
+                        createSchedule(
+                                id,
+                                INPUT_IDS[random.nextInt(INPUT_IDS.length)],
+                                startTimeMs,
+                                startTimeMs + durationMs))
+                .setSeriesRecordingId(random.nextInt(5))
+                .setState(random.nextInt(STATE_COUNT))
+                .build();
+    }
+
+    private static ScheduledRecording createSchedule(
+            long id, String inputId, long startTimeMs, long endTimeMs) {
+        return RecordingTestUtils.createTestRecordingWithIdAndPeriod(
+                id, inputId, CHANNEL_ID, startTimeMs, endTimeMs);
+    }
+
+    // The scans below are how DvrDataManagerImpl used to answer the queries.
+
+    private static List<ScheduledRecording> scanOverlapping(
+            Map<Long, ScheduledRecording> schedules, Range<Long> period, int state) {
+        List<ScheduledRecording> result = new ArrayList<>();
+        for (ScheduledRecording r : schedules.values()) {
+            if (r.isOverLapping(period) && r.getState() == state) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    private static List<ScheduledRecording> scanWithStates(
+            Map<Long, ScheduledRecording> schedules, int... states) {
+        List<ScheduledRecording> result = new ArrayList<>();
+        for (ScheduledRecording r : schedules.values()) {
+            for (int state : states) {
+                if (r.getState() == state) {
+                    result.add(r);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<ScheduledRecording> scanForSeriesRecording(
+            Map<Long, ScheduledRecording> schedules, long seriesRecordingId) {
+        List<ScheduledRecording> result = new ArrayList<>();
+        for (ScheduledRecording r : schedules.values()) {
+            if (r.getSeriesRecordingId() == seriesRecordingId) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    private static List<ScheduledRecording> scanForInput(
+            Map<Long, ScheduledRecording> schedules, String inputId) {
+        List<ScheduledRecording> result = new ArrayList<>();
+        for (ScheduledRecording r : schedules.values()) {
+            if (TextUtils.equals(r.getInputId(), inputId)) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+}
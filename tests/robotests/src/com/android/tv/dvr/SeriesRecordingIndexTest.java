@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.dvr;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Build;
+import android.text.TextUtils;
+import com.android.tv.dvr.data.SeriesRecording;
+import com.android.tv.testing.TestSingletonApp;
+import com.google.thirdparty.robolectric.GoogleRobolectricTestRunner;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link SeriesRecordingIndex} */
+@RunWith(GoogleRobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.N, application = TestSingletonApp.class)
+public class SeriesRecordingIndexTest {
+    private static final String[] INPUT_IDS = {"input_1", "input_2", "input_3"};
+
+    @Test
+    public void testPut_movesToNewInput() {
+        SeriesRecordingIndex index = new SeriesRecordingIndex();
+        SeriesRecording seriesRecording = createSeriesRecording(1, INPUT_IDS[0]);
+        SeriesRecording updated = createSeriesRecording(1, INPUT_IDS[1]);
+
+        assertThat(index.put(seriesRecording)).isNull();
+        assertThat(index.put(updated)).isEqualTo(seriesRecording);
+
+        assertThat(index.getForInput(INPUT_IDS[0])).isEmpty();
+        assertThat(index.getForInput(INPUT_IDS[1])).containsExactly(updated);
+        assertThat(index.remove(1)).isEqualTo(updated);
+        assertThat(index.getForInput(INPUT_IDS[1])).isEmpty();
+    }
+
+    @Test
+    public void testGetForInput_sameAsScan() {
+        Random random = new Random(0);
+        SeriesRecordingIndex index = new SeriesRecordingIndex();
+        Map<Long, SeriesRecording> seriesRecordings = new HashMap<>();
+        for (int i = 0; i < 500; ++i) {
+            long id = 1 + random.nextInt(50);
+            if (random.nextInt(4) == 0) {
+                assertThat(index.remove(id)).isEqualTo(seriesRecordings.remove(id));
+            } else {
+                SeriesRecording seriesRecording =
+                        createSeriesRecording(id, INPUT_IDS[random.nextInt(INPUT_IDS.length)]);
+                assertThat(index.put(seriesRecording))
+                        .isEqualTo(seriesRecordings.put(id, seriesRecording));
+            }
+            assertThat(index.values()).containsExactlyElementsIn(seriesRecordings.values());
+            for (String inputId : INPUT_IDS) {
+                assertThat(index.getForInput(inputId))
+                        .containsExactlyElementsIn(scanForInput(seriesRecordings, inputId));
+            }
+        }
+    }
+
+    private static SeriesRecording createSeriesRecording(long id, String inputId) {
+        return new SeriesRecording.Builder()
+                .setId(id)
+                .setInputId(inputId)
+                .setSeriesId("series_" + id)
+                .build();
+    }
+
+    private static List<SeriesRecording> scanForInput(
+            Map<Long, SeriesRecording> seriesRecordings, String inputId) {
+        List<SeriesRecording> result = new ArrayList<>();
+        for (SeriesRecording r : seriesRecordings.values()) {
+            if (TextUtils.equals(r.getInputId(), inputId)) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+}
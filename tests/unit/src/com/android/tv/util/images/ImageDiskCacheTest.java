@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.util.images;
+
+import static androidx.test.InstrumentationRegistry.getTargetContext;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+import com.android.tv.testing.fakes.FakeClock;
+import com.android.tv.util.images.BitmapUtils.ScaledBitmapInfo;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests for {@link ImageDiskCache} and {@link BitmapPool}. */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class ImageDiskCacheTest {
+    private static final String URI = "https://www.example.com/poster.png";
+    private static final int SIZE = 100;
+    private static final int BITMAP_BYTES = SIZE * SIZE * 2;
+
+    private File mDirectory;
+    private FakeClock mFakeClock;
+    private ImageDiskCache mDiskCache;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(getTargetContext().getCacheDir(), "image_disk_cache_test");
+        mFakeClock = FakeClock.createWithCurrentTime();
+        mDiskCache =
+                new ImageDiskCache(
+                        mDirectory,
+                        BITMAP_BYTES * 10,
+                        ImageDiskCache.DEFAULT_MAX_AGE_MS,
+                        mFakeClock);
+        mDiskCache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        mDiskCache.clear();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void testIsCacheable() {
+        assertThat(ImageDiskCache.isCacheable(URI)).isTrue();
+        assertThat(ImageDiskCache.isCacheable("android.resource://com.android.tv/1")).isFalse();
+        assertThat(ImageDiskCache.isCacheable("content://android.media.tv/channel/1/logo"))
+                .isFalse();
+        assertThat(ImageDiskCache.isCacheable(null)).isFalse();
+    }
+
+    @Test
+    public void testPutAndGet() {
+        mDiskCache.put(createInfo(URI, Color.RED), SIZE, SIZE);
+
+        ScaledBitmapInfo info = mDiskCache.get(URI, SIZE, SIZE);
+
+        assertThat(info).isNotNull();
+        assertThat(info.id).isEqualTo(URI);
+        assertThat(info.inSampleSize).isEqualTo(2);
+        assertThat(info.bitmap.getWidth()).isEqualTo(SIZE);
+        assertThat(info.bitmap.getHeight()).isEqualTo(SIZE);
+        assertThat(info.bitmap.getConfig()).isEqualTo(Bitmap.Config.RGB_565);
+        assertThat(info.bitmap.getPixel(SIZE / 2, SIZE / 2)).isEqualTo(Color.RED);
+    }
+
+    @Test
+    public void testGet_otherSize() {
+        mDiskCache.put(createInfo(URI, Color.RED), SIZE, SIZE);
+
+        assertThat(mDiskCache.get(URI, SIZE * 2, SIZE * 2)).isNull();
+        assertThat(mDiskCache.get(URI + "?other", SIZE, SIZE)).isNull();
+    }
+
+    @Test
+    public void testGet_expired() {
+        mDiskCache.put(createInfo(URI, Color.RED), SIZE, SIZE);
+        long size = mDiskCache.getSizeBytes();
+
+        mFakeClock.increment(TimeUnit.MILLISECONDS, ImageDiskCache.DEFAULT_MAX_AGE_MS);
+        assertThat(mDiskCache.get(URI, SIZE, SIZE)).isNotNull();
+
+        mFakeClock.increment(TimeUnit.MILLISECONDS);
+        assertThat(mDiskCache.get(URI, SIZE, SIZE)).isNull();
+        assertThat(mDiskCache.getSizeBytes()).isLessThan(size);
+        assertThat(mDirectory.listFiles()).isEmpty();
+    }
+
+    @Test
+    public void testPut_removesLeastRecentlyUsed() {
+        for (int i = 0; i < 20; ++i) {
+            mDiskCache.put(createInfo(URI + "?" + i, Color.BLUE), SIZE, SIZE);
+            // The modified time of the file might have only a second resolution, so the time of
+            // the new file is set explicitly to keep the order.
+            for (File file : mDirectory.listFiles()) {
+                if (file.lastModified() > i * 1000L) {
+                    file.setLastModified(i * 1000L);
+                }
+            }
+        }
+
+        assertThat(mDiskCache.getSizeBytes()).isAtMost(BITMAP_BYTES * 10L);
+        assertThat(mDiskCache.get(URI + "?0", SIZE, SIZE)).isNull();
+        assertThat(mDiskCache.get(URI + "?19", SIZE, SIZE)).isNotNull();
+    }
+
+    @Test
+    public void testBitmapPool_reuse() {
+        BitmapPool pool = new BitmapPool(BITMAP_BYTES * 4);
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.RGB_565);
+        pool.put(bitmap);
+        assertThat(pool.getSizeBytes()).isEqualTo(BITMAP_BYTES);
+
+        assertThat(pool.takeForDecoding(SIZE * 2, SIZE * 2, Bitmap.Config.RGB_565)).isNull();
+        assertThat(pool.takeForDecoding(SIZE / 4, SIZE / 4, Bitmap.Config.RGB_565)).isNull();
+        assertThat(pool.takeForDecoding(SIZE, SIZE / 2, Bitmap.Config.RGB_565))
+                .isSameInstanceAs(bitmap);
+        assertThat(pool.getSizeBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testBitmapPool_trim() {
+        BitmapPool pool = new BitmapPool(BITMAP_BYTES * 4);
+        for (int i = 0; i < 10; ++i) {
+            pool.put(Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.RGB_565));
+        }
+        assertThat(pool.getSizeBytes()).isEqualTo(BITMAP_BYTES * 4);
+
+        // Immutable bitmaps can't be reused.
+        pool.clear();
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.RGB_565);
+        pool.put(bitmap.copy(Bitmap.Config.RGB_565, false));
+        assertThat(pool.getSizeBytes()).isEqualTo(0);
+    }
+
+    private static ScaledBitmapInfo createInfo(String uri, int color) {
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.RGB_565);
+        bitmap.eraseColor(color);
+        return new ScaledBitmapInfo(uri, bitmap, 2);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.util.images;
+
+import static com.android.tv.util.images.ImageLoader.PRIORITY_BACKGROUND;
+import static com.android.tv.util.images.ImageLoader.PRIORITY_PREFETCH;
+import static com.android.tv.util.images.ImageLoader.PRIORITY_VISIBLE;
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+import com.android.tv.testing.fakes.FakeClock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests for {@link ImageLoadScheduler}. */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class ImageLoadSchedulerTest {
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private final List<String> mRunOrder = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch mBlockerLatch = new CountDownLatch(1);
+    private FakeClock mFakeClock;
+    private ImageLoadScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mFakeClock = FakeClock.createWithCurrentTime();
+        mScheduler = new ImageLoadScheduler(1, mFakeClock);
+        // Keeps the only thread busy, so the other requests wait in the queue.
+        mScheduler.execute(
+                () -> {
+                    try {
+                        mBlockerLatch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                },
+                PRIORITY_VISIBLE);
+    }
+
+    @After
+    public void tearDown() {
+        mBlockerLatch.countDown();
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void testExecute_order() throws InterruptedException {
+        execute("background", PRIORITY_BACKGROUND);
+        execute("prefetch 1", PRIORITY_PREFETCH);
+        execute("visible 1", PRIORITY_VISIBLE);
+        execute("prefetch 2", PRIORITY_PREFETCH);
+        execute("visible 2", PRIORITY_VISIBLE);
+        assertThat(mScheduler.getQueueDepth()).isEqualTo(5);
+
+        CountDownLatch doneLatch = finishAll(PRIORITY_BACKGROUND);
+
+        // The visible ones are first in, first out, and the prefetches are last in, first out.
+        assertThat(mRunOrder)
+                .containsExactly(
+                        "visible 1", "visible 2", "prefetch 2", "prefetch 1", "background", "done")
+                .inOrder();
+        assertThat(doneLatch.getCount()).isEqualTo(0);
+        assertThat(mScheduler.getQueueDepth()).isEqualTo(0);
+    }
+
+    @Test
+    public void testSetPriority() throws InterruptedException {
+        execute("visible", PRIORITY_VISIBLE);
+        ImageLoadScheduler.Request request = execute("prefetch", PRIORITY_PREFETCH);
+
+        assertThat(mScheduler.setPriority(request, PRIORITY_VISIBLE)).isTrue();
+        assertThat(request.getPriority()).isEqualTo(PRIORITY_VISIBLE);
+        finishAll(PRIORITY_BACKGROUND);
+
+        assertThat(mRunOrder).containsExactly("visible", "prefetch", "done").inOrder();
+        // It has already run.
+        assertThat(mScheduler.setPriority(request, PRIORITY_BACKGROUND)).isFalse();
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        execute("visible 1", PRIORITY_VISIBLE);
+        ImageLoadScheduler.Request request = execute("visible 2", PRIORITY_VISIBLE);
+
+        assertThat(mScheduler.cancel(request)).isTrue();
+        assertThat(mScheduler.getQueueDepth()).isEqualTo(1);
+        finishAll(PRIORITY_BACKGROUND);
+
+        assertThat(mRunOrder).containsExactly("visible 1", "done").inOrder();
+        assertThat(mScheduler.cancel(request)).isFalse();
+    }
+
+    @Test
+    public void testTimeToFirstPixel() {
+        ImageLoadScheduler.Request request1 = execute("visible 1", PRIORITY_VISIBLE);
+        mFakeClock.increment(TimeUnit.MILLISECONDS, 100);
+        ImageLoadScheduler.Request request2 = execute("visible 2", PRIORITY_VISIBLE);
+        mFakeClock.increment(TimeUnit.MILLISECONDS, 100);
+
+        mScheduler.onImageShown(request1);
+        mScheduler.onImageShown(request2);
+
+        assertThat(mScheduler.getAverageTimeToFirstPixelMs()).isEqualTo(150);
+        assertThat(mScheduler.getMaxTimeToFirstPixelMs()).isEqualTo(200);
+    }
+
+    private ImageLoadScheduler.Request execute(String name, @ImageLoader.Priority int priority) {
+        return mScheduler.execute(() -> mRunOrder.add(name), priority);
+    }
+
+    /** Releases the blocked thread and waits until all the requests before are done. */
+    private CountDownLatch finishAll(@ImageLoader.Priority int lowestPriority)
+            throws InterruptedException {
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        // Runs after all the others with the same priority.
+        mScheduler.execute(
+                () -> {
+                    mRunOrder.add("done");
+                    doneLatch.countDown();
+                },
+                lowestPriority);
+        mBlockerLatch.countDown();
+        doneLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return doneLatch;
+    }
+}
@@ -22,6 +22,7 @@ import com.android.tv.common.BuildConfig;
 import com.android.tv.common.compat.TvInputConstantCompat;
 import com.android.tv.tuner.api.Tuner;
 import com.android.tv.common.annotation.UsedByNative;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /** A base class to handle a hardware tuner device. */
@@ -40,6 +41,8 @@ public abstract class TunerHal implements Tuner {
     private boolean mIsStreaming;
     private int mFrequency;
     private String mModulation;
+    // Reused to read into the buffers which are not direct, which shouldn't happen in practice.
+    private byte[] mHeapReadBuffer;
 
     static {
         if (!BuildConfig.NO_JNI_TEST) {
@@ -297,6 +300,38 @@ public abstract class TunerHal implements Tuner {
 
     protected native int nativeWriteInBuffer(long deviceId, byte[] javaBuffer, int javaBufferSize);
 
+    /**
+     * Reads TS data into {@code buffer} like {@link #readTsStream(byte[], int)}. When {@code
+     * buffer} is a direct buffer, the data is written straight into it by the native code, so it
+     * does not go through the Java heap.
+     */
+    @Override
+    public synchronized int readTsStream(ByteBuffer buffer) {
+        if (!isDeviceOpen()) {
+            return 0;
+        }
+        if (!buffer.isDirect()) {
+            if (mHeapReadBuffer == null || mHeapReadBuffer.length < buffer.remaining()) {
+                mHeapReadBuffer = new byte[buffer.remaining()];
+            }
+            int bytesRead = readTsStream(mHeapReadBuffer, buffer.remaining());
+            if (bytesRead > 0) {
+                buffer.put(mHeapReadBuffer, 0, bytesRead);
+            }
+            return bytesRead;
+        }
+        int bytesRead =
+                nativeWriteInDirectBuffer(
+                        getDeviceId(), buffer, buffer.position(), buffer.remaining());
+        if (bytesRead > 0) {
+            buffer.position(buffer.position() + bytesRead);
+        }
+        return bytesRead;
+    }
+
+    protected native int nativeWriteInDirectBuffer(
+            long deviceId, ByteBuffer directBuffer, int offset, int size);
+
     /**
      * Opens Linux DVB frontend device. This method is called from native JNI and used only for
      * DvbTunerHal.
@@ -19,6 +19,7 @@ import android.support.annotation.IntDef;
 import android.support.annotation.StringDef;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
 
 /** A interface a hardware tuner device. */
 public interface Tuner extends AutoCloseable {
@@ -88,6 +89,16 @@ public interface Tuner extends AutoCloseable {
 
     int readTsStream(byte[] javaBuffer, int javaBufferSize);
 
+    /**
+     * Reads TS data into {@code buffer} from its position up to its limit, and advances the
+     * position by the number of bytes read. This is called on the streaming thread for every read,
+     * so tuners should write to a direct buffer in place, without allocating.
+     *
+     * @return the amount of bytes read. Note that this value could be 0 if no new frames have been
+     *     obtained since the last call.
+     */
+    int readTsStream(ByteBuffer buffer);
+
     int getSignalStrength();
 
     /** Filter type */
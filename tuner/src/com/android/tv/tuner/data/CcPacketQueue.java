@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A queue of cc packets, which are the cc_data of video frames, ordered by the frame pts.
+ *
+ * <p>The packets are kept sorted in a ring of pooled slots. Since the frames arrive in decoding
+ * order, a new packet is usually inserted at the tail or a few slots before it, and the byte
+ * arrays of the slots are reused, so that no garbage is made per frame. Like a sorted set, a
+ * packet is ignored if a packet with the same pts is already queued. The queue is not thread safe.
+ */
+final class CcPacketQueue {
+    private static final int INITIAL_CAPACITY = 16;
+    // cc_count is a 5 bit field, so a frame has up to 31 cc constructs of three bytes.
+    private static final int INITIAL_SLOT_SIZE = 31 * 3;
+
+    private long[] mPtsUs = new long[INITIAL_CAPACITY];
+    private byte[][] mBytes = new byte[INITIAL_CAPACITY][];
+    private int[] mCcCounts = new int[INITIAL_CAPACITY];
+    private int mHead;
+    private int mSize;
+
+    CcPacketQueue() {
+        for (int i = 0; i < INITIAL_CAPACITY; ++i) {
+            mBytes[i] = new byte[INITIAL_SLOT_SIZE];
+        }
+    }
+
+    /**
+     * Copies the cc constructs of a frame to the queue.
+     *
+     * @param data the cc constructs of three bytes from the start to the limit
+     * @param ptsUs the pts of the frame
+     * @return {@code false} if a packet with the same pts is already queued
+     */
+    boolean add(ByteBuffer data, long ptsUs) {
+        int index = mSize;
+        while (index > 0 && mPtsUs[slot(index - 1)] > ptsUs) {
+            --index;
+        }
+        if (index > 0 && mPtsUs[slot(index - 1)] == ptsUs) {
+            return false;
+        }
+        if (mSize == mPtsUs.length) {
+            grow();
+        }
+        // Shifts the later packets back and moves the spare array of the tail slot to the
+        // inserted slot.
+        byte[] bytes = mBytes[slot(mSize)];
+        for (int i = mSize; i > index; --i) {
+            int to = slot(i);
+            int from = slot(i - 1);
+            mPtsUs[to] = mPtsUs[from];
+            mBytes[to] = mBytes[from];
+            mCcCounts[to] = mCcCounts[from];
+        }
+        int ccCount = data.limit() / 3;
+        if (bytes.length < 3 * ccCount) {
+            bytes = new byte[3 * ccCount];
+        }
+        for (int i = 0; i < 3 * ccCount; ++i) {
+            bytes[i] = data.get(i);
+        }
+        int to = slot(index);
+        mPtsUs[to] = ptsUs;
+        mBytes[to] = bytes;
+        mCcCounts[to] = ccCount;
+        ++mSize;
+        return true;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /** Returns the pts of the first packet. The queue should not be empty. */
+    long peekPtsUs() {
+        return mPtsUs[mHead];
+    }
+
+    /**
+     * Returns the cc constructs of the first packet. The array is reused after the packet is
+     * removed. The queue should not be empty.
+     */
+    byte[] peekBytes() {
+        return mBytes[mHead];
+    }
+
+    /** Returns the number of the cc constructs of the first packet. */
+    int peekCcCount() {
+        return mCcCounts[mHead];
+    }
+
+    /** Removes the first packet. The queue should not be empty. */
+    void remove() {
+        mHead = slot(1);
+        --mSize;
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    private int slot(int index) {
+        return (mHead + index) & (mPtsUs.length - 1);
+    }
+
+    private void grow() {
+        int capacity = mPtsUs.length;
+        long[] ptsUs = new long[capacity * 2];
+        byte[][] bytes = new byte[capacity * 2][];
+        int[] ccCounts = new int[capacity * 2];
+        for (int i = 0; i < capacity; ++i) {
+            int from = slot(i);
+            ptsUs[i] = mPtsUs[from];
+            bytes[i] = mBytes[from];
+            ccCounts[i] = mCcCounts[from];
+        }
+        for (int i = capacity; i < capacity * 2; ++i) {
+            bytes[i] = new byte[INITIAL_SLOT_SIZE];
+        }
+        mPtsUs = ptsUs;
+        mBytes = bytes;
+        mCcCounts = ccCounts;
+        mHead = 0;
+    }
+}
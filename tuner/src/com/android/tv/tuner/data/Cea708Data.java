@@ -17,7 +17,6 @@
 package com.android.tv.tuner.data;
 
 import android.graphics.Color;
-import android.support.annotation.NonNull;
 
 /** Collection of CEA-708 structures. */
 public class Cea708Data {
@@ -112,23 +111,6 @@ public class Cea708Data {
     public static final int CODE_C1_DF6 = 0x9e;
     public static final int CODE_C1_DF7 = 0x9f;
 
-    public static class CcPacket implements Comparable<CcPacket> {
-        public final byte[] bytes;
-        public final int ccCount;
-        public final long pts;
-
-        public CcPacket(byte[] bytes, int ccCount, long pts) {
-            this.bytes = bytes;
-            this.ccCount = ccCount;
-            this.pts = pts;
-        }
-
-        @Override
-        public int compareTo(@NonNull CcPacket another) {
-            return Long.compare(pts, another.pts);
-        }
-    }
-
     /** CEA-708B-specific color. */
     public static class CaptionColor {
         public static final int OPACITY_SOLID = 0;
@@ -27,15 +27,12 @@ import com.android.tv.tuner.data.Cea708Data.CaptionPenColor;
 import com.android.tv.tuner.data.Cea708Data.CaptionPenLocation;
 import com.android.tv.tuner.data.Cea708Data.CaptionWindow;
 import com.android.tv.tuner.data.Cea708Data.CaptionWindowAttr;
-import com.android.tv.tuner.data.Cea708Data.CcPacket;
 import com.android.tv.tuner.util.ByteArrayBuffer;
 import java.io.UnsupportedEncodingException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.TreeSet;
 
 /**
  * A class for parsing CEA-708, which is the standard for closed captioning for ATSC DTV.
@@ -50,7 +47,8 @@ import java.util.TreeSet;
  *
  * <p>First, user_data consists of cc_data packets, which are 3-byte segments. Here, CcPacket is a
  * collection of cc_data packets in a frame along with same presentation timestamp. Because cc_data
- * packets must be reassembled in the frame display order, CcPackets are reordered.
+ * packets must be reassembled in the frame display order, CcPackets are reordered in a {@link
+ * CcPacketQueue}, which reuses its buffers so that no garbage is made per frame.
  *
  * <h3>Step 2. CcPacket -&gt; DTVCC packet ({@link #parseCcPacket} method)</h3>
  *
@@ -132,8 +130,8 @@ public class Cea708Parser {
     private static final int DISCOVERY_CC_SERVICE_NUMBER_END = 4; // CC4
 
     private final ByteArrayBuffer mDtvCcPacket = new ByteArrayBuffer(MAX_ALLOCATED_SIZE);
-    private final TreeSet<CcPacket> mCcPackets = new TreeSet<>();
-    private final StringBuffer mBuffer = new StringBuffer();
+    private final CcPacketQueue mCcPackets = new CcPacketQueue();
+    private final StringBuilder mBuffer = new StringBuilder();
     private final SparseIntArray mDiscoveredNumBytes = new SparseIntArray(); // per service number
     private long mLastDiscoveryLaunchedMs = SystemClock.elapsedRealtime();
     private int mCommand = 0;
@@ -253,37 +251,25 @@ public class Cea708Parser {
 
     // Step 1. user_data -> CcPacket ({@link #parseClosedCaption} method)
     public void parseClosedCaption(ByteBuffer data, long framePtsUs) {
-        int ccCount = data.limit() / 3;
-        byte[] ccBytes = new byte[3 * ccCount];
-        for (int i = 0; i < 3 * ccCount; i++) {
-            ccBytes[i] = data.get(i);
-        }
-        CcPacket ccPacket = new CcPacket(ccBytes, ccCount, framePtsUs);
-        mCcPackets.add(ccPacket);
+        mCcPackets.add(data, framePtsUs);
     }
 
     public boolean processClosedCaptions(long framePtsUs) {
-        // To get the sorted cc packets that have lower frame pts than current frame pts,
-        // the following offset divides off the lower side of the packets.
-        CcPacket offsetPacket = new CcPacket(new byte[0], 0, framePtsUs);
-        offsetPacket = mCcPackets.lower(offsetPacket);
+        // Processes the sorted cc packets that have lower frame pts than current frame pts.
         boolean processed = false;
-        if (offsetPacket != null) {
-            while (!mCcPackets.isEmpty() && offsetPacket.compareTo(mCcPackets.first()) >= 0) {
-                CcPacket packet = mCcPackets.pollFirst();
-                parseCcPacket(packet);
-                processed = true;
-            }
+        while (!mCcPackets.isEmpty() && mCcPackets.peekPtsUs() < framePtsUs) {
+            parseCcPacket(mCcPackets.peekBytes(), mCcPackets.peekCcCount());
+            mCcPackets.remove();
+            processed = true;
         }
         return processed;
     }
 
     // Step 2. CcPacket -> DTVCC packet ({@link #parseCcPacket} method)
-    private void parseCcPacket(CcPacket ccPacket) {
+    private void parseCcPacket(byte[] bytes, int ccCount) {
         // For the details of cc packet, see ATSC TSG-676 - Table A8.
-        byte[] bytes = ccPacket.bytes;
         int pos = 0;
-        for (int i = 0; i < ccPacket.ccCount; ++i) {
+        for (int i = 0; i < ccCount; ++i) {
             boolean ccValid = (bytes[pos] & 0x04) != 0;
             int ccType = bytes[pos] & 0x03;
             if (ccValid) {
@@ -432,7 +418,7 @@ public class Cea708Parser {
                     if (data[pos] == 0) {
                         mBuffer.append((char) data[pos + 1]);
                     } else {
-                        String value = new String(Arrays.copyOfRange(data, pos, pos + 2), "EUC-KR");
+                        String value = new String(data, pos, 2, "EUC-KR");
                         mBuffer.append(value);
                     }
                 } catch (UnsupportedEncodingException e) {
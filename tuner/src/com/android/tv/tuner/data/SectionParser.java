@@ -24,6 +24,7 @@ import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import com.android.tv.common.feature.Model;
 import com.android.tv.tuner.data.Channel.AtscServiceType;
 import com.android.tv.tuner.data.PsiData.PatItem;
@@ -38,7 +39,6 @@ import com.android.tv.tuner.data.PsipData.GenreDescriptor;
 import com.android.tv.tuner.data.PsipData.Iso639LanguageDescriptor;
 import com.android.tv.tuner.data.PsipData.MgtItem;
 import com.android.tv.tuner.data.PsipData.ParentalRatingDescriptor;
-import com.android.tv.tuner.data.PsipData.PsipSection;
 import com.android.tv.tuner.data.PsipData.RatingRegion;
 import com.android.tv.tuner.data.PsipData.RegionalRating;
 import com.android.tv.tuner.data.PsipData.SdtItem;
@@ -50,6 +50,7 @@ import com.android.tv.tuner.data.Track.AtscAudioTrack;
 import com.android.tv.tuner.data.Track.AtscCaptionTrack;
 import com.android.tv.tuner.util.ByteArrayBuffer;
 import com.android.tv.tuner.util.ConvertUtils;
+import com.android.tv.tuner.util.Crc32Mpeg2;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -161,6 +162,7 @@ public class SectionParser {
      * The following CRC table is from the code generated by the following command.
      * $ python pycrc.py --model crc-32-mpeg --algorithm table-driven --generate c
      * To see the details of pycrc, visit http://www.tty1.net/pycrc/index_en.html
+     * Sections are validated with Crc32Mpeg2, which is built from the same polynomial.
      */
     public static final int[] CRC_TABLE = {
         0x00000000, 0x04c11db7, 0x09823b6e, 0x0d4326d9,
@@ -620,8 +622,12 @@ public class SectionParser {
     private static final Charset SCSU_CHARSET =
             Charset.isSupported("SCSU") ? Charset.forName("SCSU") : null;
 
-    // Containers to store the last version numbers of the PSIP sections.
-    private final HashMap<PsipSection, Integer> mSectionVersionMap = new HashMap<>();
+    private static final int SECTION_HEADER_LENGTH = 9;
+    private static final int VERSION_NUMBER_UNKNOWN = -1;
+
+    // Containers to store the last version numbers of the PSIP sections. The keys are made by
+    // getSectionKey() so that they can be looked up without creating any objects.
+    private final SparseIntArray mSectionVersionMap = new SparseIntArray();
     private final SparseArray<List<EttItem>> mParsedEttItems = new SparseArray<>();
 
     public interface OutputListener {
@@ -662,7 +668,7 @@ public class SectionParser {
             if (DEBUG) {
                 Log.d(TAG, "parseSections 0x" + Integer.toHexString(data.byteAt(pos) & 0xff));
             }
-            parseSection(Arrays.copyOfRange(data.buffer(), pos, pos + sectionLength));
+            parseSection(data.buffer(), pos, sectionLength);
             pos += sectionLength;
         }
         if (mListener != null) {
@@ -679,28 +685,33 @@ public class SectionParser {
         mSectionVersionMap.clear();
     }
 
-    private void parseSection(byte[] data) {
-        if (!checkSanity(data)) {
-            Log.d(TAG, "Bad CRC!");
-            return;
-        }
-        PsipSection section = PsipSection.create(data);
-        if (section == null) {
+    /**
+     * Parses a single section which is stored in {@code buffer}. The version is checked in place
+     * before the CRC, and the section is copied out only when it needs to be parsed.
+     */
+    private void parseSection(byte[] buffer, int offset, int length) {
+        if (length < SECTION_HEADER_LENGTH) {
             return;
         }
 
         // The currentNextIndicator indicates that the section sent is currently applicable.
-        if (!section.getCurrentNextIndicator()) {
+        if ((buffer[offset + 5] & 0x01) == 0) {
             return;
         }
-        int versionNumber = (data[5] & 0x3e) >> 1;
-        Integer oldVersionNumber = mSectionVersionMap.get(section);
+        int sectionKey = getSectionKey(buffer, offset);
+        int versionNumber = (buffer[offset + 5] & 0x3e) >> 1;
 
         // The versionNumber shall be incremented when a change in the information carried within
-        // the section occurs.
-        if (oldVersionNumber != null && versionNumber == oldVersionNumber) {
+        // the section occurs. Most of the sections are repeated without any change, so they are
+        // dropped here before running the CRC over them.
+        if (mSectionVersionMap.get(sectionKey, VERSION_NUMBER_UNKNOWN) == versionNumber) {
+            return;
+        }
+        if (!checkSanity(buffer, offset, length)) {
+            Log.d(TAG, "Bad CRC!");
             return;
         }
+        byte[] data = Arrays.copyOfRange(buffer, offset, offset + length);
         boolean result = false;
         switch (data[0]) {
             case TABLE_ID_PAT:
@@ -733,10 +744,21 @@ public class SectionParser {
                 break;
         }
         if (result) {
-            mSectionVersionMap.put(section, versionNumber);
+            mSectionVersionMap.put(sectionKey, versionNumber);
         }
     }
 
+    /**
+     * Returns the key which identifies a section by its table id, table id extension and section
+     * number. Those are 8, 16 and 8 bits long respectively, so they fit in an int.
+     */
+    private static int getSectionKey(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24
+                | (buffer[offset + 3] & 0xff) << 16
+                | (buffer[offset + 4] & 0xff) << 8
+                | (buffer[offset + 6] & 0xff);
+    }
+
     private boolean parsePAT(byte[] data) {
         if (DEBUG) {
             Log.d(TAG, "PAT is discovered.");
@@ -2087,23 +2109,18 @@ public class SectionParser {
         return new String(data, pos, length);
     }
 
-    private static boolean checkSanity(byte[] data) {
+    private static boolean checkSanity(byte[] data, int offset, int length) {
         // Skipping CRC checking on Archer since TS data here was modified without updating CRC
         // value. For details, see b/28616908.
         if (Model.ARCHER.isEnabled()) {
             return true;
         }
-        if (data.length <= 1) {
+        if (length <= 1) {
             return false;
         }
-        boolean hasCRC = (data[1] & 0x80) != 0; // section_syntax_indicator
+        boolean hasCRC = (data[offset + 1] & 0x80) != 0; // section_syntax_indicator
         if (hasCRC) {
-            int crc = 0xffffffff;
-            for (byte b : data) {
-                int index = ((crc >> 24) ^ (b & 0xff)) & 0xff;
-                crc = CRC_TABLE[index] ^ (crc << 8);
-            }
-            if (crc != 0) {
+            if (Crc32Mpeg2.compute(data, offset, length) != 0) {
                 return false;
             }
         }
@@ -22,6 +22,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.Pair;
 
 import com.android.tv.common.SoftPreconditions;
@@ -38,8 +39,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -61,10 +62,14 @@ public class BufferManager {
     private static final int MINIMUM_DISK_WRITE_SPEED_MBPS = 3; // 3 Megabytes per second
 
     private final SampleChunk.SampleChunkCreator mSampleChunkCreator;
-    // Maps from track name to a map which maps from starting position to {@link SampleChunk}.
-    private final Map<String, SortedMap<Long, Pair<SampleChunk, Integer>>> mChunkMap =
-            new ArrayMap<>();
-    private final Map<String, Long> mStartPositionMap = new ArrayMap<>();
+    // Maps from track name to the index which maps from starting position to {@link SampleChunk}.
+    private final Map<String, ChunkIndex> mChunkMap = new ArrayMap<>();
+    // Maps from track name to the recorded track which is loaded from storage.
+    private final Map<String, RecordedTrack> mRecordedTracks = new ArrayMap<>();
+    // The chunks which can be evicted, ordered by their creation time.
+    private final PriorityQueue<EvictionCandidate> mEvictionQueue =
+            new PriorityQueue<>(
+                    (a, b) -> Long.compare(a.chunk.getCreatedTimeMs(), b.chunk.getCreatedTimeMs()));
     private final Map<String, ChunkEvictedListener> mEvictListeners = new ArrayMap<>();
     private final StorageManager mStorageManager;
     private long mBufferSize = 0;
@@ -80,6 +85,11 @@ public class BufferManager {
                 public void onChunkDelete(SampleChunk chunk) {
                     mBufferSize -= chunk.getSize();
                 }
+
+                @Override
+                public void onChunkFlush(SampleChunk chunk, long size, long timeNs) {
+                    addWriteStat(size, timeNs);
+                }
             };
 
     private int mMinSampleSizeForSpeedCheck = MINIMUM_SAMPLE_SIZE_FOR_SPEED_CHECK;
@@ -188,34 +198,6 @@ public class BufferManager {
         }
     }
 
-    /** A Holder for a sample position which will be loaded from the index file for recordings. */
-    public static class PositionHolder {
-
-        /**
-         * The current sample position in microseconds. The position is identical to the
-         * PTS(presentation time stamp) of the sample.
-         */
-        public final long positionUs;
-
-        /** Base sample position for the current {@link SampleChunk}. */
-        public final long basePositionUs;
-
-        /** The file offset for the current sample in the current {@link SampleChunk}. */
-        public final int offset;
-
-        /**
-         * Creates a holder for a specific position in the recording.
-         *
-         * @param positionUs
-         * @param offset
-         */
-        public PositionHolder(long positionUs, long basePositionUs, int offset) {
-            this.positionUs = positionUs;
-            this.basePositionUs = basePositionUs;
-            this.offset = offset;
-        }
-    }
-
     /** Storage configuration and policy manager for {@link BufferManager} */
     public interface StorageManager {
 
@@ -267,7 +249,7 @@ public class BufferManager {
          * @return indexes of the specified track
          * @throws IOException
          */
-        ArrayList<PositionHolder> readIndexFile(String trackId) throws IOException;
+        IndexFile readIndexFile(String trackId) throws IOException;
 
         /**
          * Writes track information to storage.
@@ -301,6 +283,24 @@ public class BufferManager {
         void updateIndexFile(
                 String trackName, int size, long position, SampleChunk sampleChunk, int offset)
                 throws IOException;
+
+        /**
+         * Closes the index files which are kept open to be updated. Called when the {@link
+         * BufferManager} is released, which is after the recording is finished.
+         *
+         * @throws IOException
+         */
+        void closeIndexFiles() throws IOException;
+    }
+
+    private static class EvictionCandidate {
+        private final String id;
+        private final SampleChunk chunk;
+
+        private EvictionCandidate(String id, SampleChunk chunk) {
+            this.id = id;
+            this.chunk = chunk;
+        }
     }
 
     private static class EvictChunkQueueMap {
@@ -346,6 +346,74 @@ public class BufferManager {
         }
     }
 
+    /**
+     * A track loaded from storage. Its index file is kept mapped and searched for each read, and
+     * its {@link SampleChunk}s are created when a read first reaches them.
+     */
+    private class RecordedTrack implements SampleChunk.NextChunkLoader {
+        private final String mTrackId;
+        private final SamplePool mSamplePool;
+        // Maps from the start position to the SampleChunks created so far.
+        private final LongSparseArray<SampleChunk> mChunks = new LongSparseArray<>();
+        private IndexFile mIndexFile;
+
+        private RecordedTrack(String trackId, SamplePool samplePool, IndexFile indexFile) {
+            mTrackId = trackId;
+            mSamplePool = samplePool;
+            mIndexFile = indexFile;
+        }
+
+        private void update(IndexFile indexFile) {
+            // The last chunk may have grown since it was created if the recording is still in
+            // progress, so it is created again when a read reaches it.
+            if (mIndexFile.size() > 0) {
+                mChunks.remove(mIndexFile.getBasePositionUs(mIndexFile.size() - 1));
+            }
+            mIndexFile = indexFile;
+        }
+
+        private long getStartPositionUs() {
+            return mIndexFile.size() > 0 ? mIndexFile.getPositionUs(0) : 0;
+        }
+
+        private Pair<SampleChunk, Integer> getReadFile(long positionUs) throws IOException {
+            int i = mIndexFile.floorIndex(positionUs);
+            if (i < 0) {
+                return null;
+            }
+            return Pair.create(getChunk(mIndexFile.getBasePositionUs(i)), mIndexFile.getOffset(i));
+        }
+
+        @Override
+        public SampleChunk loadNextChunk(long startPositionUs) throws IOException {
+            int i = mIndexFile.nextChunkIndex(startPositionUs);
+            return i < mIndexFile.size() ? getChunk(mIndexFile.getBasePositionUs(i)) : null;
+        }
+
+        private SampleChunk getChunk(long startPositionUs) throws IOException {
+            SampleChunk chunk = mChunks.get(startPositionUs);
+            if (chunk == null) {
+                chunk =
+                        mSampleChunkCreator.loadSampleChunkFromFile(
+                                mSamplePool,
+                                mStorageManager.getBufferDir(),
+                                getFileName(mTrackId, startPositionUs),
+                                startPositionUs,
+                                mChunkCallback,
+                                this);
+                mChunks.put(startPositionUs, chunk);
+            }
+            return chunk;
+        }
+
+        private void release() {
+            for (int i = 0; i < mChunks.size(); ++i) {
+                SampleChunk.IoState.release(mChunks.valueAt(i), !mStorageManager.isPersistent());
+            }
+            mChunks.clear();
+        }
+    }
+
     public BufferManager(StorageManager storageManager) {
         this(storageManager, new SampleChunk.SampleChunkCreator());
     }
@@ -391,11 +459,10 @@ public class BufferManager {
         if (!maybeEvictChunk()) {
             throw new IOException("Not enough storage space");
         }
-        SortedMap<Long, Pair<SampleChunk, Integer>> map = mChunkMap.get(id);
-        if (map == null) {
-            map = new TreeMap<>();
-            mChunkMap.put(id, map);
-            mStartPositionMap.put(id, positionUs);
+        ChunkIndex index = mChunkMap.get(id);
+        if (index == null) {
+            index = new ChunkIndex(positionUs);
+            mChunkMap.put(id, index);
             mPendingDelete.init(id);
         }
         if (currentChunk == null) {
@@ -403,54 +470,40 @@ public class BufferManager {
             SampleChunk sampleChunk =
                     mSampleChunkCreator.createSampleChunk(
                             samplePool, file, positionUs, mChunkCallback);
-            map.put(positionUs, Pair.create(sampleChunk, 0));
+            index.put(positionUs, sampleChunk, 0);
+            if (!mStorageManager.isPersistent()) {
+                mEvictionQueue.offer(new EvictionCandidate(id, sampleChunk));
+            }
             if (updateIndexFile) {
-                mStorageManager.updateIndexFile(id, map.size(), positionUs, sampleChunk, 0);
+                mStorageManager.updateIndexFile(id, index.size(), positionUs, sampleChunk, 0);
             }
             return sampleChunk;
         } else {
-            map.put(positionUs, Pair.create(currentChunk, currentOffset));
+            index.put(positionUs, currentChunk, currentOffset);
             if (updateIndexFile) {
                 mStorageManager.updateIndexFile(
-                        id, map.size(), positionUs, currentChunk, currentOffset);
+                        id, index.size(), positionUs, currentChunk, currentOffset);
             }
             return null;
         }
     }
 
     /**
-     * Loads a track using {@link BufferManager.StorageManager}.
+     * Loads a track using {@link BufferManager.StorageManager}. The index of the track is read from
+     * storage again if it was loaded before, since it may have grown if the recording is still in
+     * progress. {@link SampleChunk}s are created later, when a read reaches them.
      *
      * @param trackId the name of the track.
      * @param samplePool {@link SamplePool} for the fast creation of samples.
      * @throws IOException
      */
     public void loadTrackFromStorage(String trackId, SamplePool samplePool) throws IOException {
-        ArrayList<PositionHolder> keyPositions = mStorageManager.readIndexFile(trackId);
-        long startPositionUs = keyPositions.size() > 0 ? keyPositions.get(0).positionUs : 0;
-
-        SortedMap<Long, Pair<SampleChunk, Integer>> map = mChunkMap.get(trackId);
-        if (map == null) {
-            map = new TreeMap<>();
-            mChunkMap.put(trackId, map);
-            mStartPositionMap.put(trackId, startPositionUs);
-            mPendingDelete.init(trackId);
-        }
-        SampleChunk chunk = null;
-        long basePositionUs = -1;
-        for (PositionHolder position : keyPositions) {
-            if (position.basePositionUs != basePositionUs) {
-                chunk =
-                        mSampleChunkCreator.loadSampleChunkFromFile(
-                                samplePool,
-                                mStorageManager.getBufferDir(),
-                                getFileName(trackId, position.positionUs),
-                                position.positionUs,
-                                mChunkCallback,
-                                chunk);
-                basePositionUs = position.basePositionUs;
-            }
-            map.put(position.positionUs, Pair.create(chunk, position.offset));
+        IndexFile indexFile = mStorageManager.readIndexFile(trackId);
+        RecordedTrack track = mRecordedTracks.get(trackId);
+        if (track == null) {
+            mRecordedTracks.put(trackId, new RecordedTrack(trackId, samplePool, indexFile));
+        } else {
+            track.update(indexFile);
         }
     }
 
@@ -460,20 +513,22 @@ public class BufferManager {
      * @param id the name of the track.
      * @param positionUs the position.
      * @return returns the found {@link SampleChunk}.
+     * @throws IOException
      */
-    public Pair<SampleChunk, Integer> getReadFile(String id, long positionUs) {
-        SortedMap<Long, Pair<SampleChunk, Integer>> map = mChunkMap.get(id);
-        if (map == null) {
+    public Pair<SampleChunk, Integer> getReadFile(String id, long positionUs) throws IOException {
+        RecordedTrack track = mRecordedTracks.get(id);
+        if (track != null) {
+            return track.getReadFile(positionUs);
+        }
+        ChunkIndex index = mChunkMap.get(id);
+        if (index == null) {
             return null;
         }
-        Pair<SampleChunk, Integer> ret;
-        SortedMap<Long, Pair<SampleChunk, Integer>> headMap = map.headMap(positionUs + 1);
-        if (!headMap.isEmpty()) {
-            ret = headMap.get(headMap.lastKey());
-        } else {
-            ret = map.get(map.firstKey());
+        int i = index.floorIndex(positionUs);
+        if (i < 0) {
+            return null;
         }
-        return ret;
+        return Pair.create(index.getChunk(i), index.getOffset(i));
     }
 
     /**
@@ -496,8 +551,12 @@ public class BufferManager {
      * @param id the specified track
      */
     public long getStartPositionUs(String id) {
-        Long ret = mStartPositionMap.get(id);
-        return ret == null ? 0 : ret;
+        RecordedTrack track = mRecordedTracks.get(id);
+        if (track != null) {
+            return track.getStartPositionUs();
+        }
+        ChunkIndex index = mChunkMap.get(id);
+        return index == null ? 0 : index.getStartPositionUs();
     }
 
     private boolean maybeEvictChunk() {
@@ -508,28 +567,18 @@ public class BufferManager {
                 // Since chunks are persistent, we cannot evict chunks.
                 return false;
             }
-            SortedMap<Long, Pair<SampleChunk, Integer>> earliestChunkMap = null;
-            SampleChunk earliestChunk = null;
-            String earliestChunkId = null;
-            for (Map.Entry<String, SortedMap<Long, Pair<SampleChunk, Integer>>> entry :
-                    mChunkMap.entrySet()) {
-                SortedMap<Long, Pair<SampleChunk, Integer>> map = entry.getValue();
-                if (map.isEmpty()) {
-                    continue;
-                }
-                SampleChunk chunk = map.get(map.firstKey()).first;
-                if (earliestChunk == null
-                        || chunk.getCreatedTimeMs() < earliestChunk.getCreatedTimeMs()) {
-                    earliestChunkMap = map;
-                    earliestChunk = chunk;
-                    earliestChunkId = entry.getKey();
-                }
-            }
-            if (earliestChunk == null) {
+            EvictionCandidate candidate = mEvictionQueue.poll();
+            if (candidate == null) {
                 break;
             }
+            ChunkIndex index = mChunkMap.get(candidate.id);
+            if (index == null || index.isEmpty() || index.getChunk(0) != candidate.chunk) {
+                // The chunk is not in the index anymore.
+                continue;
+            }
+            SampleChunk earliestChunk = index.removeFirstChunk();
+            String earliestChunkId = candidate.id;
             mPendingDelete.add(earliestChunkId, earliestChunk);
-            earliestChunkMap.remove(earliestChunk.getStartPositionUs());
             if (DEBUG) {
                 Log.d(
                         TAG,
@@ -549,14 +598,6 @@ public class BufferManager {
             }
             pendingDelete = mPendingDelete.getSize();
         }
-        for (Map.Entry<String, SortedMap<Long, Pair<SampleChunk, Integer>>> entry :
-                mChunkMap.entrySet()) {
-            SortedMap<Long, Pair<SampleChunk, Integer>> map = entry.getValue();
-            if (map.isEmpty()) {
-                continue;
-            }
-            mStartPositionMap.put(entry.getKey(), map.firstKey());
-        }
         return true;
     }
 
@@ -591,23 +632,21 @@ public class BufferManager {
         if (!audios.isEmpty()) {
             mStorageManager.writeTrackInfoFiles(audios, true);
             for (TrackFormat trackFormat : audios) {
-                SortedMap<Long, Pair<SampleChunk, Integer>> map =
-                        mChunkMap.get(trackFormat.trackId);
-                if (map == null) {
+                ChunkIndex index = mChunkMap.get(trackFormat.trackId);
+                if (index == null) {
                     throw new IOException("Audio track index missing");
                 }
-                mStorageManager.writeIndexFile(trackFormat.trackId, map);
+                mStorageManager.writeIndexFile(trackFormat.trackId, index.toSortedMap());
             }
         }
         if (!videos.isEmpty()) {
             mStorageManager.writeTrackInfoFiles(videos, false);
             for (TrackFormat trackFormat : videos) {
-                SortedMap<Long, Pair<SampleChunk, Integer>> map =
-                        mChunkMap.get(trackFormat.trackId);
-                if (map == null) {
+                ChunkIndex index = mChunkMap.get(trackFormat.trackId);
+                if (index == null) {
                     throw new IOException("Video track index missing");
                 }
-                mStorageManager.writeIndexFile(trackFormat.trackId, map);
+                mStorageManager.writeIndexFile(trackFormat.trackId, index.toSortedMap());
             }
         }
     }
@@ -634,19 +673,28 @@ public class BufferManager {
 
     /** Releases all the resources. */
     public void release() {
+        try {
+            mStorageManager.closeIndexFiles();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close index files", e);
+        }
         try {
             mPendingDelete.release();
-            for (Map.Entry<String, SortedMap<Long, Pair<SampleChunk, Integer>>> entry :
-                    mChunkMap.entrySet()) {
+            for (ChunkIndex index : mChunkMap.values()) {
                 SampleChunk toRelease = null;
-                for (Pair<SampleChunk, Integer> positions : entry.getValue().values()) {
-                    if (toRelease != positions.first) {
-                        toRelease = positions.first;
+                for (int i = 0; i < index.size(); ++i) {
+                    if (toRelease != index.getChunk(i)) {
+                        toRelease = index.getChunk(i);
                         SampleChunk.IoState.release(toRelease, !mStorageManager.isPersistent());
                     }
                 }
             }
             mChunkMap.clear();
+            for (RecordedTrack track : mRecordedTracks.values()) {
+                track.release();
+            }
+            mRecordedTracks.clear();
+            mEvictionQueue.clear();
         } catch (ConcurrentModificationException | NullPointerException e) {
             // TODO: remove this after it it confirmed that race condition issues are resolved.
             // b/32492258, b/32373376
@@ -655,14 +703,18 @@ public class BufferManager {
         }
     }
 
+    // Called with the lock held.
     private void resetWriteStat(float writeBandwidth) {
         mWriteBandwidth = writeBandwidth;
         mTotalWriteSize = 0;
         mTotalWriteTimeNs = 0;
     }
 
-    /** Adds a disk write sample size to calculate the average disk write bandwidth. */
-    public void addWriteStat(long size, long timeNs) {
+    /**
+     * Adds a disk write size to calculate the average disk write bandwidth. Since samples are
+     * written in batches, this is called by {@link SampleChunk} whenever it writes to the file.
+     */
+    public synchronized void addWriteStat(long size, long timeNs) {
         if (size >= mMinSampleSizeForSpeedCheck) {
             mTotalWriteSize += size;
             mTotalWriteTimeNs += timeNs;
@@ -673,7 +725,7 @@ public class BufferManager {
      * Returns if the average disk write bandwidth is slower than threshold {@code
      * MINIMUM_DISK_WRITE_SPEED_MBPS}.
      */
-    public boolean isWriteSlow() {
+    public synchronized boolean isWriteSlow() {
         if (mTotalWriteSize < MINIMUM_WRITE_SIZE_FOR_SPEED_CHECK) {
             return false;
         }
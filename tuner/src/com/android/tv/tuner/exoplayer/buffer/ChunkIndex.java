@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.util.Pair;
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Index of the key sample positions of a track, which maps each position to the {@link
+ * SampleChunk} and the offset in it where the sample is stored.
+ *
+ * <p>Entries are kept sorted by position in parallel arrays. Positions are usually added in
+ * increasing order and removed from the front when chunks are evicted, so both take amortized
+ * constant time, and a lookup is a binary search.
+ */
+class ChunkIndex {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] mPositionsUs = new long[INITIAL_CAPACITY];
+    private SampleChunk[] mChunks = new SampleChunk[INITIAL_CAPACITY];
+    private int[] mOffsets = new int[INITIAL_CAPACITY];
+    // Entries are stored at [mHead, mHead + mSize) of the arrays.
+    private int mHead;
+    private int mSize;
+    private long mStartPositionUs;
+
+    ChunkIndex(long startPositionUs) {
+        mStartPositionUs = startPositionUs;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /** Returns the start position of the track, which is kept after all entries are removed. */
+    long getStartPositionUs() {
+        return mStartPositionUs;
+    }
+
+    long getPositionUs(int index) {
+        return mPositionsUs[mHead + index];
+    }
+
+    SampleChunk getChunk(int index) {
+        return mChunks[mHead + index];
+    }
+
+    int getOffset(int index) {
+        return mOffsets[mHead + index];
+    }
+
+    /** Adds an entry, or replaces the entry at the same position. */
+    void put(long positionUs, SampleChunk chunk, int offset) {
+        int index;
+        if (mSize == 0 || positionUs > mPositionsUs[mHead + mSize - 1]) {
+            index = mSize;
+        } else {
+            index = binarySearch(positionUs);
+            if (index >= 0) {
+                mChunks[mHead + index] = chunk;
+                mOffsets[mHead + index] = offset;
+                return;
+            }
+            index = -index - 1;
+        }
+        ensureCapacityForInsert();
+        int pos = mHead + index;
+        if (index < mSize) {
+            System.arraycopy(mPositionsUs, pos, mPositionsUs, pos + 1, mSize - index);
+            System.arraycopy(mChunks, pos, mChunks, pos + 1, mSize - index);
+            System.arraycopy(mOffsets, pos, mOffsets, pos + 1, mSize - index);
+        }
+        mPositionsUs[pos] = positionUs;
+        mChunks[pos] = chunk;
+        mOffsets[pos] = offset;
+        ++mSize;
+    }
+
+    /**
+     * Returns the index of the last entry whose position is not later than {@code positionUs}, or
+     * the first entry if there is no such entry. Returns {@code -1} if the index is empty.
+     */
+    int floorIndex(long positionUs) {
+        if (mSize == 0) {
+            return -1;
+        }
+        int index = binarySearch(positionUs);
+        if (index >= 0) {
+            return index;
+        }
+        return Math.max(-index - 2, 0);
+    }
+
+    /**
+     * Removes the entries of the first chunk from the front, and updates the start position.
+     *
+     * @return the removed chunk, or {@code null} if the index is empty
+     */
+    SampleChunk removeFirstChunk() {
+        if (mSize == 0) {
+            return null;
+        }
+        SampleChunk chunk = mChunks[mHead];
+        while (mSize > 0 && mChunks[mHead] == chunk) {
+            mChunks[mHead] = null;
+            ++mHead;
+            --mSize;
+        }
+        if (mSize > 0) {
+            mStartPositionUs = mPositionsUs[mHead];
+        }
+        return chunk;
+    }
+
+    /** Returns a copy of the index as a {@link SortedMap}. */
+    SortedMap<Long, Pair<SampleChunk, Integer>> toSortedMap() {
+        SortedMap<Long, Pair<SampleChunk, Integer>> map = new TreeMap<>();
+        for (int i = mHead; i < mHead + mSize; ++i) {
+            map.put(mPositionsUs[i], Pair.create(mChunks[i], mOffsets[i]));
+        }
+        return map;
+    }
+
+    // Returns the index of positionUs if found, otherwise (-(insertion point) - 1).
+    private int binarySearch(long positionUs) {
+        int index = Arrays.binarySearch(mPositionsUs, mHead, mHead + mSize, positionUs);
+        return index >= 0 ? index - mHead : index + mHead;
+    }
+
+    private void ensureCapacityForInsert() {
+        int capacity = mPositionsUs.length;
+        if (mHead + mSize < capacity) {
+            return;
+        }
+        if (mSize < capacity / 2) {
+            // Reclaims the space of the removed entries at the front.
+            System.arraycopy(mPositionsUs, mHead, mPositionsUs, 0, mSize);
+            System.arraycopy(mChunks, mHead, mChunks, 0, mSize);
+            System.arraycopy(mOffsets, mHead, mOffsets, 0, mSize);
+            Arrays.fill(mChunks, mSize, mHead + mSize, null);
+        } else {
+            long[] positionsUs = new long[capacity * 2];
+            SampleChunk[] chunks = new SampleChunk[capacity * 2];
+            int[] offsets = new int[capacity * 2];
+            System.arraycopy(mPositionsUs, mHead, positionsUs, 0, mSize);
+            System.arraycopy(mChunks, mHead, chunks, 0, mSize);
+            System.arraycopy(mOffsets, mHead, offsets, 0, mSize);
+            mPositionsUs = positionsUs;
+            mChunks = chunks;
+            mOffsets = offsets;
+        }
+        mHead = 0;
+    }
+}
@@ -17,16 +17,17 @@
 package com.android.tv.tuner.exoplayer.buffer;
 
 import android.media.MediaFormat;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Pair;
 import com.android.tv.tuner.data.Track.AtscCaptionTrack;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -45,6 +46,7 @@ public class DvrStorageManager implements BufferManager.StorageManager {
     private static final String META_FILE_TYPE_VIDEO = "video";
     private static final String META_FILE_TYPE_CAPTION = "caption";
     private static final String META_FILE_SUFFIX = ".meta";
+    // Index files of the older versions, which are migrated to IndexFile when they are read.
     private static final String IDX_FILE_SUFFIX = ".idx";
     private static final String IDX_FILE_SUFFIX_V2 = IDX_FILE_SUFFIX + "2";
 
@@ -59,6 +61,10 @@ public class DvrStorageManager implements BufferManager.StorageManager {
     // {@code true} when this is for recording, {@code false} when this is for replaying.
     private final boolean mIsRecording;
 
+    // Index files which are being appended while recording, which are kept open until the
+    // recording is finished.
+    private final Map<String, IndexFile.Appender> mIndexFileAppenders = new ArrayMap<>();
+
     public DvrStorageManager(File file, boolean isRecording) {
         mBufferDir = file;
         mBufferDir.mkdirs();
@@ -222,43 +228,57 @@ public class DvrStorageManager implements BufferManager.StorageManager {
         return tracks;
     }
 
-    private ArrayList<BufferManager.PositionHolder> readOldIndexFile(File indexFile)
-            throws IOException {
-        ArrayList<BufferManager.PositionHolder> indices = new ArrayList<>();
-        try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
-            long count = in.readLong();
-            for (long i = 0; i < count; ++i) {
+    // Reads an index file of the first version into records of IndexFile.
+    private ByteBuffer readOldIndexFile(File indexFile) throws IOException {
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            int count = (int) in.readLong();
+            ByteBuffer records = ByteBuffer.allocate(count * IndexFile.RECORD_SIZE);
+            for (int i = 0; i < count; ++i) {
                 long positionUs = in.readLong();
-                indices.add(new BufferManager.PositionHolder(positionUs, positionUs, 0));
+                IndexFile.putRecord(records, positionUs, positionUs, 0);
             }
-            return indices;
+            records.flip();
+            return records;
         }
     }
 
-    private ArrayList<BufferManager.PositionHolder> readNewIndexFile(File indexFile)
-            throws IOException {
-        ArrayList<BufferManager.PositionHolder> indices = new ArrayList<>();
-        try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
-            long count = in.readLong();
-            for (long i = 0; i < count; ++i) {
+    // Reads an index file of the second version into records of IndexFile.
+    private ByteBuffer readV2IndexFile(File indexFile) throws IOException {
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            int count = (int) in.readLong();
+            ByteBuffer records = ByteBuffer.allocate(count * IndexFile.RECORD_SIZE);
+            for (int i = 0; i < count; ++i) {
                 long positionUs = in.readLong();
                 long basePositionUs = in.readLong();
                 int offset = in.readInt();
-                indices.add(new BufferManager.PositionHolder(positionUs, basePositionUs, offset));
+                IndexFile.putRecord(records, positionUs, basePositionUs, offset);
             }
-            return indices;
+            records.flip();
+            return records;
         }
     }
 
     @Override
-    public ArrayList<BufferManager.PositionHolder> readIndexFile(String trackId)
-            throws IOException {
-        File file = new File(getBufferDir(), trackId + IDX_FILE_SUFFIX_V2);
+    public IndexFile readIndexFile(String trackId) throws IOException {
+        File file = new File(getBufferDir(), trackId + IndexFile.FILE_SUFFIX);
         if (file.exists()) {
-            return readNewIndexFile(file);
-        } else {
-            return readOldIndexFile(new File(getBufferDir(), trackId + IDX_FILE_SUFFIX));
+            return IndexFile.map(file);
+        }
+        // Migrates the index of a recording made by an older version, so that it is parsed only
+        // once.
+        File fileV2 = new File(getBufferDir(), trackId + IDX_FILE_SUFFIX_V2);
+        ByteBuffer records =
+                fileV2.exists()
+                        ? readV2IndexFile(fileV2)
+                        : readOldIndexFile(new File(getBufferDir(), trackId + IDX_FILE_SUFFIX));
+        try {
+            IndexFile.writeRecords(file, records);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to migrate index file of " + trackId, e);
         }
+        return IndexFile.wrap(records);
     }
 
     private void writeFormatInt(DataOutputStream out, MediaFormat format, String key)
@@ -378,32 +398,41 @@ public class DvrStorageManager implements BufferManager.StorageManager {
     @Override
     public void writeIndexFile(String trackName, SortedMap<Long, Pair<SampleChunk, Integer>> index)
             throws IOException {
-        File indexFile = new File(getBufferDir(), trackName + IDX_FILE_SUFFIX_V2);
-        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexFile))) {
-            out.writeLong(index.size());
-            for (Map.Entry<Long, Pair<SampleChunk, Integer>> entry : index.entrySet()) {
-                out.writeLong(entry.getKey());
-                out.writeLong(entry.getValue().first.getStartPositionUs());
-                out.writeInt(entry.getValue().second);
-            }
+        // The whole index replaces the file which was appended so far.
+        IndexFile.Appender appender = mIndexFileAppenders.remove(trackName);
+        if (appender != null) {
+            appender.close();
         }
+        IndexFile.write(new File(getBufferDir(), trackName + IndexFile.FILE_SUFFIX), index);
     }
 
     @Override
     public void updateIndexFile(
             String trackName, int size, long position, SampleChunk sampleChunk, int offset)
             throws IOException {
-        File indexFile = new File(getBufferDir(), trackName + IDX_FILE_SUFFIX_V2);
-        if (!indexFile.exists()) {
-            indexFile.createNewFile();
+        IndexFile.Appender appender = mIndexFileAppenders.get(trackName);
+        if (appender == null) {
+            appender =
+                    new IndexFile.Appender(
+                            new File(getBufferDir(), trackName + IndexFile.FILE_SUFFIX));
+            mIndexFileAppenders.put(trackName, appender);
+        }
+        appender.append(position, sampleChunk.getStartPositionUs(), offset);
+    }
+
+    @Override
+    public void closeIndexFiles() throws IOException {
+        IOException error = null;
+        for (IndexFile.Appender appender : mIndexFileAppenders.values()) {
+            try {
+                appender.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        mIndexFileAppenders.clear();
+        if (error != null) {
+            throw error;
         }
-        RandomAccessFile accessFile = new RandomAccessFile(indexFile, "rw");
-        accessFile.seek(0);
-        accessFile.writeLong(size);
-        accessFile.seek(accessFile.length());
-        accessFile.writeLong(position);
-        accessFile.writeLong(sampleChunk.getStartPositionUs());
-        accessFile.writeInt(offset);
-        accessFile.close();
     }
 }
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import android.util.Pair;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * The key sample positions of a recorded track, which are read from an index file.
+ *
+ * <p>The file consists of a header and fixed size records, one for each key sample position. Each
+ * record is position in micro seconds : long, the start position of the {@link SampleChunk} : long
+ * and the offset in the {@link SampleChunk} : int. Records are only appended while recording and
+ * the number of records is derived from the file length, so the file is mapped to memory and read
+ * in place instead of being parsed, and a partially written record at the end is ignored. Both the
+ * positions and the start positions of the {@link SampleChunk}s only increase, so a position or a
+ * chunk is found with a binary search on the mapping.
+ */
+public class IndexFile {
+    static final String FILE_SUFFIX = ".idx3";
+
+    // Header = magic : int, version : int, record size : int, reserved : int
+    private static final int MAGIC = 0x44565249; // "DVRI"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 20;
+
+    private final ByteBuffer mRecords;
+    private final int mSize;
+
+    private IndexFile(ByteBuffer records) {
+        mRecords = records;
+        mSize = records.capacity() / RECORD_SIZE;
+    }
+
+    /** Returns the number of the key sample positions. */
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the key sample position in micro seconds. */
+    public long getPositionUs(int index) {
+        return mRecords.getLong(index * RECORD_SIZE);
+    }
+
+    /** Returns the start position of the {@link SampleChunk} of the key sample. */
+    public long getBasePositionUs(int index) {
+        return mRecords.getLong(index * RECORD_SIZE + 8);
+    }
+
+    /** Returns the offset of the key sample in the {@link SampleChunk}. */
+    public int getOffset(int index) {
+        return mRecords.getInt(index * RECORD_SIZE + 16);
+    }
+
+    /**
+     * Returns the index of the last key sample position which is not later than {@code
+     * positionUs}, or the first one if there is no such position. Returns {@code -1} if the index
+     * is empty.
+     */
+    public int floorIndex(long positionUs) {
+        if (mSize == 0) {
+            return -1;
+        }
+        return Math.max(upperBound(0, positionUs) - 1, 0);
+    }
+
+    /**
+     * Returns the index of the first key sample whose {@link SampleChunk} starts later than {@code
+     * basePositionUs}, or {@link #size()} if there is no such key sample.
+     */
+    public int nextChunkIndex(long basePositionUs) {
+        return upperBound(8, basePositionUs);
+    }
+
+    // Returns the index of the first record whose long field at fieldOffset is greater than value.
+    private int upperBound(int fieldOffset, long value) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mRecords.getLong(mid * RECORD_SIZE + fieldOffset) <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Maps the index file to memory.
+     *
+     * @throws IOException if the file is not a valid index file
+     */
+    static IndexFile map(File file) throws IOException {
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            long length = accessFile.length();
+            if (length < HEADER_SIZE) {
+                // The header is not written yet.
+                return new IndexFile(ByteBuffer.allocate(0));
+            }
+            FileChannel channel = accessFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {}
+            if (header.getInt(0) != MAGIC
+                    || header.getInt(4) != VERSION
+                    || header.getInt(8) != RECORD_SIZE) {
+                throw new IOException("Invalid index file: " + file);
+            }
+            long recordsLength = (length - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+            return new IndexFile(
+                    channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, recordsLength));
+        }
+    }
+
+    /** Creates an index from records in the format of the index file, which are in memory. */
+    static IndexFile wrap(ByteBuffer records) {
+        return new IndexFile(records);
+    }
+
+    /**
+     * Appends key sample positions to an index file while recording. The file is created if needed
+     * and kept open until the appender is closed, so that appending a position is a single write.
+     */
+    static class Appender implements Closeable {
+        private final FileChannel mChannel;
+        // Holds the header or a record to write, which is not larger than a record.
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(RECORD_SIZE);
+
+        Appender(File file) throws IOException {
+            mChannel = new FileOutputStream(file, true).getChannel();
+            try {
+                if (mChannel.size() == 0) {
+                    putHeader(mBuffer);
+                    flush();
+                }
+            } catch (IOException e) {
+                mChannel.close();
+                throw e;
+            }
+        }
+
+        /** Appends a key sample position. */
+        void append(long positionUs, long basePositionUs, int offset) throws IOException {
+            putRecord(mBuffer, positionUs, basePositionUs, offset);
+            flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+
+        private void flush() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+    }
+
+    /**
+     * Writes the whole index. The file is replaced atomically, so that readers which mapped the
+     * previous file are not affected.
+     */
+    static void write(File file, SortedMap<Long, Pair<SampleChunk, Integer>> index)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + index.size() * RECORD_SIZE);
+        putHeader(buffer);
+        for (Map.Entry<Long, Pair<SampleChunk, Integer>> entry : index.entrySet()) {
+            putRecord(
+                    buffer,
+                    entry.getKey(),
+                    entry.getValue().first.getStartPositionUs(),
+                    entry.getValue().second);
+        }
+        buffer.flip();
+        write(file, buffer);
+    }
+
+    /**
+     * Writes the records, which should be in the format of {@link #wrap}, to the file. The file is
+     * replaced atomically.
+     */
+    static void writeRecords(File file, ByteBuffer records) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + records.remaining());
+        putHeader(buffer);
+        buffer.put(records.duplicate());
+        buffer.flip();
+        write(file, buffer);
+    }
+
+    /** Puts a record in the format of the index file. */
+    static void putRecord(ByteBuffer buffer, long positionUs, long basePositionUs, int offset) {
+        buffer.putLong(positionUs);
+        buffer.putLong(basePositionUs);
+        buffer.putInt(offset);
+    }
+
+    private static void putHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(RECORD_SIZE);
+        buffer.putInt(0);
+    }
+
+    private static void write(File file, ByteBuffer buffer) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to write index file: " + file);
+        }
+    }
+}
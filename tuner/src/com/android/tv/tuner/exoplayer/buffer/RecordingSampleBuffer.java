@@ -195,7 +195,8 @@ public class RecordingSampleBuffer
         if (mBufferReason == BUFFER_REASON_RECORDED_PLAYBACK) {
             return false;
         }
-        mBufferManager.addWriteStat(sampleSize, writeDurationNs);
+        // The write stat is added by SampleChunk when the batched samples are actually written,
+        // since writeDurationNs of a single sample does not include the time for the disk write.
         return mBufferManager.isWriteSlow();
     }
 
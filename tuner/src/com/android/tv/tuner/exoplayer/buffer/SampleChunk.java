@@ -16,6 +16,7 @@
 
 package com.android.tv.tuner.exoplayer.buffer;
 
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
@@ -23,12 +24,23 @@ import com.google.android.exoplayer.SampleHolder;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
 /**
  * {@link SampleChunk} stores samples into file and makes them available for read. Stored file = {
  * Header, Sample } * N Header = sample size : int, sample flag : int, sample PTS in micro second :
  * long
+ *
+ * <p>Samples are read from a memory mapping of the file, which is created once for a chunk whose
+ * write is finished. While the chunk is still being written, the mapping covers the samples flushed
+ * so far and is extended only when a read goes past it, so it is remapped at most once per flush.
+ *
+ * <p>Samples are written to a direct buffer first, and many of them are written to the file at
+ * once when the buffer is full, when some time passed since the last flush, or when the write to
+ * the chunk is finished. A reader which reaches the samples not flushed yet reads them from the
+ * buffer, so reading at the live edge doesn't cause extra flushes.
  */
 public class SampleChunk {
     private static final String TAG = "SampleChunk";
@@ -37,10 +49,15 @@ public class SampleChunk {
     private final long mCreatedTimeMs;
     private final long mStartPositionUs;
     private SampleChunk mNextChunk;
+    // Loads the next chunk of a recorded track instead of mNextChunk, which is null then.
+    @Nullable private final NextChunkLoader mNextChunkLoader;
 
     // Header = sample size : int, sample flag : int, sample PTS in micro second : long
     private static final int SAMPLE_HEADER_LENGTH = 16;
 
+    @VisibleForTesting static final int WRITE_BUFFER_SIZE = 512 * 1024;
+    private static final long WRITE_FLUSH_INTERVAL_MS = 500;
+
     private final File mFile;
     private final ChunkCallback mChunkCallback;
     private final SamplePool mSamplePool;
@@ -49,6 +66,15 @@ public class SampleChunk {
     private boolean mWriteFinished;
     private boolean mIsReading;
     private boolean mIsWriting;
+    // The mapping for reads, which covers [mReadMapOffset, mReadMapOffset + mReadMap.capacity()).
+    private MappedByteBuffer mReadMap;
+    private long mReadMapOffset;
+    private int mMapCount;
+    // Holds the samples which are not flushed to the file yet. Borrowed from the IoState for write
+    // while this chunk is being written. mWriteOffset is the end of the flushed data.
+    private ByteBuffer mWriteBuffer;
+    private final ByteBuffer[] mGatheringBuffers = new ByteBuffer[2];
+    private long mLastFlushTimeMs;
 
     /** A callback for chunks being committed to permanent storage. */
     public abstract static class ChunkCallback {
@@ -66,6 +92,31 @@ public class SampleChunk {
          * @param chunk SampleChunk which is deleted from storage
          */
         public void onChunkDelete(SampleChunk chunk) {}
+
+        /**
+         * Notifies when buffered samples are written to the file.
+         *
+         * @param chunk SampleChunk which is written
+         * @param size the number of bytes written
+         * @param timeNs the time spent for writing
+         */
+        public void onChunkFlush(SampleChunk chunk, long size, long timeNs) {}
+    }
+
+    /**
+     * Loads the chunk which follows a chunk of a recorded track. The chunks of a recorded track are
+     * created when a read first reaches them.
+     */
+    interface NextChunkLoader {
+
+        /**
+         * Returns the chunk which follows the chunk starting at {@code startPositionUs}, or {@code
+         * null} if there is none yet.
+         *
+         * @throws IOException
+         */
+        @Nullable
+        SampleChunk loadNextChunk(long startPositionUs) throws IOException;
     }
 
     /** A class for SampleChunk creation. */
@@ -98,7 +149,7 @@ public class SampleChunk {
          * @param filename the filename which will be read afterwards
          * @param startPositionUs the start position of the earliest sample in the file
          * @param chunkCallback for total storage usage change notification
-         * @param prev the previous SampleChunk just before the newly created SampleChunk
+         * @param nextChunkLoader loads the SampleChunk just after the newly created SampleChunk
          * @throws IOException
          */
         SampleChunk loadSampleChunkFromFile(
@@ -107,14 +158,11 @@ public class SampleChunk {
                 String filename,
                 long startPositionUs,
                 ChunkCallback chunkCallback,
-                SampleChunk prev)
+                NextChunkLoader nextChunkLoader)
                 throws IOException {
             File file = new File(bufferDir, filename);
-            SampleChunk chunk = new SampleChunk(samplePool, file, startPositionUs, chunkCallback);
-            if (prev != null) {
-                prev.mNextChunk = chunk;
-            }
-            return chunk;
+            return new SampleChunk(
+                    samplePool, file, startPositionUs, chunkCallback, nextChunkLoader);
         }
     }
 
@@ -126,6 +174,8 @@ public class SampleChunk {
     public static class IoState {
         private SampleChunk mChunk;
         private long mCurrentOffset;
+        // Reused by all the chunks written with this state.
+        private ByteBuffer mWriteBuffer;
 
         private boolean equals(SampleChunk chunk, long offset) {
             return chunk == mChunk && mCurrentOffset == offset;
@@ -175,7 +225,7 @@ public class SampleChunk {
             if (mChunk != null) {
                 mChunk.closeWrite(chunk);
             }
-            chunk.openWrite();
+            chunk.openWrite(getWriteBuffer());
             reset(chunk);
         }
 
@@ -187,7 +237,7 @@ public class SampleChunk {
          */
         SampleHolder read() throws IOException {
             if (mChunk != null && mChunk.isReadFinished(this)) {
-                SampleChunk next = mChunk.mNextChunk;
+                SampleChunk next = mChunk.getNextChunk();
                 mChunk.closeRead();
                 if (next != null) {
                     next.openRead();
@@ -225,9 +275,15 @@ public class SampleChunk {
                 }
                 mChunk.closeWrite(nextChunk);
                 mChunk.mChunkCallback.onChunkWrite(mChunk);
-                nextChunk.openWrite();
+                nextChunk.openWrite(getWriteBuffer());
                 reset(nextChunk);
             }
+            // The index entry of a key frame is added at getOffset() right before the frame is
+            // written, so it may point at a sample which stays in the write buffer for a while.
+            // That is safe, since the readers of this chunk read the samples past the flushed data
+            // from the write buffer, and the buffer is flushed before the chunk is finished. Only
+            // an index file read while recording may be ahead of the file by the unflushed
+            // samples, and a read there finds the end of the chunk instead.
             mChunk.write(sample, this);
         }
 
@@ -242,6 +298,13 @@ public class SampleChunk {
             }
         }
 
+        private ByteBuffer getWriteBuffer() {
+            if (mWriteBuffer == null) {
+                mWriteBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            }
+            return mWriteBuffer;
+        }
+
         /** Returns the current SampleChunk for subsequent I/O operation. */
         SampleChunk getChunk() {
             return mChunk;
@@ -276,20 +339,34 @@ public class SampleChunk {
         mSamplePool = samplePool;
         mFile = file;
         mChunkCallback = chunkCallback;
+        mNextChunkLoader = null;
     }
 
     // Constructor of SampleChunk which is backed by the given existing file.
     private SampleChunk(
-            SamplePool samplePool, File file, long startPositionUs, ChunkCallback chunkCallback)
+            SamplePool samplePool,
+            File file,
+            long startPositionUs,
+            ChunkCallback chunkCallback,
+            NextChunkLoader nextChunkLoader)
             throws IOException {
         mStartPositionUs = startPositionUs;
         mCreatedTimeMs = mStartPositionUs / 1000;
         mSamplePool = samplePool;
         mFile = file;
         mChunkCallback = chunkCallback;
+        mNextChunkLoader = nextChunkLoader;
         mWriteFinished = true;
     }
 
+    // Returns the chunk to read after this one, which may not exist yet.
+    @Nullable
+    private SampleChunk getNextChunk() throws IOException {
+        return mNextChunkLoader != null
+                ? mNextChunkLoader.loadNextChunk(mStartPositionUs)
+                : mNextChunk;
+    }
+
     private void openRead() throws IOException {
         if (!mIsReading) {
             if (mAccessFile == null) {
@@ -304,7 +381,7 @@ public class SampleChunk {
         }
     }
 
-    private void openWrite() throws IOException {
+    private void openWrite(ByteBuffer writeBuffer) throws IOException {
         if (mWriteFinished) {
             throw new IllegalStateException("Opened for write though write is already finished");
         }
@@ -314,6 +391,9 @@ public class SampleChunk {
                         "Write is requested for " + "an already opened SampleChunk");
             }
             mAccessFile = new RandomAccessFile(mFile, "rw");
+            mWriteBuffer = writeBuffer;
+            mWriteBuffer.clear();
+            mLastFlushTimeMs = SystemClock.elapsedRealtime();
             mIsWriting = true;
         }
     }
@@ -333,12 +413,15 @@ public class SampleChunk {
     private void closeRead() throws IOException {
         if (mIsReading) {
             mIsReading = false;
+            mReadMap = null;
             CloseAccessFileIfNeeded();
         }
     }
 
     private void closeWrite(SampleChunk nextChunk) throws IOException {
         if (mIsWriting) {
+            flushWrite(null);
+            mWriteBuffer = null;
             mNextChunk = nextChunk;
             mIsWriting = false;
             mWriteFinished = true;
@@ -355,54 +438,146 @@ public class SampleChunk {
             throw new IllegalStateException("Requested read for wrong SampleChunk");
         }
         long offset = state.mCurrentOffset;
+        long writtenOffset = mWriteOffset + (mWriteBuffer == null ? 0 : mWriteBuffer.position());
+        if (offset >= mWriteOffset && offset < writtenOffset) {
+            // The reader caught up with the writer. Reads the sample which is not flushed yet.
+            int end = mWriteBuffer.position();
+            SampleHolder sample = readSample(mWriteBuffer, (int) (offset - mWriteOffset));
+            mWriteBuffer.limit(mWriteBuffer.capacity());
+            mWriteBuffer.position(end);
+            state.mCurrentOffset = offset + sample.size + SAMPLE_HEADER_LENGTH;
+            return sample;
+        }
         if (offset >= mWriteOffset) {
             if (mWriteFinished) {
                 throw new IllegalStateException("Requested read for wrong range");
             } else {
-                if (offset != mWriteOffset) {
+                if (offset != writtenOffset) {
                     Log.e(TAG, "This should not happen!");
                 }
                 return null;
             }
         }
-        mAccessFile.seek(offset);
-        int size = mAccessFile.readInt();
+        ensureMapped(offset, SAMPLE_HEADER_LENGTH);
+        int pos = (int) (offset - mReadMapOffset);
+        int size = mReadMap.getInt(pos);
+        ensureMapped(offset, SAMPLE_HEADER_LENGTH + size);
+        SampleHolder sample = readSample(mReadMap, (int) (offset - mReadMapOffset));
+        mReadMap.clear();
+        state.mCurrentOffset = offset + sample.size + SAMPLE_HEADER_LENGTH;
+        return sample;
+    }
+
+    // Reads the sample at pos of the source. The position and the limit of the source are changed.
+    private SampleHolder readSample(ByteBuffer source, int pos) {
+        int size = source.getInt(pos);
         SampleHolder sample = mSamplePool.acquireSample(size);
         sample.size = size;
-        sample.flags = mAccessFile.readInt();
-        sample.timeUs = mAccessFile.readLong();
+        sample.flags = source.getInt(pos + 4);
+        sample.timeUs = source.getLong(pos + 8);
         sample.clearData();
-        sample.data.put(
+        source.limit(pos + SAMPLE_HEADER_LENGTH + size);
+        source.position(pos + SAMPLE_HEADER_LENGTH);
+        sample.data.put(source);
+        return sample;
+    }
+
+    // Makes sure that [offset, offset + length) is in mReadMap. A chunk whose write is finished is
+    // mapped as a whole. Otherwise everything flushed from offset so far is mapped, since the file
+    // can not be mapped beyond its current length.
+    private void ensureMapped(long offset, int length) throws IOException {
+        if (mReadMap != null
+                && offset >= mReadMapOffset
+                && offset + length <= mReadMapOffset + mReadMap.capacity()) {
+            return;
+        }
+        if (offset + length > mWriteOffset) {
+            throw new IOException("Sample at " + offset + " exceeds the written data");
+        }
+        long mapOffset = mWriteFinished ? 0 : offset;
+        mReadMap =
                 mAccessFile
                         .getChannel()
-                        .map(
-                                FileChannel.MapMode.READ_ONLY,
-                                offset + SAMPLE_HEADER_LENGTH,
-                                sample.size));
-        offset += sample.size + SAMPLE_HEADER_LENGTH;
-        state.mCurrentOffset = offset;
-        return sample;
+                        .map(FileChannel.MapMode.READ_ONLY, mapOffset, mWriteOffset - mapOffset);
+        mReadMapOffset = mapOffset;
+        mMapCount++;
+    }
+
+    /** Returns how many times the file was mapped for reads. */
+    @VisibleForTesting
+    int getMapCount() {
+        return mMapCount;
     }
 
     @VisibleForTesting
     protected void write(SampleHolder sample, IoState state) throws IOException {
-        if (mAccessFile == null || mNextChunk != null || !state.equals(this, mWriteOffset)) {
+        if (mAccessFile == null
+                || mWriteBuffer == null
+                || mNextChunk != null
+                || !state.equals(this, mWriteOffset + mWriteBuffer.position())) {
             throw new IllegalStateException("Requested write for wrong SampleChunk");
         }
 
-        mAccessFile.seek(mWriteOffset);
-        mAccessFile.writeInt(sample.size);
-        mAccessFile.writeInt(sample.flags);
-        mAccessFile.writeLong(sample.timeUs);
         sample.data.position(0).limit(sample.size);
-        mAccessFile.getChannel().position(mWriteOffset + SAMPLE_HEADER_LENGTH).write(sample.data);
-        mWriteOffset += sample.size + SAMPLE_HEADER_LENGTH;
-        state.mCurrentOffset = mWriteOffset;
+        if (SAMPLE_HEADER_LENGTH + sample.size > mWriteBuffer.remaining()) {
+            flushWrite(null);
+        }
+        mWriteBuffer.putInt(sample.size);
+        mWriteBuffer.putInt(sample.flags);
+        mWriteBuffer.putLong(sample.timeUs);
+        if (sample.size <= mWriteBuffer.remaining()) {
+            mWriteBuffer.put(sample.data);
+            state.mCurrentOffset = mWriteOffset + mWriteBuffer.position();
+            if (SystemClock.elapsedRealtime() - mLastFlushTimeMs >= WRITE_FLUSH_INTERVAL_MS) {
+                flushWrite(null);
+            }
+        } else {
+            // Too large to be buffered. Writes the header and the sample together.
+            flushWrite(sample.data);
+            state.mCurrentOffset = mWriteOffset;
+        }
+    }
+
+    // Writes the buffered samples followed by extraData, if any, with a gathering write.
+    private void flushWrite(@Nullable ByteBuffer extraData) throws IOException {
+        if (mWriteBuffer == null || (mWriteBuffer.position() == 0 && extraData == null)) {
+            return;
+        }
+        long startTimeNs = SystemClock.elapsedRealtimeNanos();
+        mWriteBuffer.flip();
+        long size = mWriteBuffer.remaining();
+        FileChannel channel = mAccessFile.getChannel().position(mWriteOffset);
+        if (extraData == null) {
+            while (mWriteBuffer.hasRemaining()) {
+                channel.write(mWriteBuffer);
+            }
+        } else {
+            size += extraData.remaining();
+            mGatheringBuffers[0] = mWriteBuffer;
+            mGatheringBuffers[1] = extraData;
+            while (extraData.hasRemaining()) {
+                channel.write(mGatheringBuffers);
+            }
+            mGatheringBuffers[0] = mGatheringBuffers[1] = null;
+        }
+        mWriteBuffer.clear();
+        mWriteOffset += size;
+        mLastFlushTimeMs = SystemClock.elapsedRealtime();
+        mChunkCallback.onChunkFlush(this, size, SystemClock.elapsedRealtimeNanos() - startTimeNs);
     }
 
     private void release(boolean delete) {
+        if (mIsWriting && !delete) {
+            try {
+                flushWrite(null);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write buffered samples.", e);
+            }
+        }
+        mWriteBuffer = null;
         mWriteFinished = true;
         mIsReading = mIsWriting = false;
+        mReadMap = null;
         try {
             if (mAccessFile != null) {
                 mAccessFile.close();
@@ -21,6 +21,7 @@ import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.support.annotation.VisibleForTesting;
 import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
@@ -41,6 +42,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles all {@link SampleChunk} I/O operations. An I/O dedicated thread handles all I/O
@@ -51,6 +53,11 @@ public class SampleChunkIoHelper implements Handler.Callback {
 
     private static final int MAX_READ_BUFFER_SAMPLES = 3;
     private static final int READ_RESCHEDULING_DELAY_MS = 10;
+    // Video key frames closer than this to the previous indexed one are not indexed, so that
+    // streams with very frequent key frames don't bloat the index. A seek may start reading from
+    // a key frame up to this much earlier than the closest one.
+    @VisibleForTesting
+    static final long MIN_KEY_FRAME_INDEX_INTERVAL_US = TimeUnit.MILLISECONDS.toMicros(100);
 
     private static final int MSG_OPEN_READ = 1;
     private static final int MSG_OPEN_WRITE = 2;
@@ -74,7 +81,10 @@ public class SampleChunkIoHelper implements Handler.Callback {
     private Handler mIoHandler;
     private final ConcurrentLinkedQueue<SampleHolder> mReadSampleBuffers[];
     private final ConcurrentLinkedQueue<SampleHolder> mHandlerReadSampleBuffers[];
+    // Key frames of a track are indexed from this position.
     private final long[] mWriteIndexEndPositionUs;
+    // Whether key frames of a track are indexed at their own positions, which is true for video.
+    private final boolean[] mIndexEveryKeyFrame;
     private final long[] mWriteChunkEndPositionUs;
     private final SampleChunk.IoState[] mReadIoStates;
     private final SampleChunk.IoState[] mWriteIoStates;
@@ -164,6 +174,7 @@ public class SampleChunkIoHelper implements Handler.Callback {
         mReadSampleBuffers = new ConcurrentLinkedQueue[mTrackCount];
         mHandlerReadSampleBuffers = new ConcurrentLinkedQueue[mTrackCount];
         mWriteIndexEndPositionUs = new long[mTrackCount];
+        mIndexEveryKeyFrame = new boolean[mTrackCount];
         mWriteChunkEndPositionUs = new long[mTrackCount];
         mReadChunkOffset = new long[mTrackCount];
         mReadChunkPositionUs = new long[mTrackCount];
@@ -177,7 +188,13 @@ public class SampleChunkIoHelper implements Handler.Callback {
                         ? RecordingSampleBuffer.MIN_SEEK_DURATION_US
                         : RecordingSampleBuffer.RECORDING_CHUNK_DURATION_US;
         for (int i = 0; i < mTrackCount; ++i) {
-            mWriteIndexEndPositionUs[i] = RecordingSampleBuffer.MIN_SEEK_DURATION_US;
+            // Video key frames are indexed at their own positions, at most one per
+            // MIN_KEY_FRAME_INDEX_INTERVAL_US, so that a seek or a trickplay step starts reading
+            // close to the position. Every sample of the other tracks is a key frame, so they are
+            // indexed once per MIN_SEEK_DURATION_US.
+            mIndexEveryKeyFrame[i] = MimeTypes.isVideo(mediaFormats.get(i).mimeType);
+            mWriteIndexEndPositionUs[i] =
+                    mIndexEveryKeyFrame[i] ? 0 : RecordingSampleBuffer.MIN_SEEK_DURATION_US;
             mWriteChunkEndPositionUs[i] = mSampleChunkDurationUs;
             mReadIoStates[i] = new SampleChunk.IoState();
             mWriteIoStates[i] = new SampleChunk.IoState();
@@ -521,17 +538,27 @@ public class SampleChunkIoHelper implements Handler.Callback {
                                             || MimeTypes.isAudio(
                                                     mMediaFormats.get(index).mimeType));
 
+                    long indexPositionUs;
+                    long nextIndexPositionUs;
+                    if (mIndexEveryKeyFrame[index]) {
+                        indexPositionUs = sample.timeUs;
+                        // Positions in the index only increase, even if timestamps go backwards.
+                        nextIndexPositionUs = sample.timeUs + MIN_KEY_FRAME_INDEX_INTERVAL_US;
+                    } else {
+                        indexPositionUs = mWriteIndexEndPositionUs[index];
+                        nextIndexPositionUs =
+                                ((sample.timeUs / RecordingSampleBuffer.MIN_SEEK_DURATION_US) + 1)
+                                        * RecordingSampleBuffer.MIN_SEEK_DURATION_US;
+                    }
                     nextChunk =
                             mBufferManager.createNewWriteFileIfNeeded(
                                     mIds.get(index),
-                                    mWriteIndexEndPositionUs[index],
+                                    indexPositionUs,
                                     mSamplePool,
                                     currentChunk,
                                     currentOffset,
                                     updateIndexFile);
-                    mWriteIndexEndPositionUs[index] =
-                            ((sample.timeUs / RecordingSampleBuffer.MIN_SEEK_DURATION_US) + 1)
-                                    * RecordingSampleBuffer.MIN_SEEK_DURATION_US;
+                    mWriteIndexEndPositionUs[index] = nextIndexPositionUs;
                     if (nextChunk != null) {
                         mWriteChunkEndPositionUs[index] =
                                 ((sample.timeUs / mSampleChunkDurationUs) + 1)
@@ -16,52 +16,156 @@
 
 package com.android.tv.tuner.exoplayer.buffer;
 
+import android.support.annotation.VisibleForTesting;
 import com.google.android.exoplayer.SampleHolder;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** Pool of samples to recycle ByteBuffers as much as possible. */
+/**
+ * Pool of samples to recycle ByteBuffers as much as possible.
+ *
+ * <p>Samples are kept in buckets of size classes, so acquiring and releasing a sample takes
+ * constant time. Each power of two is split into four classes, so a new buffer, which is allocated
+ * with the size of its class, is less than a quarter larger than the requested size. It can be
+ * reused for any sample of the class afterwards.
+ *
+ * <p>Each bucket has its own lock. The samples of a track mostly fall in a few classes of their
+ * own, so the threads which handle different tracks at once, such as the audio and the video, don't
+ * wait for each other.
+ */
 public class SamplePool {
-    private final LinkedList<SampleHolder> mSamplePool = new LinkedList<>();
+    // The smallest class is 1KB and the largest one is 16MB. Larger samples are not pooled.
+    private static final int MIN_SIZE_SHIFT = 10;
+    private static final int MAX_SIZE_SHIFT = 24;
+    // Each power of two has 1 << SUB_CLASS_BITS classes.
+    private static final int SUB_CLASS_BITS = 2;
+    private static final int MAX_SIZE_CLASS = (MAX_SIZE_SHIFT - MIN_SIZE_SHIFT) << SUB_CLASS_BITS;
+    // The total capacity of the pooled samples. Released samples over this are left to the GC.
+    @VisibleForTesting static final long MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+    private final ArrayDeque<SampleHolder>[] mBuckets;
+    private final AtomicLong mPooledBytes = new AtomicLong();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mResizeCount = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public SamplePool() {
+        mBuckets = new ArrayDeque[MAX_SIZE_CLASS + 1];
+        for (int i = 0; i < mBuckets.length; ++i) {
+            mBuckets[i] = new ArrayDeque<>();
+        }
+    }
 
     /**
      * Acquires a sample with a buffer larger than size from the pool. Allocate new one or resize an
      * existing buffer if necessary.
      */
-    public synchronized SampleHolder acquireSample(int size) {
-        if (mSamplePool.isEmpty()) {
-            SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
-            sample.ensureSpaceForWrite(size);
-            return sample;
+    public SampleHolder acquireSample(int size) {
+        int sizeClass = getSizeClassForAcquire(size);
+        if (sizeClass > MAX_SIZE_CLASS) {
+            mMissCount.incrementAndGet();
+            return createSample(size);
         }
-        SampleHolder smallestSufficientSample = null;
-        SampleHolder maxSample = mSamplePool.getFirst();
-        for (SampleHolder sample : mSamplePool) {
-            // Grab the smallest sufficient sample.
-            if (sample.data.capacity() >= size
-                    && (smallestSufficientSample == null
-                            || smallestSufficientSample.data.capacity() > sample.data.capacity())) {
-                smallestSufficientSample = sample;
-            }
-
-            // Grab the max size sample.
-            if (maxSample.data.capacity() < sample.data.capacity()) {
-                maxSample = sample;
+        // A sample of the next class is also fine, which wastes less than half of the size. Larger
+        // ones would waste too much memory.
+        for (int i = sizeClass; i <= Math.min(sizeClass + 1, MAX_SIZE_CLASS); ++i) {
+            SampleHolder sample = pollBucket(i);
+            if (sample != null) {
+                mHitCount.incrementAndGet();
+                return sample;
             }
         }
-        SampleHolder sampleFromPool = smallestSufficientSample;
-
-        // If there's no sufficient sample, grab the maximum sample and resize it to size.
-        if (sampleFromPool == null) {
-            sampleFromPool = maxSample;
-            sampleFromPool.ensureSpaceForWrite(size);
+        // Grows a sample of the previous class rather than keeping it unused.
+        SampleHolder sample = sizeClass > 0 ? pollBucket(sizeClass - 1) : null;
+        if (sample != null) {
+            mResizeCount.incrementAndGet();
+            sample.ensureSpaceForWrite(getClassSize(sizeClass));
+            return sample;
         }
-        mSamplePool.remove(sampleFromPool);
-        return sampleFromPool;
+        mMissCount.incrementAndGet();
+        return createSample(getClassSize(sizeClass));
     }
 
     /** Releases the sample back to the pool. */
-    public synchronized void releaseSample(SampleHolder sample) {
+    public void releaseSample(SampleHolder sample) {
         sample.clearData();
-        mSamplePool.offerLast(sample);
+        if (sample.data == null) {
+            return;
+        }
+        int capacity = sample.data.capacity();
+        int sizeClass = getSizeClassForRelease(capacity);
+        if (sizeClass < 0 || sizeClass > MAX_SIZE_CLASS) {
+            return;
+        }
+        if (mPooledBytes.addAndGet(capacity) > MAX_POOLED_BYTES) {
+            mPooledBytes.addAndGet(-capacity);
+            return;
+        }
+        ArrayDeque<SampleHolder> bucket = mBuckets[sizeClass];
+        synchronized (bucket) {
+            bucket.offerLast(sample);
+        }
+    }
+
+    /** Returns the number of acquired samples which were reused as they were. */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /** Returns the number of acquired samples which were allocated newly. */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /** Returns the number of acquired samples whose buffer was reallocated to a larger one. */
+    public long getResizeCount() {
+        return mResizeCount.get();
+    }
+
+    private SampleHolder pollBucket(int sizeClass) {
+        ArrayDeque<SampleHolder> bucket = mBuckets[sizeClass];
+        SampleHolder sample;
+        synchronized (bucket) {
+            sample = bucket.pollLast();
+        }
+        if (sample != null) {
+            mPooledBytes.addAndGet(-sample.data.capacity());
+        }
+        return sample;
+    }
+
+    private static SampleHolder createSample(int size) {
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        sample.ensureSpaceForWrite(size);
+        return sample;
+    }
+
+    // Returns the size of the samples which are allocated for the class.
+    private static int getClassSize(int sizeClass) {
+        int shift = MIN_SIZE_SHIFT + (sizeClass >> SUB_CLASS_BITS);
+        int subClass = sizeClass & ((1 << SUB_CLASS_BITS) - 1);
+        return (1 << shift) + (subClass << (shift - SUB_CLASS_BITS));
+    }
+
+    // Returns the smallest class whose samples can hold size bytes.
+    private static int getSizeClassForAcquire(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT) {
+            return 0;
+        }
+        // The class of size - 1 in the power of two below, plus one.
+        int shift = 31 - Integer.numberOfLeadingZeros(size - 1);
+        int subClass = (size - 1 - (1 << shift)) >> (shift - SUB_CLASS_BITS);
+        return ((shift - MIN_SIZE_SHIFT) << SUB_CLASS_BITS) + subClass + 1;
+    }
+
+    // Returns the largest class which a sample of the capacity can serve, or -1 if there is none.
+    private static int getSizeClassForRelease(int capacity) {
+        if (capacity < 1 << MIN_SIZE_SHIFT) {
+            return -1;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(capacity);
+        int subClass = (capacity - (1 << shift)) >> (shift - SUB_CLASS_BITS);
+        return ((shift - MIN_SIZE_SHIFT) << SUB_CLASS_BITS) + subClass;
     }
 }
@@ -23,7 +23,6 @@ import android.support.annotation.NonNull;
 import android.util.Pair;
 import com.android.tv.common.SoftPreconditions;
 import java.io.File;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.SortedMap;
 
@@ -132,7 +131,7 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
     }
 
     @Override
-    public ArrayList<BufferManager.PositionHolder> readIndexFile(String trackId) {
+    public IndexFile readIndexFile(String trackId) {
         return null;
     }
 
@@ -146,4 +145,7 @@ public class TrickplayStorageManager implements BufferManager.StorageManager {
     @Override
     public void updateIndexFile(
             String trackName, int size, long position, SampleChunk sampleChunk, int offset) {}
+
+    @Override
+    public void closeIndexFiles() {}
 }
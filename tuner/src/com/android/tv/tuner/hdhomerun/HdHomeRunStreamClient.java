@@ -0,0 +1,576 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.hdhomerun;
+
+import android.util.Log;
+import com.android.tv.common.concurrent.NamedThreadFactory;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HTTP/1.1 client which streams MPEG-TS from an HDHomeRun device over a non-blocking {@link
+ * SocketChannel}.
+ *
+ * <p>The stream is received into a direct buffer and handed out in whole TS packets, so that the
+ * readers of the stream stay aligned to the packets. When the connection is lost, the client
+ * reconnects in the background with an exponential backoff and finds the packets of the new
+ * connection again by their sync bytes. {@link #read} never waits for a connection, and waits for
+ * data only for a short time.
+ *
+ * <p>{@link #read} should be called from a single thread. The other methods can be called from
+ * any thread.
+ */
+class HdHomeRunStreamClient {
+    private static final String TAG = "HdHomeRunStreamClient";
+    private static final boolean DEBUG = false;
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final byte TS_SYNC_BYTE = 0x47;
+    // The number of packets in a row whose sync bytes are checked to find the packets.
+    private static final int RESYNC_PACKET_COUNT = 3;
+    private static final int RECEIVE_BUFFER_SIZE = TS_PACKET_SIZE * 1024; // ~188KB
+    private static final int MAX_RESPONSE_HEADER_SIZE = 8 * 1024;
+    private static final int READ_WAIT_MS = 50;
+
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+    private final long mInitialBackoffMs;
+    private final long mMaxBackoffMs;
+
+    private final Object mLock = new Object();
+    // The following fields are guarded by mLock.
+    private InetSocketAddress mAddress;
+    private String mPath;
+    // Increased whenever the stream is started or stopped, to discard stale reconnections.
+    private int mGeneration;
+    private Connection mConnection;
+    private int mReconnectAttempt;
+    private ScheduledExecutorService mExecutor;
+
+    // The following fields are used only by the reading thread.
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private int mReadGeneration;
+    private Connection mReadConnection;
+    // The number of bytes of the packet at the front of the receive buffer, which are left after
+    // handing out only a part of it.
+    private int mPacketRemaining;
+    private boolean mSynced;
+    private long mLastReceiveNs;
+
+    // The stats are written only by the reading thread.
+    private volatile long mStartNs;
+    private volatile long mBytesReceived;
+    private volatile long mDroppedBytes;
+    private volatile int mReconnectCount;
+    private volatile long mLastIntervalNs = -1;
+    private volatile long mJitterNs;
+    private volatile long mMaxIntervalNs;
+
+    HdHomeRunStreamClient(int connectTimeoutMs, int readTimeoutMs) {
+        this(connectTimeoutMs, readTimeoutMs, 100, 5000);
+    }
+
+    /**
+     * @param initialBackoffMs the delay before the first reconnection, which is doubled for each
+     *     failure
+     * @param maxBackoffMs the maximum delay before a reconnection
+     */
+    HdHomeRunStreamClient(
+            int connectTimeoutMs, int readTimeoutMs, long initialBackoffMs, long maxBackoffMs) {
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+        mInitialBackoffMs = initialBackoffMs;
+        mMaxBackoffMs = maxBackoffMs;
+    }
+
+    /**
+     * Stops the current stream and connects to a new one. The first connection is made on the
+     * calling thread.
+     *
+     * @return {@code false} if the connection failed
+     */
+    boolean start(InetSocketAddress address, String path) {
+        int generation;
+        synchronized (mLock) {
+            stopLocked();
+            generation = mGeneration;
+            mAddress = address;
+            mPath = path;
+        }
+        Connection connection;
+        try {
+            connection = open(address, path);
+        } catch (IOException e) {
+            Log.e(TAG, "Connection failed: " + address + path, e);
+            return false;
+        }
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                connection.close();
+                return false;
+            }
+            mConnection = connection;
+        }
+        if (DEBUG) Log.d(TAG, "Streaming from " + address + path);
+        return true;
+    }
+
+    /** Stops the stream and the pending reconnection. */
+    void stop() {
+        synchronized (mLock) {
+            stopLocked();
+        }
+    }
+
+    private void stopLocked() {
+        ++mGeneration;
+        if (mConnection != null) {
+            mConnection.close();
+            mConnection = null;
+        }
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        mReconnectAttempt = 0;
+    }
+
+    /**
+     * Reads whole TS packets into {@code buffer} from its position up to its limit, and advances
+     * the position by the number of bytes read. A packet can be split over two reads when the
+     * buffer does not have room for it.
+     *
+     * @return the number of bytes read, which could be 0 if no data was received in a short time
+     *     or the client is reconnecting
+     */
+    int read(ByteBuffer buffer) {
+        Connection connection;
+        synchronized (mLock) {
+            if (mReadGeneration != mGeneration) {
+                mReadGeneration = mGeneration;
+                resetReceiveBuffer();
+            }
+            connection = mConnection;
+        }
+        if (connection != null && connection != mReadConnection) {
+            takeOver(connection);
+        }
+        int bytesRead = drainTo(buffer);
+        if (bytesRead > 0 || connection == null) {
+            return bytesRead;
+        }
+        receive(connection);
+        return drainTo(buffer);
+    }
+
+    /** Returns the stats of the current stream as a string for logging. */
+    String getStats() {
+        long elapsedNs = Math.max(1, System.nanoTime() - mStartNs);
+        return String.format(
+                Locale.US,
+                "%s{received=%d bytes, throughput=%dkbps, jitter=%dms, max interval=%dms,"
+                        + " dropped=%d bytes, reconnects=%d}",
+                TAG,
+                mBytesReceived,
+                mBytesReceived * 8 * 1000000 / elapsedNs,
+                TimeUnit.NANOSECONDS.toMillis(mJitterNs),
+                TimeUnit.NANOSECONDS.toMillis(mMaxIntervalNs),
+                mDroppedBytes,
+                mReconnectCount);
+    }
+
+    /** Returns the number of bytes received from the device. */
+    long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /** Returns the number of bytes dropped to find the packets after reconnections. */
+    long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /** Returns how many times the connection was lost. */
+    int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    private void resetReceiveBuffer() {
+        mReceiveBuffer.clear();
+        mReadConnection = null;
+        mPacketRemaining = 0;
+        mSynced = false;
+        mStartNs = System.nanoTime();
+        mBytesReceived = 0;
+        mDroppedBytes = 0;
+        mReconnectCount = 0;
+        mLastIntervalNs = -1;
+        mJitterNs = 0;
+        mMaxIntervalNs = 0;
+    }
+
+    private void takeOver(Connection connection) {
+        if (mReadConnection != null) {
+            // Reconnected to the same stream. The last packet of the previous connection might be
+            // incomplete, so only the whole packets are kept.
+            int length = mReceiveBuffer.position();
+            int kept = mPacketRemaining;
+            if (mSynced) {
+                kept += (length - kept) / TS_PACKET_SIZE * TS_PACKET_SIZE;
+            }
+            mDroppedBytes += length - kept;
+            mReceiveBuffer.position(kept);
+            mSynced = false;
+        }
+        mReadConnection = connection;
+        // The beginning of the body was received with the response header.
+        ByteBuffer body = connection.mBody;
+        if (body.remaining() > mReceiveBuffer.remaining()) {
+            body.limit(body.position() + mReceiveBuffer.remaining());
+        }
+        long nowNs = System.nanoTime();
+        onReceived(body.remaining(), nowNs);
+        mLastReceiveNs = nowNs;
+        mReceiveBuffer.put(body);
+    }
+
+    private void receive(Connection connection) {
+        if (!mReceiveBuffer.hasRemaining()) {
+            return;
+        }
+        try {
+            int bytesRead = connection.mChannel.read(mReceiveBuffer);
+            if (bytesRead == 0) {
+                connection.mSelector.select(READ_WAIT_MS);
+                connection.mSelector.selectedKeys().clear();
+                bytesRead = connection.mChannel.read(mReceiveBuffer);
+            }
+            long nowNs = System.nanoTime();
+            if (bytesRead < 0) {
+                throw new EOFException("The stream ended");
+            } else if (bytesRead > 0) {
+                onReceived(bytesRead, nowNs);
+                mLastReceiveNs = nowNs;
+            } else if (nowNs - mLastReceiveNs > TimeUnit.MILLISECONDS.toNanos(mReadTimeoutMs)) {
+                throw new SocketTimeoutException("No data for " + mReadTimeoutMs + "ms");
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // The selector is closed when the connection is closed by another thread.
+            onConnectionLost(connection, e);
+        }
+    }
+
+    private void onReceived(int bytesRead, long nowNs) {
+        if (bytesRead <= 0) {
+            return;
+        }
+        if (mBytesReceived > 0) {
+            // The jitter is smoothed like the interarrival jitter of RFC 3550.
+            long intervalNs = nowNs - mLastReceiveNs;
+            if (mLastIntervalNs >= 0) {
+                long deviationNs = Math.abs(intervalNs - mLastIntervalNs);
+                mJitterNs += (deviationNs - mJitterNs) / 16;
+            }
+            mLastIntervalNs = intervalNs;
+            if (intervalNs > mMaxIntervalNs) {
+                mMaxIntervalNs = intervalNs;
+            }
+        }
+        mBytesReceived += bytesRead;
+    }
+
+    private void onConnectionLost(Connection connection, Exception e) {
+        synchronized (mLock) {
+            if (connection != mConnection) {
+                // Stopped or restarted meanwhile.
+                return;
+            }
+            Log.w(TAG, "Connection lost, reconnecting to " + mAddress + mPath, e);
+            connection.close();
+            mConnection = null;
+            mReconnectCount++;
+            scheduleReconnectLocked(mGeneration);
+        }
+    }
+
+    private void scheduleReconnectLocked(final int generation) {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(TAG));
+        }
+        long delayMs =
+                Math.min(mInitialBackoffMs << Math.min(mReconnectAttempt, 16), mMaxBackoffMs);
+        mReconnectAttempt++;
+        mExecutor.schedule(() -> reconnect(generation), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect(int generation) {
+        InetSocketAddress address;
+        String path;
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                return;
+            }
+            address = mAddress;
+            path = mPath;
+        }
+        Connection connection;
+        try {
+            connection = open(address, path);
+        } catch (IOException e) {
+            Log.w(TAG, "Reconnection failed: " + address + path, e);
+            synchronized (mLock) {
+                if (generation == mGeneration) {
+                    scheduleReconnectLocked(generation);
+                }
+            }
+            return;
+        }
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                connection.close();
+                return;
+            }
+            mConnection = connection;
+            mReconnectAttempt = 0;
+        }
+        Log.i(TAG, "Reconnected to " + address + path);
+    }
+
+    /** Moves whole packets from the receive buffer to {@code buffer}. */
+    private int drainTo(ByteBuffer buffer) {
+        mReceiveBuffer.flip();
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            int length;
+            if (mPacketRemaining > 0) {
+                length = mPacketRemaining;
+            } else {
+                if (!mSynced && !resync()) {
+                    break;
+                }
+                int packets = countPackets();
+                if (packets == 0) {
+                    if (mSynced) {
+                        // Waits for the rest of the packet.
+                        break;
+                    }
+                    Log.w(TAG, "Lost the sync of the stream");
+                    continue;
+                }
+                length = packets * TS_PACKET_SIZE;
+            }
+            length = Math.min(length, buffer.remaining());
+            int limit = mReceiveBuffer.limit();
+            mReceiveBuffer.limit(mReceiveBuffer.position() + length);
+            buffer.put(mReceiveBuffer);
+            mReceiveBuffer.limit(limit);
+            written += length;
+            if (mPacketRemaining > 0) {
+                mPacketRemaining -= length;
+            } else {
+                mPacketRemaining = (TS_PACKET_SIZE - length % TS_PACKET_SIZE) % TS_PACKET_SIZE;
+            }
+        }
+        mReceiveBuffer.compact();
+        return written;
+    }
+
+    /**
+     * Returns the number of the whole packets in a row from the position of the receive buffer.
+     * Clears the sync when the first one does not start with the sync byte.
+     */
+    private int countPackets() {
+        int position = mReceiveBuffer.position();
+        int count = 0;
+        while (mReceiveBuffer.limit() - position >= TS_PACKET_SIZE) {
+            if (mReceiveBuffer.get(position) != TS_SYNC_BYTE) {
+                if (count == 0) {
+                    mSynced = false;
+                }
+                break;
+            }
+            count++;
+            position += TS_PACKET_SIZE;
+        }
+        return count;
+    }
+
+    /**
+     * Skips the receive buffer to the first of {@link #RESYNC_PACKET_COUNT} packets in a row.
+     *
+     * @return {@code false} if more data is needed to find the packets
+     */
+    private boolean resync() {
+        int start = mReceiveBuffer.position();
+        int span = (RESYNC_PACKET_COUNT - 1) * TS_PACKET_SIZE;
+        int position = start;
+        boolean found = false;
+        while (mReceiveBuffer.limit() - position > span) {
+            found = true;
+            for (int i = 0; i < RESYNC_PACKET_COUNT; ++i) {
+                if (mReceiveBuffer.get(position + i * TS_PACKET_SIZE) != TS_SYNC_BYTE) {
+                    found = false;
+                    break;
+                }
+            }
+            if (found) {
+                break;
+            }
+            ++position;
+        }
+        if (position > start) {
+            if (DEBUG) Log.d(TAG, "Skipped " + (position - start) + " bytes to resync");
+            mDroppedBytes += position - start;
+            mReceiveBuffer.position(position);
+        }
+        mSynced = found;
+        return found;
+    }
+
+    private Connection open(InetSocketAddress address, String path) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        Selector selector = null;
+        try {
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            SelectionKey key = channel.register(selector, 0);
+            long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mConnectTimeoutMs);
+            if (!channel.connect(address)) {
+                key.interestOps(SelectionKey.OP_CONNECT);
+                while (!channel.finishConnect()) {
+                    await(selector, deadlineNs);
+                }
+            }
+
+            String request =
+                    "GET " + path + " HTTP/1.1\r\n"
+                            + "Host: " + address.getHostString() + ":" + address.getPort() + "\r\n"
+                            + "Connection: close\r\n"
+                            + "\r\n";
+            ByteBuffer requestBuffer =
+                    ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII));
+            key.interestOps(SelectionKey.OP_WRITE);
+            while (requestBuffer.hasRemaining()) {
+                if (channel.write(requestBuffer) == 0) {
+                    await(selector, deadlineNs);
+                }
+            }
+
+            // The device starts to respond after it is tuned, which could take a while.
+            deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mReadTimeoutMs);
+            key.interestOps(SelectionKey.OP_READ);
+            ByteBuffer response = ByteBuffer.allocate(MAX_RESPONSE_HEADER_SIZE);
+            int headerLength;
+            while ((headerLength = findHeaderLength(response)) < 0) {
+                if (!response.hasRemaining()) {
+                    throw new IOException("The response header is too large");
+                }
+                int bytesRead = channel.read(response);
+                if (bytesRead < 0) {
+                    throw new EOFException("The connection was closed before the response");
+                } else if (bytesRead == 0) {
+                    await(selector, deadlineNs);
+                }
+            }
+            checkResponseHeader(
+                    new String(response.array(), 0, headerLength, StandardCharsets.US_ASCII));
+            response.flip();
+            response.position(headerLength);
+            return new Connection(channel, selector, response);
+        } catch (IOException e) {
+            channel.close();
+            if (selector != null) {
+                selector.close();
+            }
+            throw e;
+        }
+    }
+
+    private static void await(Selector selector, long deadlineNs) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            // The pending reconnection was cancelled.
+            throw new InterruptedIOException();
+        }
+        long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNs - System.nanoTime());
+        if (remainingMs <= 0) {
+            throw new SocketTimeoutException("Timed out");
+        }
+        selector.select(remainingMs);
+        selector.selectedKeys().clear();
+    }
+
+    /** Returns the length of the header including the empty line, or -1 if it is incomplete. */
+    private static int findHeaderLength(ByteBuffer response) {
+        byte[] data = response.array();
+        for (int i = 3; i < response.position(); ++i) {
+            if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n'
+                    && data[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static void checkResponseHeader(String header) throws IOException {
+        String[] lines = header.split("\r\n");
+        String[] status = lines[0].split(" ");
+        if (status.length < 2 || !status[0].startsWith("HTTP/") || !"200".equals(status[1])) {
+            throw new IOException("Unexpected response: " + lines[0]);
+        }
+        for (int i = 1; i < lines.length; ++i) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0
+                    && "Transfer-Encoding".equalsIgnoreCase(lines[i].substring(0, colon).trim())
+                    && !"identity".equalsIgnoreCase(lines[i].substring(colon + 1).trim())) {
+                throw new IOException("Unsupported response: " + lines[i]);
+            }
+        }
+    }
+
+    private static class Connection {
+        private final SocketChannel mChannel;
+        private final Selector mSelector;
+        private final ByteBuffer mBody;
+
+        private Connection(SocketChannel channel, Selector selector, ByteBuffer body) {
+            mChannel = channel;
+            mSelector = selector;
+            mBody = body;
+        }
+
+        private void close() {
+            try {
+                mChannel.close();
+                mSelector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close the connection", e);
+            }
+        }
+    }
+}
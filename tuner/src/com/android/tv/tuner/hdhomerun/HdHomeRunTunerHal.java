@@ -23,12 +23,8 @@ import com.android.tv.common.SoftPreconditions;
 import com.android.tv.common.compat.TvInputConstantCompat;
 import com.android.tv.tuner.api.Tuner;
 import com.android.tv.tuner.data.TunerChannel;
-import java.io.BufferedInputStream;
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 /** Tuner implementation for HdHomeRun */
 public class HdHomeRunTunerHal implements Tuner {
@@ -42,9 +38,9 @@ public class HdHomeRunTunerHal implements Tuner {
 
     private final HdHomeRunTunerManager mTunerManager;
     private HdHomeRunDevice mDevice;
-    private BufferedInputStream mInputStream;
-    private HttpURLConnection mConnection;
-    private String mHttpConnectionAddress;
+    private final HdHomeRunStreamClient mStreamClient =
+            new HdHomeRunStreamClient(
+                    CONNECTION_TIMEOUT_MS_FOR_URLCONNECTION, READ_TIMEOUT_MS_FOR_URLCONNECTION);
     private final Context mContext;
 
     @DeliverySystemType private int mDeliverySystemType = DELIVERY_SYSTEM_UNDEFINED;
@@ -52,6 +48,7 @@ public class HdHomeRunTunerHal implements Tuner {
     public static final char VCHANNEL_SEPARATOR = '.';
     public static final int CONNECTION_TIMEOUT_MS_FOR_URLCONNECTION = 3000; // 3 sec
     public static final int READ_TIMEOUT_MS_FOR_URLCONNECTION = 10000; // 10 sec
+    private static final int HTTP_STREAM_PORT = 5004;
 
     public HdHomeRunTunerHal(Context context) {
         mTunerManager = HdHomeRunTunerManager.getInstance();
@@ -92,7 +89,7 @@ public class HdHomeRunTunerHal implements Tuner {
 
     @Override
     public void close() throws Exception {
-        closeInputStreamAndDisconnect();
+        stopStreaming();
         if (mDevice != null) {
             mTunerManager.releaseDevice(mDevice);
             mDevice = null;
@@ -113,45 +110,15 @@ public class HdHomeRunTunerHal implements Tuner {
                             + channelNumber
                             + ")");
         }
-        closeInputStreamAndDisconnect();
+        stopStreaming();
         if (TextUtils.isEmpty(channelNumber)) {
             return false;
         }
         channelNumber =
                 channelNumber.replace(TunerChannel.CHANNEL_NUMBER_SEPARATOR, VCHANNEL_SEPARATOR);
-        mHttpConnectionAddress = "http://" + getIpAddress() + ":5004/auto/v" + channelNumber;
-        return connectAndOpenInputStream();
-    }
-
-    private boolean connectAndOpenInputStream() {
-        URL url;
-        try {
-            url = new URL(mHttpConnectionAddress);
-        } catch (MalformedURLException e) {
-            Log.e(TAG, "Invalid address: " + mHttpConnectionAddress, e);
-            return false;
-        }
-        URLConnection connection;
-        try {
-            connection = url.openConnection();
-            connection.setConnectTimeout(CONNECTION_TIMEOUT_MS_FOR_URLCONNECTION);
-            connection.setReadTimeout(READ_TIMEOUT_MS_FOR_URLCONNECTION);
-            if (connection instanceof HttpURLConnection) {
-                mConnection = (HttpURLConnection) connection;
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Connection failed: " + mHttpConnectionAddress, e);
-            return false;
-        }
-        try {
-            mInputStream = new BufferedInputStream(connection.getInputStream());
-        } catch (IOException e) {
-            closeInputStreamAndDisconnect();
-            Log.e(TAG, "Failed to get input stream from " + mHttpConnectionAddress, e);
-            return false;
-        }
-        if (DEBUG) Log.d(TAG, "tuning to " + mHttpConnectionAddress);
-        return true;
+        if (DEBUG) Log.d(TAG, "tuning to " + getIpAddress() + ", v" + channelNumber);
+        return mStreamClient.start(
+                new InetSocketAddress(getIpAddress(), HTTP_STREAM_PORT), "/auto/v" + channelNumber);
     }
 
     @Override
@@ -162,27 +129,19 @@ public class HdHomeRunTunerHal implements Tuner {
 
     @Override
     public synchronized void stopTune() {
-        closeInputStreamAndDisconnect();
+        stopStreaming();
     }
 
     @Override
-    public synchronized int readTsStream(byte[] javaBuffer, int javaBufferSize) {
-        if (mInputStream != null) {
-            try {
-                // Note: this call sometimes take more than 500ms, because the data is
-                // streamed through network unlike connected tuner devices.
-                return mInputStream.read(javaBuffer, 0, javaBufferSize);
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to read stream", e);
-                closeInputStreamAndDisconnect();
-            }
-        }
-        if (connectAndOpenInputStream()) {
-            Log.w(TAG, "Tuned by http connection again");
-        } else {
-            Log.e(TAG, "Tuned by http connection again failed");
-        }
-        return 0;
+    public int readTsStream(byte[] javaBuffer, int javaBufferSize) {
+        return mStreamClient.read(ByteBuffer.wrap(javaBuffer, 0, javaBufferSize));
+    }
+
+    @Override
+    public int readTsStream(ByteBuffer buffer) {
+        // Not synchronized, so that tuning is not blocked by a read which waits for data. The
+        // client reconnects in the background when the connection is lost.
+        return mStreamClient.read(buffer);
     }
 
     @Override
@@ -204,19 +163,11 @@ public class HdHomeRunTunerHal implements Tuner {
         return DELIVERY_SYSTEM_UNDEFINED;
     }
 
-    private void closeInputStreamAndDisconnect() {
-        if (mInputStream != null) {
-            try {
-                mInputStream.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to close input stream", e);
-            }
-            mInputStream = null;
-        }
-        if (mConnection != null) {
-            mConnection.disconnect();
-            mConnection = null;
+    private void stopStreaming() {
+        if (mStreamClient.getBytesReceived() > 0) {
+            Log.i(TAG, mStreamClient.getStats());
         }
+        mStreamClient.stop();
     }
 
     /** Gets the number of tuners in a given HDHomeRun devices. */
@@ -48,6 +48,8 @@ import com.android.tv.tuner.R;
 import com.android.tv.tuner.api.Tuner;
 import com.android.tv.tuner.api.TunerFactory;
 import com.android.tv.tuner.prefs.TunerPreferences;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
 import javax.inject.Inject;
 
@@ -279,6 +281,25 @@ public abstract class BaseTunerSetupActivity extends SetupActivity {
         return mTunerHalCreator.getOrCreate();
     }
 
+    /**
+     * Opens the free tuners other than the one of {@link #getTunerHal}, so that channels can be
+     * scanned on several tuners at once. The caller should close them.
+     *
+     * @param maxCount the maximum number of tuners to open
+     */
+    @WorkerThread
+    List<Tuner> openAdditionalTuners(int maxCount) {
+        List<Tuner> tuners = new ArrayList<>();
+        while (tuners.size() < maxCount) {
+            Tuner tuner = mTunerFactory.createInstance(getApplicationContext());
+            if (tuner == null) {
+                break;
+            }
+            tuners.add(tuner);
+        }
+        return tuners;
+    }
+
     /** Generates tuner HAL. */
     void generateTunerHal() {
         mTunerHalCreator.generate();
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.setup;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.SparseArray;
+import com.android.tv.tuner.api.ScanChannel;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.TunerChannel;
+import com.android.tv.tuner.source.TsStreamer;
+import com.android.tv.tuner.ts.EventDetector.EventListener;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans the channels of a scan plan on several tuners at once.
+ *
+ * <p>Each tuner runs on its own thread and takes the next frequency of the plan as soon as it is
+ * done with the previous one, so a tuner which gets frequencies without signal moves on quickly
+ * while the others are waiting for PSIP. A frequency is given up when no data arrives within the
+ * lock timeout. The callbacks from all the tuners are serialized, so the listener can merge the
+ * channels found without locking.
+ */
+class ParallelChannelScanner {
+    private static final String TAG = "ParallelChannelScanner";
+
+    /** Creates the streamer of a tuner, which reports to the given listener. */
+    interface TsStreamerFactory {
+        TsStreamer create(EventListener listener);
+    }
+
+    /**
+     * Listener for the scan. The methods are called on the threads of the tuners, but never at the
+     * same time. The scanner moves on to the next frequency by itself when the scan of a frequency
+     * is done.
+     */
+    interface ScanListener extends EventListener {
+        /**
+         * Called when a frequency is scanned, after the streamer is stopped.
+         *
+         * @param channel the frequency which is scanned
+         * @param streamer the streamer which scanned the frequency
+         * @return the channels found besides the ones reported by the streamer, for example the
+         *     channels without VCT
+         */
+        List<TunerChannel> onFrequencyScanned(ScanChannel channel, TsStreamer streamer);
+
+        /** Called when a frequency is done, whether it is scanned or skipped. */
+        void onProgress(int scannedCount, int totalCount);
+    }
+
+    private final ScanListener mListener;
+    private final long mScanPeriodMs;
+    private final long mLockTimeoutMs;
+    private final List<ScanThread> mScanThreads = new ArrayList<>();
+    private final Object mLock = new Object();
+    private volatile boolean mStopped;
+
+    // Guarded by mLock.
+    private final SparseArray<ArrayDeque<ScanChannel>> mPendingChannels = new SparseArray<>();
+    private int mTotalCount;
+    private int mScannedCount;
+
+    /**
+     * @param listener the listener for the scan
+     * @param scanPeriodMs the longest time to wait for PSIP on a frequency
+     * @param lockTimeoutMs the time to wait for data on a frequency before giving it up
+     */
+    ParallelChannelScanner(ScanListener listener, long scanPeriodMs, long lockTimeoutMs) {
+        mListener = listener;
+        mScanPeriodMs = scanPeriodMs;
+        mLockTimeoutMs = Math.min(lockTimeoutMs, scanPeriodMs);
+    }
+
+    /**
+     * Adds a tuner which scans the channels of the given type. Should be called before {@link
+     * #scan}.
+     *
+     * @param type the type of the channels, which is one of {@link
+     *     com.android.tv.tuner.data.Channel.TunerType}
+     */
+    void addTuner(int type, TsStreamerFactory factory) {
+        mScanThreads.add(new ScanThread(mScanThreads.size(), type, factory));
+    }
+
+    /**
+     * Scans the channels on all the tuners, and blocks until they are done or {@link #stop} is
+     * called. The channels of a type which no tuner scans are skipped. Can be called only once.
+     */
+    void scan(List<ScanChannel> scanChannels) {
+        int skippedCount = 0;
+        synchronized (mLock) {
+            for (ScanThread thread : mScanThreads) {
+                mPendingChannels.put(thread.mType, new ArrayDeque<>());
+            }
+            for (ScanChannel scanChannel : scanChannels) {
+                ArrayDeque<ScanChannel> pendingChannels = mPendingChannels.get(scanChannel.type);
+                if (pendingChannels != null) {
+                    pendingChannels.add(scanChannel);
+                } else {
+                    skippedCount++;
+                }
+            }
+            mTotalCount = scanChannels.size();
+        }
+        for (int i = 0; i < skippedCount; ++i) {
+            onScanned();
+        }
+        Log.i(
+                TAG,
+                "Scanning " + scanChannels.size() + " channels on " + mScanThreads.size()
+                        + " tuners");
+        for (ScanThread thread : mScanThreads) {
+            thread.start();
+        }
+        boolean interrupted = false;
+        for (ScanThread thread : mScanThreads) {
+            // The streams are stopped shortly after the interruption, so waits for them anyway.
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    stop();
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Stops the scan. The frequencies being scanned are stopped and the rest are skipped. */
+    void stop() {
+        mStopped = true;
+        for (ScanThread thread : mScanThreads) {
+            thread.cancel();
+        }
+    }
+
+    @Nullable
+    private ScanChannel takeNextChannel(int type) {
+        synchronized (mLock) {
+            return mStopped ? null : mPendingChannels.get(type).poll();
+        }
+    }
+
+    private void onScanned() {
+        synchronized (mLock) {
+            mListener.onProgress(++mScannedCount, mTotalCount);
+        }
+    }
+
+    private class ScanThread extends Thread implements EventListener {
+        private final int mType;
+        private final TsStreamer mStreamer;
+        private volatile CountDownLatch mScanDone = new CountDownLatch(1);
+
+        private ScanThread(int id, int type, TsStreamerFactory factory) {
+            super(TAG + "-" + id);
+            mType = type;
+            mStreamer = factory.create(this);
+        }
+
+        @Override
+        public void run() {
+            ScanChannel scanChannel;
+            while ((scanChannel = takeNextChannel(mType)) != null) {
+                scanFrequency(scanChannel);
+                onScanned();
+            }
+        }
+
+        private void scanFrequency(ScanChannel scanChannel) {
+            Log.i(
+                    TAG,
+                    getName() + " tuning to " + scanChannel.frequency + " "
+                            + scanChannel.modulation);
+            mScanDone = new CountDownLatch(1);
+            if (mStopped || !mStreamer.startStream(scanChannel)) {
+                return;
+            }
+            try {
+                if (!mScanDone.await(mLockTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    if (mStreamer.getBufferedPosition() == 0) {
+                        Log.i(TAG, "No signal on " + scanChannel.frequency);
+                    } else {
+                        mScanDone.await(mScanPeriodMs - mLockTimeoutMs, TimeUnit.MILLISECONDS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, getName() + " is interrupted during the scan", e);
+                ParallelChannelScanner.this.stop();
+            }
+            mStreamer.stopStream();
+            synchronized (mLock) {
+                List<TunerChannel> channels = mListener.onFrequencyScanned(scanChannel, mStreamer);
+                for (TunerChannel channel : channels) {
+                    onChannelDetected(channel, true);
+                }
+            }
+        }
+
+        private void cancel() {
+            mScanDone.countDown();
+        }
+
+        @Override
+        public void onEventDetected(TunerChannel channel, List<EitItem> items) {
+            synchronized (mLock) {
+                mListener.onEventDetected(channel, items);
+            }
+        }
+
+        @Override
+        public void onChannelScanDone() {
+            mScanDone.countDown();
+            synchronized (mLock) {
+                mListener.onChannelScanDone();
+            }
+        }
+
+        @Override
+        public void onChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime) {
+            synchronized (mLock) {
+                mListener.onChannelDetected(channel, channelArrivedAtFirstTime);
+            }
+        }
+    }
+}
@@ -37,6 +37,7 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import com.android.tv.common.SoftPreconditions;
 import com.android.tv.common.ui.setup.SetupFragment;
+import com.android.tv.common.util.AutoCloseableUtils;
 import com.android.tv.tuner.R;
 import com.android.tv.tuner.api.ScanChannel;
 import com.android.tv.tuner.api.Tuner;
@@ -53,8 +54,8 @@ import com.android.tv.tuner.tvinput.datamanager.ChannelDataManager;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.TreeMap;
 
 /** A fragment for scanning channels. */
 public class ScanFragment extends SetupFragment {
@@ -81,6 +82,8 @@ public class ScanFragment extends SetupFragment {
 
     private static final long CHANNEL_SCAN_SHOW_DELAY_MS = 10000;
     private static final long CHANNEL_SCAN_PERIOD_MS = 4000;
+    private static final long CHANNEL_LOCK_TIMEOUT_MS = 1500;
+    private static final int MAX_SCAN_TUNER_COUNT = 4;
     private static final long SHOW_PROGRESS_DIALOG_DELAY_MS = 300;
 
     // Build channels out of the locally stored TS streams.
@@ -274,27 +277,35 @@ public class ScanFragment extends SetupFragment {
     }
 
     private class ChannelScanTask extends AsyncTask<Void, Integer, Void>
-            implements EventDetector.EventListener, ChannelDataManager.ChannelHandlingDoneListener {
+            implements ParallelChannelScanner.ScanListener,
+                    ChannelDataManager.ChannelHandlingDoneListener {
         private static final int MAX_PROGRESS = 100;
 
         private final Activity mActivity;
         private final int mChannelMapId;
 // AOSP_Comment_Out         private final com.android.tv.tuner.hdhomerun.HdHomeRunTunerHal mNetworkTuner;
-        private final TsStreamer mScanTsStreamer;
-        private final TsStreamer mFileTsStreamer;
+        private final ParallelChannelScanner mScanner;
         private final ConditionVariable mConditionStopped;
 
         private final List<ScanChannel> mScanChannelList = new ArrayList<>();
+        // The channels found on all the tuners, which are stored after the scan.
+        private final List<TunerChannel> mFoundChannels = new ArrayList<>();
+        // The latest EIT items of each channel, which are handed over after the channels are
+        // stored. Each detection has all the items known for the channel.
+        private final Map<TunerChannel, List<PsipData.EitItem>> mFoundEvents = new TreeMap<>();
         private boolean mIsCanceled;
         private boolean mIsFinished;
         private ProgressDialog mFinishingProgressDialog;
-        private CountDownLatch mLatch;
+        private long mScanStartMs;
 
         public ChannelScanTask(int channelMapId) {
             mActivity = getActivity();
             mChannelMapId = channelMapId;
+            mScanner =
+                    new ParallelChannelScanner(
+                            this, CHANNEL_SCAN_PERIOD_MS, CHANNEL_LOCK_TIMEOUT_MS);
             if (FAKE_MODE) {
-                mScanTsStreamer = new FakeTsStreamer(this);
+                mScanner.addTuner(TunerType.TYPE_TUNER_VALUE, FakeTsStreamer::new);
             } else {
                 Tuner hal = ((BaseTunerSetupActivity) mActivity).getTunerHal();
                 if (hal == null) {
@@ -307,9 +318,15 @@ public class ScanFragment extends SetupFragment {
                     mNetworkTuner = null;
                 }
                 End_AOSP_Comment_Out */
-                mScanTsStreamer = new TunerTsStreamer(hal, this);
+                mScanner.addTuner(
+                        TunerType.TYPE_TUNER_VALUE,
+                        listener -> new TunerTsStreamer(hal, listener));
+            }
+            if (SCAN_LOCAL_STREAMS) {
+                mScanner.addTuner(
+                        TunerType.TYPE_FILE_VALUE,
+                        listener -> new FileTsStreamer(listener, mActivity));
             }
-            mFileTsStreamer = SCAN_LOCAL_STREAMS ? new FileTsStreamer(this, mActivity) : null;
             mConditionStopped = new ConditionVariable();
             mChannelDataManager.setChannelScanListener(this, new Handler());
         }
@@ -358,6 +375,7 @@ public class ScanFragment extends SetupFragment {
                         new com.android.tv.tuner.hdhomerun.HdHomeRunChannelScan(
                                 mActivity.getApplicationContext(), this, mNetworkTuner);
                 hdHomeRunChannelScan.scan(mConditionStopped);
+                storeFoundChannels();
                 mChannelDataManager.notifyScanCompleted();
                 publishProgress(MAX_PROGRESS);
                 return null;
@@ -370,7 +388,23 @@ public class ScanFragment extends SetupFragment {
             mScanChannelList.addAll(
                     ChannelScanFileParser.parseScanFile(
                             getResources().openRawResource(mChannelMapId)));
-            scanChannels();
+            List<Tuner> additionalTuners =
+                    FAKE_MODE
+                            ? new ArrayList<>()
+                            : ((BaseTunerSetupActivity) mActivity)
+                                    .openAdditionalTuners(MAX_SCAN_TUNER_COUNT - 1);
+            for (Tuner tuner : additionalTuners) {
+                mScanner.addTuner(
+                        TunerType.TYPE_TUNER_VALUE,
+                        listener -> new TunerTsStreamer(tuner, listener));
+            }
+            try {
+                scanChannels();
+            } finally {
+                for (Tuner tuner : additionalTuners) {
+                    AutoCloseableUtils.closeQuietly(tuner);
+                }
+            }
             return null;
         }
 
@@ -389,9 +423,7 @@ public class ScanFragment extends SetupFragment {
         }
 
         private void stopScan() {
-            if (mLatch != null) {
-                mLatch.countDown();
-            }
+            mScanner.stop();
             mConditionStopped.open();
         }
 
@@ -404,74 +436,77 @@ public class ScanFragment extends SetupFragment {
             if (DEBUG) Log.i(TAG, "Channel scan starting");
             mChannelDataManager.notifyScanStarted();
 
-            long startMs = System.currentTimeMillis();
-            int i = 1;
-            for (ScanChannel scanChannel : mScanChannelList) {
-                int frequency = scanChannel.frequency;
-                String modulation = scanChannel.modulation;
-                Log.i(TAG, "Tuning to " + frequency + " " + modulation);
-
-                TsStreamer streamer = getStreamer(scanChannel.type);
-                SoftPreconditions.checkNotNull(streamer);
-                if (streamer != null && streamer.startStream(scanChannel)) {
-                    mLatch = new CountDownLatch(1);
-                    try {
-                        mLatch.await(CHANNEL_SCAN_PERIOD_MS, TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException e) {
-                        Log.e(
-                                TAG,
-                                "The current thread is interrupted during scanChannels(). "
-                                        + "The TS stream is stopped earlier than expected.",
-                                e);
-                    }
-                    streamer.stopStream();
+            mScanStartMs = System.currentTimeMillis();
+            mScanner.scan(mScanChannelList);
+            storeFoundChannels();
+            mChannelDataManager.notifyScanCompleted();
+            if (!mConditionStopped.block(-1)) {
+                publishProgress(MAX_PROGRESS);
+            }
+            if (DEBUG) Log.i(TAG, "Channel scan ended");
+        }
 
-                    if (ADD_CJ_MUSIC_CHANNELS) {
-                        addCjMusicChannel(frequency, modulation);
-                    }
-                    addChannelsWithoutVct(scanChannel);
-                    if (System.currentTimeMillis() > startMs + CHANNEL_SCAN_SHOW_DELAY_MS
-                            && !mChannelListVisible) {
-                        maybeSetChannelListVisible();
-                    }
+        private void storeFoundChannels() {
+            mChannelDataManager.notifyChannelsDetected(mFoundChannels);
+            // The events are queued after the channels, so their channel IDs are known by then.
+            for (TunerChannel channel : mFoundChannels) {
+                List<PsipData.EitItem> items = mFoundEvents.get(channel);
+                if (items != null) {
+                    mChannelDataManager.notifyEventDetected(channel, items);
                 }
-                if (mConditionStopped.block(-1)) {
-                    break;
+            }
+        }
+
+        @Override
+        public List<TunerChannel> onFrequencyScanned(ScanChannel scanChannel, TsStreamer streamer) {
+            List<TunerChannel> channels = new ArrayList<>();
+            if (streamer instanceof TunerTsStreamer) {
+                List<TunerChannel> incompleteChannels =
+                        ((TunerTsStreamer) streamer).getMalFormedChannels();
+                if (ADD_CJ_MUSIC_CHANNELS) {
+                    addCjMusicChannel(scanChannel, incompleteChannels, channels);
                 }
-                publishProgress(MAX_PROGRESS * i++ / mScanChannelList.size());
+                addChannelsWithoutVct(scanChannel, incompleteChannels, channels);
+            }
+            return channels;
+        }
+
+        @Override
+        public void onProgress(int scannedCount, int totalCount) {
+            if (System.currentTimeMillis() > mScanStartMs + CHANNEL_SCAN_SHOW_DELAY_MS
+                    && !mChannelListVisible) {
+                maybeSetChannelListVisible();
             }
-            mChannelDataManager.notifyScanCompleted();
             if (!mConditionStopped.block(-1)) {
-                publishProgress(MAX_PROGRESS);
+                publishProgress(MAX_PROGRESS * scannedCount / totalCount);
             }
-            if (DEBUG) Log.i(TAG, "Channel scan ended");
         }
 
-        private void addCjMusicChannel(int frequency, String modulation) {
-            if (frequency == CJ_MUSIC_CHANNEL_FREQUENCY
+        private void addCjMusicChannel(
+                ScanChannel scanChannel,
+                List<TunerChannel> incompleteChannels,
+                List<TunerChannel> output) {
+            if (scanChannel.frequency == CJ_MUSIC_CHANNEL_FREQUENCY
                     && mChannelMapId == R.raw.ut_kr_dev_cj_cable_center_frequencies_qam256) {
-                List<TunerChannel> incompleteChannels =
-                        mScanTsStreamer instanceof TunerTsStreamer
-                                ? ((TunerTsStreamer) mScanTsStreamer).getMalFormedChannels()
-                                : new ArrayList<>();
                 for (TunerChannel tunerChannel : incompleteChannels) {
                     if ((tunerChannel.getVideoPid() == TunerChannel.INVALID_PID)
                             && (tunerChannel.getAudioPid() != TunerChannel.INVALID_PID)) {
-                        tunerChannel.setFrequency(frequency);
-                        tunerChannel.setModulation(modulation);
-                        onChannelDetected(tunerChannel, true);
+                        tunerChannel.setFrequency(scanChannel.frequency);
+                        tunerChannel.setModulation(scanChannel.modulation);
+                        output.add(tunerChannel);
                     }
                 }
             }
         }
 
-        private void addChannelsWithoutVct(ScanChannel scanChannel) {
-            if (scanChannel.radioFrequencyNumber == null
-                    || !(mScanTsStreamer instanceof TunerTsStreamer)) {
+        private void addChannelsWithoutVct(
+                ScanChannel scanChannel,
+                List<TunerChannel> incompleteChannels,
+                List<TunerChannel> output) {
+            if (scanChannel.radioFrequencyNumber == null) {
                 return;
             }
-            for (TunerChannel tunerChannel :
-                    ((TunerTsStreamer) mScanTsStreamer).getMalFormedChannels()) {
+            for (TunerChannel tunerChannel : incompleteChannels) {
                 if ((tunerChannel.getVideoPid() != TunerChannel.INVALID_PID)
                         && (tunerChannel.getAudioPid() != TunerChannel.INVALID_PID)) {
                     tunerChannel.setDeliverySystemType(scanChannel.deliverySystemType);
@@ -485,32 +520,20 @@ public class ScanFragment extends SetupFragment {
                                     tunerChannel.getProgramNumber()));
                     tunerChannel.setVirtualMajor(scanChannel.radioFrequencyNumber);
                     tunerChannel.setVirtualMinor(tunerChannel.getProgramNumber());
-                    onChannelDetected(tunerChannel, true);
+                    output.add(tunerChannel);
                 }
             }
         }
 
-        private TsStreamer getStreamer(int type) {
-            switch (type) {
-                case TunerType.TYPE_TUNER_VALUE:
-                    return mScanTsStreamer;
-                case TunerType.TYPE_FILE_VALUE:
-                    return mFileTsStreamer;
-                default:
-                    return null;
-            }
-        }
-
         @Override
         public void onEventDetected(TunerChannel channel, List<PsipData.EitItem> items) {
-            mChannelDataManager.notifyEventDetected(channel, items);
+            // The channel is not stored until the scan ends, so the events would be dropped.
+            mFoundEvents.put(channel, items);
         }
 
         @Override
         public void onChannelScanDone() {
-            if (mLatch != null) {
-                mLatch.countDown();
-            }
+            // The scanner moves on to the next frequency by itself.
         }
 
         @Override
@@ -522,7 +545,7 @@ public class ScanFragment extends SetupFragment {
                 // Playbacks with video-only stream have not been tested yet.
                 // No video-only channel has been found.
                 addChannel(channel);
-                mChannelDataManager.notifyChannelDetected(channel, channelArrivedAtFirstTime);
+                mFoundChannels.add(channel);
                 mChannelNumbers.add(channel.getDisplayNumber());
             }
         }
@@ -597,6 +620,7 @@ public class ScanFragment extends SetupFragment {
                         }
                     },
                     true);
+            mEventListener.onChannelScanDone();
             return true;
         }
 
@@ -608,6 +632,11 @@ public class ScanFragment extends SetupFragment {
         @Override
         public void stopStream() {}
 
+        @Override
+        public long getBufferedPosition() {
+            return 0;
+        }
+
         @Override
         public TsDataSource createDataSource() {
             return null;
@@ -170,7 +170,9 @@ public class FileSourceEventDetector {
 
                 @Override
                 public void onAllVctItemsParsed() {
-                    // do nothing.
+                    if (mEventListener != null) {
+                        mEventListener.onChannelScanDone();
+                    }
                 }
 
                 @Override
@@ -58,21 +58,18 @@ public class FileTsStreamer implements TsStreamer {
     // Virtual frequency base used for file-based source
     public static final int FREQ_BASE = 100;
 
-    private final Object mCircularBufferMonitor = new Object();
-    private final byte[] mCircularBuffer = new byte[CIRCULAR_BUFFER_SIZE];
+    private final TsRingBuffer mCircularBuffer = new TsRingBuffer(CIRCULAR_BUFFER_SIZE);
     private final FileSourceEventDetector mEventDetector;
     private final Context mContext;
 
-    private long mBytesFetched;
-    private long mLastReadPosition;
-    private boolean mStreaming;
-
     private Thread mStreamingThread;
     private StreamProvider mSource;
 
     public static class FileDataSource extends TsDataSource {
         private final FileTsStreamer mTsStreamer;
         private final AtomicLong mLastReadPosition = new AtomicLong(0);
+        // Registered while the data source is open, so the streamer doesn't overwrite its data.
+        private TsRingBuffer.Reader mReader;
         private Uri mUri;
         private long mStartBufferedPosition;
 
@@ -102,16 +99,28 @@ public class FileTsStreamer implements TsStreamer {
         public long open(DataSpec dataSpec) {
             mUri = dataSpec.uri;
             mLastReadPosition.set(0);
+            removeReader();
+            mReader = mTsStreamer.mCircularBuffer.addReader(mStartBufferedPosition);
             return com.google.android.exoplayer2.C.LENGTH_UNSET;
         }
 
         @Override
-        public void close() {}
+        public void close() {
+            removeReader();
+        }
+
+        private void removeReader() {
+            if (mReader != null) {
+                mTsStreamer.mCircularBuffer.removeReader(mReader);
+                mReader = null;
+            }
+        }
 
         @Override
         public int read(byte[] buffer, int offset, int readLength) throws IOException {
             int ret =
                     mTsStreamer.readAt(
+                            mReader,
                             mStartBufferedPosition + mLastReadPosition.get(),
                             buffer,
                             offset,
@@ -162,11 +171,8 @@ public class FileTsStreamer implements TsStreamer {
             mSource.addPidFilter(TsParser.DVB_EIT_PID);
             mSource.addPidFilter(TsParser.DVB_SDT_PID);
         }
-        synchronized (mCircularBufferMonitor) {
-            if (mStreaming) {
-                return true;
-            }
-            mStreaming = true;
+        if (!mCircularBuffer.open()) {
+            return true;
         }
 
         mStreamingThread = new StreamingThread();
@@ -194,11 +200,8 @@ public class FileTsStreamer implements TsStreamer {
             mSource.addPidFilter(TsParser.DVB_EIT_PID);
             mSource.addPidFilter(TsParser.DVB_SDT_PID);
         }
-        synchronized (mCircularBufferMonitor) {
-            if (mStreaming) {
-                return true;
-            }
-            mStreaming = true;
+        if (!mCircularBuffer.open()) {
+            return true;
         }
 
         mStreamingThread = new StreamingThread();
@@ -213,10 +216,7 @@ public class FileTsStreamer implements TsStreamer {
      */
     @Override
     public void stopStream() {
-        synchronized (mCircularBufferMonitor) {
-            mStreaming = false;
-            mCircularBufferMonitor.notify();
-        }
+        mCircularBuffer.close();
 
         try {
             if (mStreamingThread != null) {
@@ -237,10 +237,9 @@ public class FileTsStreamer implements TsStreamer {
      *
      * @return the current buffered position
      */
+    @Override
     public long getBufferedPosition() {
-        synchronized (mCircularBufferMonitor) {
-            return mBytesFetched;
-        }
+        return mCircularBuffer.getWritePosition();
     }
 
     /** Provides MPEG-2 transport stream from a local file. Stream can be filtered by PID. */
@@ -358,6 +357,7 @@ public class FileTsStreamer implements TsStreamer {
     /**
      * Reads data from internal buffer.
      *
+     * @param reader the reader of the data source
      * @param pos the position to read from
      * @param buffer to read
      * @param offset start position of the read buffer
@@ -365,49 +365,31 @@ public class FileTsStreamer implements TsStreamer {
      * @return number of read bytes when successful, {@code -1} otherwise
      * @throws IOException
      */
-    public int readAt(long pos, byte[] buffer, int offset, int amount) throws IOException {
-        synchronized (mCircularBufferMonitor) {
-            long initialBytesFetched = mBytesFetched;
-            while (mBytesFetched < pos + amount && mStreaming) {
-                try {
-                    mCircularBufferMonitor.wait(READ_TIMEOUT_MS);
-                } catch (InterruptedException e) {
-                    // Wait again.
-                    Thread.currentThread().interrupt();
-                }
-                if (initialBytesFetched == mBytesFetched) {
-                    Log.w(TAG, "No data update for " + READ_TIMEOUT_MS + "ms. returning -1.");
-
-                    // Returning -1 will make demux report EOS so that the input service can retry
-                    // the playback.
+    int readAt(TsRingBuffer.Reader reader, long pos, byte[] buffer, int offset, int amount)
+            throws IOException {
+        long initialBytesFetched = mCircularBuffer.getWritePosition();
+        while (true) {
+            int ret = mCircularBuffer.readAt(reader, pos, buffer, offset, amount, READ_TIMEOUT_MS);
+            switch (ret) {
+                case TsRingBuffer.READ_TIMED_OUT:
+                    if (initialBytesFetched == mCircularBuffer.getWritePosition()) {
+                        Log.w(TAG, "No data update for " + READ_TIMEOUT_MS + "ms. returning -1.");
+
+                        // Returning -1 will make demux report EOS so that the input service can
+                        // retry the playback.
+                        return -1;
+                    }
+                    initialBytesFetched = mCircularBuffer.getWritePosition();
+                    break;
+                case TsRingBuffer.READ_ERROR_STREAMING_ENDED:
+                    Log.w(TAG, "Stream is already stopped.");
                     return -1;
-                }
-            }
-            if (!mStreaming) {
-                Log.w(TAG, "Stream is already stopped.");
-                return -1;
-            }
-            if (mBytesFetched - CIRCULAR_BUFFER_SIZE > pos) {
-                Log.e(TAG, "Demux is requesting the data which is already overwritten.");
-                return -1;
-            }
-            int posInBuffer = (int) (pos % CIRCULAR_BUFFER_SIZE);
-            int bytesToCopyInFirstPass = amount;
-            if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-            }
-            System.arraycopy(mCircularBuffer, posInBuffer, buffer, offset, bytesToCopyInFirstPass);
-            if (bytesToCopyInFirstPass < amount) {
-                System.arraycopy(
-                        mCircularBuffer,
-                        0,
-                        buffer,
-                        offset + bytesToCopyInFirstPass,
-                        amount - bytesToCopyInFirstPass);
+                case TsRingBuffer.READ_ERROR_BUFFER_OVERWRITTEN:
+                    Log.e(TAG, "Demux is requesting the data which is already overwritten.");
+                    return -1;
+                default:
+                    return ret;
             }
-            mLastReadPosition = pos + amount;
-            mCircularBufferMonitor.notify();
-            return amount;
         }
     }
 
@@ -440,27 +422,9 @@ public class FileTsStreamer implements TsStreamer {
         public void run() {
             byte[] dataBuffer = new byte[READ_BUFFER_SIZE];
 
-            synchronized (mCircularBufferMonitor) {
-                mBytesFetched = 0;
-                mLastReadPosition = 0;
-            }
-
-            while (true) {
-                synchronized (mCircularBufferMonitor) {
-                    while ((mBytesFetched - mLastReadPosition + PADDING_SIZE) > CIRCULAR_BUFFER_SIZE
-                            && mStreaming) {
-                        try {
-                            mCircularBufferMonitor.wait();
-                        } catch (InterruptedException e) {
-                            // Wait again.
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-                    if (!mStreaming) {
-                        break;
-                    }
-                }
-
+            // Keeps PADDING_SIZE bytes ahead of the slowest reader so that the data being read is
+            // not overwritten.
+            while (mCircularBuffer.waitForFreeSpace(PADDING_SIZE)) {
                 int bytesWritten = mSource.read(dataBuffer);
                 if (bytesWritten <= 0) {
                     try {
@@ -474,26 +438,7 @@ public class FileTsStreamer implements TsStreamer {
                 }
 
                 mEventDetector.feedTSStream(dataBuffer, 0, bytesWritten);
-
-                synchronized (mCircularBufferMonitor) {
-                    int posInBuffer = (int) (mBytesFetched % CIRCULAR_BUFFER_SIZE);
-                    int bytesToCopyInFirstPass = bytesWritten;
-                    if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                        bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-                    }
-                    System.arraycopy(
-                            dataBuffer, 0, mCircularBuffer, posInBuffer, bytesToCopyInFirstPass);
-                    if (bytesToCopyInFirstPass < bytesWritten) {
-                        System.arraycopy(
-                                dataBuffer,
-                                bytesToCopyInFirstPass,
-                                mCircularBuffer,
-                                0,
-                                bytesWritten - bytesToCopyInFirstPass);
-                    }
-                    mBytesFetched += bytesWritten;
-                    mCircularBufferMonitor.notify();
-                }
+                mCircularBuffer.write(dataBuffer, 0, bytesWritten);
             }
 
             Log.i(TAG, "Streaming stopped");
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A circular buffer for MPEG-2 TS data which is written by a single streaming thread and read by
+ * any number of readers at their own positions.
+ *
+ * <p>Positions are the total number of bytes written since {@link #open()}, so they also work as
+ * sequence numbers. The writer never blocks on readers unless it asks to with {@link
+ * #waitForFreeSpace}, and readers detect that the data they asked for has been overwritten by
+ * comparing their position against the write cursors instead of holding a lock.
+ *
+ * <p>Waiting is done with {@link LockSupport#park} instead of a shared monitor, so writes do not
+ * contend with readers copying data out.
+ *
+ * <p>Each reader reads through its own {@link Reader}, which is registered with {@link #addReader}
+ * and keeps the reader's position. {@link #waitForFreeSpace} waits for the slowest of them, so a
+ * fast reader can't let the writer overwrite the data which a slower one hasn't read yet.
+ *
+ * <p>The data is held in a direct buffer, so it stays out of the Java heap, and the writer can have
+ * a tuner fill it in place with {@link #beginWrite} and {@link #endWrite}. Readers can also read it
+ * in place with {@link #waitForRead}, {@link #getReadView} and {@link #finishRead}.
+ *
+ * <p>The overwrite check works like a seqlock: the writer reserves a region before copying into it,
+ * and a reader checks the reservation again after copying out. The copies themselves are plain
+ * accesses which race with each other, so the check relies on the writer's reservation being
+ * ordered before its data stores, and on the reader's data loads being ordered before its second
+ * check. See {@link #reserve} and {@link #finishRead} for how each side gets that ordering.
+ */
+class TsRingBuffer {
+    /** Returned by {@link #readAt} when the buffer was closed. */
+    static final int READ_ERROR_STREAMING_ENDED = -1;
+    /** Returned by {@link #readAt} when the requested data was already overwritten. */
+    static final int READ_ERROR_BUFFER_OVERWRITTEN = -2;
+    /** Returned by {@link #readAt} when the requested data was not written before the timeout. */
+    static final int READ_TIMED_OUT = -3;
+
+    /** A reader of the buffer, which is used by a single thread at a time. */
+    static final class Reader {
+        // The view has its own position, so each reader needs its own.
+        private final ByteBuffer mView;
+        // The end of the last successful read, which holds back the writer.
+        private volatile long mPosition;
+
+        private Reader(ByteBuffer view, long position) {
+            mView = view;
+            mPosition = position;
+        }
+
+        /** Returns the end position of the last successful read. */
+        long getPosition() {
+            return mPosition;
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    // Used only by the writer thread.
+    private final ByteBuffer mWriteView;
+    private final Set<Reader> mReaders =
+            Collections.newSetFromMap(new ConcurrentHashMap<Reader, Boolean>());
+
+    // The end of the data which readers can read. Advanced after the data is copied in.
+    private volatile long mWritePosition;
+    // The end of the region which the writer is copying to. Advanced before the data is copied in,
+    // so readers can tell whether the data they just copied out could have been overwritten.
+    private final AtomicLong mWriteReservePosition = new AtomicLong();
+    // Holds back the writer while there is no reader, so the data isn't overwritten before the
+    // first reader is added or after the last one is removed.
+    private volatile long mIdleReadPosition;
+    private volatile boolean mOpen;
+
+    private final Set<Thread> mWaitingReaders =
+            Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    private volatile Thread mWaitingWriter;
+
+    TsRingBuffer(int capacity) {
+        mCapacity = capacity;
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+        mWriteView = mBuffer.duplicate();
+    }
+
+    /**
+     * Opens the buffer and resets all the positions. Should be called before the writer starts.
+     *
+     * @return {@code false} if the buffer is already open
+     */
+    synchronized boolean open() {
+        if (mOpen) {
+            return false;
+        }
+        mWritePosition = 0;
+        mWriteReservePosition.set(0);
+        mIdleReadPosition = 0;
+        for (Reader reader : mReaders) {
+            reader.mPosition = 0;
+        }
+        mOpen = true;
+        return true;
+    }
+
+    /** Closes the buffer and wakes up all the waiting readers and the writer. */
+    synchronized void close() {
+        mOpen = false;
+        wakeUpReaders();
+        wakeUpWriter();
+    }
+
+    boolean isOpen() {
+        return mOpen;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Returns the total number of bytes written since {@link #open()}. */
+    long getWritePosition() {
+        return mWritePosition;
+    }
+
+    /**
+     * Adds a reader which starts reading at the given position. The reader should be removed with
+     * {@link #removeReader} when it's done, otherwise it keeps holding back the writer.
+     */
+    Reader addReader(long position) {
+        Reader reader = new Reader(mBuffer.asReadOnlyBuffer(), position);
+        mReaders.add(reader);
+        wakeUpWriter();
+        return reader;
+    }
+
+    /** Removes the reader, so that the writer no longer waits for it. */
+    void removeReader(Reader reader) {
+        if (!mReaders.remove(reader)) {
+            return;
+        }
+        if (mReaders.isEmpty()) {
+            mIdleReadPosition = Math.max(mIdleReadPosition, reader.mPosition);
+        }
+        wakeUpWriter();
+    }
+
+    /** Returns the end position of the last successful read of the slowest reader. */
+    long getSlowestReadPosition() {
+        long slowest = Long.MAX_VALUE;
+        for (Reader reader : mReaders) {
+            slowest = Math.min(slowest, reader.mPosition);
+        }
+        return slowest == Long.MAX_VALUE ? mIdleReadPosition : slowest;
+    }
+
+    /**
+     * Appends data to the buffer, overwriting the oldest data if needed. Must be called only from
+     * the single writer thread.
+     */
+    void write(byte[] data, int offset, int length) {
+        long writePosition = mWritePosition;
+        reserve(writePosition + length);
+        int posInBuffer = (int) (writePosition % mCapacity);
+        int bytesToCopyInFirstPass = Math.min(length, mCapacity - posInBuffer);
+        mWriteView.clear();
+        mWriteView.position(posInBuffer);
+        mWriteView.put(data, offset, bytesToCopyInFirstPass);
+        if (bytesToCopyInFirstPass < length) {
+            mWriteView.position(0);
+            mWriteView.put(data, offset + bytesToCopyInFirstPass, length - bytesToCopyInFirstPass);
+        }
+        publishWrite(writePosition + length);
+    }
+
+    /**
+     * Returns the region where the next data should be written in place. The returned buffer is
+     * positioned at the write position and limited to at most {@code maxLength} bytes which do not
+     * wrap around. After filling it, the writer must call {@link #endWrite} with the number of
+     * bytes written. Must be called only from the single writer thread.
+     */
+    ByteBuffer beginWrite(int maxLength) {
+        long writePosition = mWritePosition;
+        int posInBuffer = (int) (writePosition % mCapacity);
+        int length = Math.min(maxLength, mCapacity - posInBuffer);
+        reserve(writePosition + length);
+        mWriteView.clear();
+        mWriteView.position(posInBuffer);
+        mWriteView.limit(posInBuffer + length);
+        return mWriteView;
+    }
+
+    /** Publishes {@code length} bytes written to the buffer returned by {@link #beginWrite}. */
+    void endWrite(int length) {
+        publishWrite(mWritePosition + length);
+    }
+
+    /**
+     * Marks the region up to {@code position} as being written. A plain volatile store isn't enough
+     * here, since it doesn't keep the following plain stores of the data from being reordered
+     * before it. {@link AtomicLong#getAndSet} is also a volatile read, which they can't move
+     * before, so a reader which sees any of the new data also sees the reservation.
+     */
+    private void reserve(long position) {
+        mWriteReservePosition.getAndSet(position);
+    }
+
+    private void publishWrite(long writePosition) {
+        mWritePosition = writePosition;
+        if (!mWaitingReaders.isEmpty()) {
+            wakeUpReaders();
+        }
+    }
+
+    /**
+     * Blocks the writer until the slowest reader is close enough to the write position that {@code
+     * length} more bytes can be written without overwriting the data it hasn't read.
+     *
+     * @return {@code false} if the buffer was closed while waiting
+     */
+    boolean waitForFreeSpace(int length) {
+        mWaitingWriter = Thread.currentThread();
+        try {
+            while (mOpen && mWritePosition - getSlowestReadPosition() + length > mCapacity) {
+                LockSupport.park(this);
+            }
+        } finally {
+            mWaitingWriter = null;
+        }
+        return mOpen;
+    }
+
+    /**
+     * Reads data at the given position.
+     *
+     * @param reader the reader which reads the data
+     * @param pos the position to read from
+     * @param buffer to read
+     * @param offset start position of the read buffer
+     * @param amount number of bytes to read
+     * @param timeoutMs how long to wait for the data to be written
+     * @return {@code amount} when successful, otherwise one of {@link #READ_TIMED_OUT}, {@link
+     *     #READ_ERROR_STREAMING_ENDED} and {@link #READ_ERROR_BUFFER_OVERWRITTEN}
+     */
+    int readAt(Reader reader, long pos, byte[] buffer, int offset, int amount, long timeoutMs) {
+        int ret = waitForRead(pos, amount, timeoutMs);
+        if (ret < 0) {
+            return ret;
+        }
+        int posInBuffer = (int) (pos % mCapacity);
+        int bytesToCopyInFirstPass = Math.min(amount, mCapacity - posInBuffer);
+        ByteBuffer readView = reader.mView;
+        readView.clear();
+        readView.position(posInBuffer);
+        readView.get(buffer, offset, bytesToCopyInFirstPass);
+        if (bytesToCopyInFirstPass < amount) {
+            readView.position(0);
+            readView.get(buffer, offset + bytesToCopyInFirstPass, amount - bytesToCopyInFirstPass);
+        }
+        return finishRead(reader, pos, amount) ? amount : READ_ERROR_BUFFER_OVERWRITTEN;
+    }
+
+    /**
+     * Waits for the data at the given position to be written, to read it in place with {@link
+     * #getReadView}.
+     *
+     * @return {@code amount} when the data is available, otherwise one of {@link #READ_TIMED_OUT},
+     *     {@link #READ_ERROR_STREAMING_ENDED} and {@link #READ_ERROR_BUFFER_OVERWRITTEN}
+     */
+    int waitForRead(long pos, int amount, long timeoutMs) {
+        if (!waitForData(pos + amount, timeoutMs)) {
+            return mOpen ? READ_TIMED_OUT : READ_ERROR_STREAMING_ENDED;
+        }
+        if (mWriteReservePosition.get() - mCapacity > pos) {
+            return READ_ERROR_BUFFER_OVERWRITTEN;
+        }
+        return amount;
+    }
+
+    /** Returns how many bytes from the given position can be read without wrapping around. */
+    int getContiguousLength(long pos) {
+        return mCapacity - (int) (pos % mCapacity);
+    }
+
+    /**
+     * Returns a read-only view of the data at the given position, without copying it. The view is
+     * reused by the reader, and is positioned at the data and limited to its end. The data
+     * can be overwritten while it's being read, so the caller must check it with {@link
+     * #finishRead} after reading and discard what it read if that fails.
+     *
+     * @param amount the number of bytes, which must not be more than {@link #getContiguousLength}
+     */
+    ByteBuffer getReadView(Reader reader, long pos, int amount) {
+        int posInBuffer = (int) (pos % mCapacity);
+        if (amount > mCapacity - posInBuffer) {
+            throw new IllegalArgumentException("The data wraps around the end of the buffer");
+        }
+        ByteBuffer readView = reader.mView;
+        readView.clear();
+        readView.position(posInBuffer);
+        readView.limit(posInBuffer + amount);
+        return readView;
+    }
+
+    /**
+     * Publishes the end of a read of the reader, and checks whether the data read was overwritten
+     * meanwhile.
+     *
+     * @return {@code false} if the writer caught up with the reader while it was reading
+     */
+    boolean finishRead(Reader reader, long pos, int amount) {
+        // Publishing the read position is a volatile write, which the loads of the read can't move
+        // after, and the volatile read below can't move before it, so the read is complete before
+        // the reserve position is checked again.
+        reader.mPosition = pos + amount;
+        if (mWriteReservePosition.get() - mCapacity > pos) {
+            return false;
+        }
+        wakeUpWriter();
+        return true;
+    }
+
+    private boolean waitForData(long endPosition, long timeoutMs) {
+        if (mWritePosition >= endPosition) {
+            return mOpen;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        Thread current = Thread.currentThread();
+        mWaitingReaders.add(current);
+        try {
+            while (mOpen && mWritePosition < endPosition) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            mWaitingReaders.remove(current);
+        }
+        return mOpen;
+    }
+
+    private void wakeUpWriter() {
+        Thread writer = mWaitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void wakeUpReaders() {
+        for (Thread reader : mWaitingReaders) {
+            LockSupport.unpark(reader);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * A thread which consumes the data of a {@link TsRingBuffer} at its own position, so that a slow
+ * consumer does not stall the writer.
+ *
+ * <p>When the consumer falls more than the maximum lag behind the writer, or the data it asked for
+ * was overwritten, it jumps forward to catch up and the skipped bytes are counted as dropped. Data
+ * is consumed in whole TS packets.
+ *
+ * <p>The data is consumed in place from the buffer, without copying it. It's checked after being
+ * consumed whether the writer overwrote it meanwhile, which is handled like the other overwrites,
+ * so the consumers should tolerate broken data, as they do for the data from the tuner.
+ */
+abstract class TsRingBufferConsumer extends Thread {
+    private static final String TAG = "TsRingBufferConsumer";
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int READ_UNIT = TS_PACKET_SIZE * 80; // ~15KB
+    private static final int READ_TIMEOUT_MS = 100;
+
+    private final TsRingBuffer mRingBuffer;
+    private final long mMaxLagBytes;
+    // Used only for a packet which wraps around the end of the buffer.
+    private final byte[] mPacket = new byte[TS_PACKET_SIZE];
+    private final ByteBuffer mPacketView = ByteBuffer.wrap(mPacket).asReadOnlyBuffer();
+
+    // The metrics are written only by this thread.
+    private volatile long mPosition;
+    private volatile long mDroppedBytes;
+    private volatile int mDropCount;
+    private volatile long mConsumeCount;
+    private volatile long mTotalConsumeTimeNs;
+    private volatile long mMaxConsumeTimeNs;
+
+    /**
+     * Creates a consumer which starts at the beginning of the buffer.
+     *
+     * @param name the name of the thread, which is also used for the metrics
+     * @param ringBuffer the buffer to consume
+     * @param maxLagBytes how far the consumer can fall behind the writer before skipping data,
+     *     which is limited to the half of the capacity of the buffer
+     */
+    TsRingBufferConsumer(String name, TsRingBuffer ringBuffer, long maxLagBytes) {
+        super(name);
+        mRingBuffer = ringBuffer;
+        mMaxLagBytes = Math.min(maxLagBytes, ringBuffer.getCapacity() / 2);
+    }
+
+    /**
+     * Consumes TS packets read from the buffer. Called on this thread.
+     *
+     * @param data a read-only view of the packets from its position to its limit, whose size is a
+     *     multiple of the TS packet size. It's valid only during this call.
+     */
+    protected abstract void consume(ByteBuffer data);
+
+    /**
+     * Called on this thread before each read, including when no data is available. Can be
+     * overridden to handle requests from other threads.
+     */
+    protected void onPrepareRead() {}
+
+    @Override
+    public void run() {
+        TsRingBuffer.Reader reader = mRingBuffer.addReader(mPosition);
+        try {
+            consumeUntilEnd(reader);
+        } finally {
+            mRingBuffer.removeReader(reader);
+        }
+    }
+
+    private void consumeUntilEnd(TsRingBuffer.Reader reader) {
+        while (true) {
+            onPrepareRead();
+            long writePosition = mRingBuffer.getWritePosition();
+            if (writePosition - mPosition > mMaxLagBytes) {
+                skipTo(writePosition - mMaxLagBytes / 2);
+            }
+            long available = (writePosition - mPosition) / TS_PACKET_SIZE * TS_PACKET_SIZE;
+            // Waits for at least a packet when there is no data.
+            int amount = (int) Math.max(TS_PACKET_SIZE, Math.min(available, READ_UNIT));
+            int contiguous =
+                    mRingBuffer.getContiguousLength(mPosition) / TS_PACKET_SIZE * TS_PACKET_SIZE;
+            // A packet wraps around only when the capacity is not a multiple of the packet size.
+            boolean copy = contiguous == 0;
+            int ret;
+            if (copy) {
+                amount = TS_PACKET_SIZE;
+                ret = mRingBuffer.readAt(reader, mPosition, mPacket, 0, amount, READ_TIMEOUT_MS);
+            } else {
+                amount = Math.min(amount, contiguous);
+                ret = mRingBuffer.waitForRead(mPosition, amount, READ_TIMEOUT_MS);
+            }
+            if (ret == TsRingBuffer.READ_ERROR_STREAMING_ENDED) {
+                break;
+            } else if (ret == TsRingBuffer.READ_ERROR_BUFFER_OVERWRITTEN) {
+                skipTo(mRingBuffer.getWritePosition() - mMaxLagBytes / 2);
+                continue;
+            } else if (ret < 0) {
+                continue;
+            }
+            long startNs = System.nanoTime();
+            if (copy) {
+                mPacketView.clear();
+                consume(mPacketView);
+            } else {
+                consume(mRingBuffer.getReadView(reader, mPosition, amount));
+            }
+            long consumeTimeNs = System.nanoTime() - startNs;
+            if (!copy && !mRingBuffer.finishRead(reader, mPosition, amount)) {
+                // The writer caught up with this consumer while it was consuming.
+                skipTo(mRingBuffer.getWritePosition() - mMaxLagBytes / 2);
+                continue;
+            }
+            mPosition += amount;
+            mConsumeCount++;
+            mTotalConsumeTimeNs += consumeTimeNs;
+            if (consumeTimeNs > mMaxConsumeTimeNs) {
+                mMaxConsumeTimeNs = consumeTimeNs;
+            }
+        }
+    }
+
+    private void skipTo(long position) {
+        // Keeps the position aligned to the TS packets.
+        position = position / TS_PACKET_SIZE * TS_PACKET_SIZE;
+        if (position <= mPosition) {
+            return;
+        }
+        Log.w(TAG, getName() + " is lagging behind, skips " + (position - mPosition) + " bytes");
+        mDroppedBytes += position - mPosition;
+        mDropCount++;
+        mPosition = position;
+    }
+
+    /** Returns the number of bytes written to the buffer but not consumed yet. */
+    long getBacklogBytes() {
+        return Math.max(0, mRingBuffer.getWritePosition() - mPosition);
+    }
+
+    /** Returns the number of bytes skipped because the consumer was lagging behind. */
+    long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /** Returns how many times data was skipped. */
+    int getDropCount() {
+        return mDropCount;
+    }
+
+    /** Returns the average time to consume a read in microseconds. */
+    long getAverageConsumeTimeUs() {
+        long count = mConsumeCount;
+        return count == 0 ? 0 : mTotalConsumeTimeNs / count / 1000;
+    }
+
+    /** Returns the longest time to consume a read in microseconds. */
+    long getMaxConsumeTimeUs() {
+        return mMaxConsumeTimeNs / 1000;
+    }
+
+    /** Returns the metrics as a string for logging. */
+    String getMetrics() {
+        return String.format(
+                Locale.US,
+                "%s{backlog=%d, dropped=%d bytes in %d, consume avg=%dus max=%dus}",
+                getName(),
+                getBacklogBytes(),
+                getDroppedBytes(),
+                getDropCount(),
+                getAverageConsumeTimeUs(),
+                getMaxConsumeTimeUs());
+    }
+}
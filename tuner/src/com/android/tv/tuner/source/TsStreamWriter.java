@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -138,6 +139,30 @@ public class TsStreamWriter {
         }
     }
 
+    /**
+     * Writes the remaining data of the buffer to the file. The position of {@code buffer} is not
+     * changed.
+     *
+     * @param buffer the data to be written
+     */
+    public void writeToFile(ByteBuffer buffer) {
+        if (mFileOutputStream == null) {
+            return;
+        }
+        if (System.currentTimeMillis() - mFileStartTimeMs > TIME_LIMIT_MS) {
+            closeFile(false);
+            openFile();
+        }
+        try {
+            ByteBuffer data = buffer.duplicate();
+            while (data.hasRemaining()) {
+                mFileOutputStream.getChannel().write(data);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error on writing TS stream.", e);
+        }
+    }
+
     /**
      * Deletes outdated files to save storage.
      *
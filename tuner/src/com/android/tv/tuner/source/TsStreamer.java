@@ -43,6 +43,12 @@ public interface TsStreamer {
     /** Stops streaming the data. */
     void stopStream();
 
+    /**
+     * Returns the number of bytes streamed since the streaming started. Stays zero while no
+     * signal is received.
+     */
+    long getBufferedPosition();
+
     /**
      * Creates {@link TsDataSource} which will provide MPEG-2 TS stream for {@link
      * android.media.MediaExtractor}. The source will start from the position where it is created.
@@ -34,8 +34,10 @@ import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.TransferListener;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
 /** Provides MPEG-2 TS stream sources for channel playing from an underlying tuner device. */
@@ -44,23 +46,22 @@ public class TunerTsStreamer implements TsStreamer {
 
     private static final int MIN_READ_UNIT = 1500;
     private static final int READ_BUFFER_SIZE = MIN_READ_UNIT * 10; // ~15KB
-    private static final int CIRCULAR_BUFFER_SIZE = MIN_READ_UNIT * 20000; // ~ 30MB
     private static final int TS_PACKET_SIZE = 188;
+    // A multiple of TS_PACKET_SIZE, so the tuner never has to split a packet at the end of the
+    // circular buffer.
+    private static final int CIRCULAR_BUFFER_SIZE = TS_PACKET_SIZE * 160000; // ~ 30MB
 
     private static final int READ_TIMEOUT_MS = 5000; // 5 secs.
     private static final int BUFFER_UNDERRUN_SLEEP_MS = 10;
-    private static final int READ_ERROR_STREAMING_ENDED = -1;
-    private static final int READ_ERROR_BUFFER_OVERWRITTEN = -2;
+    // How far the consumers of the stream other than the player can fall behind the tuner.
+    private static final int MAX_CONSUMER_LAG_BYTES = CIRCULAR_BUFFER_SIZE / 2;
 
-    private final Object mCircularBufferMonitor = new Object();
-    private final byte[] mCircularBuffer = new byte[CIRCULAR_BUFFER_SIZE];
-    private long mBytesFetched;
-    private final AtomicLong mLastReadPosition = new AtomicLong();
-    private boolean mStreaming;
+    private final TsRingBuffer mCircularBuffer = new TsRingBuffer(CIRCULAR_BUFFER_SIZE);
 
     private final Tuner mTunerHal;
     private TunerChannel mChannel;
     private Thread mStreamingThread;
+    private final List<TsRingBufferConsumer> mConsumers = new CopyOnWriteArrayList<>();
     private final EventDetector mEventDetector;
     private final List<Pair<EventListener, Boolean>> mEventListenerActions = new ArrayList<>();
 
@@ -70,6 +71,8 @@ public class TunerTsStreamer implements TsStreamer {
     public static class TunerDataSource extends TsDataSource {
         private final TunerTsStreamer mTsStreamer;
         private final AtomicLong mLastReadPosition = new AtomicLong(0);
+        // Registered while the data source is open, so the streamer doesn't overwrite its data.
+        private TsRingBuffer.Reader mReader;
         private long mStartBufferedPosition;
         private Uri mUri;
 
@@ -99,25 +102,36 @@ public class TunerTsStreamer implements TsStreamer {
         public long open(DataSpec dataSpec) {
             mUri = dataSpec.uri;
             mLastReadPosition.set(0);
+            removeReader();
+            mReader = mTsStreamer.mCircularBuffer.addReader(mStartBufferedPosition);
             return C.LENGTH_UNSET;
         }
 
         @Override
         public void close() {
             mUri = null;
+            removeReader();
+        }
+
+        private void removeReader() {
+            if (mReader != null) {
+                mTsStreamer.mCircularBuffer.removeReader(mReader);
+                mReader = null;
+            }
         }
 
         @Override
         public int read(byte[] buffer, int offset, int readLength) throws IOException {
             int ret =
                     mTsStreamer.readAt(
+                            mReader,
                             mStartBufferedPosition + mLastReadPosition.get(),
                             buffer,
                             offset,
                             readLength);
             if (ret > 0) {
                 mLastReadPosition.addAndGet(ret);
-            } else if (ret == READ_ERROR_BUFFER_OVERWRITTEN) {
+            } else if (ret == TsRingBuffer.READ_ERROR_BUFFER_OVERWRITTEN) {
                 long currentPosition = mStartBufferedPosition + mLastReadPosition.get();
                 long endPosition = mTsStreamer.getBufferedPosition();
                 long diff =
@@ -199,21 +213,15 @@ public class TunerTsStreamer implements TsStreamer {
             }
             mChannel = channel;
             mChannelNumber = channel.getDisplayNumber();
-            synchronized (mCircularBufferMonitor) {
-                if (mStreaming) {
-                    Log.w(TAG, "Streaming should be stopped before start streaming");
-                    return true;
-                }
-                mStreaming = true;
-                mBytesFetched = 0;
-                mLastReadPosition.set(0L);
+            if (!mCircularBuffer.open()) {
+                Log.w(TAG, "Streaming should be stopped before start streaming");
+                return true;
             }
             if (mTsStreamWriter != null) {
                 mTsStreamWriter.setChannel(mChannel);
                 mTsStreamWriter.openFile();
             }
-            mStreamingThread = new StreamingThread();
-            mStreamingThread.start();
+            startThreads();
             Log.i(TAG, "Streaming started");
             return true;
         }
@@ -227,23 +235,34 @@ public class TunerTsStreamer implements TsStreamer {
             mEventDetector.startDetecting(
                     channel.deliverySystemType, channel.frequency, channel.modulation,
                     EventDetector.ALL_PROGRAM_NUMBERS);
-            synchronized (mCircularBufferMonitor) {
-                if (mStreaming) {
-                    Log.w(TAG, "Streaming should be stopped before start streaming");
-                    return true;
-                }
-                mStreaming = true;
-                mBytesFetched = 0;
-                mLastReadPosition.set(0L);
+            if (!mCircularBuffer.open()) {
+                Log.w(TAG, "Streaming should be stopped before start streaming");
+                return true;
             }
-            mStreamingThread = new StreamingThread();
-            mStreamingThread.start();
+            startThreads();
             Log.i(TAG, "Streaming started");
             return true;
         }
         return false;
     }
 
+    private void startThreads() {
+        // The tuner only fills the circular buffer, and the data is parsed and dumped on their own
+        // threads, so that they never stall reading from the tuner device.
+        mConsumers.clear();
+        if (mEventDetector != null) {
+            mConsumers.add(new EventDetectorThread());
+        }
+        if (mTsStreamWriter != null && mChannel != null) {
+            mConsumers.add(new TsStreamWriterThread());
+        }
+        for (TsRingBufferConsumer consumer : mConsumers) {
+            consumer.start();
+        }
+        mStreamingThread = new StreamingThread();
+        mStreamingThread.start();
+    }
+
     /**
      * Blocks the current thread until the streaming thread stops. In rare cases when the tuner
      * device is overloaded this can take a while, but usually it returns pretty quickly.
@@ -251,18 +270,21 @@ public class TunerTsStreamer implements TsStreamer {
     @Override
     public void stopStream() {
         mChannel = null;
-        synchronized (mCircularBufferMonitor) {
-            mStreaming = false;
-            mCircularBufferMonitor.notifyAll();
-        }
+        mCircularBuffer.close();
 
         try {
             if (mStreamingThread != null) {
                 mStreamingThread.join();
             }
+            for (TsRingBufferConsumer consumer : mConsumers) {
+                consumer.join();
+            }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        for (TsRingBufferConsumer consumer : mConsumers) {
+            Log.i(TAG, consumer.getMetrics());
+        }
         if (mTsStreamWriter != null) {
             mTsStreamWriter.closeFile(true);
             mTsStreamWriter.setChannel(null);
@@ -307,14 +329,21 @@ public class TunerTsStreamer implements TsStreamer {
      *
      * @return the current buffered position
      */
+    @Override
     public long getBufferedPosition() {
-        synchronized (mCircularBufferMonitor) {
-            return mBytesFetched;
-        }
+        return mCircularBuffer.getWritePosition();
     }
 
     public String getStreamerInfo() {
-        return "Channel: " + mChannelNumber + ", Streaming: " + mStreaming;
+        StringBuilder info =
+                new StringBuilder("Channel: ")
+                        .append(mChannelNumber)
+                        .append(", Streaming: ")
+                        .append(mCircularBuffer.isOpen());
+        for (TsRingBufferConsumer consumer : mConsumers) {
+            info.append(", ").append(consumer.getMetrics());
+        }
+        return info.toString();
     }
 
     public void registerListener(EventListener listener) {
@@ -340,31 +369,10 @@ public class TunerTsStreamer implements TsStreamer {
     private class StreamingThread extends Thread {
         @Override
         public void run() {
-            // Buffers for streaming data from the tuner and the internal buffer.
-            byte[] dataBuffer = new byte[READ_BUFFER_SIZE];
-
-            while (true) {
-                synchronized (mCircularBufferMonitor) {
-                    if (!mStreaming) {
-                        break;
-                    }
-                }
-
-                if (mEventDetector != null) {
-                    synchronized (mEventListenerActions) {
-                        for (Pair listenerAction : mEventListenerActions) {
-                            EventListener listener = (EventListener) listenerAction.first;
-                            if ((boolean) listenerAction.second) {
-                                mEventDetector.registerListener(listener);
-                            } else {
-                                mEventDetector.unregisterListener(listener);
-                            }
-                        }
-                        mEventListenerActions.clear();
-                    }
-                }
-
-                int bytesWritten = mTunerHal.readTsStream(dataBuffer, dataBuffer.length);
+            while (mCircularBuffer.isOpen()) {
+                // The tuner writes straight into the off-heap circular buffer.
+                ByteBuffer dataBuffer = mCircularBuffer.beginWrite(READ_BUFFER_SIZE);
+                int bytesWritten = mTunerHal.readTsStream(dataBuffer);
                 if (bytesWritten <= 0) {
                     try {
                         // When buffer is underrun, we sleep for short time to prevent
@@ -375,42 +383,54 @@ public class TunerTsStreamer implements TsStreamer {
                     }
                     continue;
                 }
+                mCircularBuffer.endWrite(bytesWritten);
+            }
 
-                if (mTsStreamWriter != null) {
-                    mTsStreamWriter.writeToFile(dataBuffer, bytesWritten);
-                }
+            Log.i(TAG, "Streaming stopped");
+        }
+    }
 
-                if (mEventDetector != null) {
-                    mEventDetector.feedTSStream(dataBuffer, 0, bytesWritten);
-                }
-                synchronized (mCircularBufferMonitor) {
-                    int posInBuffer = (int) (mBytesFetched % CIRCULAR_BUFFER_SIZE);
-                    int bytesToCopyInFirstPass = bytesWritten;
-                    if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                        bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-                    }
-                    System.arraycopy(
-                            dataBuffer, 0, mCircularBuffer, posInBuffer, bytesToCopyInFirstPass);
-                    if (bytesToCopyInFirstPass < bytesWritten) {
-                        System.arraycopy(
-                                dataBuffer,
-                                bytesToCopyInFirstPass,
-                                mCircularBuffer,
-                                0,
-                                bytesWritten - bytesToCopyInFirstPass);
+    private class EventDetectorThread extends TsRingBufferConsumer {
+        EventDetectorThread() {
+            super("EventDetectorThread", mCircularBuffer, MAX_CONSUMER_LAG_BYTES);
+        }
+
+        @Override
+        protected void onPrepareRead() {
+            synchronized (mEventListenerActions) {
+                for (Pair listenerAction : mEventListenerActions) {
+                    EventListener listener = (EventListener) listenerAction.first;
+                    if ((boolean) listenerAction.second) {
+                        mEventDetector.registerListener(listener);
+                    } else {
+                        mEventDetector.unregisterListener(listener);
                     }
-                    mBytesFetched += bytesWritten;
-                    mCircularBufferMonitor.notifyAll();
                 }
+                mEventListenerActions.clear();
             }
+        }
 
-            Log.i(TAG, "Streaming stopped");
+        @Override
+        protected void consume(ByteBuffer data) {
+            mEventDetector.feedTSStream(data, data.position(), data.remaining());
+        }
+    }
+
+    private class TsStreamWriterThread extends TsRingBufferConsumer {
+        TsStreamWriterThread() {
+            super("TsStreamWriterThread", mCircularBuffer, MAX_CONSUMER_LAG_BYTES);
+        }
+
+        @Override
+        protected void consume(ByteBuffer data) {
+            mTsStreamWriter.writeToFile(data);
         }
     }
 
     /**
      * Reads data from internal buffer.
      *
+     * @param reader the reader of the data source
      * @param pos the position to read from
      * @param buffer to read
      * @param offset start position of the read buffer
@@ -418,37 +438,17 @@ public class TunerTsStreamer implements TsStreamer {
      * @return number of read bytes when successful, {@code -1} otherwise
      * @throws IOException
      */
-    public int readAt(long pos, byte[] buffer, int offset, int amount) throws IOException {
+    int readAt(TsRingBuffer.Reader reader, long pos, byte[] buffer, int offset, int amount)
+            throws IOException {
         while (true) {
-            synchronized (mCircularBufferMonitor) {
-                if (!mStreaming) {
-                    return READ_ERROR_STREAMING_ENDED;
-                }
-                if (mBytesFetched - CIRCULAR_BUFFER_SIZE > pos) {
-                    Log.w(TAG, "Demux is requesting the data which is already overwritten.");
-                    return READ_ERROR_BUFFER_OVERWRITTEN;
-                }
-                if (mBytesFetched < pos + amount) {
-                    try {
-                        mCircularBufferMonitor.wait(READ_TIMEOUT_MS);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                    // Try again to prevent starvation.
-                    // Give chances to read from other threads.
-                    continue;
-                }
-                int startPos = (int) (pos % CIRCULAR_BUFFER_SIZE);
-                int endPos = (int) ((pos + amount) % CIRCULAR_BUFFER_SIZE);
-                int firstLength = (startPos > endPos ? CIRCULAR_BUFFER_SIZE : endPos) - startPos;
-                System.arraycopy(mCircularBuffer, startPos, buffer, offset, firstLength);
-                if (firstLength < amount) {
-                    System.arraycopy(
-                            mCircularBuffer, 0, buffer, offset + firstLength, amount - firstLength);
-                }
-                mCircularBufferMonitor.notifyAll();
-                return amount;
+            int ret = mCircularBuffer.readAt(reader, pos, buffer, offset, amount, READ_TIMEOUT_MS);
+            if (ret == TsRingBuffer.READ_ERROR_BUFFER_OVERWRITTEN) {
+                Log.w(TAG, "Demux is requesting the data which is already overwritten.");
+            }
+            if (ret != TsRingBuffer.READ_TIMED_OUT) {
+                return ret;
             }
+            // Try again until the streaming ends.
         }
     }
 }
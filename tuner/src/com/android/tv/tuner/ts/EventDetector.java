@@ -27,7 +27,9 @@ import com.android.tv.tuner.data.PsipData.EitItem;
 import com.android.tv.tuner.data.Track.AtscAudioTrack;
 import com.android.tv.tuner.data.Track.AtscCaptionTrack;
 import com.android.tv.tuner.data.TunerChannel;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -43,7 +45,8 @@ public class EventDetector {
     private final Tuner mTunerHal;
 
     private TsParser mTsParser;
-    private final Set<Integer> mPidSet = new HashSet<>();
+    // The PIDs which were added to the tuner filter, indexed directly by the PID.
+    private final BitSet mPidSet = new BitSet(PidTable.PID_COUNT);
 
     // To prevent channel duplication
     private final Set<Integer> mVctProgramNumberSet = new HashSet<>();
@@ -294,10 +297,10 @@ public class EventDetector {
     }
 
     private void startListening(int pid) {
-        if (mPidSet.contains(pid)) {
+        if (mPidSet.get(pid)) {
             return;
         }
-        mPidSet.add(pid);
+        mPidSet.set(pid);
         mTunerHal.addPidFilter(pid, Tuner.FILTER_TYPE_OTHER);
     }
 
@@ -317,6 +320,22 @@ public class EventDetector {
         }
     }
 
+    /**
+     * Feeds ATSC TS stream in a {@link ByteBuffer} without changing its position.
+     *
+     * @param data buffer for ATSC TS stream, which may be a direct buffer
+     * @param startOffset the absolute offset where the data starts
+     * @param length The length of available data
+     */
+    public void feedTSStream(ByteBuffer data, int startOffset, int length) {
+        if (mPidSet.isEmpty()) {
+            startListening(TsParser.ATSC_SI_BASE_PID);
+        }
+        if (mTsParser != null) {
+            mTsParser.feedTSData(data, startOffset, length);
+        }
+    }
+
     /**
      * Retrieves the channel information regardless of being well-formed.
      *
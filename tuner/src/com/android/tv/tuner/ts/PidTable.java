@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import java.util.Arrays;
+
+/**
+ * A map from MPEG-2 TS PIDs to values, which is indexed directly by the 13 bit PID.
+ *
+ * <p>It is looked up for every TS packet of a multiplex, so a lookup is a single array access
+ * without boxing or searching.
+ */
+final class PidTable<T> {
+    /** The number of the possible PIDs. */
+    static final int PID_COUNT = 0x2000;
+
+    private final Object[] mValues = new Object[PID_COUNT];
+    private int mSize;
+
+    /** Reads the PID from the header of the TS packet which starts at {@code pos}. */
+    static int readPid(byte[] tsData, int pos) {
+        return ((tsData[pos + 1] & 0x1f) << 8) | (tsData[pos + 2] & 0xff);
+    }
+
+    /** Returns the value for the PID, or {@code null} if there is none. */
+    @SuppressWarnings("unchecked")
+    T get(int pid) {
+        return (T) mValues[pid];
+    }
+
+    boolean contains(int pid) {
+        return mValues[pid] != null;
+    }
+
+    /** Sets the value for the PID, replacing the previous value. */
+    void put(int pid, T value) {
+        if (mValues[pid] == null) {
+            mSize++;
+        }
+        mValues[pid] = value;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    void clear() {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+}
@@ -17,7 +17,6 @@
 package com.android.tv.tuner.ts;
 
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import com.android.tv.tuner.data.PsiData.PatItem;
 import com.android.tv.tuner.data.PsiData.PmtItem;
@@ -30,8 +29,8 @@ import com.android.tv.tuner.data.SectionParser;
 import com.android.tv.tuner.data.SectionParser.OutputListener;
 import com.android.tv.tuner.data.TunerChannel;
 import com.android.tv.tuner.util.ByteArrayBuffer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,14 +50,13 @@ public class TsParser {
     private static final int TS_PACKET_SIZE = 188;
 
     /*
-     * Using a SparseArray removes the need to auto box the int key for mStreamMap
-     * in feedTdPacket which is called 100 times a second. This greatly reduces the
-     * number of objects created and the frequency of garbage collection.
-     * Other maps might be suitable for a SparseArray, but the performance
-     * trade offs must be considered carefully.
-     * mStreamMap is the only one called at such a high rate.
+     * mStreamTable is looked up for every packet of the multiplex, so it is indexed directly by
+     * the PID instead of being searched. Most of the packets are audio and video, which are
+     * skipped after reading the PID.
      */
-    private final SparseArray<Stream> mStreamMap = new SparseArray<>();
+    private final PidTable<Stream> mStreamTable = new PidTable<>();
+    // Holds a packet copied out of a ByteBuffer, which only happens for the PIDs being parsed.
+    private final byte[] mPacketBuffer = new byte[TS_PACKET_SIZE];
     private final Map<Integer, VctItem> mSourceIdToVctItemMap = new HashMap<>();
     private final Map<Integer, String> mSourceIdToVctItemDescriptionMap = new HashMap<>();
     private final Map<Integer, VctItem> mProgramNumberToVctItemMap = new HashMap<>();
@@ -102,15 +100,31 @@ public class TsParser {
         protected int mContinuityCounter = INVALID_CONTINUITY_COUNTER;
         protected final ByteArrayBuffer mPacket = new ByteArrayBuffer(TS_PACKET_SIZE);
 
-        public void feedData(byte[] data, int continuityCounter, boolean startIndicator) {
+        /**
+         * Feeds the payload of a TS packet. The payload is read in place from {@code data}, so the
+         * caller may reuse the buffer as soon as this method returns.
+         *
+         * @param data the buffer which contains the payload
+         * @param offset the offset where the payload starts
+         * @param length the length of the payload
+         * @param continuityCounter the continuity counter of the TS packet
+         * @param startIndicator the payload unit start indicator of the TS packet
+         */
+        public void feedData(
+                byte[] data,
+                int offset,
+                int length,
+                int continuityCounter,
+                boolean startIndicator) {
             if ((mContinuityCounter + 1) % NUM_CONTINUITY_COUNTER != continuityCounter) {
                 mPacket.setLength(0);
             }
             mContinuityCounter = continuityCounter;
-            handleData(data, startIndicator);
+            handleData(data, offset, length, startIndicator);
         }
 
-        protected abstract void handleData(byte[] data, boolean startIndicator);
+        protected abstract void handleData(
+                byte[] data, int offset, int length, boolean startIndicator);
 
         protected abstract void resetDataVersions();
     }
@@ -125,27 +139,28 @@ public class TsParser {
         }
 
         @Override
-        protected void handleData(byte[] data, boolean startIndicator) {
-            int startPos = 0;
+        protected void handleData(byte[] data, int offset, int length, boolean startIndicator) {
+            int startPos = offset;
+            int endPos = offset + length;
             if (mPacket.length() == 0) {
                 if (startIndicator) {
-                    startPos = (data[0] & 0xff) + 1;
+                    startPos += (data[offset] & 0xff) + 1;
                 } else {
                     // Don't know where the section starts yet. Wait until start indicator is on.
                     return;
                 }
             } else {
                 if (startIndicator) {
-                    startPos = 1;
+                    startPos += 1;
                 }
             }
 
             // When a broken packet is encountered, parsing will stop and return right away.
-            if (startPos >= data.length) {
+            if (startPos >= endPos) {
                 mPacket.setLength(0);
                 return;
             }
-            mPacket.append(data, startPos, data.length - startPos);
+            mPacket.append(data, startPos, endPos - startPos);
             mSectionParser.parseSections(mPacket);
         }
 
@@ -207,7 +222,7 @@ public class TsParser {
                     @Override
                     public void onMgtParsed(List<MgtItem> items) {
                         for (MgtItem i : items) {
-                            if (mStreamMap.get(i.getTableTypePid()) != null) {
+                            if (mStreamTable.contains(i.getTableTypePid())) {
                                 continue;
                             }
                             if (i.getTableType() >= MgtItem.TABLE_TYPE_EIT_RANGE_START
@@ -458,7 +473,7 @@ public class TsParser {
     }
 
     private void startListening(int pid) {
-        mStreamMap.put(pid, new SectionStream(pid));
+        mStreamTable.put(pid, new SectionStream(pid));
     }
 
     private boolean feedTSPacket(byte[] tsData, int pos) {
@@ -476,12 +491,12 @@ public class TsParser {
         }
 
         // For details for the structure of TS packet, see H.222.0 Table 2-2.
-        int pid = ((tsData[pos + 1] & 0x1f) << 8) | (tsData[pos + 2] & 0xff);
+        int pid = PidTable.readPid(tsData, pos);
         boolean hasAdaptation = (tsData[pos + 3] & 0x20) != 0;
         boolean hasPayload = (tsData[pos + 3] & 0x10) != 0;
         boolean payloadStartIndicator = (tsData[pos + 1] & 0x40) != 0;
         int continuityCounter = tsData[pos + 3] & 0x0f;
-        Stream stream = mStreamMap.get(pid);
+        Stream stream = mStreamTable.get(pid);
         int payloadPos = pos;
         payloadPos += hasAdaptation ? 5 + (tsData[pos + 4] & 0xff) : 4;
         if (!hasPayload || stream == null) {
@@ -492,23 +507,63 @@ public class TsParser {
             if (DEBUG) Log.d(TAG, "Payload should be included in a single TS packet.");
             return false;
         }
+        // Feeds the payload in place instead of copying it out, since this is called for every
+        // PSI/PSIP packet on the streaming thread.
         stream.feedData(
-                Arrays.copyOfRange(tsData, payloadPos, pos + TS_PACKET_SIZE),
+                tsData,
+                payloadPos,
+                pos + TS_PACKET_SIZE - payloadPos,
                 continuityCounter,
                 payloadStartIndicator);
         return true;
     }
 
     /**
-     * Feeds MPEG-2 TS data to parse.
+     * Feeds MPEG-2 TS data to parse. Only the PIDs of the packets which are not being parsed are
+     * read.
      *
      * @param tsData buffer for ATSC TS stream
      * @param pos the offset where buffer starts
      * @param length The length of available data
      */
     public void feedTSData(byte[] tsData, int pos, int length) {
-        for (; pos <= length - TS_PACKET_SIZE; pos += TS_PACKET_SIZE) {
-            feedTSPacket(tsData, pos);
+        int end = pos + length;
+        for (; pos <= end - TS_PACKET_SIZE; pos += TS_PACKET_SIZE) {
+            if (mStreamTable.contains(PidTable.readPid(tsData, pos))) {
+                feedTSPacket(tsData, pos);
+            }
+        }
+    }
+
+    /**
+     * Feeds MPEG-2 TS data in a {@link ByteBuffer}, which may be a direct buffer. The headers are
+     * read in place and only the packets of the PIDs being parsed are copied out. The position and
+     * the limit of {@code tsData} are not changed.
+     *
+     * @param tsData buffer for ATSC TS stream
+     * @param pos the absolute offset where the data starts
+     * @param length The length of available data
+     */
+    public void feedTSData(ByteBuffer tsData, int pos, int length) {
+        if (tsData.hasArray()) {
+            feedTSData(tsData.array(), tsData.arrayOffset() + pos, length);
+            return;
+        }
+        // Copies the packets out through a duplicate, since a bulk get moves the position.
+        ByteBuffer source = null;
+        int end = pos + length;
+        for (; pos <= end - TS_PACKET_SIZE; pos += TS_PACKET_SIZE) {
+            int pid = ((tsData.get(pos + 1) & 0x1f) << 8) | (tsData.get(pos + 2) & 0xff);
+            if (!mStreamTable.contains(pid)) {
+                continue;
+            }
+            if (source == null) {
+                source = tsData.duplicate();
+                source.clear();
+            }
+            source.position(pos);
+            source.get(mPacketBuffer, 0, TS_PACKET_SIZE);
+            feedTSPacket(mPacketBuffer, 0);
         }
     }
 
@@ -535,7 +590,7 @@ public class TsParser {
     /** Reset the versions so that data with old version number can be handled. */
     public void resetDataVersions() {
         for (int eitPid : mEITPids) {
-            Stream stream = mStreamMap.get(eitPid);
+            Stream stream = mStreamTable.get(eitPid);
             if (stream != null) {
                 stream.resetDataVersions();
             }
@@ -17,10 +17,12 @@
 package com.android.tv.tuner.tvinput.datamanager;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.media.tv.TvContract;
 import android.net.Uri;
@@ -41,6 +43,7 @@ import com.android.tv.tuner.util.ConvertUtils;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -80,6 +83,7 @@ public class ChannelDataManager implements Handler.Callback {
     private static final int MSG_REQUEST_PROGRAMS = 4;
     private static final int MSG_CLEAR_CHANNELS = 6;
     private static final int MSG_CHECK_VERSION = 7;
+    private static final int MSG_HANDLE_CHANNELS = 8;
 
     // Throttle the batch operations to avoid TransactionTooLargeException.
     private static final int BATCH_OPERATION_COUNT = 100;
@@ -106,6 +110,9 @@ public class ChannelDataManager implements Handler.Callback {
     private final ConcurrentHashMap<Long, TunerChannel> mTunerChannelMap;
     private final ConcurrentSkipListMap<TunerChannel, Long> mTunerChannelIdMap;
     private final Uri mChannelsUri;
+    // Used only on the handler thread.
+    private final ProgramCache mProgramCache = new ProgramCache();
+    private final ContentObserver mProgramObserver;
 
     // Used for scanning
     private final ConcurrentSkipListSet<TunerChannel> mScannedChannels;
@@ -157,6 +164,16 @@ public class ChannelDataManager implements Handler.Callback {
         mIsScanning = new AtomicBoolean();
         mScannedChannels = new ConcurrentSkipListSet<>();
         mPreviousScannedChannels = new ConcurrentSkipListSet<>();
+        // Invalidates the cached programs when they are changed outside, e.g. by EPG fetcher.
+        mProgramObserver =
+                new ContentObserver(mHandler) {
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        mProgramCache.onProgramChanged(getProgramId(uri));
+                    }
+                };
+        mContext.getContentResolver()
+                .registerContentObserver(TvContract.Programs.CONTENT_URI, true, mProgramObserver);
     }
 
     // Public methods
@@ -196,6 +213,7 @@ public class ChannelDataManager implements Handler.Callback {
     }
 
     public void releaseSafely() {
+        mContext.getContentResolver().unregisterContentObserver(mProgramObserver);
         mHandlerThread.quitSafely();
         mListener = null;
         mChannelHandlingDoneListener = null;
@@ -254,6 +272,18 @@ public class ChannelDataManager implements Handler.Callback {
         }
     }
 
+    /**
+     * Stores the channels found by a scan in batches of {@link #BATCH_OPERATION_COUNT}, instead of
+     * one by one. Should be called before {@link #notifyScanCompleted}.
+     */
+    public void notifyChannelsDetected(List<TunerChannel> channels) {
+        if (channels.isEmpty()) {
+            return;
+        }
+        mHandler.sendMessageAtFrontOfQueue(
+                mHandler.obtainMessage(MSG_HANDLE_CHANNELS, new ArrayList<>(channels)));
+    }
+
     // For scanning process
     /**
      * Invoked when starting a scanning mode. This method gets the previous channels to detect the
@@ -304,6 +334,7 @@ public class ChannelDataManager implements Handler.Callback {
             } catch (RemoteException | OperationApplicationException e) {
                 Log.e(TAG, "Error deleting obsolete channels", e);
             }
+            mProgramCache.invalidateAll();
         }
         if (mChannelHandlingDoneListener != null && mChannelScanHandler != null) {
             mChannelScanHandler.post(() -> mChannelHandlingDoneListener.onChannelHandlingDone());
@@ -339,12 +370,15 @@ public class ChannelDataManager implements Handler.Callback {
                     if (channel != null) {
                         handleChannel(channel);
                     }
-                    if (scanCompleted.get()
-                            && mIsScanning.get()
-                            && !mHandler.hasMessages(MSG_HANDLE_CHANNEL)) {
-                        // Complete the scan when all found channels have already been handled.
-                        scannedChannelHandlingCompleted();
-                    }
+                    maybeCompleteScan();
+                    return true;
+                }
+            case MSG_HANDLE_CHANNELS:
+                {
+                    @SuppressWarnings("unchecked")
+                    List<TunerChannel> channels = (List<TunerChannel>) msg.obj;
+                    handleChannels(channels);
+                    maybeCompleteScan();
                     return true;
                 }
             case MSG_BUILD_CHANNEL_MAP:
@@ -381,6 +415,16 @@ public class ChannelDataManager implements Handler.Callback {
         return false;
     }
 
+    private void maybeCompleteScan() {
+        if (scanCompleted.get()
+                && mIsScanning.get()
+                && !mHandler.hasMessages(MSG_HANDLE_CHANNEL)
+                && !mHandler.hasMessages(MSG_HANDLE_CHANNELS)) {
+            // Complete the scan when all found channels have already been handled.
+            scannedChannelHandlingCompleted();
+        }
+    }
+
     @NonNull
     @Override
     public String toString() {
@@ -401,11 +445,22 @@ public class ChannelDataManager implements Handler.Callback {
             mListener.onProgramsArrived(channel, items);
         }
 
+        // EIT tables are repeated every few seconds, so the same items are usually handled
+        // already. The fingerprint is taken before the descriptions are merged below.
+        long fingerprint = ProgramCache.fingerprint(items);
+        if (mProgramCache.isHandled(channelId, fingerprint)) {
+            return;
+        }
         long currentTime = System.currentTimeMillis();
         List<EitItem> oldItems =
-                getAllProgramsForChannel(
-                        channel, currentTime, currentTime + PROGRAM_QUERY_DURATION);
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+                mProgramCache.getPrograms(
+                        channelId, currentTime, currentTime + PROGRAM_QUERY_DURATION);
+        if (oldItems == null) {
+            oldItems =
+                    getAllProgramsForChannel(
+                            channel, currentTime, currentTime + PROGRAM_QUERY_DURATION);
+        }
+        ProgramBatch batch = new ProgramBatch(channel, oldItems);
         // TODO: Find a right way to check if the programs are added outside.
         boolean addedOutside = false;
         for (EitItem item : oldItems) {
@@ -456,17 +511,10 @@ public class ChannelDataManager implements Handler.Callback {
                         continue;
                     }
                 }
-                ops.add(
-                        buildContentProviderOperation(
-                                ContentProviderOperation.newInsert(TvContract.Programs.CONTENT_URI),
-                                newItem,
-                                channel));
-                if (ops.size() >= BATCH_OPERATION_COUNT) {
-                    applyBatch(channel.getName(), ops);
-                    ops.clear();
-                }
+                batch.insert(newItem);
             }
-            applyBatch(channel.getName(), ops);
+            batch.flush();
+            updateProgramCache(channelId, fingerprint, batch);
             return;
         }
 
@@ -495,16 +543,7 @@ public class ChannelDataManager implements Handler.Callback {
                 item.setDescription(oldItem.getDescription());
             }
             if (item.compareTo(oldItem) != 0) {
-                ops.add(
-                        buildContentProviderOperation(
-                                ContentProviderOperation.newUpdate(
-                                        TvContract.buildProgramUri(oldItem.getProgramId())),
-                                item,
-                                null));
-                if (ops.size() >= BATCH_OPERATION_COUNT) {
-                    applyBatch(channel.getName(), ops);
-                    ops.clear();
-                }
+                batch.update(oldItem, item);
             }
             newEitItemMap.remove(item.getEventId());
         }
@@ -519,15 +558,7 @@ public class ChannelDataManager implements Handler.Callback {
                     long newItemEndTime = item.getEndTimeUtcMillis();
                     if ((startTime >= newItemStartTime && startTime < newItemEndTime)
                             || (endTime > newItemStartTime && endTime <= newItemEndTime)) {
-                        ops.add(
-                                ContentProviderOperation.newDelete(
-                                                TvContract.buildProgramUri(
-                                                        unverifiedOldItems.getProgramId()))
-                                        .build());
-                        if (ops.size() >= BATCH_OPERATION_COUNT) {
-                            applyBatch(channel.getName(), ops);
-                            ops.clear();
-                        }
+                        batch.delete(unverifiedOldItems);
                         break;
                     }
                 }
@@ -537,18 +568,21 @@ public class ChannelDataManager implements Handler.Callback {
             if (item.getEndTimeUtcMillis() < currentTime) {
                 continue;
             }
-            ops.add(
-                    buildContentProviderOperation(
-                            ContentProviderOperation.newInsert(TvContract.Programs.CONTENT_URI),
-                            item,
-                            channel));
-            if (ops.size() >= BATCH_OPERATION_COUNT) {
-                applyBatch(channel.getName(), ops);
-                ops.clear();
-            }
+            batch.insert(item);
         }
 
-        applyBatch(channel.getName(), ops);
+        batch.flush();
+        updateProgramCache(channelId, fingerprint, batch);
+    }
+
+    private void updateProgramCache(long channelId, long fingerprint, ProgramBatch batch) {
+        List<EitItem> storedItems = batch.getStoredItems();
+        if (storedItems != null) {
+            mProgramCache.put(channelId, fingerprint, storedItems);
+        } else {
+            // The programs in TvProvider are unknown, since some operations failed.
+            mProgramCache.invalidate(channelId);
+        }
     }
 
     private ContentProviderOperation buildContentProviderOperation(
@@ -577,16 +611,80 @@ public class ChannelDataManager implements Handler.Callback {
         return builder.build();
     }
 
-    private void applyBatch(String channelName, ArrayList<ContentProviderOperation> operations) {
+    @Nullable
+    private ContentProviderResult[] applyBatch(
+            String channelName, ArrayList<ContentProviderOperation> operations) {
         try {
-            mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, operations);
+            return mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, operations);
         } catch (RemoteException | OperationApplicationException e) {
             Log.e(TAG, "Error updating EPG " + channelName, e);
+            return null;
+        }
+    }
+
+    private static long getProgramId(@Nullable Uri uri) {
+        if (uri == null || uri.getPathSegments().size() != 2) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
     private void handleChannel(TunerChannel channel) {
         long channelId = getChannelId(channel);
+        ContentValues values = buildChannelValues(channel, channelId <= 0);
+        if (channelId <= 0) {
+            Uri channelUri =
+                    mContext.getContentResolver().insert(TvContract.Channels.CONTENT_URI, values);
+            channelId = ContentUris.parseId(channelUri);
+        } else {
+            mContext.getContentResolver()
+                    .update(TvContract.buildChannelUri(channelId), values, null, null);
+        }
+        onChannelStored(channel, channelId);
+    }
+
+    private void handleChannels(List<TunerChannel> channels) {
+        for (int i = 0; i < channels.size(); i += BATCH_OPERATION_COUNT) {
+            handleChannelBatch(
+                    channels.subList(i, Math.min(i + BATCH_OPERATION_COUNT, channels.size())));
+        }
+    }
+
+    private void handleChannelBatch(List<TunerChannel> channels) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        long[] channelIds = new long[channels.size()];
+        for (int i = 0; i < channels.size(); ++i) {
+            TunerChannel channel = channels.get(i);
+            channelIds[i] = getStoredChannelId(channel);
+            ContentProviderOperation.Builder builder =
+                    channelIds[i] <= 0
+                            ? ContentProviderOperation.newInsert(TvContract.Channels.CONTENT_URI)
+                            : ContentProviderOperation.newUpdate(
+                                    TvContract.buildChannelUri(channelIds[i]));
+            ops.add(builder.withValues(buildChannelValues(channel, channelIds[i] <= 0)).build());
+        }
+        ContentProviderResult[] results;
+        try {
+            results = mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Error storing scanned channels in a batch", e);
+            for (TunerChannel channel : channels) {
+                handleChannel(channel);
+            }
+            return;
+        }
+        for (int i = 0; i < channels.size(); ++i) {
+            onChannelStored(
+                    channels.get(i),
+                    channelIds[i] > 0 ? channelIds[i] : ContentUris.parseId(results[i].uri));
+        }
+    }
+
+    private ContentValues buildChannelValues(TunerChannel channel, boolean insert) {
         ContentValues values = new ContentValues();
         values.put(TvContract.Channels.COLUMN_NETWORK_AFFILIATION, channel.getShortName());
         values.put(TvContract.Channels.COLUMN_SERVICE_TYPE, channel.getServiceTypeName());
@@ -601,7 +699,7 @@ public class ChannelDataManager implements Handler.Callback {
                 TvContract.Channels.COLUMN_INTERNAL_PROVIDER_FLAG2,
                 channel.isRecordingProhibited() ? 1 : 0);
 
-        if (channelId <= 0) {
+        if (insert) {
             values.put(TvContract.Channels.COLUMN_INPUT_ID, mInputId);
             values.put(
                     TvContract.Channels.COLUMN_TYPE,
@@ -612,14 +710,11 @@ public class ChannelDataManager implements Handler.Callback {
 
             // ATSC doesn't have original_network_id
             values.put(TvContract.Channels.COLUMN_ORIGINAL_NETWORK_ID, channel.getFrequency());
-
-            Uri channelUri =
-                    mContext.getContentResolver().insert(TvContract.Channels.CONTENT_URI, values);
-            channelId = ContentUris.parseId(channelUri);
-        } else {
-            mContext.getContentResolver()
-                    .update(TvContract.buildChannelUri(channelId), values, null, null);
         }
+        return values;
+    }
+
+    private void onChannelStored(TunerChannel channel, long channelId) {
         channel.setChannelId(channelId);
         mTunerChannelMap.put(channelId, channel);
         mTunerChannelIdMap.put(channel, channelId);
@@ -634,6 +729,7 @@ public class ChannelDataManager implements Handler.Callback {
 
     private void clearChannels() {
         int count = mContext.getContentResolver().delete(mChannelsUri, null, null);
+        mProgramCache.invalidateAll();
         if (count > 0) {
             // We have just deleted obsolete data. Now tell the user that he or she needs
             // to perform the auto-scan again.
@@ -706,6 +802,23 @@ public class ChannelDataManager implements Handler.Callback {
         return -1;
     }
 
+    // While scanning, the channels stored before the scan are loaded by notifyScanStarted, so
+    // they are looked up instead of querying all the channels for each new channel.
+    private long getStoredChannelId(TunerChannel channel) {
+        if (!mIsScanning.get()) {
+            return getChannelId(channel);
+        }
+        Long channelId = mTunerChannelIdMap.get(channel);
+        if (channelId != null) {
+            return channelId;
+        }
+        TunerChannel storedChannel = mPreviousScannedChannels.ceiling(channel);
+        if (storedChannel != null && storedChannel.compareTo(channel) == 0) {
+            return storedChannel.getChannelId();
+        }
+        return -1;
+    }
+
     private List<EitItem> getAllProgramsForChannel(TunerChannel channel) {
         return getAllProgramsForChannel(channel, null, null);
     }
@@ -779,6 +892,111 @@ public class ChannelDataManager implements Handler.Callback {
         }
     }
 
+    /**
+     * Batches the operations on the programs of a channel, and keeps track of the programs which
+     * are stored in TvProvider after the operations, in the same form as they are queried.
+     */
+    private class ProgramBatch {
+        private final TunerChannel mChannel;
+        private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+        // The items being inserted, at the same indexes as their operations. null for the others.
+        private final ArrayList<EitItem> mInsertedItems = new ArrayList<>();
+        private final Map<Long, EitItem> mStoredItems = new LinkedHashMap<>();
+        private boolean mFailed;
+
+        ProgramBatch(TunerChannel channel, List<EitItem> storedItems) {
+            mChannel = channel;
+            for (EitItem item : storedItems) {
+                mStoredItems.put(item.getProgramId(), item);
+            }
+        }
+
+        void insert(EitItem item) {
+            add(
+                    buildContentProviderOperation(
+                            ContentProviderOperation.newInsert(TvContract.Programs.CONTENT_URI),
+                            item,
+                            mChannel),
+                    item);
+        }
+
+        void update(EitItem oldItem, EitItem item) {
+            long programId = oldItem.getProgramId();
+            add(
+                    buildContentProviderOperation(
+                            ContentProviderOperation.newUpdate(
+                                    TvContract.buildProgramUri(programId)),
+                            item,
+                            null),
+                    null);
+            mStoredItems.put(programId, toStoredItem(programId, item, oldItem));
+            mProgramCache.addWrittenProgramId(programId);
+        }
+
+        void delete(EitItem oldItem) {
+            long programId = oldItem.getProgramId();
+            add(
+                    ContentProviderOperation.newDelete(TvContract.buildProgramUri(programId))
+                            .build(),
+                    null);
+            mStoredItems.remove(programId);
+            mProgramCache.addWrittenProgramId(programId);
+        }
+
+        private void add(ContentProviderOperation operation, @Nullable EitItem insertedItem) {
+            mOperations.add(operation);
+            mInsertedItems.add(insertedItem);
+            if (mOperations.size() >= BATCH_OPERATION_COUNT) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (mOperations.isEmpty()) {
+                return;
+            }
+            ContentProviderResult[] results = applyBatch(mChannel.getName(), mOperations);
+            if (results == null) {
+                mFailed = true;
+            } else {
+                for (int i = 0; i < results.length; ++i) {
+                    EitItem item = mInsertedItems.get(i);
+                    if (item != null && results[i].uri != null) {
+                        long programId = ContentUris.parseId(results[i].uri);
+                        mStoredItems.put(programId, toStoredItem(programId, item, null));
+                        mProgramCache.addWrittenProgramId(programId);
+                    }
+                }
+            }
+            mOperations.clear();
+            mInsertedItems.clear();
+        }
+
+        /** Returns the programs stored after the operations, or {@code null} if some failed. */
+        @Nullable
+        List<EitItem> getStoredItems() {
+            return mFailed ? null : new ArrayList<>(mStoredItems.values());
+        }
+
+        // Returns the item as it is read by getAllProgramsForChannel after it is written by
+        // buildContentProviderOperation. The genres are not written, so an updated program keeps
+        // the old ones.
+        private EitItem toStoredItem(long programId, EitItem item, @Nullable EitItem oldItem) {
+            return new EitItem(
+                    programId,
+                    item.getEventId(),
+                    item.getTitleText(),
+                    item.getStartTime(),
+                    item.getLengthInSecond(),
+                    item.getContentRating(),
+                    null,
+                    null,
+                    oldItem != null ? oldItem.getBroadcastGenre() : null,
+                    oldItem != null ? oldItem.getCanonicalGenre() : null,
+                    item.getDescription());
+        }
+    }
+
     private static class ChannelEvent {
         public final TunerChannel channel;
         public final List<EitItem> eitItems;
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.tvinput.datamanager;
+
+import android.support.annotation.Nullable;
+import android.util.LongSparseArray;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Caches the programs of the channels which are stored in TvProvider, so that the EIT items which
+ * are repeated every few seconds can be compared with them without querying TvProvider.
+ *
+ * <p>The EIT items handled last for each channel are remembered by their fingerprint, and the
+ * same items are not handled again. The cache is not thread safe and should be used on a single
+ * thread.
+ */
+class ProgramCache {
+    // Bounds the program ids which are waiting for the change notifications of our own writes,
+    // in case notifications are not delivered for some of them.
+    private static final int MAX_WRITTEN_PROGRAM_IDS = 10000;
+
+    private static class ChannelPrograms {
+        private final long mFingerprint;
+        // Sorted by the start time, like the result of a TvProvider query.
+        private final List<EitItem> mPrograms;
+
+        private ChannelPrograms(long fingerprint, List<EitItem> programs) {
+            mFingerprint = fingerprint;
+            mPrograms = programs;
+        }
+    }
+
+    private final LongSparseArray<ChannelPrograms> mChannelPrograms = new LongSparseArray<>();
+    private final Set<Long> mWrittenProgramIds = new HashSet<>();
+
+    /** Returns whether the EIT items with the fingerprint were the ones handled last. */
+    boolean isHandled(long channelId, long fingerprint) {
+        ChannelPrograms programs = mChannelPrograms.get(channelId);
+        return programs != null && programs.mFingerprint == fingerprint;
+    }
+
+    /**
+     * Returns the cached programs of the channel which overlap the given period, in the same way
+     * as {@link android.media.tv.TvContract#buildProgramsUriForChannel(long, long, long)}.
+     *
+     * @return the programs sorted by the start time, or {@code null} if they are not cached
+     */
+    @Nullable
+    List<EitItem> getPrograms(long channelId, long startTimeMs, long endTimeMs) {
+        ChannelPrograms programs = mChannelPrograms.get(channelId);
+        if (programs == null) {
+            return null;
+        }
+        List<EitItem> result = new ArrayList<>();
+        for (EitItem item : programs.mPrograms) {
+            if (item.getStartTimeUtcMillis() <= endTimeMs
+                    && item.getEndTimeUtcMillis() >= startTimeMs) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Caches the programs of the channel which are stored after handling the EIT items with the
+     * fingerprint.
+     */
+    void put(long channelId, long fingerprint, List<EitItem> programs) {
+        List<EitItem> sorted = new ArrayList<>(programs);
+        Collections.sort(
+                sorted,
+                (EitItem lhs, EitItem rhs) ->
+                        Long.compare(lhs.getStartTimeUtcMillis(), rhs.getStartTimeUtcMillis()));
+        mChannelPrograms.put(channelId, new ChannelPrograms(fingerprint, sorted));
+    }
+
+    /** Removes the programs of the channel, so that they are loaded from TvProvider again. */
+    void invalidate(long channelId) {
+        mChannelPrograms.remove(channelId);
+    }
+
+    /** Removes all the programs, so that they are loaded from TvProvider again. */
+    void invalidateAll() {
+        mChannelPrograms.clear();
+        mWrittenProgramIds.clear();
+    }
+
+    /** Remembers a program which is written by us, to tell our own writes from external ones. */
+    void addWrittenProgramId(long programId) {
+        if (mWrittenProgramIds.size() >= MAX_WRITTEN_PROGRAM_IDS) {
+            invalidateAll();
+        }
+        mWrittenProgramIds.add(programId);
+    }
+
+    /**
+     * Handles a change notification of a program. A change of a program which was not written by
+     * us means that the programs were changed externally, for example by an EPG fetcher, so all
+     * the programs are invalidated.
+     */
+    void onProgramChanged(long programId) {
+        if (programId < 0 || !mWrittenProgramIds.remove(programId)) {
+            invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the fingerprint of EIT items, which does not depend on the order of the items.
+     * Items which are the same by {@link EitItem#compareTo} have the same fingerprint.
+     */
+    static long fingerprint(List<EitItem> items) {
+        long fingerprint = items.size();
+        for (EitItem item : items) {
+            fingerprint += mix(fingerprint(item));
+        }
+        return fingerprint;
+    }
+
+    static long fingerprint(EitItem item) {
+        long hash = item.getEventId();
+        hash = 31 * hash + item.getStartTime();
+        hash = 31 * hash + item.getLengthInSecond();
+        hash = 31 * hash + Objects.hashCode(item.getTitleText());
+        hash = 31 * hash + Objects.hashCode(item.getContentRating());
+        hash = 31 * hash + Objects.hashCode(item.getBroadcastGenre());
+        hash = 31 * hash + Objects.hashCode(item.getCanonicalGenre());
+        hash = 31 * hash + Objects.hashCode(item.getDescription());
+        return hash;
+    }
+
+    // The finalizer of SplitMix64, which spreads the bits so that the sum of the item
+    // fingerprints does not collide easily.
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
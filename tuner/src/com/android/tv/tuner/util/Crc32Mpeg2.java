@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tv.tuner.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Computes CRC-32/MPEG-2, which is used by the PSI and PSIP sections of MPEG-2 TS.
+ *
+ * <p>The CRC is computed eight bytes at a time with the slicing-by-8 algorithm. The section is
+ * valid if the CRC over the whole section including its CRC_32 field is zero.
+ */
+public final class Crc32Mpeg2 {
+    /** The initial value of the CRC register. */
+    public static final int INITIAL_VALUE = 0xffffffff;
+
+    private static final int POLYNOMIAL = 0x04c11db7;
+    private static final int TABLE_SIZE = 256;
+    private static final int SLICES = 8;
+
+    // TABLE[k * TABLE_SIZE + i] is the CRC of the byte i followed by k zero bytes.
+    private static final int[] TABLE = new int[SLICES * TABLE_SIZE];
+
+    static {
+        for (int i = 0; i < TABLE_SIZE; ++i) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; ++bit) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+            }
+            TABLE[i] = crc;
+        }
+        for (int k = 1; k < SLICES; ++k) {
+            for (int i = 0; i < TABLE_SIZE; ++i) {
+                int prev = TABLE[(k - 1) * TABLE_SIZE + i];
+                TABLE[k * TABLE_SIZE + i] = (prev << 8) ^ TABLE[prev >>> 24];
+            }
+        }
+    }
+
+    private Crc32Mpeg2() {}
+
+    /** Returns the CRC of the given range of {@code data}. */
+    public static int compute(byte[] data, int offset, int length) {
+        return update(INITIAL_VALUE, data, offset, length);
+    }
+
+    /** Returns the CRC of the remaining bytes of {@code buffer} without changing its position. */
+    public static int compute(ByteBuffer buffer) {
+        return update(INITIAL_VALUE, buffer, buffer.position(), buffer.remaining());
+    }
+
+    /** Updates {@code crc} with the given range of {@code data}. */
+    public static int update(int crc, byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int pos = offset;
+        int end = offset + length;
+        for (; pos <= end - SLICES; pos += SLICES) {
+            int high =
+                    crc
+                            ^ ((data[pos] & 0xff) << 24
+                                    | (data[pos + 1] & 0xff) << 16
+                                    | (data[pos + 2] & 0xff) << 8
+                                    | (data[pos + 3] & 0xff));
+            crc =
+                    slice(
+                            high,
+                            data[pos + 4] & 0xff,
+                            data[pos + 5] & 0xff,
+                            data[pos + 6] & 0xff,
+                            data[pos + 7] & 0xff);
+        }
+        for (; pos < end; ++pos) {
+            crc = (crc << 8) ^ TABLE[(crc >>> 24) ^ (data[pos] & 0xff)];
+        }
+        return crc;
+    }
+
+    /**
+     * Updates {@code crc} with the given range of {@code buffer}. The range is read with absolute
+     * gets, so the position and the limit of {@code buffer} are not changed.
+     */
+    public static int update(int crc, ByteBuffer buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > buffer.limit() - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (buffer.hasArray()) {
+            return update(crc, buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+        boolean littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+        int pos = offset;
+        int end = offset + length;
+        for (; pos <= end - SLICES; pos += SLICES) {
+            int word = buffer.getInt(pos);
+            if (littleEndian) {
+                word = Integer.reverseBytes(word);
+            }
+            crc =
+                    slice(
+                            crc ^ word,
+                            buffer.get(pos + 4) & 0xff,
+                            buffer.get(pos + 5) & 0xff,
+                            buffer.get(pos + 6) & 0xff,
+                            buffer.get(pos + 7) & 0xff);
+        }
+        for (; pos < end; ++pos) {
+            crc = (crc << 8) ^ TABLE[(crc >>> 24) ^ (buffer.get(pos) & 0xff)];
+        }
+        return crc;
+    }
+
+    private static int slice(int high, int b4, int b5, int b6, int b7) {
+        return TABLE[7 * TABLE_SIZE + (high >>> 24)]
+                ^ TABLE[6 * TABLE_SIZE + ((high >>> 16) & 0xff)]
+                ^ TABLE[5 * TABLE_SIZE + ((high >>> 8) & 0xff)]
+                ^ TABLE[4 * TABLE_SIZE + (high & 0xff)]
+                ^ TABLE[3 * TABLE_SIZE + b4]
+                ^ TABLE[2 * TABLE_SIZE + b5]
+                ^ TABLE[TABLE_SIZE + b6]
+                ^ TABLE[b7];
+    }
+}
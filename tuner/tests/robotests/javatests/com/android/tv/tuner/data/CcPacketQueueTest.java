@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.data;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tv.testing.constants.ConfigConstants;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link CcPacketQueue}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class CcPacketQueueTest {
+    private final CcPacketQueue mQueue = new CcPacketQueue();
+
+    @Test
+    public void add_ordersByPts() {
+        // Decoding order of I P B B frames.
+        mQueue.add(packet(1), 0);
+        mQueue.add(packet(4), 3000);
+        mQueue.add(packet(2), 1000);
+        mQueue.add(packet(3), 2000);
+
+        assertThat(mQueue.size()).isEqualTo(4);
+        for (int i = 1; i <= 4; ++i) {
+            assertThat(mQueue.peekPtsUs()).isEqualTo((i - 1) * 1000L);
+            assertThat(mQueue.peekCcCount()).isEqualTo(1);
+            assertThat(mQueue.peekBytes()[0]).isEqualTo((byte) i);
+            mQueue.remove();
+        }
+        assertThat(mQueue.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void add_samePtsIsIgnored() {
+        assertThat(mQueue.add(packet(1), 1000)).isTrue();
+        assertThat(mQueue.add(packet(2), 1000)).isFalse();
+
+        assertThat(mQueue.size()).isEqualTo(1);
+        assertThat(mQueue.peekBytes()[0]).isEqualTo((byte) 1);
+    }
+
+    @Test
+    public void add_manyPacketsAcrossTheRing() {
+        long pts = 0;
+        for (int i = 0; i < 1000; ++i) {
+            // Adds pairs out of order and keeps a growing backlog.
+            mQueue.add(packet(i + 1), pts + 1);
+            mQueue.add(packet(i), pts);
+            pts += 2;
+            if (i % 3 == 0) {
+                long first = mQueue.peekPtsUs();
+                mQueue.remove();
+                assertThat(mQueue.peekPtsUs()).isEqualTo(first + 1);
+            }
+        }
+        long last = -1;
+        while (!mQueue.isEmpty()) {
+            assertThat(mQueue.peekPtsUs()).isGreaterThan(last);
+            last = mQueue.peekPtsUs();
+            mQueue.remove();
+        }
+        assertThat(last).isEqualTo(pts - 1);
+    }
+
+    @Test
+    public void add_largerThanSlot() {
+        byte[] bytes = new byte[3 * 100];
+        bytes[3 * 99] = 7;
+        mQueue.add(ByteBuffer.wrap(bytes), 0);
+
+        assertThat(mQueue.peekCcCount()).isEqualTo(100);
+        assertThat(mQueue.peekBytes()[3 * 99]).isEqualTo((byte) 7);
+    }
+
+    @Test
+    public void clear() {
+        mQueue.add(packet(1), 0);
+        mQueue.clear();
+
+        assertThat(mQueue.isEmpty()).isTrue();
+        mQueue.add(packet(2), 0);
+        assertThat(mQueue.peekBytes()[0]).isEqualTo((byte) 2);
+    }
+
+    private static ByteBuffer packet(int firstByte) {
+        return ByteBuffer.wrap(new byte[] {(byte) firstByte, 0, 0});
+    }
+}
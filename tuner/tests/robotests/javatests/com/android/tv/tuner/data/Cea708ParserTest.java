@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.data;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.android.tv.testing.constants.ConfigConstants;
+import com.android.tv.testing.utils.AllocationCounter;
+import com.android.tv.tuner.data.Cea708Data.CaptionEvent;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link Cea708Parser}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class Cea708ParserTest {
+    private static final int CC_COUNT_PER_FRAME = 20;
+    private static final long FRAME_DURATION_US = 16683; // 59.94 fps
+
+    private final List<String> mTexts = new ArrayList<>();
+    private final Cea708Parser mParser = new Cea708Parser();
+
+    @Test
+    public void processClosedCaptions_inDisplayOrder() {
+        mParser.setListener(new TextCollector());
+        mParser.setListenServiceNumber(1);
+
+        // Frames in decoding order, whose captions should be shown in display order.
+        mParser.parseClosedCaption(createFrame(1, "AB"), 0);
+        mParser.parseClosedCaption(createFrame(1, "EF"), 2 * FRAME_DURATION_US);
+        mParser.parseClosedCaption(createFrame(1, "CD"), FRAME_DURATION_US);
+
+        assertThat(mParser.processClosedCaptions(0)).isFalse();
+        assertThat(mParser.processClosedCaptions(2 * FRAME_DURATION_US)).isTrue();
+        assertThat(mTexts).containsExactly("AB", "CD").inOrder();
+        assertThat(mParser.processClosedCaptions(3 * FRAME_DURATION_US)).isTrue();
+        assertThat(mTexts).containsExactly("AB", "CD", "EF").inOrder();
+    }
+
+    @Test
+    public void processClosedCaptions_afterClear() {
+        mParser.setListener(new TextCollector());
+        mParser.setListenServiceNumber(1);
+        mParser.parseClosedCaption(createFrame(1, "AB"), 0);
+        mParser.clear();
+        mParser.parseClosedCaption(createFrame(1, "CD"), FRAME_DURATION_US);
+
+        mParser.processClosedCaptions(2 * FRAME_DURATION_US);
+        assertThat(mTexts).containsExactly("CD");
+    }
+
+    @Test
+    public void processClosedCaptions_doesNotAllocatePerFrame() {
+        AllocationCounter allocationCounter = AllocationCounter.startOrSkip();
+
+        // A captioned stream whose captions are in another service than the one listened to, so
+        // that no caption event is made. The frames are reused like the sample buffer of the
+        // renderer.
+        mParser.setListenServiceNumber(1);
+        ByteBuffer[] frames = {
+            createFrame(2, "HELLO"), createFrame(2, "WORLD"), createFrame(2, "")
+        };
+        long ptsUs = 0;
+        for (int i = 0; i < 1000; ++i) {
+            ptsUs = feed(frames, i, ptsUs);
+        }
+
+        int frameCount = 10000;
+        allocationCounter.restart();
+        for (int i = 0; i < frameCount; ++i) {
+            ptsUs = feed(frames, i, ptsUs);
+        }
+        long allocated = allocationCounter.getAllocatedBytes();
+
+        // Copying the cc_data of each frame to a new packet would allocate more than a hundred
+        // bytes per frame.
+        assertWithMessage("Bytes allocated while parsing " + frameCount + " frames")
+                .that(allocated)
+                .isLessThan(frameCount * 16L);
+    }
+
+    private long feed(ByteBuffer[] frames, int index, long ptsUs) {
+        // B frames are decoded after the following P frame.
+        long framePtsUs = index % 2 == 0 ? ptsUs + FRAME_DURATION_US : ptsUs - FRAME_DURATION_US;
+        mParser.parseClosedCaption(frames[index % frames.length], framePtsUs);
+        mParser.processClosedCaptions(ptsUs - 2 * FRAME_DURATION_US);
+        return ptsUs + FRAME_DURATION_US;
+    }
+
+    /**
+     * Creates the cc_data of a frame, which has a DTVCC packet of a service block with the text
+     * followed by padding, like the picture user data of an ATSC broadcast.
+     */
+    private static ByteBuffer createFrame(int serviceNumber, String text) {
+        byte[] textBytes = text.getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        // The packet header is written after the size is known.
+        packet.write((serviceNumber << 5) | textBytes.length);
+        packet.write(textBytes, 0, textBytes.length);
+        if ((packet.size() + 1) % 2 != 0) {
+            packet.write(0); // NUL
+        }
+        byte[] block = packet.toByteArray();
+        int packetSize = block.length + 1;
+
+        ByteArrayOutputStream ccData = new ByteArrayOutputStream();
+        byte[] dtvcc = new byte[packetSize];
+        dtvcc[0] = (byte) (packetSize / 2);
+        System.arraycopy(block, 0, dtvcc, 1, block.length);
+        for (int i = 0; i < packetSize; i += 2) {
+            // cc_valid and cc_type of DTVCC_PACKET_START or DTVCC_PACKET_DATA.
+            ccData.write(i == 0 ? 0xff : 0xfe);
+            ccData.write(dtvcc[i]);
+            ccData.write(dtvcc[i + 1]);
+        }
+        while (ccData.size() < 3 * CC_COUNT_PER_FRAME) {
+            // Invalid DTVCC_PACKET_DATA as padding.
+            ccData.write(0xfa);
+            ccData.write(0);
+            ccData.write(0);
+        }
+        return ByteBuffer.wrap(ccData.toByteArray());
+    }
+
+    private class TextCollector implements Cea708Parser.OnCea708ParserListener {
+        @Override
+        public void emitEvent(CaptionEvent event) {
+            if (event.type == Cea708Parser.CAPTION_EMIT_TYPE_BUFFER) {
+                mTexts.add((String) event.obj);
+            }
+        }
+
+        @Override
+        public void discoverServiceNumber(int serviceNumber) {}
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.media.MediaCodec;
+import android.util.Pair;
+import com.android.tv.testing.constants.ConfigConstants;
+import com.google.android.exoplayer.SampleHolder;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for loading a recorded track with {@link BufferManager}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class BufferManagerTest {
+    private static final String TRACK_ID = "video";
+    private static final int CHUNK_COUNT = 3;
+    private static final long CHUNK_DURATION_US = 1_000_000;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final SamplePool mSamplePool = new SamplePool();
+    private int mLoadedChunkCount;
+    private BufferManager mBufferManager;
+
+    @Before
+    public void setUp() throws IOException {
+        File dir = mTemporaryFolder.getRoot();
+        writeRecording(new BufferManager(new DvrStorageManager(dir, false)));
+        mBufferManager =
+                new BufferManager(
+                        new DvrStorageManager(dir, false),
+                        new SampleChunk.SampleChunkCreator() {
+                            @Override
+                            SampleChunk loadSampleChunkFromFile(
+                                    SamplePool samplePool,
+                                    File bufferDir,
+                                    String filename,
+                                    long startPositionUs,
+                                    SampleChunk.ChunkCallback chunkCallback,
+                                    SampleChunk.NextChunkLoader nextChunkLoader)
+                                    throws IOException {
+                                mLoadedChunkCount++;
+                                return super.loadSampleChunkFromFile(
+                                        samplePool,
+                                        bufferDir,
+                                        filename,
+                                        startPositionUs,
+                                        chunkCallback,
+                                        nextChunkLoader);
+                            }
+                        });
+    }
+
+    @After
+    public void tearDown() {
+        mBufferManager.release();
+    }
+
+    @Test
+    public void loadTrackFromStorage_createsNoChunk() throws IOException {
+        mBufferManager.loadTrackFromStorage(TRACK_ID, mSamplePool);
+
+        assertThat(mLoadedChunkCount).isEqualTo(0);
+    }
+
+    @Test
+    public void getReadFile_createsOnlyChunkOfPosition() throws IOException {
+        mBufferManager.loadTrackFromStorage(TRACK_ID, mSamplePool);
+
+        Pair<SampleChunk, Integer> readPosition = mBufferManager.getReadFile(TRACK_ID, 2_600_000);
+
+        assertThat(readPosition.first.getStartPositionUs()).isEqualTo(2_000_000);
+        assertThat(readAll(readPosition)).containsExactly(2_500_000L).inOrder();
+        assertThat(mLoadedChunkCount).isEqualTo(1);
+    }
+
+    @Test
+    public void read_createsNextChunksWhenReached() throws IOException {
+        mBufferManager.loadTrackFromStorage(TRACK_ID, mSamplePool);
+
+        Pair<SampleChunk, Integer> readPosition = mBufferManager.getReadFile(TRACK_ID, 0);
+        assertThat(mLoadedChunkCount).isEqualTo(1);
+
+        assertThat(readAll(readPosition))
+                .containsExactly(0L, 500_000L, 1_000_000L, 1_500_000L, 2_000_000L, 2_500_000L)
+                .inOrder();
+        assertThat(mLoadedChunkCount).isEqualTo(CHUNK_COUNT);
+        // The chunks created by reads are reused for seeks.
+        mBufferManager.getReadFile(TRACK_ID, 1_000_000);
+        assertThat(mLoadedChunkCount).isEqualTo(CHUNK_COUNT);
+    }
+
+    // Records CHUNK_COUNT chunks, each of which has two key samples in the index.
+    private void writeRecording(BufferManager bufferManager) throws IOException {
+        SampleChunk.IoState writeState = new SampleChunk.IoState();
+        for (int i = 0; i < CHUNK_COUNT; ++i) {
+            long startPositionUs = i * CHUNK_DURATION_US;
+            SampleChunk chunk =
+                    bufferManager.createNewWriteFileIfNeeded(
+                            TRACK_ID, startPositionUs, mSamplePool, null, 0, true);
+            if (i == 0) {
+                writeState.openWrite(chunk);
+                chunk = null;
+            }
+            writeState.write(createSample(startPositionUs), chunk);
+            long middlePositionUs = startPositionUs + CHUNK_DURATION_US / 2;
+            bufferManager.createNewWriteFileIfNeeded(
+                    TRACK_ID,
+                    middlePositionUs,
+                    mSamplePool,
+                    writeState.getChunk(),
+                    (int) writeState.getOffset(),
+                    true);
+            writeState.write(createSample(middlePositionUs), null);
+        }
+        writeState.closeWrite();
+        bufferManager.release();
+    }
+
+    // Reads from the position to the end, and returns the positions of the read samples.
+    private List<Long> readAll(Pair<SampleChunk, Integer> readPosition) throws IOException {
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        readState.openRead(readPosition.first, readPosition.second);
+        List<Long> positionsUs = new ArrayList<>();
+        SampleHolder sample;
+        while ((sample = readState.read()) != null) {
+            positionsUs.add(sample.timeUs);
+            mSamplePool.releaseSample(sample);
+        }
+        return positionsUs;
+    }
+
+    private static SampleHolder createSample(long timeUs) {
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        sample.ensureSpaceForWrite(10);
+        sample.size = 10;
+        sample.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+        sample.timeUs = timeUs;
+        return sample;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tv.testing.constants.ConfigConstants;
+import java.io.File;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link ChunkIndex}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class ChunkIndexTest {
+    private final ChunkIndex mIndex = new ChunkIndex(0);
+
+    @Test
+    public void floorIndex() {
+        SampleChunk chunk = createChunk(100);
+        mIndex.put(100, chunk, 0);
+        mIndex.put(200, chunk, 10);
+        mIndex.put(300, chunk, 20);
+
+        assertThat(mIndex.floorIndex(50)).isEqualTo(0);
+        assertThat(mIndex.floorIndex(100)).isEqualTo(0);
+        assertThat(mIndex.floorIndex(250)).isEqualTo(1);
+        assertThat(mIndex.getOffset(mIndex.floorIndex(1000))).isEqualTo(20);
+    }
+
+    @Test
+    public void floorIndex_empty() {
+        assertThat(mIndex.floorIndex(100)).isEqualTo(-1);
+    }
+
+    @Test
+    public void put_outOfOrderAndReplace() {
+        SampleChunk chunk = createChunk(100);
+        mIndex.put(300, chunk, 30);
+        mIndex.put(100, chunk, 10);
+        mIndex.put(200, chunk, 20);
+        mIndex.put(200, chunk, 25);
+
+        assertThat(mIndex.size()).isEqualTo(3);
+        assertThat(mIndex.getPositionUs(0)).isEqualTo(100);
+        assertThat(mIndex.getPositionUs(1)).isEqualTo(200);
+        assertThat(mIndex.getOffset(1)).isEqualTo(25);
+        assertThat(mIndex.getPositionUs(2)).isEqualTo(300);
+    }
+
+    @Test
+    public void removeFirstChunk_removesAllEntriesOfChunk() {
+        SampleChunk first = createChunk(100);
+        SampleChunk second = createChunk(300);
+        mIndex.put(100, first, 0);
+        mIndex.put(200, first, 10);
+        mIndex.put(300, second, 0);
+
+        assertThat(mIndex.removeFirstChunk()).isSameAs(first);
+        assertThat(mIndex.size()).isEqualTo(1);
+        assertThat(mIndex.getChunk(0)).isSameAs(second);
+        assertThat(mIndex.getStartPositionUs()).isEqualTo(300);
+
+        assertThat(mIndex.removeFirstChunk()).isSameAs(second);
+        assertThat(mIndex.isEmpty()).isTrue();
+        assertThat(mIndex.getStartPositionUs()).isEqualTo(300);
+        assertThat(mIndex.removeFirstChunk()).isNull();
+    }
+
+    @Test
+    public void putAndRemove_manyEntries() {
+        // Adds and evicts far more entries than the initial capacity, like a long time-shift.
+        for (int i = 0; i < 10000; ++i) {
+            mIndex.put(i, createChunk(i), i);
+            if (i >= 100) {
+                assertThat(mIndex.removeFirstChunk().getStartPositionUs()).isEqualTo(i - 100);
+            }
+        }
+        assertThat(mIndex.size()).isEqualTo(100);
+        assertThat(mIndex.getStartPositionUs()).isEqualTo(9900);
+        assertThat(mIndex.getOffset(mIndex.floorIndex(9950))).isEqualTo(9950);
+    }
+
+    private static SampleChunk createChunk(long startPositionUs) {
+        return new SampleChunk.SampleChunkCreator()
+                .createSampleChunk(
+                        new SamplePool(),
+                        new File("chunk_" + startPositionUs),
+                        startPositionUs,
+                        new SampleChunk.ChunkCallback() {});
+    }
+}
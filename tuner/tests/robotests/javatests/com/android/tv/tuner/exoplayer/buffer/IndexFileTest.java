@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tv.testing.constants.ConfigConstants;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link IndexFile}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class IndexFileTest {
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mTemporaryFolder.getRoot(), "track" + IndexFile.FILE_SUFFIX);
+    }
+
+    @Test
+    public void appendAndMap() throws IOException {
+        try (IndexFile.Appender appender = new IndexFile.Appender(mFile)) {
+            appender.append(100, 100, 0);
+            appender.append(200, 100, 50);
+            appender.append(300, 300, 0);
+        }
+
+        IndexFile index = IndexFile.map(mFile);
+        assertThat(index.size()).isEqualTo(3);
+        assertThat(index.getPositionUs(1)).isEqualTo(200);
+        assertThat(index.getBasePositionUs(1)).isEqualTo(100);
+        assertThat(index.getOffset(1)).isEqualTo(50);
+        assertThat(index.getBasePositionUs(2)).isEqualTo(300);
+    }
+
+    @Test
+    public void append_afterReopen_keepsRecords() throws IOException {
+        try (IndexFile.Appender appender = new IndexFile.Appender(mFile)) {
+            appender.append(100, 100, 0);
+        }
+        try (IndexFile.Appender appender = new IndexFile.Appender(mFile)) {
+            appender.append(200, 100, 50);
+        }
+
+        IndexFile index = IndexFile.map(mFile);
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.getPositionUs(0)).isEqualTo(100);
+        assertThat(index.getOffset(1)).isEqualTo(50);
+    }
+
+    @Test
+    public void map_whileAppending() throws IOException {
+        try (IndexFile.Appender appender = new IndexFile.Appender(mFile)) {
+            appender.append(100, 100, 0);
+            assertThat(IndexFile.map(mFile).size()).isEqualTo(1);
+
+            appender.append(200, 100, 50);
+            assertThat(IndexFile.map(mFile).size()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void floorIndex() throws IOException {
+        try (IndexFile.Appender appender = new IndexFile.Appender(mFile)) {
+            appender.append(100, 100, 0);
+            appender.append(200, 100, 50);
+            appender.append(200, 100, 60);
+            appender.append(300, 300, 0);
+        }
+
+        IndexFile index = IndexFile.map(mFile);
+        assertThat(index.floorIndex(50)).isEqualTo(0);
+        assertThat(index.floorIndex(100)).isEqualTo(0);
+        assertThat(index.floorIndex(199)).isEqualTo(0);
+        // The last record wins among the ones at the same position.
+        assertThat(index.floorIndex(200)).isEqualTo(2);
+        assertThat(index.floorIndex(1000)).isEqualTo(3);
+    }
+
+    @Test
+    public void floorIndex_empty() throws IOException {
+        assertThat(mFile.createNewFile()).isTrue();
+
+        assertThat(IndexFile.map(mFile).floorIndex(100)).isEqualTo(-1);
+    }
+
+    @Test
+    public void nextChunkIndex() throws IOException {
+        try (IndexFile.Appender appender = new IndexFile.Appender(mFile)) {
+            appender.append(100, 100, 0);
+            appender.append(200, 100, 50);
+            appender.append(300, 300, 0);
+            appender.append(400, 300, 70);
+        }
+
+        IndexFile index = IndexFile.map(mFile);
+        assertThat(index.nextChunkIndex(100)).isEqualTo(2);
+        assertThat(index.nextChunkIndex(300)).isEqualTo(4);
+    }
+
+    @Test
+    public void map_ignoresPartialRecord() throws IOException {
+        appendRecord(100, 100, 0);
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write(new byte[IndexFile.RECORD_SIZE / 2]);
+        }
+
+        assertThat(IndexFile.map(mFile).size()).isEqualTo(1);
+    }
+
+    @Test
+    public void map_emptyFile() throws IOException {
+        assertThat(mFile.createNewFile()).isTrue();
+
+        assertThat(IndexFile.map(mFile).size()).isEqualTo(0);
+    }
+
+    @Test(expected = IOException.class)
+    public void map_invalidHeader() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(new byte[IndexFile.RECORD_SIZE * 2]);
+        }
+
+        IndexFile.map(mFile);
+    }
+
+    @Test
+    public void writeRecords_replacesFile() throws IOException {
+        appendRecord(100, 100, 0);
+        ByteBuffer records = ByteBuffer.allocate(IndexFile.RECORD_SIZE * 2);
+        IndexFile.putRecord(records, 500, 500, 0);
+        IndexFile.putRecord(records, 600, 500, 70);
+        records.flip();
+
+        IndexFile.writeRecords(mFile, records);
+
+        IndexFile index = IndexFile.map(mFile);
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.getPositionUs(0)).isEqualTo(500);
+        assertThat(index.getOffset(1)).isEqualTo(70);
+    }
+
+    private void appendRecord(long positionUs, long basePositionUs, int offset)
+            throws IOException {
+        try (IndexFile.Appender appender = new IndexFile.Appender(mFile)) {
+            appender.append(positionUs, basePositionUs, offset);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.media.MediaCodec;
+import android.os.ConditionVariable;
+import android.util.Pair;
+import com.android.tv.common.flags.impl.DefaultDvrFlags;
+import com.android.tv.testing.constants.ConfigConstants;
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.util.MimeTypes;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for the key frame index written by {@link SampleChunkIoHelper}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class SampleChunkIoHelperTest {
+    private static final String TRACK_ID = "video";
+    private static final long WRITE_TIMEOUT_MS = 1000;
+    private static final long DURATION_US = 10_000_000;
+
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final SamplePool mSamplePool = new SamplePool();
+    // The positions of the index entries, which are written to the index file while recording.
+    private final TreeSet<Long> mIndexPositionsUs = new TreeSet<>();
+    private BufferManager mBufferManager;
+    private SampleChunkIoHelper mIoHelper;
+
+    @Before
+    public void setUp() throws IOException {
+        mBufferManager = new BufferManager(new IndexRecordingStorageManager());
+        MediaFormat format =
+                MediaFormat.createVideoFormat(
+                        TRACK_ID,
+                        MimeTypes.VIDEO_H264,
+                        MediaFormat.NO_VALUE,
+                        MediaFormat.NO_VALUE,
+                        C.UNKNOWN_TIME_US,
+                        1920,
+                        1080,
+                        null);
+        mIoHelper =
+                new SampleChunkIoHelper(
+                        Collections.singletonList(TRACK_ID),
+                        Collections.singletonList(format),
+                        RecordingSampleBuffer.BUFFER_REASON_RECORDING,
+                        mBufferManager,
+                        mSamplePool,
+                        new SampleChunkIoHelper.IoCallback() {},
+                        new DefaultDvrFlags());
+        mIoHelper.init();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mIoHelper.release();
+    }
+
+    @Test
+    public void seek_sparseKeyFrames_startsAtClosestKeyFrame() throws IOException {
+        // 30 fps with a key frame every 15 frames, which is every 500ms.
+        long frameDurationUs = 33_333;
+        int keyFrameInterval = 15;
+        writeFrames(frameDurationUs, keyFrameInterval);
+
+        // Key frames are further apart than the minimum interval, so every one is indexed.
+        int keyFrameCount = (int) (DURATION_US / frameDurationUs / keyFrameInterval) + 1;
+        assertThat(mIndexPositionsUs).hasSize(keyFrameCount);
+        long keyFrameDurationUs = frameDurationUs * keyFrameInterval;
+        for (long positionUs = 0; positionUs < DURATION_US; positionUs += 100_000) {
+            long expectedUs = positionUs / keyFrameDurationUs * keyFrameDurationUs;
+            assertWithMessage("Seek to " + positionUs)
+                    .that(readKeyFrameAt(positionUs))
+                    .isEqualTo(expectedUs);
+        }
+    }
+
+    @Test
+    public void seek_everyFrameIsKeyFrame_startsWithinMinInterval() throws IOException {
+        // 60 fps with every frame being a key frame.
+        long frameDurationUs = 16_666;
+        writeFrames(frameDurationUs, 1);
+
+        // The indexed key frames are at most the minimum interval plus a frame apart.
+        long maxDistanceUs = SampleChunkIoHelper.MIN_KEY_FRAME_INDEX_INTERVAL_US + frameDurationUs;
+        for (long positionUs = 0; positionUs < DURATION_US; positionUs += 10_000) {
+            long keyFrameUs = readKeyFrameAt(positionUs);
+            assertWithMessage("Seek to " + positionUs).that(keyFrameUs).isAtMost(positionUs);
+            assertWithMessage("Seek to " + positionUs)
+                    .that(positionUs - keyFrameUs)
+                    .isLessThan(maxDistanceUs);
+        }
+    }
+
+    @Test
+    public void index_everyFrameIsKeyFrame_isLimitedByMinInterval() throws IOException {
+        long frameDurationUs = 16_666;
+        writeFrames(frameDurationUs, 1);
+
+        int frameCount = (int) (DURATION_US / frameDurationUs) + 1;
+        long maxIndexSize = DURATION_US / SampleChunkIoHelper.MIN_KEY_FRAME_INDEX_INTERVAL_US + 1;
+        assertThat(mIndexPositionsUs.size()).isAtMost((int) maxIndexSize);
+        assertThat(mIndexPositionsUs.size()).isLessThan(frameCount / 4);
+        long previousUs = -SampleChunkIoHelper.MIN_KEY_FRAME_INDEX_INTERVAL_US;
+        for (long positionUs : mIndexPositionsUs) {
+            assertThat(positionUs - previousUs)
+                    .isAtLeast(SampleChunkIoHelper.MIN_KEY_FRAME_INDEX_INTERVAL_US);
+            previousUs = positionUs;
+        }
+    }
+
+    // Writes frames up to DURATION_US, with a key frame at every keyFrameInterval frames.
+    private void writeFrames(long frameDurationUs, int keyFrameInterval) throws IOException {
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        sample.ensureSpaceForWrite(100);
+        sample.size = 100;
+        ConditionVariable conditionVariable = new ConditionVariable();
+        for (int i = 0; i * frameDurationUs <= DURATION_US; ++i) {
+            sample.timeUs = i * frameDurationUs;
+            sample.flags = i % keyFrameInterval == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            mIoHelper.writeSample(0, sample, conditionVariable);
+            assertThat(conditionVariable.block(WRITE_TIMEOUT_MS)).isTrue();
+        }
+    }
+
+    // Returns the position of the sample where a read from positionUs starts, which should be a
+    // key frame.
+    private long readKeyFrameAt(long positionUs) throws IOException {
+        Pair<SampleChunk, Integer> readPosition = mBufferManager.getReadFile(TRACK_ID, positionUs);
+        assertThat(readPosition).isNotNull();
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        readState.openRead(readPosition.first, readPosition.second);
+        SampleHolder sample = readState.read();
+        assertThat(sample).isNotNull();
+        assertThat(sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME).isNotEqualTo(0);
+        long timeUs = sample.timeUs;
+        mSamplePool.releaseSample(sample);
+        return timeUs;
+    }
+
+    private class IndexRecordingStorageManager implements BufferManager.StorageManager {
+        @Override
+        public File getBufferDir() {
+            return mTemporaryFolder.getRoot();
+        }
+
+        @Override
+        public boolean isPersistent() {
+            return true;
+        }
+
+        @Override
+        public boolean reachedStorageMax(long bufferSize, long pendingDelete) {
+            return false;
+        }
+
+        @Override
+        public boolean hasEnoughBuffer(long pendingDelete) {
+            return true;
+        }
+
+        @Override
+        public List<BufferManager.TrackFormat> readTrackInfoFiles(boolean isAudio) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public IndexFile readIndexFile(String trackId) {
+            return null;
+        }
+
+        @Override
+        public void writeTrackInfoFiles(
+                List<BufferManager.TrackFormat> formatList, boolean isAudio) {
+            // No-op.
+        }
+
+        @Override
+        public void writeIndexFile(
+                String trackName, SortedMap<Long, Pair<SampleChunk, Integer>> index) {
+            // No-op.
+        }
+
+        @Override
+        public void updateIndexFile(
+                String trackName, int size, long position, SampleChunk sampleChunk, int offset) {
+            mIndexPositionsUs.add(position);
+        }
+
+        @Override
+        public void closeIndexFiles() {
+            // No-op.
+        }
+    }
+}
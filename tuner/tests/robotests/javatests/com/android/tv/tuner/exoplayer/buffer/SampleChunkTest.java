@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.util.Log;
+import com.android.tv.testing.constants.ConfigConstants;
+import com.android.tv.testing.utils.AllocationCounter;
+import com.google.android.exoplayer.SampleHolder;
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link SampleChunk}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class SampleChunkTest {
+    private static final String TAG = "SampleChunkTest";
+    private static final int SAMPLE_HEADER_LENGTH = 16;
+
+    private final SamplePool mSamplePool = new SamplePool();
+    private long mFlushedSize;
+    private int mFlushCount;
+    private File mFile;
+    private SampleChunk mChunk;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("SampleChunkTest", null);
+        mChunk =
+                new SampleChunk.SampleChunkCreator()
+                        .createSampleChunk(
+                                mSamplePool,
+                                mFile,
+                                0,
+                                new SampleChunk.ChunkCallback() {
+                                    @Override
+                                    public void onChunkFlush(
+                                            SampleChunk chunk, long size, long timeNs) {
+                                        mFlushedSize += size;
+                                        mFlushCount++;
+                                    }
+                                });
+    }
+
+    @After
+    public void tearDown() {
+        SampleChunk.IoState.release(mChunk, true);
+    }
+
+    @Test
+    public void read_whileWriting() throws IOException {
+        SampleChunk.IoState writeState = new SampleChunk.IoState();
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        writeState.openWrite(mChunk);
+        writeState.write(createSample(100, 1), null);
+        readState.openRead(mChunk, 0);
+
+        assertSample(readState.read(), 100, 1);
+        assertThat(readState.read()).isNull();
+
+        writeState.write(createSample(2000, 2), null);
+        writeState.write(createSample(30, 3), null);
+        assertSample(readState.read(), 2000, 2);
+        assertSample(readState.read(), 30, 3);
+
+        writeState.closeWrite();
+        assertThat(readState.read()).isNull();
+        assertThat(readState.isReadFinished()).isTrue();
+    }
+
+    @Test
+    public void read_atLiveEdge_doesNotFlushOrMap() throws IOException {
+        SampleChunk.IoState writeState = new SampleChunk.IoState();
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        writeState.openWrite(mChunk);
+        readState.openRead(mChunk, 0);
+        for (int i = 0; i < 100; ++i) {
+            writeState.write(createSample(100, i), null);
+            assertSample(readState.read(), 100, i);
+            assertThat(readState.read()).isNull();
+        }
+        assertThat(mFlushCount).isEqualTo(0);
+        assertThat(mChunk.getMapCount()).isEqualTo(0);
+
+        writeState.closeWrite();
+        assertThat(mFlushCount).isEqualTo(1);
+        assertThat(readState.read()).isNull();
+        assertThat(readState.isReadFinished()).isTrue();
+        assertThat(mChunk.getMapCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void read_behindLiveEdge_mapsOncePerFlush() throws IOException {
+        SampleChunk.IoState writeState = new SampleChunk.IoState();
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        writeState.openWrite(mChunk);
+        int sampleSize = 1000;
+        // Fills the write buffer twice over, so it is flushed twice while writing.
+        int sampleCount = SampleChunk.WRITE_BUFFER_SIZE * 2 / sampleSize;
+        for (int i = 0; i < sampleCount; ++i) {
+            writeState.write(createSample(sampleSize, i), null);
+        }
+        assertThat(mFlushCount).isEqualTo(2);
+
+        readState.openRead(mChunk, 0);
+        for (int i = 0; i < sampleCount; ++i) {
+            assertSample(readState.read(), sampleSize, i);
+        }
+        assertThat(readState.read()).isNull();
+        assertThat(mFlushCount).isEqualTo(2);
+        assertThat(mChunk.getMapCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void read_afterWriteFinished() throws IOException {
+        SampleChunk.IoState writeState = new SampleChunk.IoState();
+        writeState.openWrite(mChunk);
+        for (int i = 0; i < 10; ++i) {
+            writeState.write(createSample(100 * (i + 1), i), null);
+        }
+        writeState.closeWrite();
+
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        readState.openRead(mChunk, 0);
+        for (int i = 0; i < 10; ++i) {
+            assertSample(readState.read(), 100 * (i + 1), i);
+        }
+        assertThat(readState.read()).isNull();
+    }
+
+    @Test
+    public void write_batchesSamples() throws IOException {
+        SampleChunk.IoState writeState = new SampleChunk.IoState();
+        writeState.openWrite(mChunk);
+        writeState.write(createSample(100, 1), null);
+        writeState.write(createSample(200, 2), null);
+        assertThat(mFlushedSize).isEqualTo(0);
+        assertThat(writeState.getOffset()).isEqualTo(300 + SAMPLE_HEADER_LENGTH * 2);
+
+        int largeSize = SampleChunk.WRITE_BUFFER_SIZE * 2;
+        writeState.write(createSample(largeSize, 3), null);
+        long totalSize = 300 + largeSize + SAMPLE_HEADER_LENGTH * 3;
+        assertThat(mFlushedSize).isEqualTo(totalSize);
+        assertThat(mFile.length()).isEqualTo(totalSize);
+
+        writeState.write(createSample(10, 4), null);
+        writeState.closeWrite();
+        totalSize += 10 + SAMPLE_HEADER_LENGTH;
+        assertThat(mFlushedSize).isEqualTo(totalSize);
+        assertThat(mChunk.getSize()).isEqualTo(totalSize);
+
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        readState.openRead(mChunk, 0);
+        assertSample(readState.read(), 100, 1);
+        assertSample(readState.read(), 200, 2);
+        assertSample(readState.read(), largeSize, 3);
+        assertSample(readState.read(), 10, 4);
+        assertThat(readState.read()).isNull();
+    }
+
+    @Test
+    public void read_throughputAndAllocation() throws IOException {
+        // About ten seconds of a 15 Mbps video stream.
+        int sampleCount = 1000;
+        int sampleSize = 16 * 1024;
+        SampleChunk.IoState writeState = new SampleChunk.IoState();
+        writeState.openWrite(mChunk);
+        SampleHolder sample = createSample(sampleSize, 0);
+        for (int i = 0; i < sampleCount; ++i) {
+            writeState.write(sample, null);
+        }
+        writeState.closeWrite();
+        // The first pass fills the pool, so the measured pass reuses its samples.
+        assertThat(readAndRelease(new SampleChunk.IoState())).isEqualTo(sampleCount);
+
+        SampleChunk.IoState readState = new SampleChunk.IoState();
+        readState.openRead(mChunk, 0);
+        AllocationCounter allocationCounter = AllocationCounter.startOrSkip();
+        long startNs = System.nanoTime();
+        int readCount = readAndRelease(readState);
+        long elapsedNs = Math.max(1, System.nanoTime() - startNs);
+        long allocated = allocationCounter.getAllocatedBytes();
+
+        assertThat(readCount).isEqualTo(sampleCount);
+        // Reading the headers with a RandomAccessFile or mapping each sample would allocate for
+        // every sample. Only the mapping of the chunk is allocated.
+        assertWithMessage("Bytes allocated while reading " + sampleCount + " samples")
+                .that(allocated)
+                .isLessThan(sampleCount * 16L);
+        // The timing depends on the host, so it is only logged.
+        Log.i(
+                TAG,
+                "Read "
+                        + sampleCount * 1000000000L / elapsedNs
+                        + " samples per second, allocating "
+                        + allocated
+                        + " bytes");
+    }
+
+    // Reads all the samples from the state and releases them to the pool. Returns the count.
+    private int readAndRelease(SampleChunk.IoState readState) throws IOException {
+        if (readState.getChunk() == null) {
+            readState.openRead(mChunk, 0);
+        }
+        int count = 0;
+        SampleHolder sample;
+        while ((sample = readState.read()) != null) {
+            mSamplePool.releaseSample(sample);
+            count++;
+        }
+        return count;
+    }
+
+    private static SampleHolder createSample(int size, int index) {
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        sample.ensureSpaceForWrite(size);
+        for (int i = 0; i < size; ++i) {
+            sample.data.put((byte) (index + i));
+        }
+        sample.size = size;
+        sample.flags = index;
+        sample.timeUs = index * 1000L;
+        return sample;
+    }
+
+    private static void assertSample(SampleHolder sample, int size, int index) {
+        assertThat(sample).isNotNull();
+        assertThat(sample.size).isEqualTo(size);
+        assertThat(sample.flags).isEqualTo(index);
+        assertThat(sample.timeUs).isEqualTo(index * 1000L);
+        assertThat(sample.data.position()).isEqualTo(size);
+        byte[] expected = new byte[size];
+        byte[] actual = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            expected[i] = (byte) (index + i);
+            actual[i] = sample.data.get(i);
+        }
+        assertThat(actual).isEqualTo(expected);
+    }
+}
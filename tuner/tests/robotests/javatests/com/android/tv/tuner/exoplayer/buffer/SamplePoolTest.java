@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.exoplayer.buffer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tv.testing.constants.ConfigConstants;
+import com.google.android.exoplayer.SampleHolder;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link SamplePool}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class SamplePoolTest {
+    private final SamplePool mSamplePool = new SamplePool();
+
+    @Test
+    public void acquireSample_roundsUpToSizeClass() {
+        SampleHolder sample = mSamplePool.acquireSample(3000);
+        assertThat(sample.data.capacity()).isEqualTo(3072);
+        assertThat(mSamplePool.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void acquireSample_wastesLessThanQuarter() {
+        int[] sizes = {1025, 1500, 2049, 3000, 70000, 1000000, 5000000};
+        for (int size : sizes) {
+            int capacity = new SamplePool().acquireSample(size).data.capacity();
+            assertThat(capacity).isAtLeast(size);
+            assertThat(capacity).isLessThan(size + size / 4);
+        }
+    }
+
+    @Test
+    public void acquireSample_reusesReleasedSample() {
+        SampleHolder sample = mSamplePool.acquireSample(3000);
+        mSamplePool.releaseSample(sample);
+        assertThat(mSamplePool.acquireSample(2049)).isSameAs(sample);
+        assertThat(mSamplePool.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void acquireSample_doesNotReuseTooLargeSample() {
+        SampleHolder sample = mSamplePool.acquireSample(4096);
+        mSamplePool.releaseSample(sample);
+        SampleHolder smaller = mSamplePool.acquireSample(2048);
+        assertThat(smaller).isNotSameAs(sample);
+        assertThat(smaller.data.capacity()).isEqualTo(2048);
+        assertThat(mSamplePool.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void acquireSample_doesNotReuseTooSmallSample() {
+        SampleHolder sample = mSamplePool.acquireSample(1024);
+        mSamplePool.releaseSample(sample);
+        SampleHolder larger = mSamplePool.acquireSample(2000);
+        assertThat(larger).isNotSameAs(sample);
+        assertThat(larger.data.capacity()).isAtLeast(2000);
+        assertThat(mSamplePool.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void acquireSample_resizesSampleOfPreviousClass() {
+        SampleHolder sample = mSamplePool.acquireSample(2048);
+        mSamplePool.releaseSample(sample);
+        SampleHolder resized = mSamplePool.acquireSample(2560);
+        assertThat(resized).isSameAs(sample);
+        assertThat(resized.data.capacity()).isEqualTo(2560);
+        assertThat(mSamplePool.getResizeCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void acquireSample_fromSeveralThreads() throws InterruptedException {
+        int count = 10000;
+        // An audio track and a video track, whose samples are in different classes.
+        Thread audio = new Thread(() -> acquireAndRelease(1500, count));
+        Thread video = new Thread(() -> acquireAndRelease(50000, count));
+        audio.start();
+        video.start();
+        audio.join();
+        video.join();
+
+        // Only the first sample of each track is allocated.
+        assertThat(mSamplePool.getMissCount()).isEqualTo(2);
+        assertThat(mSamplePool.getHitCount()).isEqualTo(2 * count - 2);
+    }
+
+    @Test
+    public void releaseSample_boundsPooledBytes() {
+        int size = 1024 * 1024;
+        List<SampleHolder> samples = new ArrayList<>();
+        for (long i = 0; i <= SamplePool.MAX_POOLED_BYTES / size; ++i) {
+            samples.add(mSamplePool.acquireSample(size));
+        }
+        for (SampleHolder sample : samples) {
+            mSamplePool.releaseSample(sample);
+        }
+        for (int i = 0; i < samples.size(); ++i) {
+            mSamplePool.acquireSample(size);
+        }
+        assertThat(mSamplePool.getHitCount()).isEqualTo(SamplePool.MAX_POOLED_BYTES / size);
+    }
+
+    private void acquireAndRelease(int size, int count) {
+        for (int i = 0; i < count; ++i) {
+            mSamplePool.releaseSample(mSamplePool.acquireSample(size));
+        }
+    }
+}
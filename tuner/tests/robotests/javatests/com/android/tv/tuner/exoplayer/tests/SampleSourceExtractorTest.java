@@ -29,6 +29,7 @@ import com.android.tv.testing.constants.ConfigConstants;
 import com.android.tv.tuner.exoplayer.ExoPlayerSampleExtractor;
 import com.android.tv.tuner.exoplayer.buffer.BufferManager;
 import com.android.tv.tuner.exoplayer.buffer.BufferManager.StorageManager;
+import com.android.tv.tuner.exoplayer.buffer.IndexFile;
 import com.android.tv.tuner.exoplayer.buffer.PlaybackBufferListener;
 import com.android.tv.tuner.exoplayer.buffer.SampleChunk;
 import com.android.tv.tuner.testing.buffer.VerySlowSampleChunk;
@@ -50,7 +51,6 @@ import org.robolectric.shadows.ShadowLooper;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.SortedMap;
 
@@ -242,8 +242,7 @@ public class SampleSourceExtractorTest {
         }
 
         @Override
-        public ArrayList<BufferManager.PositionHolder> readIndexFile(String trackId)
-                throws IOException {
+        public IndexFile readIndexFile(String trackId) throws IOException {
             return null;
         }
 
@@ -266,6 +265,11 @@ public class SampleSourceExtractorTest {
                 throws IOException {
             // No-op
         }
+
+        @Override
+        public void closeIndexFiles() {
+            // No-op.
+        }
     }
 
     public static class MockPlaybackBufferListener implements PlaybackBufferListener {
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.hdhomerun;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tv.testing.constants.ConfigConstants;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link HdHomeRunStreamClient}, against a local server which stands in a device. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class HdHomeRunStreamClientTest {
+    private static final int PACKET_SIZE = 188;
+    private static final String PATH = "/auto/v5.1";
+    private static final String OK_RESPONSE =
+            "HTTP/1.1 200 OK\r\nContent-Type: video/mpeg\r\nConnection: close\r\n\r\n";
+    private static final long TIMEOUT_MS = 10000;
+
+    private final HdHomeRunStreamClient mClient = new HdHomeRunStreamClient(1000, 1000, 10, 100);
+    private TestServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TestServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mClient.stop();
+        mServer.close();
+    }
+
+    @Test
+    public void read_wholePackets() throws IOException {
+        // The packets are sent in pieces which are not aligned to the packets.
+        mServer.addResponse(OK_RESPONSE.getBytes(StandardCharsets.US_ASCII), packets(0, 100));
+
+        assertThat(mClient.start(mServer.getAddress(), PATH)).isTrue();
+        byte[] stream = readStream(100 * PACKET_SIZE);
+
+        assertThat(readPacketNumbers(stream)).isEqualTo(range(0, 100));
+        assertThat(mServer.getRequest(0)).startsWith("GET " + PATH + " HTTP/1.1\r\n");
+        assertThat(mClient.getDroppedBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void read_reconnectsAndResyncs() throws IOException {
+        // The first connection is lost in the middle of a packet, and the second one does not
+        // start at a packet.
+        byte[] first = packets(0, 10);
+        mServer.addResponse(
+                OK_RESPONSE.getBytes(StandardCharsets.US_ASCII),
+                Arrays.copyOf(first, first.length + PACKET_SIZE / 2));
+        byte[] garbage = new byte[50];
+        Arrays.fill(garbage, (byte) 0x47);
+        mServer.addResponse(
+                OK_RESPONSE.getBytes(StandardCharsets.US_ASCII), garbage, packets(100, 110));
+
+        assertThat(mClient.start(mServer.getAddress(), PATH)).isTrue();
+        byte[] stream = readStream(20 * PACKET_SIZE);
+
+        List<Integer> expected = range(0, 10);
+        expected.addAll(range(100, 110));
+        assertThat(readPacketNumbers(stream)).isEqualTo(expected);
+        assertThat(mClient.getReconnectCount()).isAtLeast(1);
+        assertThat(mClient.getDroppedBytes()).isEqualTo(PACKET_SIZE / 2 + garbage.length);
+    }
+
+    @Test
+    public void start_errorResponse() throws IOException {
+        mServer.addResponse("HTTP/1.1 404 Not Found\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+        assertThat(mClient.start(mServer.getAddress(), PATH)).isFalse();
+    }
+
+    @Test
+    public void read_afterStop() throws IOException {
+        mServer.addResponse(OK_RESPONSE.getBytes(StandardCharsets.US_ASCII), packets(0, 10));
+        assertThat(mClient.start(mServer.getAddress(), PATH)).isTrue();
+
+        mClient.stop();
+        assertThat(mClient.read(ByteBuffer.allocateDirect(PACKET_SIZE * 10))).isEqualTo(0);
+    }
+
+    private byte[] readStream(int length) {
+        // Reads with a buffer which is not aligned to the packets, like the ring buffer of the
+        // streamer at its end.
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1000);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        while (stream.size() < length && System.currentTimeMillis() < deadlineMs) {
+            buffer.clear();
+            int bytesRead = mClient.read(buffer);
+            assertThat(bytesRead).isEqualTo(buffer.position());
+            buffer.flip();
+            byte[] data = new byte[bytesRead];
+            buffer.get(data);
+            stream.write(data, 0, bytesRead);
+        }
+        return stream.toByteArray();
+    }
+
+    private static List<Integer> readPacketNumbers(byte[] stream) {
+        assertThat(stream.length % PACKET_SIZE).isEqualTo(0);
+        List<Integer> numbers = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(stream);
+        for (int pos = 0; pos < stream.length; pos += PACKET_SIZE) {
+            assertThat(stream[pos]).isEqualTo((byte) 0x47);
+            numbers.add(buffer.getInt(pos + 4));
+        }
+        return numbers;
+    }
+
+    private static byte[] packets(int from, int to) {
+        ByteBuffer buffer = ByteBuffer.allocate((to - from) * PACKET_SIZE);
+        for (int i = from; i < to; ++i) {
+            byte[] packet = new byte[PACKET_SIZE];
+            Arrays.fill(packet, (byte) 0xff);
+            packet[0] = 0x47;
+            packet[1] = 0x00;
+            packet[2] = 0x31;
+            packet[3] = 0x10;
+            ByteBuffer.wrap(packet).putInt(4, i);
+            buffer.put(packet);
+        }
+        return buffer.array();
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = from; i < to; ++i) {
+            numbers.add(i);
+        }
+        return numbers;
+    }
+
+    /**
+     * A local HTTP server which sends a scripted response to each connection and closes it.
+     * Connections after the script are closed without a response.
+     */
+    private static class TestServer extends Thread {
+        private final ServerSocket mServerSocket;
+        // Guarded by this.
+        private final List<byte[][]> mResponses = new ArrayList<>();
+        private final List<String> mRequests = new ArrayList<>();
+
+        private TestServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+            start();
+        }
+
+        private InetSocketAddress getAddress() {
+            return new InetSocketAddress(
+                    mServerSocket.getInetAddress().getHostAddress(), mServerSocket.getLocalPort());
+        }
+
+        private synchronized void addResponse(byte[]... parts) {
+            mResponses.add(parts);
+        }
+
+        private synchronized String getRequest(int connection) {
+            return mRequests.get(connection);
+        }
+
+        private void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            for (int connection = 0; ; ++connection) {
+                try (Socket socket = mServerSocket.accept()) {
+                    byte[][] response;
+                    synchronized (this) {
+                        if (connection >= mResponses.size()) {
+                            continue;
+                        }
+                        response = mResponses.get(connection);
+                    }
+                    String request = readRequest(socket.getInputStream());
+                    synchronized (this) {
+                        mRequests.add(request);
+                    }
+                    OutputStream out = socket.getOutputStream();
+                    for (byte[] part : response) {
+                        // Sends in pieces of an odd size.
+                        for (int pos = 0; pos < part.length; pos += 1001) {
+                            out.write(part, pos, Math.min(1001, part.length - pos));
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed.
+                    return;
+                }
+            }
+        }
+
+        private static String readRequest(InputStream in) throws IOException {
+            StringBuilder request = new StringBuilder();
+            while (request.indexOf("\r\n\r\n") < 0) {
+                int c = in.read();
+                if (c < 0) {
+                    break;
+                }
+                request.append((char) c);
+            }
+            return request.toString();
+        }
+    }
+}
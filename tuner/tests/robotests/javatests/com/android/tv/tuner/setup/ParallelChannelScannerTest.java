@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.setup;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Environment;
+import com.android.tv.testing.constants.ConfigConstants;
+import com.android.tv.tuner.api.ScanChannel;
+import com.android.tv.tuner.data.Channel.TunerType;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.TunerChannel;
+import com.android.tv.tuner.source.FileTsStreamer;
+import com.android.tv.tuner.source.TsDataSource;
+import com.android.tv.tuner.source.TsStreamer;
+import com.android.tv.tuner.ts.EventDetector.EventListener;
+import com.android.tv.tuner.ts.TsParser;
+import com.android.tv.tuner.util.Crc32Mpeg2;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link ParallelChannelScanner}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class ParallelChannelScannerTest {
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int PMT_PID = 0x30;
+    private static final int AUDIO_PID = 0x31;
+    private static final int STREAM_TYPE_AC3 = 0x81;
+    private static final int SERVICE_TYPE_DIGITAL_TELEVISION = 0x02;
+
+    // Resolved once like the directory of FileTsStreamer, which is kept for the whole run.
+    private static final File STREAM_DIR =
+            new File(Environment.getExternalStorageDirectory(), "Streams");
+
+    private static final String STREAM_A = "a.ts";
+    private static final String STREAM_B = "b.ts";
+    private static final String STREAM_WITHOUT_VCT = "no_vct.ts";
+    // A tuned frequency without signal, which streams nothing.
+    private static final String STREAM_NO_SIGNAL = "no_signal.ts";
+    // A frequency which cannot be tuned.
+    private static final String STREAM_MISSING = "missing.ts";
+
+    private final List<FileTuner> mTuners = new ArrayList<>();
+    private final Set<FileTuner> mUsedTuners = Collections.synchronizedSet(new HashSet<>());
+    private final AtomicInteger mActiveStreamCount = new AtomicInteger();
+    private final AtomicInteger mMaxActiveStreamCount = new AtomicInteger();
+    private final TestScanListener mListener = new TestScanListener();
+
+    @Before
+    public void setUp() throws IOException {
+        STREAM_DIR.mkdirs();
+        writeFile(STREAM_A, buildStream(1, 7, 1, "AAA", true));
+        writeFile(STREAM_B, buildStream(2, 9, 1, "BBB", true));
+        writeFile(STREAM_WITHOUT_VCT, buildStream(3, 11, 1, "CCC", false));
+        writeFile(STREAM_NO_SIGNAL, new byte[0]);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : STREAM_DIR.listFiles()) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void scan_splitsPlanAcrossTuners() {
+        ParallelChannelScanner scanner = createScanner(2, 5000, 300);
+
+        scanner.scan(
+                scanPlan(STREAM_A, STREAM_NO_SIGNAL, STREAM_B, STREAM_MISSING, STREAM_NO_SIGNAL));
+
+        assertThat(mListener.mChannelNames).containsExactly("AAA", "BBB");
+        assertThat(mUsedTuners).containsExactlyElementsIn(mTuners);
+        assertThat(mListener.mScannedCount).isEqualTo(5);
+        assertThat(mListener.mTotalCount).isEqualTo(5);
+    }
+
+    @Test
+    public void scan_runsTunersConcurrently() {
+        ParallelChannelScanner scanner = createScanner(2, 5000, 500);
+
+        scanner.scan(scanPlan(STREAM_NO_SIGNAL, STREAM_NO_SIGNAL));
+
+        assertThat(mMaxActiveStreamCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void scan_givesUpFrequencyWithoutSignal() {
+        ParallelChannelScanner scanner = createScanner(1, 60000, 200);
+
+        long startMs = System.currentTimeMillis();
+        scanner.scan(scanPlan(STREAM_NO_SIGNAL, STREAM_MISSING));
+
+        assertThat(System.currentTimeMillis() - startMs).isLessThan(10000L);
+        assertThat(mListener.mChannelNames).isEmpty();
+        assertThat(mListener.mScannedCount).isEqualTo(2);
+    }
+
+    @Test
+    public void scan_skipsChannelsWithoutTuner() {
+        ParallelChannelScanner scanner = createScanner(1, 5000, 300);
+
+        scanner.scan(
+                Arrays.asList(
+                        ScanChannel.forFile(FileTsStreamer.FREQ_BASE, STREAM_A),
+                        ScanChannel.forTuner("A", 57000000, "8VSB", 2)));
+
+        assertThat(mListener.mChannelNames).containsExactly("AAA");
+        assertThat(mListener.mScannedCount).isEqualTo(2);
+    }
+
+    @Test
+    public void stop_skipsRemainingFrequencies() throws InterruptedException {
+        ParallelChannelScanner scanner = createScanner(1, 60000, 200);
+        Thread scanThread =
+                new Thread(() -> scanner.scan(scanPlan(STREAM_WITHOUT_VCT, STREAM_A)));
+        scanThread.start();
+        // The stream without VCT keeps the tuner busy until the scan period ends.
+        long deadlineMs = System.currentTimeMillis() + 10000;
+        while (mUsedTuners.isEmpty() && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(500);
+
+        scanner.stop();
+        scanThread.join(10000);
+
+        assertThat(scanThread.isAlive()).isFalse();
+        assertThat(mListener.mChannelNames).isEmpty();
+        assertThat(mActiveStreamCount.get()).isEqualTo(0);
+    }
+
+    private ParallelChannelScanner createScanner(
+            int tunerCount, long scanPeriodMs, long lockTimeoutMs) {
+        ParallelChannelScanner scanner =
+                new ParallelChannelScanner(mListener, scanPeriodMs, lockTimeoutMs);
+        for (int i = 0; i < tunerCount; ++i) {
+            scanner.addTuner(
+                    TunerType.TYPE_FILE_VALUE,
+                    listener -> {
+                        FileTuner tuner = new FileTuner(listener);
+                        mTuners.add(tuner);
+                        return tuner;
+                    });
+        }
+        return scanner;
+    }
+
+    private static List<ScanChannel> scanPlan(String... filenames) {
+        List<ScanChannel> scanChannels = new ArrayList<>();
+        int frequency = FileTsStreamer.FREQ_BASE;
+        for (String filename : filenames) {
+            scanChannels.add(ScanChannel.forFile(frequency, filename));
+            frequency += 100;
+        }
+        return scanChannels;
+    }
+
+    private void writeFile(String filename, byte[] data) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(STREAM_DIR, filename))) {
+            out.write(data);
+        }
+    }
+
+    /** Builds a TS stream which has the PAT, PMT and TVCT of a channel with an AC-3 audio. */
+    private static byte[] buildStream(
+            int programNumber, int major, int minor, String shortName, boolean withVct) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writePacket(
+                out,
+                TsParser.PAT_PID,
+                buildSection(
+                        0x00,
+                        programNumber,
+                        programNumber >> 8,
+                        programNumber,
+                        0xe0 | PMT_PID >> 8,
+                        PMT_PID));
+        writePacket(
+                out,
+                PMT_PID,
+                buildSection(
+                        0x02,
+                        programNumber,
+                        0xe0 | AUDIO_PID >> 8,
+                        AUDIO_PID,
+                        0xf0,
+                        0x00,
+                        STREAM_TYPE_AC3,
+                        0xe0 | AUDIO_PID >> 8,
+                        AUDIO_PID,
+                        0xf0,
+                        0x00));
+        if (withVct) {
+            int[] channel = new int[32];
+            byte[] name = shortName.getBytes(StandardCharsets.UTF_16BE);
+            for (int i = 0; i < name.length; ++i) {
+                channel[i] = name[i];
+            }
+            channel[14] = 0xf0 | major >> 6;
+            channel[15] = (major & 0x3f) << 2 | minor >> 8;
+            channel[16] = minor;
+            channel[24] = programNumber >> 8;
+            channel[25] = programNumber;
+            channel[27] = 0xc0 | SERVICE_TYPE_DIGITAL_TELEVISION;
+            channel[28] = programNumber >> 8;
+            channel[29] = programNumber;
+            channel[30] = 0xfc;
+            int[] vct = new int[channel.length + 4];
+            // protocol_version and num_channels_in_section.
+            vct[1] = 1;
+            System.arraycopy(channel, 0, vct, 2, channel.length);
+            // additional_descriptors_length.
+            vct[channel.length + 2] = 0xfc;
+            writePacket(out, TsParser.ATSC_SI_BASE_PID, buildSection(0xc8, 1, vct));
+        }
+        return out.toByteArray();
+    }
+
+    /** Builds a long form section of version 0, whose section number is 0 out of 1. */
+    private static byte[] buildSection(int tableId, int tableIdExtension, int... payload) {
+        int length = 8 + payload.length;
+        byte[] section = new byte[length + 4];
+        int sectionLength = section.length - 3;
+        section[0] = (byte) tableId;
+        section[1] = (byte) (0xb0 | sectionLength >> 8);
+        section[2] = (byte) sectionLength;
+        section[3] = (byte) (tableIdExtension >> 8);
+        section[4] = (byte) tableIdExtension;
+        section[5] = (byte) 0xc1;
+        for (int i = 0; i < payload.length; ++i) {
+            section[8 + i] = (byte) payload[i];
+        }
+        int crc = Crc32Mpeg2.compute(section, 0, length);
+        for (int i = 0; i < 4; ++i) {
+            section[length + i] = (byte) (crc >> (24 - 8 * i));
+        }
+        return section;
+    }
+
+    private static void writePacket(ByteArrayOutputStream out, int pid, byte[] section) {
+        byte[] packet = new byte[TS_PACKET_SIZE];
+        Arrays.fill(packet, (byte) 0xff);
+        packet[0] = 0x47;
+        // The payload starts a section right after the pointer field.
+        packet[1] = (byte) (0x40 | pid >> 8);
+        packet[2] = (byte) pid;
+        packet[3] = 0x10;
+        packet[4] = 0;
+        System.arraycopy(section, 0, packet, 5, section.length);
+        out.write(packet, 0, packet.length);
+    }
+
+    /** A tuner which streams TS files and keeps track of the streams running at once. */
+    private class FileTuner implements TsStreamer {
+        private final FileTsStreamer mStreamer;
+        private boolean mStreaming;
+
+        private FileTuner(EventListener listener) {
+            mStreamer = new FileTsStreamer(listener, RuntimeEnvironment.application);
+        }
+
+        @Override
+        public boolean startStream(ScanChannel channel) {
+            if (!mStreamer.startStream(channel)) {
+                return false;
+            }
+            mStreaming = true;
+            mUsedTuners.add(this);
+            int count = mActiveStreamCount.incrementAndGet();
+            mMaxActiveStreamCount.accumulateAndGet(count, Math::max);
+            return true;
+        }
+
+        @Override
+        public boolean startStream(TunerChannel channel) {
+            return false;
+        }
+
+        @Override
+        public void stopStream() {
+            mStreamer.stopStream();
+            if (mStreaming) {
+                mStreaming = false;
+                mActiveStreamCount.decrementAndGet();
+            }
+        }
+
+        @Override
+        public long getBufferedPosition() {
+            return mStreamer.getBufferedPosition();
+        }
+
+        @Override
+        public TsDataSource createDataSource() {
+            return mStreamer.createDataSource();
+        }
+    }
+
+    private static class TestScanListener implements ParallelChannelScanner.ScanListener {
+        // Accessed one at a time by the scanner, and read after the scan ends.
+        private final List<String> mChannelNames = new ArrayList<>();
+        private int mScannedCount;
+        private int mTotalCount;
+
+        @Override
+        public List<TunerChannel> onFrequencyScanned(ScanChannel channel, TsStreamer streamer) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void onProgress(int scannedCount, int totalCount) {
+            mScannedCount = scannedCount;
+            mTotalCount = totalCount;
+        }
+
+        @Override
+        public void onEventDetected(TunerChannel channel, List<EitItem> items) {}
+
+        @Override
+        public void onChannelScanDone() {}
+
+        @Override
+        public void onChannelDetected(TunerChannel channel, boolean channelArrivedAtFirstTime) {
+            if (channelArrivedAtFirstTime) {
+                mChannelNames.add(channel.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tv.testing.constants.ConfigConstants;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link TsRingBufferConsumer}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class TsRingBufferConsumerTest {
+    private static final int PACKET_SIZE = 188;
+    private static final int CAPACITY = PACKET_SIZE * 8;
+    private static final long TIMEOUT_MS = 5000;
+
+    private TsRingBuffer mRingBuffer;
+
+    @Before
+    public void setUp() {
+        mRingBuffer = new TsRingBuffer(CAPACITY);
+        assertThat(mRingBuffer.open()).isTrue();
+    }
+
+    @Test
+    public void consume_allPackets() throws InterruptedException {
+        // The writer never gets further than the maximum lag ahead of the consumer.
+        RecordingConsumer consumer = new RecordingConsumer(PACKET_SIZE * 4, 3);
+        consumer.start();
+        for (int i = 0; i < 3; ++i) {
+            mRingBuffer.write(packet(i), 0, PACKET_SIZE);
+        }
+
+        assertThat(consumer.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(consumer.mPackets).containsExactly(0, 1, 2).inOrder();
+        assertThat(consumer.getDroppedBytes()).isEqualTo(0);
+        mRingBuffer.close();
+        consumer.join();
+    }
+
+    @Test
+    public void consume_packetWrappingAround() throws InterruptedException {
+        // The capacity is not a multiple of the packet size, so the 5th packet wraps around.
+        int capacity = PACKET_SIZE * 4 + 100;
+        mRingBuffer = new TsRingBuffer(capacity);
+        assertThat(mRingBuffer.open()).isTrue();
+        RecordingConsumer consumer = new RecordingConsumer(PACKET_SIZE * 2, 8);
+        consumer.start();
+        for (int i = 0; i < 8; ++i) {
+            // Keeps the writer at most a packet ahead, so the consumer never skips.
+            assertThat(mRingBuffer.waitForFreeSpace(capacity - PACKET_SIZE)).isTrue();
+            mRingBuffer.write(packet(i), 0, PACKET_SIZE);
+        }
+
+        assertThat(consumer.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(consumer.mPackets).containsExactly(0, 1, 2, 3, 4, 5, 6, 7).inOrder();
+        assertThat(consumer.getDroppedBytes()).isEqualTo(0);
+        mRingBuffer.close();
+        consumer.join();
+    }
+
+    @Test
+    public void consume_skipsWhenLagging() throws InterruptedException {
+        for (int i = 0; i < 20; ++i) {
+            mRingBuffer.write(packet(i), 0, PACKET_SIZE);
+        }
+        RecordingConsumer consumer = new RecordingConsumer(PACKET_SIZE * 4, 2);
+        consumer.start();
+
+        // Jumps to the half of the maximum lag behind the writer.
+        assertThat(consumer.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(consumer.mPackets).containsExactly(18, 19).inOrder();
+        assertThat(consumer.getDroppedBytes()).isEqualTo(PACKET_SIZE * 18);
+        assertThat(consumer.getDropCount()).isEqualTo(1);
+        mRingBuffer.close();
+        consumer.join();
+    }
+
+    private class RecordingConsumer extends TsRingBufferConsumer {
+        private final List<Integer> mPackets = new ArrayList<>();
+        private final CountDownLatch mDone;
+
+        RecordingConsumer(long maxLagBytes, int expectedPackets) {
+            super("RecordingConsumer", mRingBuffer, maxLagBytes);
+            mDone = new CountDownLatch(expectedPackets);
+        }
+
+        @Override
+        protected void consume(ByteBuffer data) {
+            assertThat(data.isReadOnly()).isTrue();
+            for (int i = data.position(); i < data.limit(); i += PACKET_SIZE) {
+                mPackets.add((int) data.get(i));
+                mDone.countDown();
+            }
+        }
+    }
+
+    private static byte[] packet(int value) {
+        byte[] packet = new byte[PACKET_SIZE];
+        packet[0] = (byte) value;
+        return packet;
+    }
+}
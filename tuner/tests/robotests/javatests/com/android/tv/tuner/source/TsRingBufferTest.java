@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.source;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tv.testing.constants.ConfigConstants;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link TsRingBuffer}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class TsRingBufferTest {
+    private static final int CAPACITY = 188 * 4;
+    private static final int CHUNK_SIZE = 188;
+    private static final long TIMEOUT_MS = 5000;
+
+    private TsRingBuffer mRingBuffer;
+    private TsRingBuffer.Reader mReader;
+
+    @Before
+    public void setUp() {
+        mRingBuffer = new TsRingBuffer(CAPACITY);
+        assertThat(mRingBuffer.open()).isTrue();
+        mReader = mRingBuffer.addReader(0);
+    }
+
+    @Test
+    public void open_twice_returnsFalse() {
+        assertThat(mRingBuffer.open()).isFalse();
+    }
+
+    @Test
+    public void readAt_wrapsAround() {
+        byte[] output = new byte[CHUNK_SIZE * 2];
+        for (int i = 0; i < 10; ++i) {
+            mRingBuffer.write(chunk(i), 0, CHUNK_SIZE);
+        }
+        // The 8th and 9th chunks are stored at the end and at the start of the buffer.
+        int ret = mRingBuffer.readAt(mReader, CHUNK_SIZE * 7, output, 0, output.length, TIMEOUT_MS);
+        assertThat(ret).isEqualTo(output.length);
+        assertThat(output[0]).isEqualTo((byte) 7);
+        assertThat(output[CHUNK_SIZE - 1]).isEqualTo((byte) 7);
+        assertThat(output[CHUNK_SIZE]).isEqualTo((byte) 8);
+        assertThat(output[output.length - 1]).isEqualTo((byte) 8);
+        assertThat(mRingBuffer.getWritePosition()).isEqualTo(CHUNK_SIZE * 10);
+        assertThat(mReader.getPosition()).isEqualTo(CHUNK_SIZE * 9);
+    }
+
+    @Test
+    public void beginWrite_stopsAtEndOfBuffer() {
+        for (int i = 0; i < 3; ++i) {
+            mRingBuffer.write(chunk(i), 0, CHUNK_SIZE);
+        }
+        ByteBuffer window = mRingBuffer.beginWrite(CHUNK_SIZE * 2);
+        assertThat(window.remaining()).isEqualTo(CHUNK_SIZE);
+        window.put(chunk(3));
+        mRingBuffer.endWrite(CHUNK_SIZE);
+        window = mRingBuffer.beginWrite(CHUNK_SIZE * 2);
+        assertThat(window.position()).isEqualTo(0);
+        assertThat(window.remaining()).isEqualTo(CHUNK_SIZE * 2);
+        window.put(chunk(4));
+        mRingBuffer.endWrite(CHUNK_SIZE);
+
+        byte[] output = new byte[CHUNK_SIZE * 2];
+        int ret = mRingBuffer.readAt(mReader, CHUNK_SIZE * 3, output, 0, output.length, TIMEOUT_MS);
+        assertThat(ret).isEqualTo(output.length);
+        assertThat(output[0]).isEqualTo((byte) 3);
+        assertThat(output[output.length - 1]).isEqualTo((byte) 4);
+        assertThat(mRingBuffer.getWritePosition()).isEqualTo(CHUNK_SIZE * 5);
+    }
+
+    @Test
+    public void readAt_overwritten() {
+        for (int i = 0; i < 5; ++i) {
+            mRingBuffer.write(chunk(i), 0, CHUNK_SIZE);
+        }
+        byte[] output = new byte[CHUNK_SIZE];
+        assertThat(mRingBuffer.readAt(mReader, 0, output, 0, CHUNK_SIZE, TIMEOUT_MS))
+                .isEqualTo(TsRingBuffer.READ_ERROR_BUFFER_OVERWRITTEN);
+        assertThat(mRingBuffer.readAt(mReader, CHUNK_SIZE, output, 0, CHUNK_SIZE, TIMEOUT_MS))
+                .isEqualTo(CHUNK_SIZE);
+    }
+
+    @Test
+    public void getReadView_inPlace() {
+        for (int i = 0; i < 3; ++i) {
+            mRingBuffer.write(chunk(i), 0, CHUNK_SIZE);
+        }
+        assertThat(mRingBuffer.waitForRead(CHUNK_SIZE, CHUNK_SIZE * 2, TIMEOUT_MS))
+                .isEqualTo(CHUNK_SIZE * 2);
+        assertThat(mRingBuffer.getContiguousLength(CHUNK_SIZE)).isEqualTo(CHUNK_SIZE * 3);
+        ByteBuffer view = mRingBuffer.getReadView(mReader, CHUNK_SIZE, CHUNK_SIZE * 2);
+        assertThat(view.isReadOnly()).isTrue();
+        assertThat(view.remaining()).isEqualTo(CHUNK_SIZE * 2);
+        assertThat(view.get(view.position())).isEqualTo((byte) 1);
+        assertThat(view.get(view.limit() - 1)).isEqualTo((byte) 2);
+        assertThat(mRingBuffer.finishRead(mReader, CHUNK_SIZE, CHUNK_SIZE * 2)).isTrue();
+        assertThat(mReader.getPosition()).isEqualTo(CHUNK_SIZE * 3);
+    }
+
+    @Test
+    public void finishRead_overwrittenWhileReading() {
+        mRingBuffer.write(chunk(0), 0, CHUNK_SIZE);
+        assertThat(mRingBuffer.waitForRead(0, CHUNK_SIZE, TIMEOUT_MS)).isEqualTo(CHUNK_SIZE);
+        mRingBuffer.getReadView(mReader, 0, CHUNK_SIZE);
+        for (int i = 1; i < 5; ++i) {
+            mRingBuffer.write(chunk(i), 0, CHUNK_SIZE);
+        }
+        assertThat(mRingBuffer.finishRead(mReader, 0, CHUNK_SIZE)).isFalse();
+    }
+
+    @Test
+    public void readAt_timedOut() {
+        byte[] output = new byte[CHUNK_SIZE];
+        assertThat(mRingBuffer.readAt(mReader, 0, output, 0, CHUNK_SIZE, 10))
+                .isEqualTo(TsRingBuffer.READ_TIMED_OUT);
+    }
+
+    @Test
+    public void readAt_closed() {
+        mRingBuffer.write(chunk(0), 0, CHUNK_SIZE);
+        mRingBuffer.close();
+        byte[] output = new byte[CHUNK_SIZE];
+        assertThat(mRingBuffer.readAt(mReader, 0, output, 0, CHUNK_SIZE, TIMEOUT_MS))
+                .isEqualTo(TsRingBuffer.READ_ERROR_STREAMING_ENDED);
+    }
+
+    @Test
+    public void readAt_wakesUpOnWrite() throws InterruptedException {
+        AtomicInteger result = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread reader =
+                new Thread(
+                        () -> {
+                            byte[] output = new byte[CHUNK_SIZE];
+                            result.set(
+                                    mRingBuffer.readAt(
+                                            mReader, 0, output, 0, CHUNK_SIZE, TIMEOUT_MS));
+                            done.countDown();
+                        });
+        reader.start();
+        mRingBuffer.write(chunk(0), 0, CHUNK_SIZE);
+        assertThat(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(result.get()).isEqualTo(CHUNK_SIZE);
+    }
+
+    @Test
+    public void close_wakesUpReader() throws InterruptedException {
+        AtomicInteger result = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread reader =
+                new Thread(
+                        () -> {
+                            byte[] output = new byte[CHUNK_SIZE];
+                            result.set(
+                                    mRingBuffer.readAt(
+                                            mReader, 0, output, 0, CHUNK_SIZE, TIMEOUT_MS));
+                            done.countDown();
+                        });
+        reader.start();
+        mRingBuffer.close();
+        assertThat(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(result.get()).isEqualTo(TsRingBuffer.READ_ERROR_STREAMING_ENDED);
+    }
+
+    @Test
+    public void waitForFreeSpace_blocksUntilRead() throws InterruptedException {
+        for (int i = 0; i < 3; ++i) {
+            mRingBuffer.write(chunk(i), 0, CHUNK_SIZE);
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        Thread writer =
+                new Thread(
+                        () -> {
+                            if (mRingBuffer.waitForFreeSpace(CHUNK_SIZE * 2)) {
+                                done.countDown();
+                            }
+                        });
+        writer.start();
+        assertThat(done.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        byte[] output = new byte[CHUNK_SIZE];
+        assertThat(mRingBuffer.readAt(mReader, 0, output, 0, CHUNK_SIZE, TIMEOUT_MS))
+                .isEqualTo(CHUNK_SIZE);
+        assertThat(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+    }
+
+    @Test
+    public void waitForFreeSpace_waitsForSlowestReader() throws InterruptedException {
+        TsRingBuffer.Reader fastReader = mRingBuffer.addReader(0);
+        for (int i = 0; i < 3; ++i) {
+            mRingBuffer.write(chunk(i), 0, CHUNK_SIZE);
+        }
+        byte[] output = new byte[CHUNK_SIZE * 3];
+        assertThat(mRingBuffer.readAt(fastReader, 0, output, 0, output.length, TIMEOUT_MS))
+                .isEqualTo(output.length);
+        assertThat(mRingBuffer.getSlowestReadPosition()).isEqualTo(0);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread writer =
+                new Thread(
+                        () -> {
+                            if (mRingBuffer.waitForFreeSpace(CHUNK_SIZE * 2)) {
+                                done.countDown();
+                            }
+                        });
+        writer.start();
+
+        // The fast reader has read everything, but the slow one hasn't read anything yet.
+        assertThat(done.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(mRingBuffer.readAt(mReader, 0, output, 0, CHUNK_SIZE, TIMEOUT_MS))
+                .isEqualTo(CHUNK_SIZE);
+        assertThat(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        assertThat(mRingBuffer.getSlowestReadPosition()).isEqualTo(CHUNK_SIZE);
+    }
+
+    @Test
+    public void removeReader_releasesWriter() throws InterruptedException {
+        TsRingBuffer.Reader fastReader = mRingBuffer.addReader(0);
+        for (int i = 0; i < 3; ++i) {
+            mRingBuffer.write(chunk(i), 0, CHUNK_SIZE);
+        }
+        byte[] output = new byte[CHUNK_SIZE * 3];
+        assertThat(mRingBuffer.readAt(fastReader, 0, output, 0, output.length, TIMEOUT_MS))
+                .isEqualTo(output.length);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread writer =
+                new Thread(
+                        () -> {
+                            if (mRingBuffer.waitForFreeSpace(CHUNK_SIZE * 2)) {
+                                done.countDown();
+                            }
+                        });
+        writer.start();
+
+        assertThat(done.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        mRingBuffer.removeReader(mReader);
+        assertThat(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+    }
+
+    private static byte[] chunk(int value) {
+        byte[] data = new byte[CHUNK_SIZE];
+        for (int i = 0; i < CHUNK_SIZE; ++i) {
+            data[i] = (byte) value;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tv.testing.constants.ConfigConstants;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link PidTable}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class PidTableTest {
+    private final PidTable<String> mTable = new PidTable<>();
+
+    @Test
+    public void putAndGet() {
+        mTable.put(TsParser.PAT_PID, "pat");
+        mTable.put(TsParser.ATSC_SI_BASE_PID, "psip");
+        mTable.put(TsParser.ATSC_SI_BASE_PID, "psip2");
+
+        assertThat(mTable.size()).isEqualTo(2);
+        assertThat(mTable.get(TsParser.PAT_PID)).isEqualTo("pat");
+        assertThat(mTable.get(TsParser.ATSC_SI_BASE_PID)).isEqualTo("psip2");
+        assertThat(mTable.contains(PidTable.PID_COUNT - 1)).isFalse();
+        assertThat(mTable.get(0x31)).isNull();
+    }
+
+    @Test
+    public void clear() {
+        mTable.put(0x31, "video");
+        mTable.clear();
+
+        assertThat(mTable.isEmpty()).isTrue();
+        assertThat(mTable.contains(0x31)).isFalse();
+    }
+
+    @Test
+    public void readPid() {
+        byte[] packet = new byte[] {0x47, (byte) 0xff, (byte) 0xfb, 0x10};
+
+        // The upper 3 bits of the second byte are flags.
+        assertThat(PidTable.readPid(packet, 0)).isEqualTo(TsParser.ATSC_SI_BASE_PID);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.ts;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assume.assumeTrue;
+
+import android.util.Log;
+import com.android.tv.testing.constants.ConfigConstants;
+import com.android.tv.testing.utils.AllocationCounter;
+import com.android.tv.tuner.data.PsiData.PatItem;
+import com.android.tv.tuner.data.PsiData.PmtItem;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import com.android.tv.tuner.data.PsipData.SdtItem;
+import com.android.tv.tuner.data.PsipData.VctItem;
+import com.android.tv.tuner.util.Crc32Mpeg2;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link TsParser}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class TsParserTest {
+    private static final String TAG = "TsParserTest";
+    private static final String TEST_STREAM_ASSET = "capture_stream.ts";
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_PAYLOAD_SIZE = 184;
+
+    private static final int PROGRAM_NUMBER = 3;
+    private static final int PMT_PID = 0x100;
+
+    private byte[] mCapture;
+
+    private void loadCapture() throws IOException {
+        try (InputStream in = RuntimeEnvironment.application.getAssets().open(TEST_STREAM_ASSET)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            mCapture = out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testFeedTSData_repeatedSectionsDoNotAllocatePerPacket() throws IOException {
+        AllocationCounter allocationCounter = AllocationCounter.startOrSkip();
+        loadCapture();
+
+        int sectionPackets =
+                countPackets(TsParser.PAT_PID) + countPackets(TsParser.ATSC_SI_BASE_PID);
+        assumeTrue(sectionPackets > 0);
+
+        TsParser parser = new TsParser(null, false);
+        // The first pass handles every section version found in the capture.
+        parser.feedTSData(mCapture, 0, mCapture.length);
+
+        allocationCounter.restart();
+        parser.feedTSData(mCapture, 0, mCapture.length);
+        long allocated = allocationCounter.getAllocatedBytes();
+
+        // Copying out the payload of each packet would allocate at least TS_PAYLOAD_SIZE bytes
+        // per PSI/PSIP packet, even for the PIDs which are always listened to.
+        assertWithMessage("Bytes allocated while re-feeding " + sectionPackets + " PSI packets")
+                .that(allocated)
+                .isLessThan((long) sectionPackets * TS_PAYLOAD_SIZE / 4);
+    }
+
+    @Test
+    public void testFeedTSData_skipsUnregisteredPids() {
+        // A multiplex in which one packet in a hundred is PSI and the rest are audio and video.
+        // The audio and video packets carry PAT sections too, which would report other programs
+        // if they ever reached the section parser.
+        int packetCount = 10000;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(TS_PACKET_SIZE * packetCount);
+        for (int i = 0; i < packetCount; ++i) {
+            boolean psi = i % 100 == 0;
+            int programNumber = psi ? PROGRAM_NUMBER : PROGRAM_NUMBER + 1 + i % 4;
+            writePacket(
+                    out,
+                    psi ? TsParser.PAT_PID : 0x31 + i % 4,
+                    buildSection(
+                            0x00,
+                            1,
+                            programNumber >> 8,
+                            programNumber,
+                            0xe0 | PMT_PID >> 8,
+                            PMT_PID));
+        }
+        byte[] multiplex = out.toByteArray();
+
+        ProgramRecorder recorder = new ProgramRecorder();
+        TsParser parser = new TsParser(recorder, false);
+        int passes = 100;
+        long startNs = System.nanoTime();
+        for (int i = 0; i < passes; ++i) {
+            parser.feedTSData(multiplex, 0, multiplex.length);
+        }
+        long elapsedNs = Math.max(1, System.nanoTime() - startNs);
+        assertWithMessage("Programs from byte[]")
+                .that(recorder.mProgramNumbers)
+                .containsExactly(PROGRAM_NUMBER);
+
+        ProgramRecorder directRecorder = new ProgramRecorder();
+        ByteBuffer direct = ByteBuffer.allocateDirect(multiplex.length);
+        direct.put(multiplex);
+        new TsParser(directRecorder, false).feedTSData(direct, 0, multiplex.length);
+        assertWithMessage("Programs from direct ByteBuffer")
+                .that(directRecorder.mProgramNumbers)
+                .containsExactly(PROGRAM_NUMBER);
+
+        // The timing depends on the host, so it is only logged.
+        Log.i(
+                TAG,
+                "Fed "
+                        + (long) packetCount * passes * 1000000000L / elapsedNs
+                        + " packets per second");
+    }
+
+    private int countPackets(int pid) {
+        int count = 0;
+        for (int pos = 0; pos <= mCapture.length - TS_PACKET_SIZE; pos += TS_PACKET_SIZE) {
+            int packetPid = ((mCapture[pos + 1] & 0x1f) << 8) | (mCapture[pos + 2] & 0xff);
+            if (packetPid == pid) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Builds a long form section of version 0, whose section number is 0 out of 1. */
+    private static byte[] buildSection(int tableId, int tableIdExtension, int... payload) {
+        int length = 8 + payload.length;
+        byte[] section = new byte[length + 4];
+        int sectionLength = section.length - 3;
+        section[0] = (byte) tableId;
+        section[1] = (byte) (0xb0 | sectionLength >> 8);
+        section[2] = (byte) sectionLength;
+        section[3] = (byte) (tableIdExtension >> 8);
+        section[4] = (byte) tableIdExtension;
+        section[5] = (byte) 0xc1;
+        for (int i = 0; i < payload.length; ++i) {
+            section[8 + i] = (byte) payload[i];
+        }
+        int crc = Crc32Mpeg2.compute(section, 0, length);
+        for (int i = 0; i < 4; ++i) {
+            section[length + i] = (byte) (crc >> (24 - 8 * i));
+        }
+        return section;
+    }
+
+    private static void writePacket(ByteArrayOutputStream out, int pid, byte[] section) {
+        byte[] packet = new byte[TS_PACKET_SIZE];
+        Arrays.fill(packet, (byte) 0xff);
+        packet[0] = 0x47;
+        // The payload starts a section right after the pointer field.
+        packet[1] = (byte) (0x40 | pid >> 8);
+        packet[2] = (byte) pid;
+        packet[3] = 0x10;
+        packet[4] = 0;
+        System.arraycopy(section, 0, packet, 5, section.length);
+        out.write(packet, 0, packet.length);
+    }
+
+    /** Records the program numbers of the PATs which the parser reports. */
+    private static class ProgramRecorder implements TsParser.TsOutputListener {
+        private final Set<Integer> mProgramNumbers = new HashSet<>();
+
+        @Override
+        public void onPatDetected(List<PatItem> items) {
+            for (PatItem item : items) {
+                mProgramNumbers.add(item.getProgramNo());
+            }
+        }
+
+        @Override
+        public void onEitPidDetected(int pid) {}
+
+        @Override
+        public void onVctItemParsed(VctItem channel, List<PmtItem> pmtItems) {}
+
+        @Override
+        public void onEitItemParsed(VctItem channel, List<EitItem> items) {}
+
+        @Override
+        public void onEttPidDetected(int pid) {}
+
+        @Override
+        public void onAllVctItemsParsed() {}
+
+        @Override
+        public void onSdtItemParsed(SdtItem channel, List<PmtItem> pmtItems) {}
+    }
+}
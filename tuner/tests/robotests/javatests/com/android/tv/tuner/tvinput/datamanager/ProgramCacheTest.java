@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tv.tuner.tvinput.datamanager;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.tv.testing.constants.ConfigConstants;
+import com.android.tv.tuner.data.PsipData.EitItem;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link ProgramCache}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class ProgramCacheTest {
+    private static final long CHANNEL_ID = 1;
+
+    private final ProgramCache mCache = new ProgramCache();
+
+    @Test
+    public void fingerprint_ignoresOrder() {
+        EitItem first = createItem(1, 1, 1000, 3600, "news");
+        EitItem second = createItem(2, 2, 4600, 3600, "movie");
+
+        assertThat(ProgramCache.fingerprint(Arrays.asList(first, second)))
+                .isEqualTo(ProgramCache.fingerprint(Arrays.asList(second, first)));
+    }
+
+    @Test
+    public void fingerprint_changesWithContent() {
+        EitItem item = createItem(1, 1, 1000, 3600, "news");
+        long fingerprint = ProgramCache.fingerprint(Arrays.asList(item));
+
+        item.setDescription("weather");
+
+        assertThat(ProgramCache.fingerprint(Arrays.asList(item))).isNotEqualTo(fingerprint);
+        assertThat(ProgramCache.fingerprint(Arrays.asList(createItem(2, 1, 1000, 3600, "news"))))
+                .isNotEqualTo(fingerprint);
+    }
+
+    @Test
+    public void isHandled() {
+        List<EitItem> items = Arrays.asList(createItem(1, 1, 1000, 3600, "news"));
+        long fingerprint = ProgramCache.fingerprint(items);
+        assertThat(mCache.isHandled(CHANNEL_ID, fingerprint)).isFalse();
+
+        mCache.put(CHANNEL_ID, fingerprint, items);
+
+        assertThat(mCache.isHandled(CHANNEL_ID, fingerprint)).isTrue();
+        assertThat(mCache.isHandled(CHANNEL_ID + 1, fingerprint)).isFalse();
+    }
+
+    @Test
+    public void getPrograms_sortedAndInPeriod() {
+        EitItem early = createItem(1, 1, 1000, 3600, "early");
+        EitItem middle = createItem(2, 2, 4600, 3600, "middle");
+        EitItem late = createItem(3, 3, 8200, 3600, "late");
+        mCache.put(CHANNEL_ID, 0, Arrays.asList(late, early, middle));
+
+        assertThat(mCache.getPrograms(CHANNEL_ID + 1, 0, Long.MAX_VALUE)).isNull();
+        assertThat(mCache.getPrograms(CHANNEL_ID, 0, Long.MAX_VALUE))
+                .containsExactly(early, middle, late)
+                .inOrder();
+        assertThat(
+                        mCache.getPrograms(
+                                CHANNEL_ID,
+                                middle.getStartTimeUtcMillis() + 1,
+                                middle.getEndTimeUtcMillis() - 1))
+                .containsExactly(middle);
+    }
+
+    @Test
+    public void onProgramChanged_ignoresOwnWrites() {
+        mCache.put(CHANNEL_ID, 0, Arrays.asList(createItem(1, 1, 1000, 3600, "news")));
+        mCache.addWrittenProgramId(1);
+
+        mCache.onProgramChanged(1);
+        assertThat(mCache.isHandled(CHANNEL_ID, 0)).isTrue();
+
+        // The notification for program 1 was consumed, so the next one is an external change.
+        mCache.onProgramChanged(1);
+        assertThat(mCache.isHandled(CHANNEL_ID, 0)).isFalse();
+    }
+
+    @Test
+    public void onProgramChanged_unknownProgram() {
+        mCache.put(CHANNEL_ID, 0, Arrays.asList(createItem(1, 1, 1000, 3600, "news")));
+
+        mCache.onProgramChanged(-1);
+
+        assertThat(mCache.getPrograms(CHANNEL_ID, 0, Long.MAX_VALUE)).isNull();
+    }
+
+    private static EitItem createItem(
+            long programId, int eventId, long startTime, int lengthInSecond, String title) {
+        return new EitItem(
+                programId,
+                eventId,
+                title,
+                startTime,
+                lengthInSecond,
+                null,
+                null,
+                null,
+                null,
+                null,
+                null);
+    }
+}
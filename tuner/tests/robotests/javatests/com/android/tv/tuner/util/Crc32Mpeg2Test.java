@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tv.tuner.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.android.tv.testing.constants.ConfigConstants;
+import com.android.tv.tuner.data.SectionParser;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for {@link Crc32Mpeg2}. */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = ConfigConstants.SDK)
+public class Crc32Mpeg2Test {
+    // From a small PAT section up to a full EIT section.
+    private static final int[] SECTION_SIZES = {0, 1, 7, 8, 9, 16, 188, 1021, 1024, 4093, 4096};
+    private static final int MAX_OFFSET = 9;
+    private static final ByteOrder[] BYTE_ORDERS = {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN};
+
+    private final Random mRandom = new Random(0);
+
+    @Test
+    public void compute_byteArray_matchesTableDrivenCrc() {
+        for (int size : SECTION_SIZES) {
+            byte[] data = randomBytes(size + MAX_OFFSET);
+            for (int offset = 0; offset < MAX_OFFSET; ++offset) {
+                assertWithMessage("size " + size + ", offset " + offset)
+                        .that(Crc32Mpeg2.compute(data, offset, size))
+                        .isEqualTo(tableDrivenCrc(data, offset, size));
+            }
+        }
+    }
+
+    @Test
+    public void update_directByteBuffer_matchesTableDrivenCrc() {
+        for (int size : SECTION_SIZES) {
+            byte[] data = randomBytes(size + MAX_OFFSET);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+            buffer.put(data);
+            for (ByteOrder order : BYTE_ORDERS) {
+                buffer.order(order);
+                for (int offset = 0; offset < MAX_OFFSET; ++offset) {
+                    assertWithMessage("size " + size + ", offset " + offset + ", " + order)
+                            .that(
+                                    Crc32Mpeg2.update(
+                                            Crc32Mpeg2.INITIAL_VALUE, buffer, offset, size))
+                            .isEqualTo(tableDrivenCrc(data, offset, size));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compute_heapByteBuffer_keepsPosition() {
+        byte[] data = randomBytes(188);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(4);
+        assertThat(Crc32Mpeg2.compute(buffer)).isEqualTo(tableDrivenCrc(data, 4, 184));
+        assertThat(buffer.position()).isEqualTo(4);
+    }
+
+    @Test
+    public void compute_sectionWithCrc_isZero() {
+        byte[] section = randomBytes(1024);
+        int crc = tableDrivenCrc(section, 0, section.length - 4);
+        section[section.length - 4] = (byte) (crc >>> 24);
+        section[section.length - 3] = (byte) (crc >>> 16);
+        section[section.length - 2] = (byte) (crc >>> 8);
+        section[section.length - 1] = (byte) crc;
+        assertThat(Crc32Mpeg2.compute(section, 0, section.length)).isEqualTo(0);
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        mRandom.nextBytes(data);
+        return data;
+    }
+
+    // The byte-at-a-time loop which SectionParser used before.
+    private static int tableDrivenCrc(byte[] data, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; ++i) {
+            int index = ((crc >> 24) ^ (data[i] & 0xff)) & 0xff;
+            crc = SectionParser.CRC_TABLE[index] ^ (crc << 8);
+        }
+        return crc;
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.android.tv.tuner;
 
+import java.nio.ByteBuffer;
+
 public class FakeTunerHal extends TunerHal {
 
     private boolean mDeviceOpened;
@@ -69,6 +71,12 @@ public class FakeTunerHal extends TunerHal {
         return 0;
     }
 
+    @Override
+    protected int nativeWriteInDirectBuffer(
+            long deviceId, ByteBuffer directBuffer, int offset, int size) {
+        return 0;
+    }
+
     @Override
     protected void nativeSetHasPendingTune(long deviceId, boolean hasPendingTune) {}
 
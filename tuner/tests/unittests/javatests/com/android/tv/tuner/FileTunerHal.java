@@ -24,6 +24,7 @@ import com.android.tv.testing.utils.Utils;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 /** This class simulate the actions happened in TunerHal. */
@@ -50,6 +51,7 @@ public class FileTunerHal extends TunerHal {
 
     private final SparseBooleanArray mPids = new SparseBooleanArray();
     private final byte[] mBuffer = new byte[MIN_READ_UNIT];
+    private final byte[] mDirectReadBuffer = new byte[TS_PAYLOAD_SIZE];
     private final File mTestFile;
     private final Random mGenerator;
     private RandomAccessFile mAccessFile;
@@ -208,6 +210,20 @@ public class FileTunerHal extends TunerHal {
         return filteredSize;
     }
 
+    @Override
+    protected int nativeWriteInDirectBuffer(
+            long deviceId, ByteBuffer directBuffer, int offset, int size) {
+        int readSize =
+                nativeWriteInBuffer(
+                        deviceId, mDirectReadBuffer, Math.min(size, mDirectReadBuffer.length));
+        if (readSize > 0) {
+            ByteBuffer view = directBuffer.duplicate();
+            view.position(offset);
+            view.put(mDirectReadBuffer, 0, readSize);
+        }
+        return readSize;
+    }
+
     @Override
     protected void nativeSetHasPendingTune(long deviceId, boolean hasPendingTune) {
         if (deviceId != DEVICE_ID) {